@@ -0,0 +1,181 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import org.glowroot.agent.weaving.ClassNameIndex;
+import org.glowroot.common.util.Patterns;
+
+// matching every loaded class name against the pointcut class names of all advisors, with a mix
+// similar to the bundled plugins plus ~300 custom instrumentation configs, over a synthetic corpus
+// of 50k class names
+//
+// linearScan is how advisors were matched before ClassNameIndex (evaluating every pattern for every
+// class name), and indexed is the candidate lookup plus the full match of the candidates
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ClassNameIndexBenchmark {
+
+    private static final int CLASS_NAME_COUNT = 50000;
+
+    private static final String[] BUNDLED_PLUGIN_CLASS_NAMES = {"javax.servlet.Servlet",
+            "javax.servlet.Filter", "javax.servlet.ServletRequest", "javax.servlet.ServletResponse",
+            "javax.servlet.http.HttpSession", "javax.servlet.AsyncContext",
+            "javax.servlet.RequestDispatcher", "java.sql.Connection", "java.sql.Statement",
+            "java.sql.PreparedStatement", "java.sql.CallableStatement", "java.sql.ResultSet",
+            "java.sql.DatabaseMetaData", "javax.sql.DataSource", "java.util.logging.Logger",
+            "org.apache.log4j.Category", "org.slf4j.Logger", "ch.qos.logback.classic.Logger",
+            "org.apache.http.client.HttpClient", "org.apache.commons.httpclient.HttpClient",
+            "com.ning.http.client.AsyncHttpClient", "okhttp3.Call", "com.squareup.okhttp.Call",
+            "java.net.HttpURLConnection", "javax.jms.MessageListener", "javax.ws.rs.Path",
+            "org.springframework.web.servlet.DispatcherServlet",
+            "org.springframework.web.servlet.mvc.method.AbstractHandlerMethodAdapter",
+            "org.springframework.web.client.RestTemplate", "org.hibernate.Session",
+            "org.hibernate.Transaction", "org.hibernate.Criteria", "org.hibernate.Query",
+            "com.datastax.driver.core.Session", "redis.clients.jedis.Jedis",
+            "com.mongodb.DBCollection", "org.elasticsearch.client.support.AbstractClient",
+            "org.apache.struts.action.Action", "com.opensymphony.xwork2.ActionProxy",
+            "org.apache.wicket.RequestCycle", "play.mvc.Controller", "io.netty.channel.Channel",
+            "javax.servlet.jsp.HttpJspPage|org.apache.jasper.runtime.HttpJspBase",
+            "org.apache.catalina.connector.CoyoteAdapter|org.apache.coyote.Adapter",
+            "java.util.concurrent.Executor|java.util.concurrent.ExecutorService",
+            "java.lang.Runnable|java.util.concurrent.Callable", "org.quartz.Job",
+            "javax.ejb.MessageDrivenBean", "org.apache.cxf.service.invoker.Invoker",
+            "javax.xml.ws.Service", "org.grails.web.mapping.mvc.UrlMappingsInfoHandlerAdapter",
+            "com.sun.jersey.spi.container.servlet.ServletContainer", "javax.jws.WebService",
+            "org.apache.cassandra.*", "com.mysql.jdbc.*", "oracle.jdbc.*", "*Servlet",
+            "*Controller|*Resource", "/org\\.apache\\.tomcat\\.jdbc\\.pool\\..*Proxy/"};
+
+    private List<String> classNames;
+
+    private List<String> classNamePatterns;
+    private List</*@Nullable*/ Pattern> patterns;
+
+    private ClassNameIndex<Integer> classNameIndex;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        classNamePatterns = Lists.newArrayList();
+        for (String className : BUNDLED_PLUGIN_CLASS_NAMES) {
+            classNamePatterns.add(className);
+        }
+        for (int i = 0; i < 300; i++) {
+            switch (i % 10) {
+                case 0:
+                    classNamePatterns.add("com.example.module" + i + ".dao.*");
+                    break;
+                case 1:
+                    classNamePatterns.add("com.example.module" + i + ".service.*Service");
+                    break;
+                default:
+                    classNamePatterns.add("com.example.module" + i + ".service.Service" + i);
+            }
+        }
+        patterns = Lists.newArrayList();
+        ClassNameIndex.Builder<Integer> builder = ClassNameIndex.builder();
+        for (int i = 0; i < classNamePatterns.size(); i++) {
+            String classNamePattern = classNamePatterns.get(i);
+            patterns.add(buildPattern(classNamePattern));
+            builder.add(classNamePattern, i);
+        }
+        classNameIndex = builder.build();
+        classNames = Lists.newArrayList();
+        String[] vendors = {"com.example", "org.apache", "org.springframework", "com.google",
+                "io.netty", "org.hibernate", "java.util", "javax.servlet", "com.fasterxml"};
+        String[] suffixes = {"", "Impl", "Service", "Controller", "Servlet", "Factory", "Util"};
+        for (int i = 0; i < CLASS_NAME_COUNT; i++) {
+            if (i % 100 == 0) {
+                // some class names that match a pattern exactly
+                classNames.add(classNamePatterns.get(random.nextInt(classNamePatterns.size()))
+                        .replace("*", "Abc"));
+                continue;
+            }
+            String vendor = vendors[random.nextInt(vendors.length)];
+            String module = "module" + random.nextInt(400);
+            String layer = random.nextBoolean() ? "service" : "dao";
+            String suffix = suffixes[random.nextInt(suffixes.length)];
+            classNames.add(vendor + "." + module + "." + layer + ".Class" + i + suffix);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CLASS_NAME_COUNT)
+    public void linearScan(Blackhole blackhole) {
+        for (String className : classNames) {
+            for (int i = 0; i < patterns.size(); i++) {
+                if (isMatch(className, i)) {
+                    blackhole.consume(i);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CLASS_NAME_COUNT)
+    public void indexed(Blackhole blackhole) {
+        for (String className : classNames) {
+            for (int i : classNameIndex.getCandidates(className)) {
+                if (isMatch(className, i)) {
+                    blackhole.consume(i);
+                }
+            }
+        }
+    }
+
+    private boolean isMatch(String className, int i) {
+        Pattern pattern = patterns.get(i);
+        if (pattern == null) {
+            return classNamePatterns.get(i).equals(className);
+        }
+        return pattern.matcher(className).matches();
+    }
+
+    // same as AdviceBuilder.buildPattern()
+    private static /*@Nullable*/ Pattern buildPattern(String maybePattern) {
+        if (maybePattern.startsWith("/") && maybePattern.endsWith("/")) {
+            return Pattern.compile(maybePattern.substring(1, maybePattern.length() - 1));
+        }
+        if (maybePattern.contains("|")) {
+            String[] parts = maybePattern.split("\\|");
+            for (int i = 0; i < parts.length; i++) {
+                parts[i] = Patterns.buildSimplePattern(parts[i]);
+            }
+            return Pattern.compile(Joiner.on('|').join(parts));
+        }
+        if (maybePattern.contains("*")) {
+            return Pattern.compile(Patterns.buildSimplePattern(maybePattern));
+        }
+        return null;
+    }
+}
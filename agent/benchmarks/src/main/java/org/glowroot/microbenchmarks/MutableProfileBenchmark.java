@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.common.model.MutableProfile;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+// stack traces are 200 frames deep, sharing a common base (thread pool, servlet container,
+// framework) and diverging further up the stack, which is typical of long running transactions
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class MutableProfileBenchmark {
+
+    private static final int STACK_TRACE_DEPTH = 200;
+    private static final int DISTINCT_STACK_TRACES = 500;
+
+    private List<List<StackTraceElement>> stackTraces;
+    private MutableProfile steadyStateProfile;
+    private Profile profile;
+
+    private int stackTraceIndex;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        stackTraces = Lists.newArrayList();
+        for (int i = 0; i < DISTINCT_STACK_TRACES; i++) {
+            stackTraces.add(createStackTrace(random));
+        }
+        steadyStateProfile = new MutableProfile();
+        for (List<StackTraceElement> stackTrace : stackTraces) {
+            steadyStateProfile.merge(stackTrace, Thread.State.RUNNABLE);
+        }
+        profile = steadyStateProfile.toProto();
+    }
+
+    // merging a stack trace sample into a profile that already has most of its frames, e.g. a long
+    // running transaction being sampled every few hundred milliseconds
+    @Benchmark
+    public void mergeStackTrace() {
+        steadyStateProfile.merge(stackTraces.get(stackTraceIndex++ % DISTINCT_STACK_TRACES),
+                Thread.State.RUNNABLE);
+    }
+
+    // merging stored profiles into a new profile, e.g. building the merged profile view
+    @Benchmark
+    public MutableProfile mergeProfile() {
+        MutableProfile mutableProfile = new MutableProfile();
+        mutableProfile.merge(profile);
+        mutableProfile.merge(profile);
+        return mutableProfile;
+    }
+
+    private static List<StackTraceElement> createStackTrace(Random random) {
+        List<StackTraceElement> stackTrace = Lists.newArrayList();
+        for (int depth = 0; depth < STACK_TRACE_DEPTH; depth++) {
+            int variant;
+            if (depth < 100) {
+                // common base of the stack
+                variant = 0;
+            } else if (depth < 150) {
+                variant = random.nextInt(3);
+            } else {
+                variant = random.nextInt(10);
+            }
+            int packageNum = depth / 20;
+            String className = "org.example.layer" + packageNum + ".Component" + depth + "v"
+                    + variant;
+            stackTrace.add(new StackTraceElement(className, "method" + variant,
+                    "Component" + depth + "v" + variant + ".java", 100 + depth));
+        }
+        // stack trace elements are ordered leaf first, same as Thread.getStackTrace()
+        return Lists.reverse(stackTrace);
+    }
+}
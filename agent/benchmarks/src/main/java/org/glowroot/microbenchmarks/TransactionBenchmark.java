@@ -19,12 +19,14 @@ import java.util.concurrent.TimeUnit;
 
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
 import org.openjdk.jmh.annotations.Param;
 import org.openjdk.jmh.annotations.Scope;
 import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
 
 import org.glowroot.microbenchmarks.support.TransactionWorthy;
 
@@ -43,8 +45,30 @@ public class TransactionBenchmark {
         transactionWorthy = new TransactionWorthy();
     }
 
+    // per-transaction overhead with each thread stats mode (glowroot.threadStats.mode), run these
+    // with the agent attached and transaction capture thread stats enabled
+
     @Benchmark
+    @Fork(jvmArgsAppend = "-Dglowroot.threadStats.mode=full")
     public void execute() throws Exception {
+        executeInternal();
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dglowroot.threadStats.mode=cheap")
+    public void executeWithCheapThreadStats() throws Exception {
+        executeInternal();
+    }
+
+    // high transaction churn from many threads at once, which is mostly a measure of contention
+    // on the transaction registry
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void executeConcurrently() throws Exception {
+        executeInternal();
+    }
+
+    private void executeInternal() throws Exception {
         switch (pointcutType) {
             case API:
                 transactionWorthy.doSomethingTransactionWorthy();
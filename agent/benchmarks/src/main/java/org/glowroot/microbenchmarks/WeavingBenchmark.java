@@ -16,6 +16,7 @@
 package org.glowroot.microbenchmarks;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.List;
@@ -28,6 +29,7 @@ import com.google.common.base.Splitter;
 import com.google.common.base.StandardSystemProperty;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
 import org.openjdk.jmh.annotations.Measurement;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
@@ -37,6 +39,8 @@ import org.openjdk.jmh.annotations.State;
 import org.openjdk.jmh.annotations.TearDown;
 import org.openjdk.jmh.annotations.Warmup;
 
+import org.glowroot.agent.weaving.DeferredWeaver;
+
 @BenchmarkMode(Mode.SingleShotTime)
 @Warmup(iterations = 0)
 @Measurement(iterations = 1)
@@ -76,15 +80,53 @@ public class WeavingBenchmark {
         Thread.sleep(100);
     }
 
+    // weaving overhead of the startup class loading burst with each frame handling mode
+    // (glowroot.weaving.preserveFrames), run these with the agent attached
+
     @Benchmark
+    @Fork(jvmArgsAppend = "-Dglowroot.weaving.preserveFrames=false")
     public void execute() throws ClassNotFoundException {
+        executeInternal();
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dglowroot.weaving.preserveFrames=true")
+    public void executePreservingFrames() throws ClassNotFoundException {
+        executeInternal();
+    }
+
+    // class loading burst with weaving deferred until first use (glowroot.weaving.deferred), in
+    // which case (since the classes are only loaded here and not used) no classes are woven
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dglowroot.weaving.deferred=true")
+    public void executeDeferred() throws ClassNotFoundException {
+        executeInternal();
+    }
+
+    // class loading burst with weaving deferred, followed by the first use of each class, which
+    // is an upper bound of the deferred weaving cost, since every loaded class is treated as used
+    // and retransformed (including the classes that were not deferred in the first place)
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dglowroot.weaving.deferred=true")
+    public void executeDeferredWithFirstUse()
+            throws ClassNotFoundException, InterruptedException {
+        for (Class<?> clazz : executeInternal()) {
+            DeferredWeaver.onFirstInvocation(clazz);
+        }
+        DeferredWeaver.awaitRetransformation();
+    }
+
+    private List<Class<?>> executeInternal() throws ClassNotFoundException {
+        List<Class<?>> classes = new ArrayList<Class<?>>();
         for (String className : classNames) {
             try {
-                Class.forName(className, false, WeavingBenchmark.class.getClassLoader());
+                classes.add(
+                        Class.forName(className, false, WeavingBenchmark.class.getClassLoader()));
             } catch (NoClassDefFoundError e) {
                 // optional dependencies are not transitively included
             }
         }
+        return classes;
     }
 
     private static List<String> getClassPath() {
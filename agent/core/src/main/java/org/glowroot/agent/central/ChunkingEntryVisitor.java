@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.glowroot.agent.collector.Collector.EntryVisitor;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// sends entries in chunks as they are visited, so that the entries of a large trace never need to
+// be held in memory all at once
+//
+// shared query text indexes are across all of the chunks, and each chunk has the shared query texts
+// that are first referenced by the entries in that chunk
+abstract class ChunkingEntryVisitor implements EntryVisitor {
+
+    private final int chunkSizeBytes;
+
+    private final Map<String, Integer> sharedQueryTextIndexes = Maps.newHashMap();
+
+    private List<Trace.Entry> chunkEntries = Lists.newArrayList();
+    private List<Trace.SharedQueryText> chunkSharedQueryTexts = Lists.newArrayList();
+    private int chunkBytes;
+
+    ChunkingEntryVisitor(int chunkSizeBytes) {
+        this.chunkSizeBytes = chunkSizeBytes;
+    }
+
+    @Override
+    public int visitSharedQueryText(String sharedQueryText) {
+        Integer sharedQueryTextIndex = sharedQueryTextIndexes.get(sharedQueryText);
+        if (sharedQueryTextIndex != null) {
+            return sharedQueryTextIndex;
+        }
+        sharedQueryTextIndex = sharedQueryTextIndexes.size();
+        sharedQueryTextIndexes.put(sharedQueryText, sharedQueryTextIndex);
+        chunkSharedQueryTexts.add(Trace.SharedQueryText.newBuilder()
+                .setFullText(sharedQueryText)
+                .build());
+        return sharedQueryTextIndex;
+    }
+
+    @Override
+    public void visitEntry(Trace.Entry entry) throws Exception {
+        chunkEntries.add(entry);
+        chunkBytes += entry.getSerializedSize();
+        if (chunkBytes >= chunkSizeBytes) {
+            sendChunk(true);
+        }
+    }
+
+    // sends the last chunk, which is sent even if it has no entries so that the receiver knows that
+    // there are no more chunks
+    void finish() throws Exception {
+        sendChunk(false);
+    }
+
+    abstract void sendChunk(List<Trace.Entry> entries,
+            List<Trace.SharedQueryText> sharedQueryTexts, boolean moreChunks) throws Exception;
+
+    private void sendChunk(boolean moreChunks) throws Exception {
+        List<Trace.Entry> entries = chunkEntries;
+        List<Trace.SharedQueryText> sharedQueryTexts = chunkSharedQueryTexts;
+        chunkEntries = Lists.newArrayList();
+        chunkSharedQueryTexts = Lists.newArrayList();
+        chunkBytes = 0;
+        sendChunk(entries, sharedQueryTexts, moreChunks);
+    }
+}
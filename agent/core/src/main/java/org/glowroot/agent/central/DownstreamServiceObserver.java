@@ -17,12 +17,18 @@ package org.glowroot.agent.central;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.Nullable;
 
 import com.google.common.base.Stopwatch;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.grpc.stub.CallStreamObserver;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,7 +40,9 @@ import org.glowroot.agent.live.LiveWeavingServiceImpl;
 import org.glowroot.common.live.LiveJvmService.DirectoryDoesNotExistException;
 import org.glowroot.common.live.LiveJvmService.UnavailableDueToRunningInIbmJvmException;
 import org.glowroot.common.live.LiveJvmService.UnavailableDueToRunningInJreException;
+import org.glowroot.common.live.LiveTraceRepository.ChunkedEntries;
 import org.glowroot.common.live.LiveTraceRepository.Entries;
+import org.glowroot.common.live.LiveTraceRepository.FullTrace;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.wire.api.model.DownstreamServiceGrpc;
 import org.glowroot.wire.api.model.DownstreamServiceGrpc.DownstreamServiceStub;
@@ -85,15 +93,22 @@ import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkState;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
-class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
+class DownstreamServiceObserver implements ClientResponseObserver<AgentResponse, CentralRequest> {
 
     private static final Logger logger = LoggerFactory.getLogger(DownstreamServiceObserver.class);
 
     // log startup messages using logger name "org.glowroot"
     private static final Logger startupLogger = LoggerFactory.getLogger("org.glowroot");
 
+    // chunked entries and full trace responses are split so that each message has roughly this
+    // many bytes of entries, which keeps large traces well under the grpc max message size
+    private static final int CHUNK_SIZE_BYTES =
+            Integer.getInteger("glowroot.internal.downstream.chunkSizeBytes", 1024 * 1024);
+
     private final CentralConnection centralConnection;
     private final DownstreamServiceStub downstreamServiceStub;
     private final AgentConfigUpdater agentConfigUpdater;
@@ -110,6 +125,13 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
 
     private final SharedQueryTextLimiter sharedQueryTextLimiter;
 
+    // requests are handled on this thread instead of on the grpc executor thread that delivers
+    // them, so that waiting for the response stream to be ready (see waitUntilReady()) never
+    // blocks the grpc executor thread, which is also the thread that runs the on-ready handler
+    private final ExecutorService requestExecutor;
+
+    private final Object readyLock = new Object();
+
     DownstreamServiceObserver(CentralConnection centralConnection,
             AgentConfigUpdater agentConfigUpdater, LiveJvmServiceImpl liveJvmService,
             LiveWeavingServiceImpl liveWeavingService, LiveTraceRepositoryImpl liveTraceRepository,
@@ -125,10 +147,27 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
         this.agentId = agentId;
         this.inConnectionFailure = inConnectionFailure;
         this.sharedQueryTextLimiter = sharedQueryTextLimiter;
+        requestExecutor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("Glowroot-Downstream-Request")
+                        .build());
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<AgentResponse> requestStream) {
+        requestStream.setOnReadyHandler(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (readyLock) {
+                    readyLock.notifyAll();
+                }
+            }
+        });
     }
 
     @Override
-    public void onNext(CentralRequest request) {
+    public void onNext(final CentralRequest request) {
         inMaybeConnectionFailure.set(false);
         boolean errorFixed = inConnectionFailure.getAndSet(false);
         if (errorFixed) {
@@ -139,11 +178,16 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
         if (request.getMessageCase() == MessageCase.HELLO_ACK) {
             return;
         }
-        try {
-            onNextInternal(request);
-        } catch (Throwable t) {
-            logger.error(t.getMessage(), t);
-        }
+        requestExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    onNextInternal(request);
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                }
+            }
+        });
     }
 
     @Override
@@ -166,6 +210,10 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
             });
         }
         currResponseObserver = null;
+        // wake up any request waiting to send its next chunk on the failed stream
+        synchronized (readyLock) {
+            readyLock.notifyAll();
+        }
         Executors.newSingleThreadExecutor().execute(new Runnable() {
             @Override
             public void run() {
@@ -672,12 +720,47 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
                 .build());
     }
 
-    private void getEntriesAndRespond(CentralRequest request,
+    private void getEntriesAndRespond(final CentralRequest request,
+            final StreamObserver<AgentResponse> responseObserver) throws Exception {
+        String traceId = request.getEntriesRequest().getTraceId();
+        if (!request.getEntriesRequest().getChunked()) {
+            getUnchunkedEntriesAndRespond(request, responseObserver);
+            return;
+        }
+        ChunkingEntryVisitor entryVisitor = new ChunkingEntryVisitor(CHUNK_SIZE_BYTES) {
+            @Override
+            void sendChunk(List<Trace.Entry> entries, List<Trace.SharedQueryText> sharedQueryTexts,
+                    boolean moreChunks) throws Exception {
+                waitUntilReady(responseObserver);
+                responseObserver.onNext(AgentResponse.newBuilder()
+                        .setRequestId(request.getRequestId())
+                        .setEntriesResponse(EntriesResponse.newBuilder()
+                                .addAllEntry(entries)
+                                .addAllSharedQueryText(sharedQueryTextLimiter
+                                        .reduceTracePayloadWherePossible(sharedQueryTexts))
+                                .setMoreChunks(moreChunks))
+                        .build());
+            }
+        };
+        try {
+            // if the trace is not found, this just sends a single chunk with no entries
+            liveTraceRepository.visitEntries(traceId, entryVisitor);
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+            // this also ends the response if some chunks have already been sent
+            sendExceptionResponse(request, responseObserver);
+            return;
+        }
+        entryVisitor.finish();
+    }
+
+    // older central collectors do not support chunked responses
+    private void getUnchunkedEntriesAndRespond(CentralRequest request,
             StreamObserver<AgentResponse> responseObserver) throws Exception {
         Entries entries;
         try {
-            entries = liveTraceRepository.getEntries("", "",
-                    request.getEntriesRequest().getTraceId());
+            entries = readSingleChunk(liveTraceRepository.getEntries("", "",
+                    request.getEntriesRequest().getTraceId()));
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
             sendExceptionResponse(request, responseObserver);
@@ -745,25 +828,95 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
                 .build());
     }
 
-    private void getFullTraceAndRespond(CentralRequest request,
+    private void getFullTraceAndRespond(final CentralRequest request,
+            final StreamObserver<AgentResponse> responseObserver) throws Exception {
+        String traceId = request.getFullTraceRequest().getTraceId();
+        if (!request.getFullTraceRequest().getChunked()) {
+            getUnchunkedFullTraceAndRespond(request, responseObserver);
+            return;
+        }
+        // first chunk is the trace without entries, remaining chunks are the entries, which are
+        // streamed from the trace as they are read
+        Trace.Builder trace = Trace.newBuilder()
+                .setId(traceId);
+        try {
+            Trace.Header header = liveTraceRepository.getHeader("", "", traceId);
+            if (header == null) {
+                responseObserver.onNext(AgentResponse.newBuilder()
+                        .setRequestId(request.getRequestId())
+                        .setFullTraceResponse(FullTraceResponse.getDefaultInstance())
+                        .build());
+                return;
+            }
+            trace.setHeader(header);
+            Profile mainThreadProfile = liveTraceRepository.getMainThreadProfile("", "", traceId);
+            if (mainThreadProfile != null) {
+                trace.setMainThreadProfile(mainThreadProfile);
+            }
+            Profile auxThreadProfile = liveTraceRepository.getAuxThreadProfile("", "", traceId);
+            if (auxThreadProfile != null) {
+                trace.setAuxThreadProfile(auxThreadProfile);
+            }
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+            sendExceptionResponse(request, responseObserver);
+            return;
+        }
+        responseObserver.onNext(AgentResponse.newBuilder()
+                .setRequestId(request.getRequestId())
+                .setFullTraceResponse(FullTraceResponse.newBuilder()
+                        .setTrace(trace)
+                        .setMoreChunks(true))
+                .build());
+        ChunkingEntryVisitor entryVisitor = new ChunkingEntryVisitor(CHUNK_SIZE_BYTES) {
+            @Override
+            void sendChunk(List<Trace.Entry> entries, List<Trace.SharedQueryText> sharedQueryTexts,
+                    boolean moreChunks) throws Exception {
+                waitUntilReady(responseObserver);
+                // since this is only used by export, shared query texts are always sent in full
+                responseObserver.onNext(AgentResponse.newBuilder()
+                        .setRequestId(request.getRequestId())
+                        .setFullTraceResponse(FullTraceResponse.newBuilder()
+                                .addAllEntry(entries)
+                                .addAllEntrySharedQueryText(sharedQueryTexts)
+                                .setMoreChunks(moreChunks))
+                        .build());
+            }
+        };
+        try {
+            // if the trace has completed and been stored since reading the header above, this just
+            // sends a single chunk with no entries
+            liveTraceRepository.visitEntries(traceId, entryVisitor);
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+            // this also ends the response
+            sendExceptionResponse(request, responseObserver);
+            return;
+        }
+        entryVisitor.finish();
+    }
+
+    // older central collectors do not support chunked responses
+    private void getUnchunkedFullTraceAndRespond(CentralRequest request,
             StreamObserver<AgentResponse> responseObserver) throws Exception {
-        Trace trace;
+        FullTraceResponse.Builder response = FullTraceResponse.newBuilder();
         try {
-            trace = liveTraceRepository.getFullTrace("", "",
+            FullTrace fullTrace = liveTraceRepository.getFullTrace("", "",
                     request.getFullTraceRequest().getTraceId());
+            if (fullTrace != null) {
+                Trace.Builder trace = fullTrace.trace().toBuilder();
+                Entries entries = readSingleChunk(fullTrace.entries());
+                if (entries != null) {
+                    trace.addAllEntry(entries.entries())
+                            .addAllSharedQueryText(entries.sharedQueryTexts());
+                }
+                response.setTrace(trace);
+            }
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
             sendExceptionResponse(request, responseObserver);
             return;
         }
-        FullTraceResponse response;
-        if (trace == null) {
-            response = FullTraceResponse.getDefaultInstance();
-        } else {
-            response = FullTraceResponse.newBuilder()
-                    .setTrace(trace)
-                    .build();
-        }
         responseObserver.onNext(AgentResponse.newBuilder()
                 .setRequestId(request.getRequestId())
                 .setFullTraceResponse(response)
@@ -778,6 +931,48 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
                 .build());
     }
 
+    // the local LiveTraceRepositoryImpl always returns the entries in a single chunk
+    private static @Nullable Entries readSingleChunk(@Nullable ChunkedEntries chunkedEntries)
+            throws Exception {
+        if (chunkedEntries == null) {
+            return null;
+        }
+        try {
+            return chunkedEntries.readNextChunk();
+        } finally {
+            chunkedEntries.close();
+        }
+    }
+
+    // waits for the grpc stream to have room before sending the next chunk, so that the chunks of a
+    // large trace are not all buffered in memory when the central collector (which applies
+    // backpressure while the chunks are written to the browser) reads them slower than they are
+    // produced
+    //
+    // this is only called on the request executor thread, and is woken up by the on-ready handler
+    // (see beforeStart())
+    private void waitUntilReady(StreamObserver<AgentResponse> responseObserver) throws Exception {
+        if (!(responseObserver instanceof CallStreamObserver)) {
+            return;
+        }
+        CallStreamObserver<AgentResponse> callStreamObserver =
+                (CallStreamObserver<AgentResponse>) responseObserver;
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        synchronized (readyLock) {
+            while (!callStreamObserver.isReady()) {
+                if (responseObserver != currResponseObserver) {
+                    throw new IllegalStateException("Stream failed while waiting to send next"
+                            + " chunk");
+                }
+                long remainingMillis = MINUTES.toMillis(1) - stopwatch.elapsed(MILLISECONDS);
+                if (remainingMillis <= 0) {
+                    throw new TimeoutException("Timed out waiting to send next chunk");
+                }
+                readyLock.wait(remainingMillis);
+            }
+        }
+    }
+
     @OnlyUsedByTests
     void close() throws InterruptedException {
         StreamObserver<AgentResponse> responseObserver = currResponseObserver;
@@ -791,5 +986,6 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
             Thread.sleep(10);
         }
         checkState(closedByCentralCollector);
+        requestExecutor.shutdown();
     }
 }
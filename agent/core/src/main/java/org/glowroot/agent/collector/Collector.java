@@ -73,6 +73,6 @@ public interface Collector {
     public interface EntryVisitor {
         // returns index to be used in Trace.Entry that is passed to visitEntry()
         int visitSharedQueryText(String sharedQueryText) throws Exception;
-        void visitEntry(Trace.Entry entry);
+        void visitEntry(Trace.Entry entry) throws Exception;
     }
 }
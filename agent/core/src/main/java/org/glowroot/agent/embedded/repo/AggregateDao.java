@@ -156,6 +156,12 @@ public class AggregateDao implements AggregateRepository {
 
     private final AtomicLongArray lastRollupTimes;
 
+    // max capture time of the level 0 aggregates, which bounds how far rollups can proceed
+    private volatile long lastStoredCaptureTime;
+
+    // when enabled, rollups are performed by AggregateRollupRunnable instead of inside store()
+    private volatile boolean asyncRollups;
+
     private final Object rollupLock = new Object();
 
     AggregateDao(DataSource dataSource, List<CappedDatabase> rollupCappedDatabases,
@@ -188,8 +194,14 @@ public class AggregateDao implements AggregateRepository {
                     + " from aggregate_tt_rollup_" + castUntainted(i));
         }
         this.lastRollupTimes = new AtomicLongArray(lastRollupTimes);
+        lastStoredCaptureTime = dataSource
+                .queryForLong("select ifnull(max(capture_time), 0) from aggregate_tt_rollup_0");
+    }
 
-        // TODO initial rollup in case store is not called in a reasonable time
+    // the first execution of the rollup runnable also catches up on any rollups that were pending
+    // at the last shutdown
+    void enableAsyncRollups() {
+        asyncRollups = true;
     }
 
     public void store(AggregateReader aggregateReader) throws Exception {
@@ -234,21 +246,47 @@ public class AggregateDao implements AggregateRepository {
                 }
             }
         });
+        lastStoredCaptureTime = Math.max(lastStoredCaptureTime, captureTime);
+        if (!asyncRollups) {
+            rollup(Integer.MAX_VALUE);
+        }
+    }
+
+    // performs at most maxRollupTimesPerLevel rollups per rollup level, remaining rollups are
+    // picked up by the next call
+    void rollup(int maxRollupTimesPerLevel) throws Exception {
         synchronized (rollupLock) {
             List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+            long sourceCaptureTime = lastStoredCaptureTime;
             for (int i = 1; i < rollupConfigs.size(); i++) {
                 RollupConfig rollupConfig = rollupConfigs.get(i);
-                long safeRollupTime = RollupLevelService.getSafeRollupTime(captureTime,
+                long safeRollupTime = RollupLevelService.getSafeRollupTime(sourceCaptureTime,
                         rollupConfig.intervalMillis());
                 long lastRollupTime = lastRollupTimes.get(i);
                 if (safeRollupTime > lastRollupTime) {
-                    rollup(lastRollupTime, safeRollupTime, rollupConfig.intervalMillis(), i, i - 1);
-                    lastRollupTimes.set(i, safeRollupTime);
+                    rollup(lastRollupTime, safeRollupTime, rollupConfig.intervalMillis(), i, i - 1,
+                            maxRollupTimesPerLevel);
                 }
+                // the next level can only roll up what this level has completed
+                sourceCaptureTime = lastRollupTimes.get(i);
             }
         }
     }
 
+    // indexed by rollup level, the amount of level 0 data that has not been rolled up yet
+    List<Long> getRollupLagMillis() {
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        long lastStoredCaptureTime = this.lastStoredCaptureTime;
+        List<Long> rollupLagMillis = Lists.newArrayList();
+        rollupLagMillis.add(0L);
+        for (int i = 1; i < rollupConfigs.size(); i++) {
+            long safeRollupTime = RollupLevelService.getSafeRollupTime(lastStoredCaptureTime,
+                    rollupConfigs.get(i).intervalMillis());
+            rollupLagMillis.add(Math.max(safeRollupTime - lastRollupTimes.get(i), 0));
+        }
+        return rollupLagMillis;
+    }
+
     // query.from() is non-inclusive
     @Override
     public void mergeOverallSummaryInto(String agentRollupId, OverallQuery query,
@@ -422,16 +460,24 @@ public class AggregateDao implements AggregateRepository {
         dataSource.deleteBefore("aggregate_tn_rollup_" + castUntainted(rollupLevel), captureTime);
     }
 
+    // rollupLock must be acquired prior to calling this method
     private void rollup(long lastRollupTime, long curentRollupTime, long fixedIntervalMillis,
-            int toRollupLevel, int fromRollupLevel) throws Exception {
+            int toRollupLevel, int fromRollupLevel, int maxRollupTimes) throws Exception {
         List<Long> rollupTimes = dataSource.query(new RollupTimeRowMapper(fromRollupLevel,
                 fixedIntervalMillis, lastRollupTime, curentRollupTime));
+        int count = 0;
         for (Long rollupTime : rollupTimes) {
+            if (count++ == maxRollupTimes) {
+                // rollup times are in ascending order, so progress is recorded after each one
+                return;
+            }
             dataSource.query(new RollupOverallAggregates(rollupTime, fixedIntervalMillis,
                     fromRollupLevel, toRollupLevel));
             dataSource.query(new RollupTransactionAggregates(rollupTime, fixedIntervalMillis,
                     fromRollupLevel, toRollupLevel));
+            lastRollupTimes.set(toRollupLevel, rollupTime);
         }
+        lastRollupTimes.set(toRollupLevel, curentRollupTime);
     }
 
     private void mergeProfilesInto(ProfileCollector collector, TransactionQuery query,
@@ -1229,7 +1275,8 @@ public class AggregateDao implements AggregateRepository {
             String captureTimeSql = castUntainted(
                     "ceil(capture_time / " + fixedIntervalMillis + ".0) * " + fixedIntervalMillis);
             return "select distinct " + captureTimeSql + " from aggregate_tt_rollup_"
-                    + castUntainted(rollupLevel) + " where capture_time > ? and capture_time <= ?";
+                    + castUntainted(rollupLevel) + " where capture_time > ? and capture_time <= ?"
+                    + " order by 1";
         }
 
         @Override
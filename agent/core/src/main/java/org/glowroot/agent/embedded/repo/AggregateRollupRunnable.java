@@ -0,0 +1,37 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import org.glowroot.common.util.ScheduledRunnable;
+
+class AggregateRollupRunnable extends ScheduledRunnable {
+
+    // limits how long each execution holds the write connection (via the rollup inserts) so that
+    // catching up on a large backlog of rollups does not hold up aggregate and trace ingestion
+    private static final int ROLLUP_BATCH_SIZE =
+            Integer.getInteger("glowroot.aggregate.rollupBatchSize", 10);
+
+    private final AggregateDao aggregateDao;
+
+    AggregateRollupRunnable(AggregateDao aggregateDao) {
+        this.aggregateDao = aggregateDao;
+    }
+
+    @Override
+    protected void runInternal() throws Exception {
+        aggregateDao.rollup(ROLLUP_BATCH_SIZE);
+    }
+}
@@ -18,6 +18,7 @@ package org.glowroot.agent.embedded.repo;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 
 import javax.annotation.Nullable;
@@ -25,6 +26,7 @@ import javax.annotation.Nullable;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import org.glowroot.agent.embedded.util.CappedDatabase;
 import org.glowroot.agent.embedded.util.DataSource;
@@ -39,11 +41,21 @@ import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class SimpleRepoModule {
 
     private static final long SNAPSHOT_REAPER_PERIOD_MINUTES = 5;
 
+    private static final long AGGREGATE_ROLLUP_PERIOD_SECONDS = 1;
+
+    // when greater than zero, capped database writes are synced to disk in groups (at this interval
+    // or once the unsynced bytes budget below is exceeded) instead of after every write
+    private static final long CAPPED_DATABASE_SYNC_INTERVAL_MILLIS =
+            Long.getLong("glowroot.cappedDatabase.syncIntervalMillis", 0);
+    private static final long CAPPED_DATABASE_SYNC_BYTES =
+            Long.getLong("glowroot.cappedDatabase.syncBytes", 1024 * 1024);
+
     private final DataSource dataSource;
     private final ImmutableList<CappedDatabase> rollupCappedDatabases;
     private final CappedDatabase traceCappedDatabase;
@@ -57,6 +69,9 @@ public class SimpleRepoModule {
     private final RepoAdmin repoAdmin;
     private final RollupLevelService rollupLevelService;
     private final @Nullable ReaperRunnable reaperRunnable;
+    private final @Nullable AggregateRollupRunnable aggregateRollupRunnable;
+    private final @Nullable ScheduledExecutorService aggregateRollupExecutor;
+    private final @Nullable ScheduledExecutorService cappedDatabaseSyncExecutor;
 
     public SimpleRepoModule(DataSource dataSource, File dataDir, Clock clock, Ticker ticker,
             ConfigRepository configRepository,
@@ -76,6 +91,21 @@ public class SimpleRepoModule {
         this.rollupCappedDatabases = ImmutableList.copyOf(rollupCappedDatabases);
         traceCappedDatabase = new CappedDatabase(new File(dataDir, "trace-detail.capped.db"),
                 storageConfig.traceCappedDatabaseSizeMb() * 1024, ticker);
+        if (CAPPED_DATABASE_SYNC_INTERVAL_MILLIS > 0) {
+            cappedDatabaseSyncExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder()
+                            .setDaemon(true)
+                            .setNameFormat("Glowroot-Capped-Database-Sync")
+                            .build());
+            for (CappedDatabase rollupCappedDatabase : this.rollupCappedDatabases) {
+                rollupCappedDatabase.enableGroupCommit(cappedDatabaseSyncExecutor,
+                        CAPPED_DATABASE_SYNC_INTERVAL_MILLIS, CAPPED_DATABASE_SYNC_BYTES);
+            }
+            traceCappedDatabase.enableGroupCommit(cappedDatabaseSyncExecutor,
+                    CAPPED_DATABASE_SYNC_INTERVAL_MILLIS, CAPPED_DATABASE_SYNC_BYTES);
+        } else {
+            cappedDatabaseSyncExecutor = null;
+        }
 
         environmentDao = new EnvironmentDao(dataSource);
         transactionTypeDao = new TransactionTypeDao(dataSource);
@@ -95,11 +125,24 @@ public class SimpleRepoModule {
 
         if (backgroundExecutor == null) {
             reaperRunnable = null;
+            aggregateRollupRunnable = null;
+            aggregateRollupExecutor = null;
         } else {
             reaperRunnable = new ReaperRunnable(configRepository, aggregateDao, traceDao,
                     gaugeValueDao, gaugeNameDao, transactionTypeDao, fullQueryTextDao, clock);
             reaperRunnable.scheduleWithFixedDelay(backgroundExecutor,
                     SNAPSHOT_REAPER_PERIOD_MINUTES, MINUTES);
+            // dedicated thread so that a long rollup catch-up does not delay the other background
+            // tasks
+            aggregateRollupExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder()
+                            .setDaemon(true)
+                            .setNameFormat("Glowroot-Aggregate-Rollup")
+                            .build());
+            aggregateDao.enableAsyncRollups();
+            aggregateRollupRunnable = new AggregateRollupRunnable(aggregateDao);
+            aggregateRollupRunnable.scheduleWithFixedDelay(aggregateRollupExecutor,
+                    AGGREGATE_ROLLUP_PERIOD_SECONDS, SECONDS);
         }
     }
 
@@ -114,6 +157,8 @@ public class SimpleRepoModule {
                 "org.glowroot:type=TraceCappedDatabase");
         platformMBeanServerLifecycle.lazyRegisterMBean(new H2DatabaseStats(dataSource),
                 "org.glowroot:type=H2Database");
+        platformMBeanServerLifecycle.lazyRegisterMBean(new AggregateRollupStats(aggregateDao),
+                "org.glowroot:type=AggregateRollup");
     }
 
     public EnvironmentDao getEnvironmentDao() {
@@ -157,10 +202,25 @@ public class SimpleRepoModule {
         if (reaperRunnable != null) {
             reaperRunnable.cancel();
         }
+        if (aggregateRollupRunnable != null) {
+            aggregateRollupRunnable.cancel();
+        }
+        if (aggregateRollupExecutor != null) {
+            aggregateRollupExecutor.shutdown();
+            if (!aggregateRollupExecutor.awaitTermination(10, SECONDS)) {
+                throw new IllegalStateException("Could not terminate executor");
+            }
+        }
         for (CappedDatabase cappedDatabase : rollupCappedDatabases) {
             cappedDatabase.close();
         }
         traceCappedDatabase.close();
+        if (cappedDatabaseSyncExecutor != null) {
+            cappedDatabaseSyncExecutor.shutdown();
+            if (!cappedDatabaseSyncExecutor.awaitTermination(10, SECONDS)) {
+                throw new IllegalStateException("Could not terminate executor");
+            }
+        }
         dataSource.close();
     }
 }
@@ -15,6 +15,7 @@
  */
 package org.glowroot.agent.embedded.repo;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -30,6 +31,7 @@ import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.io.ByteSource;
 import org.checkerframework.checker.tainting.qual.Untainted;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -169,7 +171,8 @@ public class TraceDao implements TraceRepository {
         Trace trace = builder.build();
         Trace.Header header = trace.getHeader();
 
-        dataSource.update(new TraceMerge(trace, traceVisitor.sharedQueryTexts));
+        dataSource.update(new TraceMerge(trace, traceVisitor.entries, traceVisitor.entryCount,
+                traceVisitor.sharedQueryTexts));
         if (header.getAttributeCount() > 0) {
             if (trace.getUpdate()) {
                 dataSource.update("delete from trace_attribute where trace_id = ?", trace.getId());
@@ -369,6 +372,10 @@ public class TraceDao implements TraceRepository {
         private final Trace.Builder builder;
         private final List<Trace.SharedQueryText> sharedQueryTexts = Lists.newArrayList();
         private final Map<String, Integer> sharedQueryTextIndexes = Maps.newHashMap();
+        // entries are serialized (delimited) as they are visited instead of being collected into
+        // the trace builder, so that large traces don't hold onto all of the Trace.Entry objects
+        private final EntriesOutputStream entries = new EntriesOutputStream();
+        private int entryCount;
 
         private TraceVisitorImpl(long captureTime, Trace.Builder builder) {
             this.captureTime = captureTime;
@@ -403,8 +410,9 @@ public class TraceDao implements TraceRepository {
             return sharedQueryTextIndex;
         }
         @Override
-        public void visitEntry(Trace.Entry entry) {
-            builder.addEntry(entry);
+        public void visitEntry(Trace.Entry entry) throws IOException {
+            entry.writeDelimitedTo(entries);
+            entryCount++;
         }
         @Override
         public void visitMainThreadProfile(Profile profile) {
@@ -429,16 +437,15 @@ public class TraceDao implements TraceRepository {
         private final @Nullable Long mainThreadProfileId;
         private final @Nullable Long auxThreadProfileId;
 
-        private TraceMerge(Trace trace, List<Trace.SharedQueryText> sharedQueryTexts)
-                throws IOException {
+        private TraceMerge(Trace trace, EntriesOutputStream delimitedEntries, int entryCount,
+                List<Trace.SharedQueryText> sharedQueryTexts) throws IOException {
             this.traceId = trace.getId();
             this.header = trace.getHeader();
 
-            List<Trace.Entry> entries = trace.getEntryList();
-            if (entries.isEmpty()) {
+            if (entryCount == 0) {
                 entriesCappedId = null;
             } else {
-                entriesCappedId = traceCappedDatabase.writeMessages(entries,
+                entriesCappedId = traceCappedDatabase.write(delimitedEntries.asByteSource(),
                         TraceCappedDatabaseStats.TRACE_ENTRIES);
             }
             if (sharedQueryTexts.isEmpty()) {
@@ -506,6 +513,14 @@ public class TraceDao implements TraceRepository {
         }
     }
 
+    private static class EntriesOutputStream extends ByteArrayOutputStream {
+
+        // avoids copying the underlying buffer (as toByteArray() does)
+        private ByteSource asByteSource() {
+            return ByteSource.wrap(buf).slice(0, count);
+        }
+    }
+
     private static class TraceAttributeInsert implements JdbcUpdate {
 
         private final Trace trace;
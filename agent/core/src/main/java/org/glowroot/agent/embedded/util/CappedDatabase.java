@@ -16,6 +16,7 @@
 package org.glowroot.agent.embedded.util;
 
 import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FilterOutputStream;
 import java.io.IOException;
@@ -24,8 +25,14 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.annotation.concurrent.GuardedBy;
 
@@ -34,6 +41,7 @@ import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.io.ByteSource;
 import com.google.common.io.CharSource;
 import com.google.common.io.CountingOutputStream;
@@ -43,28 +51,53 @@ import com.google.protobuf.MessageLite;
 import com.google.protobuf.Parser;
 import com.ning.compress.lzf.LZFInputStream;
 import com.ning.compress.lzf.LZFOutputStream;
+import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.common.util.OnlyUsedByTests;
+import org.glowroot.common.util.ScheduledRunnable;
 import org.glowroot.common.util.SizeLimitBypassingParser;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
 public class CappedDatabase {
 
     private static final Logger logger = LoggerFactory.getLogger(CappedDatabase.class);
 
     private final File file;
     private final Object lock = new Object();
+    // syncLock is always acquired before lock (never after), and is held while syncing to disk
+    // outside of lock, so that resize() and close() do not swap out the file mid-sync
+    private final Object syncLock = new Object();
     @GuardedBy("lock")
     private final CappedDatabaseOutputStream out;
     private final Thread shutdownHookThread;
-    @GuardedBy("lock")
+    // readers hold the read lock (so they don't block each other or writers), and resize() and
+    // close() hold the write lock, which is always acquired before syncLock and lock
+    private final ReadWriteLock fileLock = new ReentrantReadWriteLock();
+    // reads use positional FileChannel reads, which are safe to perform concurrently
+    @GuardedBy("fileLock")
     private RandomAccessFile inFile;
     private volatile boolean closed = false;
 
     private final Ticker ticker;
     private final Map<String, CappedDatabaseStats> statsByType = Maps.newHashMap();
 
+    // group commit is only used if enableGroupCommit() is called, otherwise every write is synced
+    // to disk before returning
+    private volatile @MonotonicNonNull GroupCommitRunnable groupCommitRunnable;
+    @GuardedBy("lock")
+    private long unsyncedBytes;
+    @GuardedBy("lock")
+    private long firstUnsyncedTick;
+    @GuardedBy("lock")
+    private boolean syncRequested;
+    // the stats of the types that have been written since the last sync, since a sync is only
+    // recorded in the stats of the types that it made durable
+    @GuardedBy("lock")
+    private final Set<CappedDatabaseStats> unsyncedStats = Sets.newHashSet();
+
     public CappedDatabase(File file, int requestedSizeKb, Ticker ticker) throws IOException {
         this.file = file;
         this.ticker = ticker;
@@ -95,6 +128,18 @@ public class CappedDatabase {
         });
     }
 
+    // instead of syncing to disk after every write, writes are synced at the given interval or once
+    // the number of unsynced bytes exceeds the given budget (whichever comes first), the time that
+    // writes remain unsynced is reported as the durability window in CappedDatabaseStats
+    public void enableGroupCommit(ScheduledExecutorService syncExecutor, long syncIntervalMillis,
+            long syncBytes) {
+        GroupCommitRunnable groupCommitRunnable =
+                new GroupCommitRunnable(syncExecutor, syncBytes);
+        groupCommitRunnable.scheduleWithFixedDelay(syncExecutor, syncIntervalMillis,
+                syncIntervalMillis, MILLISECONDS);
+        this.groupCommitRunnable = groupCommitRunnable;
+    }
+
     public CappedDatabaseStats getStats(String type) {
         CappedDatabaseStats stats = statsByType.get(type);
         if (stats == null) {
@@ -103,8 +148,9 @@ public class CappedDatabase {
         return stats;
     }
 
-    @OnlyUsedByTests
-    long write(final ByteSource byteSource, String type) throws IOException {
+    // used to write messages that have already been serialized (e.g. delimited trace entries that
+    // were serialized one at a time as they were visited)
+    public long write(final ByteSource byteSource, String type) throws IOException {
         return write(type, new Copier() {
             @Override
             public void copyTo(OutputStream out) throws IOException {
@@ -134,7 +180,54 @@ public class CappedDatabase {
             }
             stats.record(countingStreamBeforeCompression.getCount(),
                     countingStreamAfterCompression.getCount(), endTick - startTick);
-            return out.endBlock();
+            long cappedId = out.endBlock();
+            GroupCommitRunnable groupCommitRunnable = this.groupCommitRunnable;
+            if (groupCommitRunnable == null) {
+                out.sync();
+                long syncEndTick = ticker.read();
+                stats.recordSync(syncEndTick - endTick, syncEndTick - endTick);
+                return cappedId;
+            }
+            if (unsyncedBytes == 0) {
+                firstUnsyncedTick = endTick;
+            }
+            unsyncedStats.add(stats);
+            unsyncedBytes += countingStreamAfterCompression.getCount()
+                    + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES;
+            if (unsyncedBytes >= groupCommitRunnable.syncBytes && !syncRequested) {
+                // sync in the background (instead of here under the lock)
+                syncRequested = true;
+                groupCommitRunnable.syncExecutor.execute(groupCommitRunnable);
+            }
+            return cappedId;
+        }
+    }
+
+    private void syncUnsynced() throws IOException {
+        synchronized (syncLock) {
+            long firstUnsyncedTick;
+            List<CappedDatabaseStats> syncedStats;
+            synchronized (lock) {
+                syncRequested = false;
+                if (closed || unsyncedBytes == 0) {
+                    return;
+                }
+                unsyncedBytes = 0;
+                firstUnsyncedTick = this.firstUnsyncedTick;
+                syncedStats = ImmutableList.copyOf(unsyncedStats);
+                unsyncedStats.clear();
+            }
+            long startTick = ticker.read();
+            // sync outside of lock so that writers and readers are not blocked (this is safe since
+            // resize() and close() also acquire syncLock)
+            out.sync();
+            long endTick = ticker.read();
+            synchronized (lock) {
+                // the sync is only recorded for the types that were written since the last sync
+                for (CappedDatabaseStats stats : syncedStats) {
+                    stats.recordSync(endTick - startTick, endTick - firstUnsyncedTick);
+                }
+            }
         }
     }
 
@@ -142,9 +235,12 @@ public class CappedDatabase {
             Parser<T> parser) throws IOException {
         boolean overwritten;
         boolean inTheFuture;
-        synchronized (lock) {
-            overwritten = out.isOverwritten(cappedId);
-            inTheFuture = cappedId >= out.getCurrIndex();
+        fileLock.readLock().lock();
+        try {
+            overwritten = out.isOverwrittenOrBeingOverwritten(cappedId);
+            inTheFuture = cappedId >= out.getCommittedIndex();
+        } finally {
+            fileLock.readLock().unlock();
         }
         if (overwritten) {
             return null;
@@ -165,7 +261,7 @@ public class CappedDatabase {
         try {
             return parser.parseFrom(input);
         } catch (Exception e) {
-            if (!out.isOverwritten(cappedId)) {
+            if (!isOverwrittenOrBeingOverwritten(cappedId)) {
                 logger.error(e.getMessage(), e);
             }
             return null;
@@ -178,9 +274,12 @@ public class CappedDatabase {
             throws IOException {
         boolean overwritten;
         boolean inTheFuture;
-        synchronized (lock) {
-            overwritten = out.isOverwritten(cappedId);
-            inTheFuture = cappedId >= out.getCurrIndex();
+        fileLock.readLock().lock();
+        try {
+            overwritten = out.isOverwrittenOrBeingOverwritten(cappedId);
+            inTheFuture = cappedId >= out.getCommittedIndex();
+        } finally {
+            fileLock.readLock().unlock();
         }
         if (overwritten) {
             return ImmutableList.of();
@@ -207,7 +306,7 @@ public class CappedDatabase {
                 messages.add(message);
             }
         } catch (Exception e) {
-            if (!out.isOverwritten(cappedId)) {
+            if (!isOverwrittenOrBeingOverwritten(cappedId)) {
                 logger.error(e.getMessage(), e);
             }
             return ImmutableList.of();
@@ -222,6 +321,15 @@ public class CappedDatabase {
         return new CappedBlockCharSource(cappedId);
     }
 
+    private boolean isOverwrittenOrBeingOverwritten(long cappedId) {
+        fileLock.readLock().lock();
+        try {
+            return out.isOverwrittenOrBeingOverwritten(cappedId);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
     boolean isExpired(long cappedId) {
         synchronized (lock) {
             return out.isOverwritten(cappedId);
@@ -235,26 +343,55 @@ public class CappedDatabase {
     }
 
     public void resize(int newSizeKb) throws IOException {
-        synchronized (lock) {
-            if (closed) {
-                return;
+        fileLock.writeLock().lock();
+        try {
+            synchronized (syncLock) {
+                synchronized (lock) {
+                    if (closed) {
+                        return;
+                    }
+                    inFile.close();
+                    syncBeforeClosingFile();
+                    out.resize(newSizeKb);
+                    inFile = new RandomAccessFile(file, "r");
+                }
             }
-            inFile.close();
-            out.resize(newSizeKb);
-            inFile = new RandomAccessFile(file, "r");
+        } finally {
+            fileLock.writeLock().unlock();
         }
     }
 
     @OnlyUsedByTests
     public void close() throws IOException {
-        synchronized (lock) {
-            closed = true;
-            out.close();
-            inFile.close();
+        GroupCommitRunnable groupCommitRunnable = this.groupCommitRunnable;
+        if (groupCommitRunnable != null) {
+            groupCommitRunnable.cancel();
+        }
+        fileLock.writeLock().lock();
+        try {
+            synchronized (syncLock) {
+                synchronized (lock) {
+                    closed = true;
+                    syncBeforeClosingFile();
+                    out.close();
+                    inFile.close();
+                }
+            }
+        } finally {
+            fileLock.writeLock().unlock();
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
+    @GuardedBy("lock")
+    private void syncBeforeClosingFile() throws IOException {
+        if (unsyncedBytes > 0) {
+            out.sync();
+            unsyncedBytes = 0;
+            unsyncedStats.clear();
+        }
+    }
+
     @OnlyUsedByTests
     private class CappedBlockCharSource extends CharSource {
 
@@ -290,24 +427,33 @@ public class CappedDatabase {
             if (blockIndex == blockLength) {
                 return -1;
             }
-            synchronized (lock) {
-                if (out.isOverwritten(cappedId)) {
-                    throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
-                }
+            // this does not acquire the writer lock, instead the bytes are read optimistically and
+            // then validated (using the ever-increasing capped id) that they were not overwritten
+            // by a concurrent write
+            fileLock.readLock().lock();
+            try {
+                checkNotOverwritten();
+                FileChannel inChannel = inFile.getChannel();
                 if (blockLength == -1) {
                     long filePosition = out.convertToFilePosition(cappedId);
-                    inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
-                    blockLength = inFile.readLong();
+                    ByteBuffer blockLengthBuffer = ByteBuffer.allocate(8);
+                    readFully(inChannel, blockLengthBuffer,
+                            CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
+                    blockLength = blockLengthBuffer.getLong(0);
+                    checkNotOverwritten();
                 }
                 long filePosition = out.convertToFilePosition(
                         cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex);
-                inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
                 long blockRemaining = blockLength - blockIndex;
                 long fileRemaining = out.getSizeKb() * 1024L - filePosition;
                 int numToRead = (int) Longs.min(len, blockRemaining, fileRemaining);
-                inFile.readFully(bytes, off, numToRead);
+                readFully(inChannel, ByteBuffer.wrap(bytes, off, numToRead),
+                        CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
+                checkNotOverwritten();
                 blockIndex += numToRead;
                 return numToRead;
+            } finally {
+                fileLock.readLock().unlock();
             }
         }
 
@@ -323,6 +469,24 @@ public class CappedDatabase {
             throw new UnsupportedOperationException(
                     "CappedBlockInputStream should always be wrapped in a BufferedInputStream");
         }
+
+        @GuardedBy("fileLock")
+        private void checkNotOverwritten() throws CappedBlockRolledOverMidReadException {
+            if (out.isOverwrittenOrBeingOverwritten(cappedId)) {
+                throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
+            }
+        }
+
+        private void readFully(FileChannel inChannel, ByteBuffer buffer, long position)
+                throws IOException {
+            while (buffer.hasRemaining()) {
+                int n = inChannel.read(buffer, position);
+                if (n == -1) {
+                    throw new EOFException();
+                }
+                position += n;
+            }
+        }
     }
 
     private class ShutdownHookThread extends Thread {
@@ -333,9 +497,17 @@ public class CappedDatabase {
                 // waiting on the lock (once the flag is set, any threads in the backlog that
                 // haven't acquired the lock will abort quickly once they do obtain the lock)
                 closed = true;
-                synchronized (lock) {
-                    out.close();
-                    inFile.close();
+                fileLock.writeLock().lock();
+                try {
+                    synchronized (syncLock) {
+                        synchronized (lock) {
+                            syncBeforeClosingFile();
+                            out.close();
+                            inFile.close();
+                        }
+                    }
+                } finally {
+                    fileLock.writeLock().unlock();
                 }
             } catch (IOException e) {
                 logger.warn(e.getMessage(), e);
@@ -343,6 +515,22 @@ public class CappedDatabase {
         }
     }
 
+    private class GroupCommitRunnable extends ScheduledRunnable {
+
+        private final ScheduledExecutorService syncExecutor;
+        private final long syncBytes;
+
+        private GroupCommitRunnable(ScheduledExecutorService syncExecutor, long syncBytes) {
+            this.syncExecutor = syncExecutor;
+            this.syncBytes = syncBytes;
+        }
+
+        @Override
+        protected void runInternal() throws IOException {
+            syncUnsynced();
+        }
+    }
+
     private interface Copier {
         void copyTo(OutputStream out) throws IOException;
     }
@@ -20,8 +20,6 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 
-import org.glowroot.common.util.OnlyUsedByTests;
-
 // Needs to be externally synchronized around startBlock()/write()/endBlock().
 class CappedDatabaseOutputStream extends OutputStream {
 
@@ -36,6 +34,13 @@ class CappedDatabaseOutputStream extends OutputStream {
     // currIndex is ever-increasing even over capped boundary
     // (btw it would take writing 2.9g per second for 100 years for currIndex to hit Long.MAX_VALUE)
     private long currIndex;
+    // the following two are volatile so they can be read by readers outside of the external
+    // synchronization around startBlock()/write()/endBlock():
+    // committedIndex is currIndex as of the end of the last completed block
+    private volatile long committedIndex;
+    // writeHorizonIndex is updated before bytes are written, so readers can detect (after reading)
+    // whether the bytes they read may have been overwritten concurrently
+    private volatile long writeHorizonIndex;
     // lastResizeBaseIndex is the smallest currIndex saved during the last resize
     private long lastResizeBaseIndex;
     // sizeKb is volatile so it can be read outside of the external synchronization around
@@ -66,6 +71,8 @@ class CappedDatabaseOutputStream extends OutputStream {
             sizeBytes = sizeKb * 1024L;
             lastResizeBaseIndex = out.readLong();
         }
+        committedIndex = currIndex;
+        writeHorizonIndex = currIndex;
     }
 
     void startBlock() {
@@ -79,15 +86,26 @@ class CappedDatabaseOutputStream extends OutputStream {
         blockStartPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
         // make space for block size to be written at start position
         currIndex += BLOCK_HEADER_SKIP_BYTES;
+        writeHorizonIndex = currIndex;
     }
 
+    // this does not sync to disk, see sync()
     long endBlock() throws IOException {
         out.seek(HEADER_SKIP_BYTES + blockStartPosition);
         out.writeLong(currIndex - blockStartIndex - BLOCK_HEADER_SKIP_BYTES);
-        out.getFD().sync();
+        // currIndex is only written to the header once per block (instead of after every write)
+        out.seek(HEADER_CURR_INDEX_POS);
+        out.writeLong(currIndex);
+        committedIndex = currIndex;
         return blockStartIndex;
     }
 
+    // this is ok to call outside of external synchronization around startBlock()/write()/endBlock()
+    // as long as it is not called concurrently with resize() or close()
+    void sync() throws IOException {
+        out.getFD().sync();
+    }
+
     boolean isOverwritten(long cappedId) {
         return cappedId < getSmallestNonOverwrittenId();
     }
@@ -102,6 +120,18 @@ class CappedDatabaseOutputStream extends OutputStream {
         return currIndex;
     }
 
+    // this is ok to read outside of external synchronization around startBlock()/write()/endBlock()
+    long getCommittedIndex() {
+        return committedIndex;
+    }
+
+    // this is ok to call outside of external synchronization around startBlock()/write()/endBlock()
+    // (but not concurrently with resize()), and it also accounts for bytes that are in the process
+    // of being written
+    boolean isOverwrittenOrBeingOverwritten(long cappedId) {
+        return cappedId < Math.max(lastResizeBaseIndex, writeHorizonIndex - sizeBytes);
+    }
+
     // this is ok to read outside of external synchronization around startBlock()/write()/endBlock()
     int getSizeKb() {
         return sizeKb;
@@ -173,6 +203,7 @@ class CappedDatabaseOutputStream extends OutputStream {
                     "A single block cannot have more bytes than size of the capped database");
         }
         long currPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
+        writeHorizonIndex = currIndex + len;
         out.seek(HEADER_SKIP_BYTES + currPosition);
         long remaining = sizeBytes - currPosition;
         if (len >= remaining) {
@@ -184,8 +215,6 @@ class CappedDatabaseOutputStream extends OutputStream {
             out.write(b, off, len);
         }
         currIndex += len;
-        out.seek(HEADER_CURR_INDEX_POS);
-        out.writeLong(currIndex);
     }
 
     private boolean performEasyResize(int newSizeKb) throws IOException {
@@ -216,11 +245,6 @@ class CappedDatabaseOutputStream extends OutputStream {
         return false;
     }
 
-    @OnlyUsedByTests
-    void sync() throws IOException {
-        out.getFD().sync();
-    }
-
     private static void copy(RandomAccessFile in, RandomAccessFile out, long numBytes)
             throws IOException {
         byte[] block = new byte[1024];
@@ -22,6 +22,12 @@ public class CappedDatabaseStats {
     private long totalNanos;
     private long writeCount;
 
+    private long syncCount;
+    private long totalSyncNanos;
+    // durability window is the time between a write completing and it being synced to disk
+    private long lastDurabilityWindowNanos;
+    private long maxDurabilityWindowNanos;
+
     public long getTotalBytesBeforeCompression() {
         return totalBytesBeforeCompression;
     }
@@ -55,6 +61,29 @@ public class CappedDatabaseStats {
         return totalNanos / (1000 * 1000 * (double) writeCount);
     }
 
+    public long getSyncCount() {
+        return syncCount;
+    }
+
+    public double getAverageMillisPerSync() {
+        return totalSyncNanos / (1000 * 1000 * (double) syncCount);
+    }
+
+    public double getLastDurabilityWindowMillis() {
+        return lastDurabilityWindowNanos / 1000000.0;
+    }
+
+    public double getMaxDurabilityWindowMillis() {
+        return maxDurabilityWindowNanos / 1000000.0;
+    }
+
+    void recordSync(long syncNanos, long durabilityWindowNanos) {
+        syncCount++;
+        totalSyncNanos += syncNanos;
+        lastDurabilityWindowNanos = durabilityWindowNanos;
+        maxDurabilityWindowNanos = Math.max(maxDurabilityWindowNanos, durabilityWindowNanos);
+    }
+
     void record(long bytesBeforeCompression, long bytesAfterCompression, long nanos) {
         totalBytesBeforeCompression += bytesBeforeCompression;
         totalBytesAfterCompression += bytesAfterCompression;
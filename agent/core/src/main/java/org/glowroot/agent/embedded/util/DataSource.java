@@ -25,12 +25,14 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.base.Throwables;
 import com.google.common.cache.CacheBuilder;
@@ -39,6 +41,7 @@ import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
 import org.checkerframework.checker.tainting.qual.Untainted;
 import org.h2.jdbc.JdbcConnection;
 import org.slf4j.Logger;
@@ -60,6 +63,10 @@ public class DataSource {
     private static final int QUERY_TIMEOUT_SECONDS =
             Integer.getInteger("glowroot.internal.h2.queryTimeout", 60);
 
+    // statement stats are keyed by sql text, which is normally a small fixed set, but this guards
+    // against sql that is built dynamically (e.g. variable length "in" lists)
+    private static final int MAX_STATEMENT_STATS = 1000;
+
     // null means use memDb
     private final @Nullable File dbFile;
     private final Thread shutdownHookThread;
@@ -71,6 +78,9 @@ public class DataSource {
     private final Map</*@Untainted*/String, ImmutableList<Column>> tables = Maps.newConcurrentMap();
     private final Map</*@Untainted*/String, ImmutableList<Index>> indexes = Maps.newConcurrentMap();
 
+    private final ConcurrentMap<String, H2StatementStats> statementStats =
+            Maps.newConcurrentMap();
+
     private final LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache =
             CacheBuilder.newBuilder()
                     .weakValues()
@@ -140,6 +150,7 @@ public class DataSource {
             if (closed) {
                 return;
             }
+            long startTick = System.nanoTime();
             Statement statement = connection.createStatement();
             // setQueryTimeout() affects all statements of this connection (at least with h2)
             statement.setQueryTimeout(0);
@@ -150,6 +161,7 @@ public class DataSource {
                 throw closer.rethrow(t);
             } finally {
                 closer.close();
+                recordStatement(sql, startTick);
             }
         }
     }
@@ -219,6 +231,7 @@ public class DataSource {
             if (closed) {
                 return jdbcQuery.valueIfDataSourceClosed();
             }
+            long startTick = System.nanoTime();
             PreparedStatement preparedStatement =
                     prepareStatement(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
             jdbcQuery.bind(preparedStatement);
@@ -230,6 +243,7 @@ public class DataSource {
                 throw closer.rethrow(t);
             } finally {
                 closer.close();
+                recordStatement(jdbcQuery.getSql(), startTick);
             }
             // don't need to close statement since they are all cached and used under lock
         }
@@ -253,6 +267,7 @@ public class DataSource {
             if (closed) {
                 return ImmutableList.of();
             }
+            long startTick = System.nanoTime();
             PreparedStatement preparedStatement =
                     prepareStatement(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
             jdbcQuery.bind(preparedStatement);
@@ -268,6 +283,7 @@ public class DataSource {
                 throw closer.rethrow(t);
             } finally {
                 closer.close();
+                recordStatement(jdbcQuery.getSql(), startTick);
             }
             // don't need to close statement since they are all cached and used under lock
         }
@@ -301,9 +317,14 @@ public class DataSource {
             if (closed) {
                 return 0;
             }
-            PreparedStatement preparedStatement = prepareStatement(jdbcUpdate.getSql(), 0);
-            jdbcUpdate.bind(preparedStatement);
-            return preparedStatement.executeUpdate();
+            long startTick = System.nanoTime();
+            try {
+                PreparedStatement preparedStatement = prepareStatement(jdbcUpdate.getSql(), 0);
+                jdbcUpdate.bind(preparedStatement);
+                return preparedStatement.executeUpdate();
+            } finally {
+                recordStatement(jdbcUpdate.getSql(), startTick);
+            }
             // don't need to close statement since they are all cached and used under lock
         }
     }
@@ -320,9 +341,14 @@ public class DataSource {
             if (closed) {
                 return new int[0];
             }
-            PreparedStatement preparedStatement = prepareStatement(jdbcUpdate.getSql(), 0);
-            jdbcUpdate.bind(preparedStatement);
-            return preparedStatement.executeBatch();
+            long startTick = System.nanoTime();
+            try {
+                PreparedStatement preparedStatement = prepareStatement(jdbcUpdate.getSql(), 0);
+                jdbcUpdate.bind(preparedStatement);
+                return preparedStatement.executeBatch();
+            } finally {
+                recordStatement(jdbcUpdate.getSql(), startTick);
+            }
             // don't need to close statement since they are all cached and used under lock
         }
     }
@@ -362,6 +388,15 @@ public class DataSource {
         return dbFile == null ? 0 : dbFile.length();
     }
 
+    List<H2StatementStats> getStatementStats() {
+        return Ordering.natural().onResultOf(new Function<H2StatementStats, Double>() {
+            @Override
+            public Double apply(@Nullable H2StatementStats stats) {
+                return checkNotNull(stats).getTotalMillis();
+            }
+        }).reverse().sortedCopy(statementStats.values());
+    }
+
     // helpful for upgrading schema
     public boolean tableExists(String tableName) throws SQLException {
         synchronized (lock) {
@@ -405,9 +440,27 @@ public class DataSource {
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
+    private void recordStatement(String sql, long startTick) {
+        long nanos = System.nanoTime() - startTick;
+        H2StatementStats stats = statementStats.get(sql);
+        if (stats == null) {
+            if (statementStats.size() >= MAX_STATEMENT_STATS) {
+                // no room for new statements, but continue to record existing ones
+                return;
+            }
+            stats = new H2StatementStats(sql);
+            H2StatementStats existing = statementStats.putIfAbsent(sql, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        stats.record(nanos);
+    }
+
     // lock must be acquired prior to calling this method
     private <T extends /*@Nullable*/ Object> T queryUnderLock(@Untainted String sql, Object[] args,
             ResultSetExtractor<T> rse) throws SQLException {
+        long startTick = System.nanoTime();
         PreparedStatement preparedStatement = prepareStatement(sql, QUERY_TIMEOUT_SECONDS);
         for (int i = 0; i < args.length; i++) {
             preparedStatement.setObject(i + 1, args[i]);
@@ -420,6 +473,7 @@ public class DataSource {
             throw closer.rethrow(t);
         } finally {
             closer.close();
+            recordStatement(sql, startTick);
         }
         // don't need to close statement since they are all cached and used under lock
     }
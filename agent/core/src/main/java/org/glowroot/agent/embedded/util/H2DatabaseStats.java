@@ -15,6 +15,8 @@
  */
 package org.glowroot.agent.embedded.util;
 
+import java.util.List;
+
 public class H2DatabaseStats implements H2DatabaseStatsMXBean {
 
     private final DataSource dataSource;
@@ -27,4 +29,9 @@ public class H2DatabaseStats implements H2DatabaseStatsMXBean {
     public long getFileSize() {
         return dataSource.getDbFileSize();
     }
+
+    @Override
+    public List<H2StatementStats> getStatementStats() {
+        return dataSource.getStatementStats();
+    }
 }
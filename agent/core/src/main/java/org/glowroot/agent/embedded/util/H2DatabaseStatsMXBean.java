@@ -15,7 +15,12 @@
  */
 package org.glowroot.agent.embedded.util;
 
+import java.util.List;
+
 public interface H2DatabaseStatsMXBean {
 
     long getFileSize();
+
+    // ordered by total time, descending
+    List<H2StatementStats> getStatementStats();
 }
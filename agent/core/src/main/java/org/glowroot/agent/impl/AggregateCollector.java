@@ -90,6 +90,12 @@ class AggregateCollector {
         this.maxAggregateServiceCallsPerType = maxAggregateServiceCallsPerType;
     }
 
+    // the transaction count doubles as a version for live snapshots, since every change to a shard
+    // aggregate collector happens as part of adding a transaction
+    long getVersion() {
+        return transactionCount;
+    }
+
     void add(Transaction transaction) {
         long totalDurationNanos = transaction.getDurationNanos();
         this.totalDurationNanos += totalDurationNanos;
@@ -105,6 +111,53 @@ class AggregateCollector {
         durationNanosHistogram.add(totalDurationNanos);
     }
 
+    // used to merge aggregation shards
+    void merge(AggregateCollector collector) throws IOException {
+        mergeOverview(collector);
+        mergeQueriesAndServiceCalls(collector);
+        mergeProfiles(collector);
+    }
+
+    void mergeQueriesAndServiceCalls(AggregateCollector collector) throws IOException {
+        if (collector.queries != null) {
+            collector.queries.mergeQueriesInto(getQueryCollector());
+        }
+        if (collector.serviceCalls != null) {
+            getServiceCallCollector().mergeServiceCalls(collector.serviceCalls.toProto());
+        }
+    }
+
+    void mergeProfiles(AggregateCollector collector) {
+        if (collector.mainThreadProfile != null) {
+            if (mainThreadProfile == null) {
+                mainThreadProfile = new MutableProfile();
+            }
+            mainThreadProfile.merge(collector.mainThreadProfile);
+        }
+        if (collector.auxThreadProfile != null) {
+            if (auxThreadProfile == null) {
+                auxThreadProfile = new MutableProfile();
+            }
+            auxThreadProfile.merge(collector.auxThreadProfile);
+        }
+    }
+
+    // merges everything except queries, service calls and profiles
+    void mergeOverview(AggregateCollector collector) {
+        totalDurationNanos += collector.totalDurationNanos;
+        transactionCount += collector.transactionCount;
+        errorCount += collector.errorCount;
+        if (collector.asyncTransactions) {
+            asyncTransactions = true;
+        }
+        mainThreadRootTimers.merge(collector.mainThreadRootTimers);
+        auxThreadRootTimers.merge(collector.auxThreadRootTimers);
+        asyncTimers.merge(collector.asyncTimers);
+        mainThreadStats.merge(collector.mainThreadStats);
+        auxThreadStats.merge(collector.auxThreadStats);
+        durationNanosHistogram.merge(collector.durationNanosHistogram);
+    }
+
     RootTimerCollector getMainThreadRootTimers() {
         return mainThreadRootTimers;
     }
@@ -277,6 +330,25 @@ class AggregateCollector {
             mergeRootTimer(rootTimer, rootMutableTimers);
         }
 
+        private void merge(RootTimerCollectorImpl collector) {
+            for (MutableAggregateTimer toBeMergedRootTimer : collector.rootMutableTimers) {
+                MutableAggregateTimer matchingRootTimer = null;
+                for (MutableAggregateTimer rootTimer : rootMutableTimers) {
+                    if (toBeMergedRootTimer.getName().equals(rootTimer.getName())
+                            && toBeMergedRootTimer.isExtended() == rootTimer.isExtended()) {
+                        matchingRootTimer = rootTimer;
+                        break;
+                    }
+                }
+                if (matchingRootTimer == null) {
+                    matchingRootTimer = MutableAggregateTimer.createRootTimer(
+                            toBeMergedRootTimer.getName(), toBeMergedRootTimer.isExtended());
+                    rootMutableTimers.add(matchingRootTimer);
+                }
+                matchingRootTimer.merge(toBeMergedRootTimer);
+            }
+        }
+
         private List<Aggregate.Timer> toProto() {
             List<Aggregate.Timer> rootTimers = Lists.newArrayList();
             for (MutableAggregateTimer rootMutableTimer : rootMutableTimers) {
@@ -323,6 +395,20 @@ class AggregateCollector {
             empty = false;
         }
 
+        private void merge(ThreadStatsCollectorImpl collector) {
+            if (collector.empty) {
+                return;
+            }
+            totalCpuNanos = NotAvailableAware.add(totalCpuNanos, collector.totalCpuNanos);
+            totalBlockedMillis =
+                    NotAvailableAware.add(totalBlockedMillis, collector.totalBlockedMillis);
+            totalWaitedMillis =
+                    NotAvailableAware.add(totalWaitedMillis, collector.totalWaitedMillis);
+            totalAllocatedBytes =
+                    NotAvailableAware.add(totalAllocatedBytes, collector.totalAllocatedBytes);
+            empty = false;
+        }
+
         private boolean isNA() {
             if (empty) {
                 return true;
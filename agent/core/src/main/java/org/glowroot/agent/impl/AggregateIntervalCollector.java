@@ -23,6 +23,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
+import com.google.common.base.Objects;
 import com.google.common.collect.Maps;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -59,20 +60,26 @@ public class AggregateIntervalCollector {
     private final int maxAggregateServiceCallsPerType;
     private final Clock clock;
 
-    @GuardedBy("lock")
-    private final Map<String, IntervalTypeCollector> typeCollectors = Maps.newHashMap();
+    // each aggregation worker owns one shard, and shards are only merged when flushing (or when
+    // reading live data that cannot be merged shard by shard)
+    private final Shard[] shards;
 
-    private final Object lock = new Object();
+    // cached live snapshots per transaction type and transaction name, see getSnapshot()
+    private final Map<SnapshotKey, Snapshot> snapshots = Maps.newConcurrentMap();
 
     AggregateIntervalCollector(long currentTime, long aggregateIntervalMillis,
             int maxAggregateTransactionsPerTransactionType, int maxAggregateQueriesPerType,
-            int maxAggregateServiceCallsPerType, Clock clock) {
+            int maxAggregateServiceCallsPerType, int shardCount, Clock clock) {
         captureTime = Utils.getRollupCaptureTime(currentTime, aggregateIntervalMillis);
         this.maxAggregateTransactionsPerTransactionType =
                 maxAggregateTransactionsPerTransactionType;
         this.maxAggregateQueriesPerType = maxAggregateQueriesPerType;
         this.maxAggregateServiceCallsPerType = maxAggregateServiceCallsPerType;
         this.clock = clock;
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard();
+        }
     }
 
     public long getCaptureTime() {
@@ -80,158 +87,166 @@ public class AggregateIntervalCollector {
     }
 
     public void add(Transaction transaction) {
-        synchronized (lock) {
+        add(transaction, 0);
+    }
+
+    void add(Transaction transaction, int shardIndex) {
+        Shard shard = shards[shardIndex];
+        synchronized (shard.lock) {
             IntervalTypeCollector typeCollector =
-                    getTypeCollector(transaction.getTransactionType());
+                    shard.getTypeCollector(transaction.getTransactionType());
             typeCollector.add(transaction);
         }
     }
 
     public void mergeOverallSummaryInto(OverallSummaryCollector collector, String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
+        for (Shard shard : shards) {
+            synchronized (shard.lock) {
+                IntervalTypeCollector typeCollector = shard.typeCollectors.get(transactionType);
+                if (typeCollector == null) {
+                    continue;
+                }
+                typeCollector.overallAggregateCollector.mergeOverallSummaryInto(collector);
             }
-            typeCollector.overallAggregateCollector.mergeOverallSummaryInto(collector);
         }
     }
 
     public void mergeTransactionSummariesInto(TransactionSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
-            for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
-                    .values()) {
-                aggregateCollector.mergeTransactionSummariesInto(collector);
+        for (Shard shard : shards) {
+            synchronized (shard.lock) {
+                IntervalTypeCollector typeCollector = shard.typeCollectors.get(transactionType);
+                if (typeCollector == null) {
+                    continue;
+                }
+                for (AggregateCollector aggregateCollector : typeCollector
+                        .transactionAggregateCollectors.values()) {
+                    aggregateCollector.mergeTransactionSummariesInto(collector);
+                }
             }
         }
     }
 
     public void mergeOverallErrorSummaryInto(OverallErrorSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
+        for (Shard shard : shards) {
+            synchronized (shard.lock) {
+                IntervalTypeCollector typeCollector = shard.typeCollectors.get(transactionType);
+                if (typeCollector == null) {
+                    continue;
+                }
+                typeCollector.overallAggregateCollector.mergeOverallErrorSummaryInto(collector);
             }
-            typeCollector.overallAggregateCollector.mergeOverallErrorSummaryInto(collector);
         }
     }
 
     public void mergeTransactionErrorSummariesInto(TransactionErrorSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
-            for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
-                    .values()) {
-                aggregateCollector.mergeTransactionErrorSummariesInto(collector);
+        for (Shard shard : shards) {
+            synchronized (shard.lock) {
+                IntervalTypeCollector typeCollector = shard.typeCollectors.get(transactionType);
+                if (typeCollector == null) {
+                    continue;
+                }
+                for (AggregateCollector aggregateCollector : typeCollector
+                        .transactionAggregateCollectors.values()) {
+                    aggregateCollector.mergeTransactionErrorSummariesInto(collector);
+                }
             }
         }
     }
 
     public @Nullable OverviewAggregate getOverviewAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return null;
-            }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
-            return aggregateCollector.getOverviewAggregate(liveCaptureTime);
+        long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        Snapshot snapshot = getOverviewSnapshot(transactionType, transactionName);
+        if (snapshot == null) {
+            return null;
+        }
+        synchronized (snapshot) {
+            return snapshot.collector.getOverviewAggregate(liveCaptureTime);
         }
     }
 
     public @Nullable PercentileAggregate getPercentileAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return null;
-            }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
-            return aggregateCollector.getPercentileAggregate(liveCaptureTime);
+        long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        Snapshot snapshot = getOverviewSnapshot(transactionType, transactionName);
+        if (snapshot == null) {
+            return null;
+        }
+        synchronized (snapshot) {
+            return snapshot.collector.getPercentileAggregate(liveCaptureTime);
         }
     }
 
     public @Nullable ThroughputAggregate getThroughputAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return null;
-            }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
-            return aggregateCollector.getThroughputAggregate(liveCaptureTime);
+        long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        Snapshot snapshot = getOverviewSnapshot(transactionType, transactionName);
+        if (snapshot == null) {
+            return null;
+        }
+        synchronized (snapshot) {
+            return snapshot.collector.getThroughputAggregate(liveCaptureTime);
         }
     }
 
     public @Nullable String getFullQueryText(String fullQueryTextSha1) {
-        synchronized (lock) {
-            for (IntervalTypeCollector typeCollector : typeCollectors.values()) {
-                String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
-                if (fullQueryText != null) {
-                    return fullQueryText;
+        for (Shard shard : shards) {
+            synchronized (shard.lock) {
+                for (IntervalTypeCollector typeCollector : shard.typeCollectors.values()) {
+                    String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
+                    if (fullQueryText != null) {
+                        return fullQueryText;
+                    }
                 }
             }
-            return null;
         }
+        return null;
     }
 
     public void mergeQueriesInto(QueryCollector collector, String transactionType,
             @Nullable String transactionName) throws IOException {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
-            }
-            aggregateCollector.mergeQueriesInto(collector);
+        Snapshot snapshot = getQueriesSnapshot(transactionType, transactionName);
+        if (snapshot == null) {
+            return;
+        }
+        synchronized (snapshot) {
+            snapshot.collector.mergeQueriesInto(collector);
         }
     }
 
     public void mergeServiceCallsInto(ServiceCallCollector collector, String transactionType,
             @Nullable String transactionName) throws IOException {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
-            }
-            aggregateCollector.mergeServiceCallsInto(collector);
+        Snapshot snapshot = getQueriesSnapshot(transactionType, transactionName);
+        if (snapshot == null) {
+            return;
+        }
+        synchronized (snapshot) {
+            snapshot.collector.mergeServiceCallsInto(collector);
         }
     }
 
     public void mergeMainThreadProfilesInto(ProfileCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
-            }
-            aggregateCollector.mergeMainThreadProfilesInto(collector);
+        Snapshot snapshot = getProfilesSnapshot(transactionType, transactionName);
+        if (snapshot == null) {
+            return;
+        }
+        synchronized (snapshot) {
+            snapshot.collector.mergeMainThreadProfilesInto(collector);
         }
     }
 
     public void mergeAuxThreadProfilesInto(ProfileCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
-            }
-            aggregateCollector.mergeAuxThreadProfilesInto(collector);
+        Snapshot snapshot = getProfilesSnapshot(transactionType, transactionName);
+        if (snapshot == null) {
+            return;
+        }
+        synchronized (snapshot) {
+            snapshot.collector.mergeAuxThreadProfilesInto(collector);
         }
     }
 
@@ -240,34 +255,217 @@ public class AggregateIntervalCollector {
     }
 
     void clear() {
-        synchronized (lock) {
-            typeCollectors.clear();
+        for (Shard shard : shards) {
+            synchronized (shard.lock) {
+                shard.typeCollectors.clear();
+                shard.clearCount++;
+            }
         }
+        snapshots.clear();
     }
 
-    private IntervalTypeCollector getTypeCollector(String transactionType) {
-        IntervalTypeCollector typeCollector;
-        typeCollector = typeCollectors.get(transactionType);
-        if (typeCollector == null) {
-            typeCollector = new IntervalTypeCollector();
-            typeCollectors.put(transactionType, typeCollector);
-        }
-        return typeCollector;
+    private @Nullable Snapshot getOverviewSnapshot(String transactionType,
+            @Nullable String transactionName) {
+        return getSnapshotNoIOException(transactionType, transactionName, SnapshotType.OVERVIEW);
+    }
+
+    private @Nullable Snapshot getQueriesSnapshot(String transactionType,
+            @Nullable String transactionName) throws IOException {
+        return getSnapshot(transactionType, transactionName, SnapshotType.QUERIES);
     }
 
-    private @Nullable AggregateCollector getAggregateCollector(String transactionType,
+    private @Nullable Snapshot getProfilesSnapshot(String transactionType,
             @Nullable String transactionName) {
-        IntervalTypeCollector intervalTypeCollector = typeCollectors.get(transactionType);
-        if (intervalTypeCollector == null) {
+        return getSnapshotNoIOException(transactionType, transactionName, SnapshotType.PROFILES);
+    }
+
+    private @Nullable Snapshot getSnapshotNoIOException(String transactionType,
+            @Nullable String transactionName, SnapshotType snapshotType) {
+        try {
+            return getSnapshot(transactionType, transactionName, snapshotType);
+        } catch (IOException e) {
+            // IOException can only come from merging service calls in the queries snapshot
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // live reads work off of a private copy of the (merged) aggregate collector, so that the
+    // shard locks are only held while copying, and not while the copy is being read and merged
+    // into the UI collectors, and the copy is re-used as long as no transactions have been added
+    // to the underlying aggregate collectors since the copy was made (e.g. when switching between
+    // tabs or auto-refreshing the same transaction type and name)
+    private @Nullable Snapshot getSnapshot(String transactionType,
+            @Nullable String transactionName, SnapshotType snapshotType) throws IOException {
+        SnapshotKey key = new SnapshotKey(transactionType, transactionName, snapshotType);
+        Snapshot snapshot = snapshots.get(key);
+        if (snapshot != null && snapshot.isCurrent(transactionType, transactionName)) {
+            return snapshot;
+        }
+        AggregateCollector mergedCollector = null;
+        long[] clearCounts = new long[shards.length];
+        long[] versions = new long[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            Shard shard = shards[i];
+            synchronized (shard.lock) {
+                clearCounts[i] = shard.clearCount;
+                AggregateCollector aggregateCollector =
+                        shard.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    continue;
+                }
+                if (mergedCollector == null) {
+                    mergedCollector = new AggregateCollector(transactionName,
+                            maxAggregateQueriesPerType, maxAggregateServiceCallsPerType);
+                }
+                switch (snapshotType) {
+                    case OVERVIEW:
+                        mergedCollector.mergeOverview(aggregateCollector);
+                        break;
+                    case QUERIES:
+                        mergedCollector.mergeQueriesAndServiceCalls(aggregateCollector);
+                        break;
+                    case PROFILES:
+                        mergedCollector.mergeProfiles(aggregateCollector);
+                        break;
+                }
+                versions[i] = aggregateCollector.getVersion();
+            }
+        }
+        if (mergedCollector == null) {
             return null;
         }
-        if (transactionName == null) {
-            return intervalTypeCollector.overallAggregateCollector;
-        } else {
-            return intervalTypeCollector.transactionAggregateCollectors.get(transactionName);
+        snapshot = new Snapshot(mergedCollector, clearCounts, versions);
+        snapshots.put(key, snapshot);
+        return snapshot;
+    }
+
+    // must be called under all shard locks
+    private Map<String, IntervalTypeCollector> getMergedTypeCollectors() throws IOException {
+        if (shards.length == 1) {
+            return shards[0].typeCollectors;
+        }
+        Map<String, IntervalTypeCollector> mergedTypeCollectors = Maps.newHashMap();
+        for (Shard shard : shards) {
+            for (Entry<String, IntervalTypeCollector> e : shard.typeCollectors.entrySet()) {
+                IntervalTypeCollector mergedTypeCollector = mergedTypeCollectors.get(e.getKey());
+                if (mergedTypeCollector == null) {
+                    mergedTypeCollector = new IntervalTypeCollector();
+                    mergedTypeCollectors.put(e.getKey(), mergedTypeCollector);
+                }
+                mergedTypeCollector.merge(e.getValue());
+            }
+        }
+        return mergedTypeCollectors;
+    }
+
+    private class Shard {
+
+        @GuardedBy("lock")
+        private final Map<String, IntervalTypeCollector> typeCollectors = Maps.newHashMap();
+
+        private final Object lock = new Object();
+
+        // the versions of the aggregate collectors start over after clear(), so this is part of
+        // the snapshot versions, otherwise a snapshot built concurrently with clear() could be
+        // cached after clear() and later match the versions of the new aggregate collectors
+        @GuardedBy("lock")
+        private long clearCount;
+
+        @GuardedBy("lock")
+        private IntervalTypeCollector getTypeCollector(String transactionType) {
+            IntervalTypeCollector typeCollector;
+            typeCollector = typeCollectors.get(transactionType);
+            if (typeCollector == null) {
+                typeCollector = new IntervalTypeCollector();
+                typeCollectors.put(transactionType, typeCollector);
+            }
+            return typeCollector;
+        }
+
+        @GuardedBy("lock")
+        private @Nullable AggregateCollector getAggregateCollector(String transactionType,
+                @Nullable String transactionName) {
+            IntervalTypeCollector intervalTypeCollector = typeCollectors.get(transactionType);
+            if (intervalTypeCollector == null) {
+                return null;
+            }
+            if (transactionName == null) {
+                return intervalTypeCollector.overallAggregateCollector;
+            } else {
+                return intervalTypeCollector.transactionAggregateCollectors.get(transactionName);
+            }
         }
     }
 
+    private class Snapshot {
+
+        // snapshot collector is never modified after construction, but reading from it is not
+        // thread safe (e.g. the duration histogram is sorted lazily), so reads are synchronized
+        // on the snapshot
+        private final AggregateCollector collector;
+        private final long[] clearCounts;
+        private final long[] versions;
+
+        private Snapshot(AggregateCollector collector, long[] clearCounts, long[] versions) {
+            this.collector = collector;
+            this.clearCounts = clearCounts;
+            this.versions = versions;
+        }
+
+        private boolean isCurrent(String transactionType, @Nullable String transactionName) {
+            for (int i = 0; i < shards.length; i++) {
+                Shard shard = shards[i];
+                synchronized (shard.lock) {
+                    if (shard.clearCount != clearCounts[i]) {
+                        return false;
+                    }
+                    AggregateCollector aggregateCollector =
+                            shard.getAggregateCollector(transactionType, transactionName);
+                    long version = aggregateCollector == null ? 0 : aggregateCollector.getVersion();
+                    if (version != versions[i]) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class SnapshotKey {
+
+        private final String transactionType;
+        private final @Nullable String transactionName;
+        private final SnapshotType snapshotType;
+
+        private SnapshotKey(String transactionType, @Nullable String transactionName,
+                SnapshotType snapshotType) {
+            this.transactionType = transactionType;
+            this.transactionName = transactionName;
+            this.snapshotType = snapshotType;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (!(obj instanceof SnapshotKey)) {
+                return false;
+            }
+            SnapshotKey that = (SnapshotKey) obj;
+            return transactionType.equals(that.transactionType)
+                    && Objects.equal(transactionName, that.transactionName)
+                    && snapshotType == that.snapshotType;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(transactionType, transactionName, snapshotType);
+        }
+    }
+
+    // each live tab only needs part of the aggregate, so only that part is copied
+    private enum SnapshotType {
+        OVERVIEW, QUERIES, PROFILES
+    }
+
     private class IntervalTypeCollector {
 
         private final AggregateCollector overallAggregateCollector;
@@ -322,6 +520,26 @@ public class AggregateIntervalCollector {
             }
         }
 
+        private void merge(IntervalTypeCollector typeCollector) throws IOException {
+            overallAggregateCollector.merge(typeCollector.overallAggregateCollector);
+            for (Entry<String, AggregateCollector> e : typeCollector.transactionAggregateCollectors
+                    .entrySet()) {
+                AggregateCollector transactionAggregateCollector =
+                        transactionAggregateCollectors.get(e.getKey());
+                if (transactionAggregateCollector == null) {
+                    if (transactionAggregateCollectors
+                            .size() >= maxAggregateTransactionsPerTransactionType) {
+                        // already included in the overall aggregate
+                        continue;
+                    }
+                    transactionAggregateCollector = new AggregateCollector(e.getKey(),
+                            maxAggregateQueriesPerType, maxAggregateServiceCallsPerType);
+                    transactionAggregateCollectors.put(e.getKey(), transactionAggregateCollector);
+                }
+                transactionAggregateCollector.merge(e.getValue());
+            }
+        }
+
         private @Nullable String getFullQueryText(String fullQueryTextSha1) {
             String fullQueryText = overallAggregateCollector.getFullQueryText(fullQueryTextSha1);
             if (fullQueryText != null) {
@@ -352,25 +570,36 @@ public class AggregateIntervalCollector {
 
         @Override
         public void accept(AggregateVisitor aggregateVisitor) throws Exception {
-            synchronized (lock) {
-                SharedQueryTextCollector sharedQueryTextCollector = new SharedQueryTextCollector();
-                ScratchBuffer scratchBuffer = new ScratchBuffer();
-                for (Entry<String, IntervalTypeCollector> e : typeCollectors.entrySet()) {
-                    String transactionType = e.getKey();
-                    IntervalTypeCollector intervalTypeCollector = e.getValue();
-                    Aggregate overallAggregate = intervalTypeCollector.overallAggregateCollector
-                            .build(sharedQueryTextCollector, scratchBuffer);
-                    aggregateVisitor.visitOverallAggregate(transactionType,
+            acceptUnderShardLocks(aggregateVisitor, 0);
+        }
+
+        // shards are locked one after the other (always in the same order) so that aggregation
+        // workers cannot modify any of them while merging and visiting
+        private void acceptUnderShardLocks(AggregateVisitor aggregateVisitor, int shardIndex)
+                throws Exception {
+            if (shardIndex < shards.length) {
+                synchronized (shards[shardIndex].lock) {
+                    acceptUnderShardLocks(aggregateVisitor, shardIndex + 1);
+                }
+                return;
+            }
+            SharedQueryTextCollector sharedQueryTextCollector = new SharedQueryTextCollector();
+            ScratchBuffer scratchBuffer = new ScratchBuffer();
+            for (Entry<String, IntervalTypeCollector> e : getMergedTypeCollectors().entrySet()) {
+                String transactionType = e.getKey();
+                IntervalTypeCollector intervalTypeCollector = e.getValue();
+                Aggregate overallAggregate = intervalTypeCollector.overallAggregateCollector
+                        .build(sharedQueryTextCollector, scratchBuffer);
+                aggregateVisitor.visitOverallAggregate(transactionType,
+                        sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
+                        overallAggregate);
+                for (Entry<String, AggregateCollector> f : intervalTypeCollector
+                        .transactionAggregateCollectors.entrySet()) {
+                    Aggregate transactionAggregate =
+                            f.getValue().build(sharedQueryTextCollector, scratchBuffer);
+                    aggregateVisitor.visitTransactionAggregate(transactionType, f.getKey(),
                             sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
-                            overallAggregate);
-                    for (Entry<String, AggregateCollector> f : intervalTypeCollector.transactionAggregateCollectors
-                            .entrySet()) {
-                        Aggregate transactionAggregate =
-                                f.getValue().build(sharedQueryTextCollector, scratchBuffer);
-                        aggregateVisitor.visitTransactionAggregate(transactionType, f.getKey(),
-                                sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
-                                transactionAggregate);
-                    }
+                            transactionAggregate);
                 }
             }
         }
@@ -16,12 +16,17 @@
 package org.glowroot.agent.impl;
 
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.annotation.Nullable;
-import javax.annotation.concurrent.GuardedBy;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
@@ -34,7 +39,7 @@ import org.glowroot.agent.util.RateLimitedLogger;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 
-import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class Aggregator {
@@ -46,26 +51,40 @@ public class Aggregator {
     // back pressure on aggregate flushing
     private static final int AGGREGATE_PENDING_LIMIT = 5;
 
+    // when greater than 1, transactions are merged by this many aggregation workers, each into its
+    // own shard of the active interval collector (shards are merged when flushing)
+    private static final int AGGREGATION_WORKERS =
+            Integer.getInteger("glowroot.aggregate.workers", 1);
+
     private volatile AggregateIntervalCollector activeIntervalCollector;
     private final List<AggregateIntervalCollector> pendingIntervalCollectors =
             Lists.newCopyOnWriteArrayList();
 
     private final ExecutorService processingExecutor;
     private final ExecutorService flushingExecutor;
+    private final @Nullable ExecutorService aggregationExecutor;
+    // empty when transactions are merged directly by the processing thread
+    private final List<AggregationWorker> aggregationWorkers;
     private final Collector collector;
     private final ConfigService configService;
     private final Clock clock;
 
     private final long aggregateIntervalMillis;
 
-    // all structural changes to the transaction queue are made under queueLock for simplicity
-    // TODO implement lock free structure
-    private final PendingTransaction head = new PendingTransaction(null);
-    // tail is non-volatile since only accessed under lock
-    private PendingTransaction tail = head;
-    private final Object queueLock = new Object();
-    @GuardedBy("queueLock")
-    private int queueLength;
+    // lock-free multi-producer single-consumer queue, each node's captureTime and sequence are
+    // derived from the prior tail before the node is swapped in as the new tail, which guarantees
+    // that capture times are monotonically increasing in queue order (so that queue reader can
+    // assume if captureTime indicates time to flush, then no new traces will come in with prior
+    // captureTime)
+    private final AtomicReference<PendingTransaction> tail;
+    // head is only accessed by the processing thread
+    private PendingTransaction head;
+    // sequence of the last node consumed by the processing thread, used to calculate the queue
+    // length without maintaining a separate (contended) counter
+    private volatile long consumedSequence;
+
+    private volatile @Nullable Thread processingThread;
+    private volatile boolean processingThreadParked;
 
     private final RateLimitedLogger backPressureLogger = new RateLimitedLogger(Aggregator.class);
 
@@ -73,10 +92,18 @@ public class Aggregator {
 
     public Aggregator(Collector collector, ConfigService configService,
             long aggregateIntervalMillis, Clock clock) {
+        this(collector, configService, aggregateIntervalMillis, AGGREGATION_WORKERS, clock);
+    }
+
+    @VisibleForTesting
+    Aggregator(Collector collector, ConfigService configService, long aggregateIntervalMillis,
+            int aggregationWorkerCount, Clock clock) {
         this.collector = collector;
         this.configService = configService;
         this.clock = clock;
         this.aggregateIntervalMillis = aggregateIntervalMillis;
+        head = new PendingTransaction(null, 0, 0);
+        tail = new AtomicReference<PendingTransaction>(head);
         processingExecutor = Executors.newSingleThreadExecutor(
                 new ThreadFactoryBuilder()
                         .setDaemon(true)
@@ -87,12 +114,24 @@ public class Aggregator {
                         .setDaemon(true)
                         .setNameFormat("Glowroot-Aggregate-Flushing")
                         .build());
-        activeIntervalCollector =
-                new AggregateIntervalCollector(clock.currentTimeMillis(), aggregateIntervalMillis,
-                        configService.getAdvancedConfig()
-                                .maxAggregateTransactionsPerType(),
-                        configService.getAdvancedConfig().maxAggregateQueriesPerType(),
-                        configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
+        if (aggregationWorkerCount > 1) {
+            aggregationExecutor = Executors.newFixedThreadPool(aggregationWorkerCount,
+                    new ThreadFactoryBuilder()
+                            .setDaemon(true)
+                            .setNameFormat("Glowroot-Aggregate-Worker-%d")
+                            .build());
+            List<AggregationWorker> aggregationWorkers = Lists.newArrayList();
+            for (int i = 0; i < aggregationWorkerCount; i++) {
+                AggregationWorker aggregationWorker = new AggregationWorker(i);
+                aggregationExecutor.execute(aggregationWorker);
+                aggregationWorkers.add(aggregationWorker);
+            }
+            this.aggregationWorkers = ImmutableList.copyOf(aggregationWorkers);
+        } else {
+            aggregationExecutor = null;
+            aggregationWorkers = ImmutableList.of();
+        }
+        activeIntervalCollector = createIntervalCollector(clock.currentTimeMillis());
         processingExecutor.execute(new TransactionProcessor());
     }
 
@@ -114,26 +153,51 @@ public class Aggregator {
     }
 
     long add(Transaction transaction) {
-        // this synchronized block is to ensure traces are placed into processing queue in the
-        // order of captureTime (so that queue reader can assume if captureTime indicates time to
-        // flush, then no new traces will come in with prior captureTime)
-        PendingTransaction newTail = new PendingTransaction(transaction);
-        long captureTime;
-        synchronized (queueLock) {
-            captureTime = clock.currentTimeMillis();
-            if (queueLength >= TRANSACTION_PENDING_LIMIT) {
+        return enqueue(transaction);
+    }
+
+    // returns the capture time, passing null transaction enqueues an interval marker (used by the
+    // processing thread to ensure that no later transactions can enter the queue with a prior
+    // capture time)
+    private long enqueue(@Nullable Transaction transaction) {
+        long currentTime = clock.currentTimeMillis();
+        while (true) {
+            PendingTransaction prevTail = tail.get();
+            // clock can go backwards, but capture times in the queue cannot
+            long captureTime = Math.max(currentTime, prevTail.captureTime);
+            if (transaction != null
+                    && prevTail.sequence - consumedSequence >= TRANSACTION_PENDING_LIMIT) {
                 backPressureLogger.warn("not aggregating a transaction because of an excessive"
                         + " backlog of {} transactions already waiting to be aggregated",
                         TRANSACTION_PENDING_LIMIT);
                 transaction.removeFromActiveTransactions();
                 return captureTime;
             }
-            newTail.captureTime = captureTime;
-            tail.next = newTail;
-            tail = newTail;
-            queueLength++;
+            PendingTransaction newTail =
+                    new PendingTransaction(transaction, captureTime, prevTail.sequence + 1);
+            if (tail.compareAndSet(prevTail, newTail)) {
+                prevTail.next = newTail;
+                if (processingThreadParked) {
+                    unparkProcessingThread();
+                }
+                return captureTime;
+            }
+        }
+    }
+
+    private AggregateIntervalCollector createIntervalCollector(long currentTime) {
+        return new AggregateIntervalCollector(currentTime, aggregateIntervalMillis,
+                configService.getAdvancedConfig().maxAggregateTransactionsPerType(),
+                configService.getAdvancedConfig().maxAggregateQueriesPerType(),
+                configService.getAdvancedConfig().maxAggregateServiceCallsPerType(),
+                Math.max(aggregationWorkers.size(), 1), clock);
+    }
+
+    private void unparkProcessingThread() {
+        Thread processingThread = this.processingThread;
+        if (processingThread != null) {
+            LockSupport.unpark(processingThread);
         }
-        return captureTime;
     }
 
     private List<AggregateIntervalCollector> getOrderedAllIntervalCollectors() {
@@ -155,10 +219,18 @@ public class Aggregator {
     @OnlyUsedByTests
     public void close() throws InterruptedException {
         closed = true;
+        unparkProcessingThread();
         processingExecutor.shutdown();
         if (!processingExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
+        if (aggregationExecutor != null) {
+            // aggregation workers block waiting for work, so they need to be interrupted
+            aggregationExecutor.shutdownNow();
+            if (!aggregationExecutor.awaitTermination(10, SECONDS)) {
+                throw new IllegalStateException("Could not terminate executor");
+            }
+        }
         flushingExecutor.shutdown();
         if (!flushingExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
@@ -167,8 +239,11 @@ public class Aggregator {
 
     private class TransactionProcessor implements Runnable {
 
+        private int nextAggregationWorker;
+
         @Override
         public void run() {
+            processingThread = Thread.currentThread();
             while (!closed) {
                 try {
                     processOne();
@@ -182,66 +257,63 @@ public class Aggregator {
         private void processOne() throws InterruptedException {
             PendingTransaction pendingTransaction = head.next;
             if (pendingTransaction == null) {
-                if (clock.currentTimeMillis() > activeIntervalCollector.getCaptureTime()) {
-                    maybeEndOfInterval();
+                if (tail.get() != head) {
+                    // producer has swapped in a new tail but has not linked it yet
+                    Thread.yield();
+                } else if (clock.currentTimeMillis() > activeIntervalCollector.getCaptureTime()) {
+                    // the marker gets a capture time that is no earlier than the current time, and
+                    // all transactions enqueued after it will get the same or later capture time,
+                    // so when the marker is processed it is safe to flush the active interval
+                    enqueue(null);
                 } else {
-                    // TODO benchmark other alternatives to sleep (e.g. wait/notify)
-                    Thread.sleep(1);
+                    park();
                 }
                 return;
             }
-            // remove transaction from list of active transactions
-            // used to do this at the very end of Transaction.end(), but moved to here to remove the
-            // (minor) cost from the transaction main path
-            Transaction transaction = checkNotNull(pendingTransaction.transaction);
-            transaction.removeFromActiveTransactions();
-
-            // remove head
-            synchronized (queueLock) {
-                PendingTransaction next = pendingTransaction.next;
-                head.next = next;
-                if (next == null) {
-                    tail = head;
-                }
-                queueLength--;
+            // remove head (the prior head is released so it doesn't retain its transaction)
+            head = pendingTransaction;
+            Transaction transaction = pendingTransaction.transaction;
+            pendingTransaction.transaction = null;
+            consumedSequence = pendingTransaction.sequence;
+            if (transaction != null) {
+                // remove transaction from list of active transactions
+                // used to do this at the very end of Transaction.end(), but moved to here to remove
+                // the (minor) cost from the transaction main path
+                transaction.removeFromActiveTransactions();
             }
             if (pendingTransaction.captureTime > activeIntervalCollector.getCaptureTime()) {
                 flushActiveIntervalCollector();
-                activeIntervalCollector = new AggregateIntervalCollector(
-                        pendingTransaction.captureTime, aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxAggregateTransactionsPerType(),
-                        configService.getAdvancedConfig().maxAggregateQueriesPerType(),
-                        configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
+                activeIntervalCollector = createIntervalCollector(pendingTransaction.captureTime);
+            }
+            if (transaction == null) {
+                return;
+            }
+            if (aggregationWorkers.isEmpty()) {
+                activeIntervalCollector.add(transaction);
+            } else {
+                // round robin (instead of by transaction name) so that a single hot transaction
+                // name is still spread across all workers
+                AggregationWorker aggregationWorker = aggregationWorkers.get(nextAggregationWorker);
+                nextAggregationWorker = (nextAggregationWorker + 1) % aggregationWorkers.size();
+                aggregationWorker.add(activeIntervalCollector, transaction);
             }
-            activeIntervalCollector.add(transaction);
         }
 
-        private void maybeEndOfInterval() {
-            long currentTime;
-            boolean safeToFlush;
-            synchronized (queueLock) {
-                if (head.next != null) {
-                    // something just crept into the queue, possibly still something from active
-                    // interval, it will get picked up right away and if it is in next interval it
-                    // will force active aggregate to be flushed anyways
-                    return;
+        private void park() {
+            processingThreadParked = true;
+            // re-check after publishing parked flag, producers check the flag after linking their
+            // node, so either this thread will see the new node or the producer will see the flag
+            if (head.next == null && tail.get() == head) {
+                long remainingMillis =
+                        activeIntervalCollector.getCaptureTime() - clock.currentTimeMillis();
+                if (remainingMillis > 0 && !closed) {
+                    LockSupport.parkNanos(Aggregator.this, MILLISECONDS.toNanos(remainingMillis));
                 }
-                currentTime = clock.currentTimeMillis();
-                safeToFlush = currentTime > activeIntervalCollector.getCaptureTime();
-            }
-            if (safeToFlush) {
-                // safe to flush, no other pending transactions can enter queue with later time
-                // (since the check above was done under same lock used to add to queue)
-                flushActiveIntervalCollector();
-                activeIntervalCollector = new AggregateIntervalCollector(currentTime,
-                        aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxAggregateTransactionsPerType(),
-                        configService.getAdvancedConfig().maxAggregateQueriesPerType(),
-                        configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
             }
+            processingThreadParked = false;
         }
 
-        private void flushActiveIntervalCollector() {
+        private void flushActiveIntervalCollector() throws InterruptedException {
             if (pendingIntervalCollectors.size() >= AGGREGATE_PENDING_LIMIT) {
                 logger.warn("not storing an aggregate because of an excessive backlog of {}"
                         + " aggregates already waiting to be stored", AGGREGATE_PENDING_LIMIT);
@@ -249,11 +321,19 @@ public class Aggregator {
             }
             final AggregateIntervalCollector intervalCollector = activeIntervalCollector;
             pendingIntervalCollectors.add(intervalCollector);
+            // each worker processes its queue in order, so once every worker has reached this
+            // point, all transactions for the interval have been merged into their shards
+            final CountDownLatch aggregationComplete =
+                    new CountDownLatch(aggregationWorkers.size());
+            for (AggregationWorker aggregationWorker : aggregationWorkers) {
+                aggregationWorker.countDownWhenReached(aggregationComplete);
+            }
             // flush in separate thread to avoid pending transactions from piling up quickly
             flushingExecutor.execute(new Runnable() {
                 @Override
                 public void run() {
                     try {
+                        aggregationComplete.await();
                         intervalCollector.flush(collector);
                     } catch (Throwable t) {
                         logger.error(t.getMessage(), t);
@@ -265,14 +345,67 @@ public class Aggregator {
         }
     }
 
+    private class AggregationWorker implements Runnable {
+
+        private final int shardIndex;
+        // bounded so that back pressure is applied to the processing thread (and from there to
+        // the transaction queue) if the workers fall behind
+        private final BlockingQueue<Runnable> queue =
+                new ArrayBlockingQueue<Runnable>(TRANSACTION_PENDING_LIMIT);
+
+        private AggregationWorker(int shardIndex) {
+            this.shardIndex = shardIndex;
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                try {
+                    queue.take().run();
+                } catch (InterruptedException e) {
+                    // probably shutdown requested (see close method above)
+                    logger.debug(e.getMessage(), e);
+                    return;
+                } catch (Throwable e) {
+                    // log and continue processing
+                    logger.error(e.getMessage(), e);
+                }
+            }
+        }
+
+        private void add(final AggregateIntervalCollector intervalCollector,
+                final Transaction transaction) throws InterruptedException {
+            queue.put(new Runnable() {
+                @Override
+                public void run() {
+                    intervalCollector.add(transaction, shardIndex);
+                }
+            });
+        }
+
+        private void countDownWhenReached(final CountDownLatch latch) throws InterruptedException {
+            queue.put(new Runnable() {
+                @Override
+                public void run() {
+                    latch.countDown();
+                }
+            });
+        }
+    }
+
     private static class PendingTransaction {
 
-        private final @Nullable Transaction transaction; // only null for head
-        private volatile long captureTime;
+        // only null for head and interval markers (and after being consumed)
+        private @Nullable Transaction transaction;
+        private final long captureTime;
+        private final long sequence;
         private volatile @Nullable PendingTransaction next;
 
-        private PendingTransaction(@Nullable Transaction transaction) {
+        private PendingTransaction(@Nullable Transaction transaction, long captureTime,
+                long sequence) {
             this.transaction = transaction;
+            this.captureTime = captureTime;
+            this.sequence = sequence;
         }
     }
 }
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.util.Tickers;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// samples stack traces using JFR execution sample events (jdk.ExecutionSample), which are captured
+// asynchronously (not at safepoints) and only for threads that are running java code, so the
+// resulting profiles reflect where cpu time is actually spent
+//
+// this uses JFR event streaming (Java 14+) via reflection since the agent is compiled against
+// Java 6
+//
+// JFR streams events roughly once a second, so by the time a sample is delivered, the sampled thread
+// (e.g. a pooled thread) may be running a different transaction, so samples are attributed using
+// the sample's start time to the thread context that was running on the sampled thread at that time
+// (see RecentThreadContexts), and samples of thread contexts that start and complete in between
+// calls to captureStackTraces() are dropped, same as with ThreadMXBean sampling
+//
+// stack depth is limited by JFR's stackdepth setting (default 64) in addition to maxDepth
+class JfrStackTraceSampler implements StackTraceSampler {
+
+    private static final Logger logger = LoggerFactory.getLogger(JfrStackTraceSampler.class);
+
+    private static final String EXECUTION_SAMPLE = "jdk.ExecutionSample";
+
+    // samples are normally delivered within a couple of seconds
+    private static final long RETENTION_NANOS = SECONDS.toNanos(5);
+
+    private static final Ticker ticker = Tickers.getTicker();
+
+    private final Object recordingStream;
+    private final JfrMethods methods;
+
+    private final RecentThreadContexts recentThreadContexts =
+            new RecentThreadContexts(RETENTION_NANOS);
+
+    // for converting JFR event start times (epoch based) to ticks, this is subject to wall clock
+    // adjustments, but those are rare compared to the samples that are taken
+    private volatile long epochNanosMinusTick;
+
+    private volatile int maxDepth = Integer.MAX_VALUE;
+    private volatile int limit;
+
+    private JfrStackTraceSampler(Object recordingStream, JfrMethods methods) {
+        this.recordingStream = recordingStream;
+        this.methods = methods;
+    }
+
+    static @Nullable JfrStackTraceSampler create(int intervalMillis) {
+        JfrMethods methods;
+        Object recordingStream;
+        try {
+            methods = new JfrMethods();
+            recordingStream = methods.recordingStreamClass.getConstructor().newInstance();
+            Object eventSettings = methods.enable.invoke(recordingStream, EXECUTION_SAMPLE);
+            Object period = methods.durationOfMillis.invoke(null, (long) intervalMillis);
+            methods.withPeriod.invoke(eventSettings, period);
+        } catch (Exception e) {
+            // JFR event streaming is not available in this jvm
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+        final JfrStackTraceSampler sampler = new JfrStackTraceSampler(recordingStream, methods);
+        try {
+            Object consumer = Proxy.newProxyInstance(JfrStackTraceSampler.class.getClassLoader(),
+                    new Class<?>[] {methods.consumerClass}, new EventHandler() {
+                        @Override
+                        void accept(Object event) throws Exception {
+                            sampler.onExecutionSample(event);
+                        }
+                    });
+            methods.onEvent.invoke(recordingStream, EXECUTION_SAMPLE, consumer);
+            methods.startAsync.invoke(recordingStream);
+        } catch (Exception e) {
+            logger.warn("unable to start JFR recording stream: {}", e.getMessage(), e);
+            sampler.close();
+            return null;
+        }
+        return sampler;
+    }
+
+    @Override
+    public long captureStackTraces(List<ThreadContextImpl> threadContexts, int maxDepth,
+            int limit) {
+        long currentTick = ticker.read();
+        epochNanosMinusTick = MILLISECONDS.toNanos(System.currentTimeMillis()) - currentTick;
+        this.maxDepth = maxDepth;
+        this.limit = limit;
+        recentThreadContexts.update(threadContexts, currentTick);
+        // stack traces are captured asynchronously by JFR without pausing application threads
+        return 0;
+    }
+
+    @Override
+    public void close() {
+        try {
+            methods.close.invoke(recordingStream);
+        } catch (Exception e) {
+            logger.warn(e.getMessage(), e);
+        }
+    }
+
+    private void onExecutionSample(Object event) throws Exception {
+        Object sampledThread = methods.getThread.invoke(event, "sampledThread");
+        if (sampledThread == null) {
+            return;
+        }
+        long threadId = (Long) methods.getJavaThreadId.invoke(sampledThread);
+        Object startTime = methods.getStartTime.invoke(event);
+        long epochNanos = SECONDS.toNanos((Long) methods.getEpochSecond.invoke(startTime))
+                + (Integer) methods.getNano.invoke(startTime);
+        ThreadContextImpl threadContext =
+                recentThreadContexts.get(threadId, epochNanos - epochNanosMinusTick);
+        if (threadContext == null) {
+            return;
+        }
+        Object recordedStackTrace = methods.getStackTrace.invoke(event);
+        if (recordedStackTrace == null) {
+            return;
+        }
+        List<?> frames = (List<?>) methods.getFrames.invoke(recordedStackTrace);
+        int depth = Math.min(frames.size(), maxDepth);
+        // JFR frames are ordered leaf first, same as Thread.getStackTrace()
+        StackTraceElement[] stackTrace = new StackTraceElement[depth];
+        for (int i = 0; i < depth; i++) {
+            Object frame = frames.get(i);
+            Object method = methods.getMethod.invoke(frame);
+            String className = (String) methods.getClassName
+                    .invoke(methods.getType.invoke(method));
+            String methodName = (String) methods.getMethodName.invoke(method);
+            int lineNumber = (Integer) methods.getLineNumber.invoke(frame);
+            // JFR does not record source file names
+            stackTrace[i] = new StackTraceElement(className, methodName, null, lineNumber);
+        }
+        // execution samples are only taken of threads that are running java code
+        threadContext.captureStackTrace(stackTrace, Thread.State.RUNNABLE, limit);
+    }
+
+    // invocation handler for the java.util.function.Consumer proxy that is registered with the JFR
+    // recording stream (the agent is compiled against Java 6)
+    @VisibleForTesting
+    abstract static class EventHandler implements InvocationHandler {
+
+        @Override
+        public @Nullable Object invoke(Object proxy, Method method, @Nullable Object[] args)
+                throws Throwable {
+            String methodName = method.getName();
+            if (methodName.equals("accept") && args != null && args.length == 1) {
+                try {
+                    accept(args[0]);
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                }
+                return null;
+            }
+            if (methodName.equals("equals") && args != null && args.length == 1) {
+                return proxy == args[0];
+            }
+            if (methodName.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            }
+            if (methodName.equals("toString")) {
+                return "JfrStackTraceSampler$EventHandler";
+            }
+            // e.g. Consumer.andThen(), which is not called by JFR, and throwing here would be
+            // thrown back into the JFR event stream
+            logger.debug("ignoring unexpected method: {}", methodName);
+            return null;
+        }
+
+        abstract void accept(Object event) throws Exception;
+    }
+
+    // thread contexts that were recently active on each thread, so that samples can be attributed
+    // based on the time of the sample, instead of to whichever thread context is active on the
+    // thread by the time the sample is delivered
+    //
+    // completed thread contexts are retained for retentionNanos after they complete, to allow time
+    // for their samples to be delivered
+    @VisibleForTesting
+    static class RecentThreadContexts {
+
+        private static final int MAX_PER_THREAD = 64;
+
+        private final long retentionNanos;
+
+        // only updated by the stack trace collector thread, and replaced instead of modified so
+        // that it can be read by the JFR event thread without locking
+        private volatile Map<Long, List<ThreadContextImpl>> threadContexts = ImmutableMap.of();
+
+        RecentThreadContexts(long retentionNanos) {
+            this.retentionNanos = retentionNanos;
+        }
+
+        void update(List<ThreadContextImpl> activeThreadContexts, long currentTick) {
+            Map<Long, List<ThreadContextImpl>> updated = Maps.newHashMap();
+            for (Map.Entry<Long, List<ThreadContextImpl>> entry : threadContexts.entrySet()) {
+                List<ThreadContextImpl> retained = Lists.newArrayList();
+                for (ThreadContextImpl threadContext : entry.getValue()) {
+                    if (!threadContext.isCompleted()
+                            || currentTick - threadContext.getEndTick() < retentionNanos) {
+                        retained.add(threadContext);
+                    }
+                }
+                if (!retained.isEmpty()) {
+                    updated.put(entry.getKey(), retained);
+                }
+            }
+            for (ThreadContextImpl threadContext : activeThreadContexts) {
+                long threadId = threadContext.getThreadId();
+                List<ThreadContextImpl> list = updated.get(threadId);
+                if (list == null) {
+                    list = Lists.newArrayList();
+                    updated.put(threadId, list);
+                }
+                if (!list.contains(threadContext)) {
+                    if (list.size() == MAX_PER_THREAD) {
+                        list.remove(0);
+                    }
+                    list.add(threadContext);
+                }
+            }
+            threadContexts = updated;
+        }
+
+        // returns the most recently started thread context that was running on the thread at the
+        // given tick (an outer transaction is on hold while an inner transaction is running)
+        @Nullable
+        ThreadContextImpl get(long threadId, long tick) {
+            List<ThreadContextImpl> list = threadContexts.get(threadId);
+            if (list == null) {
+                return null;
+            }
+            for (int i = list.size() - 1; i >= 0; i--) {
+                ThreadContextImpl threadContext = list.get(i);
+                if (Tickers.lessThanOrEqual(threadContext.getStartTick(), tick)
+                        && (!threadContext.isCompleted()
+                                || Tickers.lessThanOrEqual(tick, threadContext.getEndTick()))) {
+                    return threadContext;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static class JfrMethods {
+
+        private final Class<?> recordingStreamClass;
+        private final Class<?> consumerClass;
+
+        private final Method enable;
+        private final Method withPeriod;
+        private final Method durationOfMillis;
+        private final Method onEvent;
+        private final Method startAsync;
+        private final Method close;
+
+        private final Method getThread;
+        private final Method getStartTime;
+        private final Method getEpochSecond;
+        private final Method getNano;
+        private final Method getJavaThreadId;
+        private final Method getStackTrace;
+        private final Method getFrames;
+        private final Method getMethod;
+        private final Method getLineNumber;
+        private final Method getType;
+        private final Method getClassName;
+        private final Method getMethodName;
+
+        private JfrMethods() throws Exception {
+            recordingStreamClass = Class.forName("jdk.jfr.consumer.RecordingStream");
+            consumerClass = Class.forName("java.util.function.Consumer");
+            enable = recordingStreamClass.getMethod("enable", String.class);
+            Class<?> durationClass = Class.forName("java.time.Duration");
+            withPeriod = Class.forName("jdk.jfr.EventSettings").getMethod("withPeriod",
+                    durationClass);
+            durationOfMillis = durationClass.getMethod("ofMillis", long.class);
+            onEvent = recordingStreamClass.getMethod("onEvent", String.class, consumerClass);
+            startAsync = recordingStreamClass.getMethod("startAsync");
+            close = recordingStreamClass.getMethod("close");
+
+            Class<?> recordedEventClass = Class.forName("jdk.jfr.consumer.RecordedEvent");
+            getThread = recordedEventClass.getMethod("getThread", String.class);
+            getStartTime = recordedEventClass.getMethod("getStartTime");
+            Class<?> instantClass = Class.forName("java.time.Instant");
+            getEpochSecond = instantClass.getMethod("getEpochSecond");
+            getNano = instantClass.getMethod("getNano");
+            getJavaThreadId = Class.forName("jdk.jfr.consumer.RecordedThread")
+                    .getMethod("getJavaThreadId");
+            getStackTrace = recordedEventClass.getMethod("getStackTrace");
+            getFrames = Class.forName("jdk.jfr.consumer.RecordedStackTrace")
+                    .getMethod("getFrames");
+            Class<?> recordedFrameClass = Class.forName("jdk.jfr.consumer.RecordedFrame");
+            getMethod = recordedFrameClass.getMethod("getMethod");
+            getLineNumber = recordedFrameClass.getMethod("getLineNumber");
+            Class<?> recordedMethodClass = Class.forName("jdk.jfr.consumer.RecordedMethod");
+            getType = recordedMethodClass.getMethod("getType");
+            getMethodName = recordedMethodClass.getMethod("getName");
+            getClassName = Class.forName("jdk.jfr.consumer.RecordedClass").getMethod("getName");
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.collector.Collector.EntryVisitor;
+import org.glowroot.agent.util.Reflections;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// a block of completed trace entries that have been encoded and moved off heap, see
+// TraceEntryComponent.spill()
+//
+// each entry is stored as its spill id, followed by a delimited Trace.Entry with depth relative to
+// the (in-memory) parent of the block
+//
+// the shared query text index of a query entry is local to the block (since the real indexes are
+// assigned by each entry visitor), and the first entry in the block to use a given query text is
+// followed by the delimited Trace.SharedQueryText, so that each distinct query text is only stored
+// once per block
+class SpilledTraceEntries {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpilledTraceEntries.class);
+
+    // limit on the native memory used by spilled entries across all transactions, once reached,
+    // entries stay in memory (as they would without spilling)
+    private static final long MAX_TOTAL_BYTES =
+            Long.getLong("glowroot.internal.offHeapTraceEntries.maxBytes", 64 * 1024 * 1024);
+
+    private static final AtomicLong totalBytes = new AtomicLong();
+
+    // blocks that are not released explicitly give back their bytes once their buffer has been
+    // garbage collected
+    private static final ReferenceQueue<ByteBuffer> referenceQueue =
+            new ReferenceQueue<ByteBuffer>();
+    private static final Set<Reservation> reservations = Sets.newConcurrentHashSet();
+
+    // direct buffer, so the encoded entries do not count against the heap
+    //
+    // null once released, see release()
+    @GuardedBy("this")
+    private @Nullable ByteBuffer buffer;
+
+    private final Reservation reservation;
+
+    private SpilledTraceEntries(ByteBuffer buffer, Reservation reservation) {
+        this.buffer = buffer;
+        this.reservation = reservation;
+    }
+
+    // entries that have been updated since they were spilled (see
+    // TraceEntryComponent.onSpilledEntryUpdated()) are visited from memory instead of from their
+    // (stale) encoded copy
+    synchronized void accept(int depth, long transactionStartTick, long captureTick,
+            Map<Integer, TraceEntryImpl> updatedEntries, EntryVisitor entryVisitor)
+            throws Exception {
+        CodedInputStream in = newInputStream();
+        List<String> queryTexts = Lists.newArrayList();
+        while (!in.isAtEnd()) {
+            int spillId = in.readRawVarint32();
+            Trace.Entry entry = readDelimited(in, Trace.Entry.parser());
+            // query text needs to be read even if the entry is visited from memory below
+            String queryText = readQueryText(in, entry, queryTexts);
+            TraceEntryImpl updatedEntry = updatedEntries.get(spillId);
+            if (updatedEntry != null) {
+                updatedEntry.accept(depth + entry.getDepth(), transactionStartTick, captureTick,
+                        entryVisitor);
+                continue;
+            }
+            Trace.Entry.Builder builder = entry.toBuilder()
+                    .setDepth(depth + entry.getDepth());
+            if (queryText != null) {
+                int sharedQueryTextIndex = entryVisitor.visitSharedQueryText(queryText);
+                builder.getQueryEntryMessageBuilder()
+                        .setSharedQueryTextIndex(sharedQueryTextIndex);
+            }
+            entryVisitor.visitEntry(builder.build());
+        }
+    }
+
+    // frees the native memory now instead of waiting for this block to be garbage collected, this
+    // is called once it has been decided not to collect the transaction (collected transactions
+    // are not released explicitly, since the central collector can re-read the trace
+    // asynchronously when retrying after a failure)
+    synchronized void release() {
+        ByteBuffer buffer = this.buffer;
+        if (buffer == null) {
+            return;
+        }
+        this.buffer = null;
+        reservation.giveBack();
+        try {
+            Method cleanerMethod = Reflections.getAnyMethod(buffer.getClass(), "cleaner");
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                Reflections.getAnyMethod(cleaner.getClass(), "clean").invoke(cleaner);
+            }
+        } catch (Throwable t) {
+            // e.g. not accessible under java 9+, in which case the native memory is released
+            // once the buffer is garbage collected
+            logger.debug(t.getMessage(), t);
+        }
+    }
+
+    @GuardedBy("this")
+    private CodedInputStream newInputStream() {
+        ByteBuffer buffer = this.buffer;
+        if (buffer == null) {
+            // fail instead of silently visiting a trace with missing entries
+            throw new IllegalStateException("Spilled trace entries have already been released");
+        }
+        // duplicate so that concurrent readers each have their own position
+        return CodedInputStream.newInstance(buffer.duplicate());
+    }
+
+    private static @Nullable String readQueryText(CodedInputStream in, Trace.Entry entry,
+            List<String> queryTexts) throws IOException {
+        if (!entry.hasQueryEntryMessage()) {
+            return null;
+        }
+        int index = entry.getQueryEntryMessage().getSharedQueryTextIndex();
+        if (index == queryTexts.size()) {
+            // first use of this query text in the block
+            queryTexts.add(readDelimited(in, Trace.SharedQueryText.parser()).getFullText());
+        }
+        return queryTexts.get(index);
+    }
+
+    private static <T> T readDelimited(CodedInputStream in, Parser<T> parser) throws IOException {
+        int length = in.readRawVarint32();
+        int oldLimit = in.pushLimit(length);
+        T message = parser.parseFrom(in);
+        in.popLimit(oldLimit);
+        return message;
+    }
+
+    static class Builder {
+
+        private final long transactionStartTick;
+        private final long captureTick;
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final CodedOutputStream codedOut = CodedOutputStream.newInstance(out);
+        private final EntryEncoder entryEncoder = new EntryEncoder();
+        private final Map<String, Integer> queryTextIndexes = Maps.newHashMap();
+
+        Builder(long transactionStartTick, long captureTick) {
+            this.transactionStartTick = transactionStartTick;
+            this.captureTick = captureTick;
+        }
+
+        void add(TraceEntryImpl entry, int relativeDepth, int spillId) throws Exception {
+            entryEncoder.spillId = spillId;
+            entry.accept(relativeDepth, transactionStartTick, captureTick, entryEncoder);
+        }
+
+        // copies the entries of a previously spilled block (whose parent entry is now being
+        // spilled), retaining their spill ids
+        void addAll(SpilledTraceEntries spilled, int relativeDepth) throws IOException {
+            synchronized (spilled) {
+                CodedInputStream in = spilled.newInputStream();
+                List<String> queryTexts = Lists.newArrayList();
+                while (!in.isAtEnd()) {
+                    int spillId = in.readRawVarint32();
+                    Trace.Entry entry = readDelimited(in, Trace.Entry.parser());
+                    String queryText = readQueryText(in, entry, queryTexts);
+                    write(spillId, entry.toBuilder()
+                            .setDepth(relativeDepth + entry.getDepth())
+                            .build(), queryText);
+                }
+            }
+        }
+
+        // returns null if the limit on the total size of spilled entries has been reached
+        @Nullable
+        SpilledTraceEntries build() throws IOException {
+            codedOut.flush();
+            byte[] bytes = out.toByteArray();
+            if (!reserve(bytes.length)) {
+                return null;
+            }
+            ByteBuffer buffer;
+            try {
+                buffer = ByteBuffer.allocateDirect(bytes.length);
+            } catch (OutOfMemoryError e) {
+                // e.g. "Direct buffer memory"
+                totalBytes.addAndGet(-bytes.length);
+                throw e;
+            }
+            buffer.put(bytes);
+            buffer.flip();
+            Reservation reservation = new Reservation(buffer, bytes.length);
+            reservations.add(reservation);
+            return new SpilledTraceEntries(buffer, reservation);
+        }
+
+        private void write(int spillId, Trace.Entry entry, @Nullable String queryText)
+                throws IOException {
+            codedOut.writeUInt32NoTag(spillId);
+            if (queryText == null) {
+                write(entry);
+                return;
+            }
+            Integer queryTextIndex = queryTextIndexes.get(queryText);
+            boolean firstUse = queryTextIndex == null;
+            if (queryTextIndex == null) {
+                queryTextIndex = queryTextIndexes.size();
+                queryTextIndexes.put(queryText, queryTextIndex);
+            }
+            Trace.Entry.Builder builder = entry.toBuilder();
+            builder.getQueryEntryMessageBuilder()
+                    .setSharedQueryTextIndex(queryTextIndex);
+            write(builder.build());
+            if (firstUse) {
+                write(Trace.SharedQueryText.newBuilder()
+                        .setFullText(queryText)
+                        .build());
+            }
+        }
+
+        private void write(MessageLite message) throws IOException {
+            codedOut.writeUInt32NoTag(message.getSerializedSize());
+            message.writeTo(codedOut);
+        }
+
+        private class EntryEncoder implements EntryVisitor {
+
+            private int spillId;
+            private @Nullable String queryText;
+
+            @Override
+            public int visitSharedQueryText(String sharedQueryText) {
+                queryText = sharedQueryText;
+                // block-local index is assigned in write(), and the real index is assigned when
+                // reading back, see accept()
+                return 0;
+            }
+
+            @Override
+            public void visitEntry(Trace.Entry entry) throws IOException {
+                String queryText = this.queryText;
+                if (entry.hasQueryEntryMessage() && queryText == null) {
+                    queryText = "";
+                }
+                write(spillId, entry, queryText);
+                this.queryText = null;
+            }
+        }
+    }
+
+    private static boolean reserve(int bytes) {
+        Reference<? extends ByteBuffer> ref;
+        while ((ref = referenceQueue.poll()) != null) {
+            ((Reservation) ref).giveBack();
+        }
+        while (true) {
+            long currTotalBytes = totalBytes.get();
+            if (currTotalBytes + bytes > MAX_TOTAL_BYTES) {
+                return false;
+            }
+            if (totalBytes.compareAndSet(currTotalBytes, currTotalBytes + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    private static class Reservation extends PhantomReference<ByteBuffer> {
+
+        private final int bytes;
+
+        private Reservation(ByteBuffer buffer, int bytes) {
+            super(buffer, referenceQueue);
+            this.bytes = bytes;
+        }
+
+        // called either on release() or once the buffer has been garbage collected, whichever
+        // comes first
+        private void giveBack() {
+            if (reservations.remove(this)) {
+                totalBytes.addAndGet(-bytes);
+            }
+        }
+    }
+}
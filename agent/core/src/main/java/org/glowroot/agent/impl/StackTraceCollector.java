@@ -15,13 +15,12 @@
  */
 package org.glowroot.agent.impl;
 
-import java.lang.management.ManagementFactory;
-import java.lang.management.ThreadInfo;
 import java.util.List;
 import java.util.Random;
 
 import javax.annotation.Nullable;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.slf4j.Logger;
@@ -32,11 +31,35 @@ import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.common.util.OnlyUsedByTests;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 public class StackTraceCollector {
 
     private static final Logger logger = LoggerFactory.getLogger(StackTraceCollector.class);
 
+    // adaptive mode is enabled by setting either of the following two properties, in which case
+    // the number of threads captured per cycle is capped, rotating across transactions so that
+    // each transaction is sampled in turn
+    private static final int MAX_THREADS_PER_CYCLE =
+            Integer.getInteger("glowroot.profiling.maxThreadsPerCycle", 0);
+    // when the wall time of capturing stack traces (which is mostly the safepoint pause) exceeds
+    // this budget, the cap is halved, and then grown back gradually while under half the budget
+    private static final long CYCLE_BUDGET_MILLIS =
+            Long.getLong("glowroot.profiling.cycleBudgetMillis", 0);
+    // limiting stack depth also reduces the cost of capturing stack traces, but stack traces are
+    // truncated at the bottom (outermost frames), so profile trees will be rooted at whatever frame
+    // is left at the bottom
+    private static final int MAX_STACK_DEPTH =
+            Integer.getInteger("glowroot.profiling.maxStackDepth", Integer.MAX_VALUE);
+
+    // "threadMXBean" (default) or "jfr" (requires Java 14+, falls back to threadMXBean otherwise)
+    private static final String SAMPLER =
+            System.getProperty("glowroot.profiling.sampler", "threadMXBean");
+
+    private static final boolean ADAPTIVE = MAX_THREADS_PER_CYCLE > 0 || CYCLE_BUDGET_MILLIS > 0;
+    private static final int MIN_THREADS_PER_CYCLE = 10;
+
     private final TransactionRegistry transactionRegistry;
     private final ConfigService configService;
     private final Random random;
@@ -44,12 +67,17 @@ public class StackTraceCollector {
     private final InternalRunnable runnable;
     private final Thread processingThread;
 
+    private final StackTraceCollectorStats stats = new StackTraceCollectorStats();
+
     public StackTraceCollector(TransactionRegistry transactionRegistry,
             final ConfigService configService, Random random) {
         this.transactionRegistry = transactionRegistry;
         this.configService = configService;
         this.random = random;
 
+        if (MAX_THREADS_PER_CYCLE > 0) {
+            stats.recordMaxThreadsPerCycle(MAX_THREADS_PER_CYCLE, false);
+        }
         runnable = new InternalRunnable();
         // dedicated thread to give best chance of consistent stack trace capture
         // this is important for unit tests, but seems good for real usage as well
@@ -72,6 +100,10 @@ public class StackTraceCollector {
         });
     }
 
+    public StackTraceCollectorStatsMXBean getStats() {
+        return stats;
+    }
+
     @OnlyUsedByTests
     public void close() throws InterruptedException {
         runnable.closed = true;
@@ -79,41 +111,44 @@ public class StackTraceCollector {
         processingThread.join();
     }
 
+    // user profiling always uses ThreadMXBean since it needs a stack trace at each interval
     static void captureStackTraces(List<ThreadContextImpl> threadContexts,
             ConfigService configService) {
-        if (threadContexts.isEmpty()) {
-            // critical not to call ThreadMXBean.getThreadInfo() with empty id list
-            // see https://bugs.openjdk.java.net/browse/JDK-8074368
-            return;
-        }
-        long[] threadIds = new long[threadContexts.size()];
-        for (int i = 0; i < threadContexts.size(); i++) {
-            threadIds[i] = threadContexts.get(i).getThreadId();
-        }
-        @Nullable
-        ThreadInfo[] threadInfos =
-                ManagementFactory.getThreadMXBean().getThreadInfo(threadIds, Integer.MAX_VALUE);
-        int limit = configService.getAdvancedConfig().maxStackTraceSamplesPerTransaction();
-        for (int i = 0; i < threadContexts.size(); i++) {
-            ThreadContextImpl threadContext = threadContexts.get(i);
-            ThreadInfo threadInfo = threadInfos[i];
-            if (threadInfo != null) {
-                threadContext.captureStackTrace(threadInfo, limit);
-            }
-        }
+        ThreadMXBeanStackTraceSampler.captureStackTracesInternal(threadContexts, Integer.MAX_VALUE,
+                configService.getAdvancedConfig().maxStackTraceSamplesPerTransaction());
     }
 
     private class InternalRunnable implements Runnable {
 
         private volatile boolean closed;
 
+        // these are only accessed by the stack trace collector thread
+        private final List<Transaction> transactions = Lists.newArrayList();
+        private final AdaptiveThreadSelector adaptiveThreadSelector =
+                new AdaptiveThreadSelector(MAX_THREADS_PER_CYCLE,
+                        MILLISECONDS.toNanos(CYCLE_BUDGET_MILLIS), stats);
+
+        private @Nullable StackTraceSampler sampler;
+        private int samplerIntervalMillis;
+        private boolean jfrUnavailable;
+
         @Override
         public void run() {
+            try {
+                runLoop();
+            } finally {
+                closeSampler();
+            }
+        }
+
+        private void runLoop() {
             // delay for first
             long remainingInInterval = 0;
             while (!closed) {
                 int intervalMillis = configService.getTransactionConfig().profilingIntervalMillis();
                 if (intervalMillis <= 0) {
+                    // e.g. stop JFR recording while profiling is disabled
+                    closeSampler();
                     try {
                         Thread.sleep(Long.MAX_VALUE);
                     } catch (InterruptedException e) {
@@ -134,14 +169,50 @@ public class StackTraceCollector {
                 }
                 remainingInInterval = intervalMillis - randomDelayFromIntervalStart;
                 try {
-                    runInternal();
+                    runInternal(getSampler(intervalMillis));
                 } catch (Throwable t) {
                     logger.error(t.getMessage(), t);
                 }
             }
         }
 
-        private void runInternal() {
+        private StackTraceSampler getSampler(int intervalMillis) {
+            StackTraceSampler sampler = this.sampler;
+            if (sampler != null && intervalMillis == samplerIntervalMillis) {
+                return sampler;
+            }
+            // sampling interval is fixed when the sampler is created (e.g. the JFR event period)
+            closeSampler();
+            sampler = null;
+            if (SAMPLER.equalsIgnoreCase("jfr") && !jfrUnavailable) {
+                sampler = JfrStackTraceSampler.create(intervalMillis);
+                if (sampler == null) {
+                    logger.warn("JFR event streaming is not available in this JVM (requires Java"
+                            + " 14+), falling back to ThreadMXBean stack trace sampling");
+                    jfrUnavailable = true;
+                }
+            }
+            if (sampler == null) {
+                sampler = new ThreadMXBeanStackTraceSampler();
+            }
+            this.sampler = sampler;
+            samplerIntervalMillis = intervalMillis;
+            return sampler;
+        }
+
+        private void closeSampler() {
+            StackTraceSampler sampler = this.sampler;
+            if (sampler != null) {
+                sampler.close();
+                this.sampler = null;
+            }
+        }
+
+        private void runInternal(StackTraceSampler sampler) {
+            if (ADAPTIVE) {
+                runAdaptive(sampler);
+                return;
+            }
             List<Transaction> transactions =
                     ImmutableList.copyOf(transactionRegistry.getTransactions());
             if (transactions.isEmpty()) {
@@ -150,14 +221,119 @@ public class StackTraceCollector {
             List<ThreadContextImpl> activeThreadContexts =
                     Lists.newArrayListWithCapacity(2 * transactions.size());
             for (int i = 0; i < transactions.size(); i++) {
-                Transaction transaction = transactions.get(i);
-                ThreadContextImpl mainThreadContext = transaction.getMainThreadContext();
-                if (mainThreadContext.isActive()) {
-                    activeThreadContexts.add(mainThreadContext);
-                }
-                activeThreadContexts.addAll(transaction.getActiveAuxThreadContexts());
+                addActiveThreadContexts(transactions.get(i), activeThreadContexts);
             }
-            captureStackTraces(activeThreadContexts, configService);
+            long nanos = sampler.captureStackTraces(activeThreadContexts, MAX_STACK_DEPTH,
+                    getLimit());
+            stats.recordCycle(transactions.size(), activeThreadContexts.size(),
+                    NANOSECONDS.toMicros(nanos));
+        }
+
+        private void runAdaptive(StackTraceSampler sampler) {
+            transactions.clear();
+            for (Transaction transaction : transactionRegistry.getTransactions()) {
+                transactions.add(transaction);
+            }
+            int transactionCount = transactions.size();
+            if (transactionCount == 0) {
+                return;
+            }
+            List<ThreadContextImpl> activeThreadContexts =
+                    adaptiveThreadSelector.selectThreadContexts(transactions);
+            // don't hold onto transactions until the next cycle
+            transactions.clear();
+            long nanos = sampler.captureStackTraces(activeThreadContexts, MAX_STACK_DEPTH,
+                    getLimit());
+            int sampledThreadCount = activeThreadContexts.size();
+            stats.recordCycle(transactionCount, sampledThreadCount, NANOSECONDS.toMicros(nanos));
+            adaptiveThreadSelector.adjustMaxThreadsPerCycle(nanos, sampledThreadCount);
+        }
+
+        private int getLimit() {
+            return configService.getAdvancedConfig().maxStackTraceSamplesPerTransaction();
+        }
+    }
+
+    // caps the number of threads captured per cycle, rotating across transactions so that each
+    // transaction is sampled in turn, and when there is a cycle budget, halves the cap when the
+    // wall time of capturing stack traces exceeds the budget and then grows it back gradually
+    // while under half the budget
+    @VisibleForTesting
+    static class AdaptiveThreadSelector {
+
+        private final int configuredMaxThreadsPerCycle;
+        // zero means no budget
+        private final long cycleBudgetNanos;
+        private final StackTraceCollectorStats stats;
+
+        private int nextTransactionIndex;
+        private int maxThreadsPerCycle;
+
+        AdaptiveThreadSelector(int configuredMaxThreadsPerCycle, long cycleBudgetNanos,
+                StackTraceCollectorStats stats) {
+            this.configuredMaxThreadsPerCycle = configuredMaxThreadsPerCycle > 0
+                    ? configuredMaxThreadsPerCycle : Integer.MAX_VALUE;
+            this.cycleBudgetNanos = cycleBudgetNanos;
+            this.stats = stats;
+            maxThreadsPerCycle = this.configuredMaxThreadsPerCycle;
+        }
+
+        List<ThreadContextImpl> selectThreadContexts(List<Transaction> transactions) {
+            int transactionCount = transactions.size();
+            List<ThreadContextImpl> activeThreadContexts = Lists.newArrayList();
+            if (transactionCount == 0) {
+                return activeThreadContexts;
+            }
+            int start = nextTransactionIndex < transactionCount ? nextTransactionIndex : 0;
+            int i = 0;
+            while (i < transactionCount && activeThreadContexts.size() < maxThreadsPerCycle) {
+                addActiveThreadContexts(transactions.get((start + i) % transactionCount),
+                        activeThreadContexts);
+                i++;
+            }
+            nextTransactionIndex = (start + i) % transactionCount;
+            if (activeThreadContexts.size() > maxThreadsPerCycle) {
+                // last transaction had more aux threads than were left under the cap
+                activeThreadContexts = activeThreadContexts.subList(0, maxThreadsPerCycle);
+            }
+            return activeThreadContexts;
+        }
+
+        void adjustMaxThreadsPerCycle(long nanos, int sampledThreadCount) {
+            if (cycleBudgetNanos <= 0) {
+                return;
+            }
+            if (nanos > cycleBudgetNanos) {
+                // the floor never exceeds the configured max
+                int floor = Math.min(configuredMaxThreadsPerCycle, MIN_THREADS_PER_CYCLE);
+                maxThreadsPerCycle =
+                        Math.max(floor, Math.min(maxThreadsPerCycle, sampledThreadCount) / 2);
+                stats.recordMaxThreadsPerCycle(maxThreadsPerCycle, true);
+                logger.debug("capturing {} stack traces took {} microseconds, reducing max threads"
+                        + " per cycle to {}", sampledThreadCount, NANOSECONDS.toMicros(nanos),
+                        maxThreadsPerCycle);
+            } else if (nanos < cycleBudgetNanos / 2
+                    && maxThreadsPerCycle < configuredMaxThreadsPerCycle
+                    && sampledThreadCount >= maxThreadsPerCycle) {
+                // only grow the cap back when it was the limiting factor in this cycle
+                maxThreadsPerCycle = (int) Math.min(configuredMaxThreadsPerCycle,
+                        (long) maxThreadsPerCycle + Math.max(1, maxThreadsPerCycle / 4));
+                stats.recordMaxThreadsPerCycle(maxThreadsPerCycle, false);
+            }
+        }
+
+        @VisibleForTesting
+        int getMaxThreadsPerCycle() {
+            return maxThreadsPerCycle;
+        }
+    }
+
+    private static void addActiveThreadContexts(Transaction transaction,
+            List<ThreadContextImpl> activeThreadContexts) {
+        ThreadContextImpl mainThreadContext = transaction.getMainThreadContext();
+        if (mainThreadContext.isActive()) {
+            activeThreadContexts.add(mainThreadContext);
         }
+        activeThreadContexts.addAll(transaction.getActiveAuxThreadContexts());
     }
 }
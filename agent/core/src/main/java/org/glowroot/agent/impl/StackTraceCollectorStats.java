@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+// all fields are only written by the stack trace collector thread
+public class StackTraceCollectorStats implements StackTraceCollectorStatsMXBean {
+
+    private volatile long cycleCount;
+    private volatile int lastCycleTransactionCount;
+    private volatile int lastCycleSampledThreadCount;
+    private volatile long lastCycleMicros;
+    private volatile long maxCycleMicros;
+    private volatile int currentMaxThreadsPerCycle = Integer.MAX_VALUE;
+    private volatile long backoffCount;
+
+    @Override
+    public long getCycleCount() {
+        return cycleCount;
+    }
+
+    @Override
+    public int getLastCycleTransactionCount() {
+        return lastCycleTransactionCount;
+    }
+
+    @Override
+    public int getLastCycleSampledThreadCount() {
+        return lastCycleSampledThreadCount;
+    }
+
+    @Override
+    public long getLastCycleMicros() {
+        return lastCycleMicros;
+    }
+
+    @Override
+    public long getMaxCycleMicros() {
+        return maxCycleMicros;
+    }
+
+    @Override
+    public int getCurrentMaxThreadsPerCycle() {
+        return currentMaxThreadsPerCycle;
+    }
+
+    @Override
+    public long getBackoffCount() {
+        return backoffCount;
+    }
+
+    void recordCycle(int transactionCount, int sampledThreadCount, long cycleMicros) {
+        cycleCount++;
+        lastCycleTransactionCount = transactionCount;
+        lastCycleSampledThreadCount = sampledThreadCount;
+        lastCycleMicros = cycleMicros;
+        if (cycleMicros > maxCycleMicros) {
+            maxCycleMicros = cycleMicros;
+        }
+    }
+
+    void recordMaxThreadsPerCycle(int maxThreadsPerCycle, boolean backoff) {
+        currentMaxThreadsPerCycle = maxThreadsPerCycle;
+        if (backoff) {
+            backoffCount++;
+        }
+    }
+}
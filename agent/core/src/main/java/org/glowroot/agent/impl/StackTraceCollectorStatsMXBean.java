@@ -0,0 +1,39 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+public interface StackTraceCollectorStatsMXBean {
+
+    long getCycleCount();
+
+    // number of active transactions during the last cycle
+    int getLastCycleTransactionCount();
+
+    // number of threads whose stack traces were captured during the last cycle
+    int getLastCycleSampledThreadCount();
+
+    // wall time of ThreadMXBean.getThreadInfo() during the last cycle, which is mostly the
+    // safepoint pause
+    long getLastCycleMicros();
+
+    long getMaxCycleMicros();
+
+    // only less than Integer.MAX_VALUE when adaptive mode is enabled
+    int getCurrentMaxThreadsPerCycle();
+
+    // number of cycles that exceeded the budget, each of which reduced max threads per cycle
+    long getBackoffCount();
+}
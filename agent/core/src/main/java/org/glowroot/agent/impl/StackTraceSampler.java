@@ -0,0 +1,29 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+
+// strategy for capturing stack traces of active thread contexts, so that stack traces can come from
+// somewhere other than ThreadMXBean.getThreadInfo(), which is biased toward safepoints
+interface StackTraceSampler {
+
+    // called once per profiling interval with the currently active thread contexts, returns the
+    // wall time in nanoseconds that application threads were paused to capture stack traces
+    long captureStackTraces(List<ThreadContextImpl> threadContexts, int maxDepth, int limit);
+
+    void close();
+}
@@ -15,7 +15,6 @@
  */
 package org.glowroot.agent.impl;
 
-import java.lang.management.ThreadInfo;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
@@ -31,6 +30,7 @@ import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.agent.collector.Collector.EntryVisitor;
 import org.glowroot.agent.model.AsyncTimerImpl;
 import org.glowroot.agent.model.ErrorMessage;
 import org.glowroot.agent.model.QueryCollector;
@@ -152,6 +152,11 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return transaction;
     }
 
+    @Nullable
+    TraceEntryImpl getParentTraceEntry() {
+        return parentTraceEntry;
+    }
+
     @Nullable
     TraceEntryImpl getParentThreadContextPriorEntry() {
         return parentThreadContextPriorEntry;
@@ -191,6 +196,14 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return traceEntryComponent.isCompleted();
     }
 
+    long getStartTick() {
+        return traceEntryComponent.getStartTick();
+    }
+
+    long getEndTick() {
+        return traceEntryComponent.getEndTick();
+    }
+
     public boolean isActive() {
         // checking threadContextHolder.get() to make sure this isn't an outer transaction on hold
         // while inner transaction is executing
@@ -364,8 +377,9 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return entry;
     }
 
-    void captureStackTrace(ThreadInfo threadInfo, int limit) {
-        transaction.captureStackTrace(isAuxiliary(), threadInfo, limit);
+    void captureStackTrace(StackTraceElement[] stackTrace, @Nullable Thread.State threadState,
+            int limit) {
+        transaction.captureStackTrace(isAuxiliary(), stackTrace, threadState, limit);
         // memory barrier read ensures timely visibility of detach()
         transaction.memoryBarrierRead();
     }
@@ -416,6 +430,9 @@ public class ThreadContextImpl implements ThreadContextPlus {
     // preventing any nasty bugs from a missed pop, e.g. a trace never being marked as complete)
     void popNonRootEntry(TraceEntryImpl entry) {
         traceEntryComponent.popNonRootEntry(entry);
+        if (traceEntryComponent.isSpillNeeded()) {
+            spillEntries();
+        }
         // memory barrier write ensures partial trace capture will see data collected up to now
         // memory barrier read ensures timely visibility of detach()
         transaction.memoryBarrierReadWrite();
@@ -892,6 +909,42 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return !traceEntryComponent.isEmpty();
     }
 
+    // this does not include the root trace entry, but does include the detached entry that is
+    // added by populateParentChildMap()
+    int getEntryCount() {
+        int entryCount = traceEntryComponent.getEntryCount();
+        if (detachedTime != null && entryCount > 0) {
+            entryCount++;
+        }
+        return entryCount;
+    }
+
+    void acceptSpilledChildEntries(TraceEntryImpl parentEntry, int depth,
+            long transactionStartTick, long captureTick, EntryVisitor entryVisitor)
+            throws Exception {
+        traceEntryComponent.acceptSpilledChildEntries(parentEntry, depth, transactionStartTick,
+                captureTick, entryVisitor);
+    }
+
+    void onSpilledEntryUpdated(TraceEntryImpl entry) {
+        traceEntryComponent.onSpilledEntryUpdated(entry);
+    }
+
+    void releaseSpilledEntries() {
+        traceEntryComponent.releaseSpilledEntries();
+    }
+
+    // only entries of the main thread context of synchronous transactions are moved off heap, the
+    // main thread is where very large traces (e.g. long running batch jobs) are generated, and
+    // async transactions rely on the in-memory structure of the root entry's children
+    private void spillEntries() {
+        if (isAuxiliary() || transaction.isAsync()) {
+            return;
+        }
+        traceEntryComponent.spill(transaction.getAuxThreadContextAnchorEntries(),
+                transaction.getStartTick(), ticker.read());
+    }
+
     private boolean isAuxiliary() {
         return parentTraceEntry != null;
     }
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+class ThreadMXBeanStackTraceSampler implements StackTraceSampler {
+
+    @Override
+    public long captureStackTraces(List<ThreadContextImpl> threadContexts, int maxDepth,
+            int limit) {
+        return captureStackTracesInternal(threadContexts, maxDepth, limit);
+    }
+
+    @Override
+    public void close() {}
+
+    static long captureStackTracesInternal(List<ThreadContextImpl> threadContexts, int maxDepth,
+            int limit) {
+        if (threadContexts.isEmpty()) {
+            // critical not to call ThreadMXBean.getThreadInfo() with empty id list
+            // see https://bugs.openjdk.java.net/browse/JDK-8074368
+            return 0;
+        }
+        long[] threadIds = new long[threadContexts.size()];
+        for (int i = 0; i < threadContexts.size(); i++) {
+            threadIds[i] = threadContexts.get(i).getThreadId();
+        }
+        long startTick = System.nanoTime();
+        @Nullable
+        ThreadInfo[] threadInfos =
+                ManagementFactory.getThreadMXBean().getThreadInfo(threadIds, maxDepth);
+        long nanos = System.nanoTime() - startTick;
+        for (int i = 0; i < threadContexts.size(); i++) {
+            ThreadContextImpl threadContext = threadContexts.get(i);
+            ThreadInfo threadInfo = threadInfos[i];
+            if (threadInfo != null) {
+                threadContext.captureStackTrace(threadInfo.getStackTrace(),
+                        threadInfo.getThreadState(), limit);
+            }
+        }
+        return nanos;
+    }
+}
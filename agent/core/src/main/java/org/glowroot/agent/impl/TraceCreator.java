@@ -68,26 +68,24 @@ public class TraceCreator {
 
     public static Trace.Header createPartialTraceHeader(Transaction transaction, long captureTime,
             long captureTick) throws Exception {
-        // TODO optimize, this is excessive to construct entries just to get count
-        CountingEntryVisitor entryVisitor = new CountingEntryVisitor();
-        transaction.accept(captureTick, entryVisitor);
+        // entry count is maintained incrementally, so it can include a few entries that started
+        // after the capture tick (which the full trace below would filter out)
+        int entryCount = transaction.getEntryCount();
         long mainThreadProfileSampleCount = transaction.getMainThreadProfileSampleCount();
         long auxThreadProfileSampleCount = transaction.getAuxThreadProfileSampleCount();
         // only slow transactions reach this point, so setting slow=true (second arg below)
-        return createTraceHeader(transaction, true, true, captureTime, captureTick,
-                entryVisitor.count, mainThreadProfileSampleCount, auxThreadProfileSampleCount);
+        return createTraceHeader(transaction, true, true, captureTime, captureTick, entryCount,
+                mainThreadProfileSampleCount, auxThreadProfileSampleCount);
     }
 
     public static Trace.Header createCompletedTraceHeader(Transaction transaction)
             throws Exception {
-        // TODO optimize, this is excessive to construct entries just to get count
-        CountingEntryVisitor entryVisitor = new CountingEntryVisitor();
-        transaction.accept(transaction.getEndTick(), entryVisitor);
+        int entryCount = transaction.getEntryCount();
         long mainProfileSampleCount = transaction.getMainThreadProfileSampleCount();
         long auxProfileSampleCount = transaction.getAuxThreadProfileSampleCount();
         // only slow transactions reach this point, so setting slow=true (second arg below)
         return createTraceHeader(transaction, true, false, transaction.getCaptureTime(),
-                transaction.getEndTick(), entryVisitor.count, mainProfileSampleCount,
+                transaction.getEndTick(), entryCount, mainProfileSampleCount,
                 auxProfileSampleCount);
     }
 
@@ -188,6 +186,10 @@ public class TraceCreator {
         builder.setAuxThreadProfileSampleCount(auxProfileSampleCount);
         builder.setAuxThreadProfileSampleLimitExceeded(
                 transaction.isAuxThreadProfileSampleLimitExceeded());
+        double sampleRatio = transaction.getSampleRatio();
+        if (sampleRatio < 1) {
+            builder.setSampleRatio(sampleRatio);
+        }
         return builder.build();
     }
 
@@ -239,30 +241,6 @@ public class TraceCreator {
         }
     }
 
-    private static class CountingEntryVisitor implements EntryVisitor {
-
-        private int count;
-
-        @Override
-        public int visitSharedQueryText(String sharedQueryText) {
-            return 0;
-        }
-
-        @Override
-        public void visitEntry(Trace.Entry entry) {
-            if (countEntry(entry)) {
-                count++;
-            }
-        }
-
-        private static boolean countEntry(Trace.Entry entry) {
-            // don't count "auxiliary thread" entries since those are not counted in
-            // maxTraceEntriesPerTransaction limit (and it's confusing when entry count exceeds the
-            // limit)
-            return !entry.getMessage().equals(Transaction.AUXILIARY_THREAD_MESSAGE);
-        }
-    }
-
     private static class CountingEntryVisitorWrapper implements EntryVisitor {
 
         private final @Nullable EntryVisitor delegate;
@@ -282,13 +260,20 @@ public class TraceCreator {
         }
 
         @Override
-        public void visitEntry(Trace.Entry entry) {
-            if (CountingEntryVisitor.countEntry(entry)) {
+        public void visitEntry(Trace.Entry entry) throws Exception {
+            if (countEntry(entry)) {
                 count++;
             }
             if (delegate != null) {
                 delegate.visitEntry(entry);
             }
         }
+
+        private static boolean countEntry(Trace.Entry entry) {
+            // don't count "auxiliary thread" entries since those are not counted in
+            // maxTraceEntriesPerTransaction limit (and it's confusing when entry count exceeds the
+            // limit)
+            return !entry.getMessage().equals(Transaction.AUXILIARY_THREAD_MESSAGE);
+        }
     }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2016 the original author or authors.
+ * Copyright 2011-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,21 +15,45 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 import javax.annotation.Nullable;
 
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimaps;
+import com.google.common.collect.Sets;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.agent.collector.Collector.EntryVisitor;
 import org.glowroot.agent.model.AsyncTimerImpl;
 import org.glowroot.agent.model.ErrorMessage;
 import org.glowroot.agent.model.QueryData;
 import org.glowroot.agent.plugin.api.MessageSupplier;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
 // this supports updating by a single thread and reading by multiple threads
 class TraceEntryComponent {
 
     private static final Logger logger = LoggerFactory.getLogger(TraceEntryComponent.class);
 
+    // number of in-memory entries at which completed entries are moved off heap, see spill()
+    // (0 means never move entries off heap)
+    private static final int SPILL_THRESHOLD =
+            Integer.getInteger("glowroot.internal.offHeapTraceEntries.threshold", 0);
+
+    // the most recent entries always stay in memory since query entries are often still updated
+    // shortly after they end (e.g. row count is updated via extend() while iterating the result
+    // set), though updates to entries that have already been spilled are also handled, see
+    // onSpilledEntryUpdated()
+    private static final int SPILL_KEEP_RECENT = 100;
+
     private final long startTick;
     // not volatile, so depends on memory barrier in Transaction for visibility
     private boolean completed;
@@ -44,6 +68,27 @@ class TraceEntryComponent {
 
     private TraceEntryImpl tailEntry;
 
+    // number of entries (not including the root entry), maintained incrementally so that trace
+    // headers do not need to walk the entries just to count them
+    // not volatile, so depends on memory barrier in Transaction for visibility
+    private int entryCount;
+
+    // these are only accessed by the transaction thread
+    private int spilledEntryCount;
+    private int nextSpillInMemoryEntryCount = SPILL_THRESHOLD;
+
+    // only accessed by the transaction thread
+    private int nextSpillId = 1;
+
+    // keyed by the in-memory parent of the spilled entries (TraceEntryImpl uses identity equality)
+    private volatile ImmutableListMultimap<TraceEntryImpl, SpilledTraceEntries> spilledEntries =
+            ImmutableListMultimap.of();
+
+    // keyed by spill id, these are the spilled entries that have been updated after being spilled
+    // (e.g. a query entry whose result set is still being iterated), see onSpilledEntryUpdated()
+    // only updated by the transaction thread
+    private final Map<Integer, TraceEntryImpl> updatedSpilledEntries = Maps.newConcurrentMap();
+
     TraceEntryComponent(ThreadContextImpl threadContext, MessageSupplier messageSupplier,
             TimerImpl timer, long startTick) {
         this.threadContext = threadContext;
@@ -78,6 +123,7 @@ class TraceEntryComponent {
         tailEntry.setNextTraceEntry(entry);
         tailEntry = entry;
         activeEntry = entry;
+        entryCount++;
         return entry;
     }
 
@@ -106,6 +152,7 @@ class TraceEntryComponent {
         entry.immediateEndAsErrorEntry(errorMessage, endTick);
         tailEntry.setNextTraceEntry(entry);
         tailEntry = entry;
+        entryCount++;
         return entry;
     }
 
@@ -117,10 +164,170 @@ class TraceEntryComponent {
         return tailEntry;
     }
 
+    int getEntryCount() {
+        return entryCount;
+    }
+
     boolean isEmpty() {
         return rootEntry == tailEntry;
     }
 
+    boolean isSpillNeeded() {
+        return SPILL_THRESHOLD > 0
+                && entryCount - spilledEntryCount >= nextSpillInMemoryEntryCount;
+    }
+
+    // moves the oldest completed entries off heap (see SpilledTraceEntries) so that very large
+    // in-flight traces do not hold all of their entries on the heap until the transaction completes
+    //
+    // anchor entries are those which auxiliary thread contexts hang off of, these (and all entries
+    // after them) stay in memory since they are needed to place the auxiliary thread entries
+    //
+    // concurrent readers of the entries (e.g. partial trace capture) can miss or duplicate some of
+    // the entries being spilled at that moment, which is the same kind of race that in-flight trace
+    // capture already has with entries being added
+    void spill(Set<TraceEntryImpl> anchorEntries, long transactionStartTick, long captureTick) {
+        int inMemoryEntryCount = entryCount - spilledEntryCount;
+        // don't check again until another threshold worth of entries have been added, whether or
+        // not any entries are spilled this time, to avoid re-scanning the same entries repeatedly
+        nextSpillInMemoryEntryCount = inMemoryEntryCount + SPILL_THRESHOLD;
+        // find the first entry that must stay in memory, all entries after it stay in memory too
+        TraceEntryImpl cutEntry = rootEntry.getNextTraceEntry();
+        int index = 0;
+        while (cutEntry != null && index < inMemoryEntryCount - SPILL_KEEP_RECENT
+                && !cutEntry.isAsync() && !anchorEntries.contains(cutEntry)) {
+            cutEntry = cutEntry.getNextTraceEntry();
+            index++;
+        }
+        if (cutEntry == null || index == 0) {
+            return;
+        }
+        // ancestors of the cut entry are still active, so they stay in memory
+        Set<TraceEntryImpl> keptEntries = Sets.newIdentityHashSet();
+        TraceEntryImpl ancestorEntry = cutEntry.getParentTraceEntry();
+        while (ancestorEntry != null) {
+            keptEntries.add(ancestorEntry);
+            ancestorEntry = ancestorEntry.getParentTraceEntry();
+        }
+        ImmutableListMultimap<TraceEntryImpl, SpilledTraceEntries> spilledEntries =
+                this.spilledEntries;
+        List<TraceEntryImpl> keptEntryList = Lists.newArrayList();
+        List<TraceEntryImpl> spilledEntryList = Lists.newArrayList();
+        Map<TraceEntryImpl, Integer> spilledDepths = Maps.newIdentityHashMap();
+        Map<TraceEntryImpl, SpilledTraceEntries.Builder> builders = Maps.newIdentityHashMap();
+        Map<TraceEntryImpl, SpilledTraceEntries> blocks = Maps.newIdentityHashMap();
+        try {
+            TraceEntryImpl entry = checkNotNull(rootEntry.getNextTraceEntry());
+            while (entry != cutEntry) {
+                if (keptEntries.contains(entry) || !entry.isCompleted()) {
+                    keptEntryList.add(entry);
+                } else {
+                    // checkNotNull is safe since only the root entry has null parent
+                    TraceEntryImpl parentEntry = checkNotNull(entry.getParentTraceEntry());
+                    Integer parentDepth = spilledDepths.get(parentEntry);
+                    int depth = parentDepth == null ? 0 : parentDepth + 1;
+                    // spilled entries are grouped under their nearest in-memory ancestor
+                    TraceEntryImpl groupEntry = parentEntry;
+                    while (spilledDepths.containsKey(groupEntry)) {
+                        groupEntry = checkNotNull(groupEntry.getParentTraceEntry());
+                    }
+                    SpilledTraceEntries.Builder builder = builders.get(groupEntry);
+                    if (builder == null) {
+                        builder = new SpilledTraceEntries.Builder(transactionStartTick,
+                                captureTick);
+                        builders.put(groupEntry, builder);
+                    }
+                    builder.add(entry, depth, nextSpillId + spilledEntryList.size());
+                    spilledEntryList.add(entry);
+                    // entries spilled by a prior spill() under this entry are moved along with it
+                    // (they precede its in-memory child entries)
+                    for (SpilledTraceEntries spilled : spilledEntries.get(entry)) {
+                        builder.addAll(spilled, depth + 1);
+                    }
+                    spilledDepths.put(entry, depth);
+                }
+                entry = checkNotNull(entry.getNextTraceEntry());
+            }
+            for (Map.Entry<TraceEntryImpl, SpilledTraceEntries.Builder> builder : builders
+                    .entrySet()) {
+                SpilledTraceEntries block = builder.getValue().build();
+                if (block == null) {
+                    // limit on the total size of spilled entries has been reached, nothing has
+                    // been modified yet, so all entries simply stay in memory
+                    releaseAll(blocks.values());
+                    return;
+                }
+                blocks.put(builder.getKey(), block);
+            }
+        } catch (Throwable t) {
+            // this includes failure to allocate the direct buffer (which must not propagate to the
+            // application), nothing has been modified yet, so all entries simply stay in memory
+            releaseAll(blocks.values());
+            logger.error(t.getMessage(), t);
+            return;
+        }
+        if (spilledDepths.isEmpty()) {
+            return;
+        }
+        // publish spilled entries before unlinking them from the in-memory entries
+        ImmutableListMultimap.Builder<TraceEntryImpl, SpilledTraceEntries> updatedSpilledEntries =
+                ImmutableListMultimap.builder();
+        for (Map.Entry<TraceEntryImpl, SpilledTraceEntries> entry : spilledEntries.entries()) {
+            // the blocks under entries that were just spilled have been copied into the new blocks
+            // (the old blocks are left to be garbage collected since concurrent readers may still
+            // be reading them)
+            if (!spilledDepths.containsKey(entry.getKey())) {
+                updatedSpilledEntries.put(entry);
+            }
+        }
+        updatedSpilledEntries.putAll(Multimaps.forMap(blocks));
+        this.spilledEntries = updatedSpilledEntries.build();
+        // spill ids are only set once nothing can fail, since updates to entries with a spill id
+        // are tracked, see onSpilledEntryUpdated()
+        for (TraceEntryImpl spilledEntry : spilledEntryList) {
+            spilledEntry.setSpillId(nextSpillId++);
+        }
+        // spilled entries are not otherwise modified, so that a concurrent reader that is
+        // currently positioned on one of them can still continue on to the rest of the entries
+        TraceEntryImpl lastKeptEntry = rootEntry;
+        for (TraceEntryImpl keptEntry : keptEntryList) {
+            lastKeptEntry.setNextTraceEntry(keptEntry);
+            lastKeptEntry = keptEntry;
+        }
+        lastKeptEntry.setNextTraceEntry(cutEntry);
+        spilledEntryCount += spilledEntryList.size();
+        nextSpillInMemoryEntryCount = entryCount - spilledEntryCount + SPILL_THRESHOLD;
+    }
+
+    // called (by the transaction thread) the first time that a spilled entry is updated, from then
+    // on the entry is read from memory instead of from its (stale) spilled copy
+    void onSpilledEntryUpdated(TraceEntryImpl entry) {
+        entry.unlinkSpilled();
+        updatedSpilledEntries.put(entry.getSpillId(), entry);
+    }
+
+    // visits the spilled child entries (and their descendants) of the given in-memory entry
+    void acceptSpilledChildEntries(TraceEntryImpl parentEntry, int depth,
+            long transactionStartTick, long captureTick, EntryVisitor entryVisitor)
+            throws Exception {
+        for (SpilledTraceEntries spilled : spilledEntries.get(parentEntry)) {
+            spilled.accept(depth, transactionStartTick, captureTick, updatedSpilledEntries,
+                    entryVisitor);
+        }
+    }
+
+    // frees the native memory of the spilled entries once it has been decided not to collect the
+    // transaction, after which the spilled entries can no longer be read
+    void releaseSpilledEntries() {
+        releaseAll(spilledEntries.values());
+    }
+
+    private static void releaseAll(Collection<SpilledTraceEntries> blocks) {
+        for (SpilledTraceEntries spilled : blocks) {
+            spilled.release();
+        }
+    }
+
     private void popEntrySafe(TraceEntryImpl entry) {
         if (activeEntry != entry) {
             // somehow(?) a pop was missed (or maybe too many pops), this is just damage control
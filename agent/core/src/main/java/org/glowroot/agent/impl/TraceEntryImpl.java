@@ -53,7 +53,8 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     private static final Ticker ticker = Tickers.getTicker();
 
     private final ThreadContextImpl threadContext;
-    private final @Nullable TraceEntryImpl parentTraceEntry;
+    // only cleared once this entry has been moved off heap, see unlinkSpilled()
+    private @Nullable TraceEntryImpl parentTraceEntry;
     private final @Nullable Object messageSupplier;
 
     // volatile so it can be set from another thread (needed for async trace entries)
@@ -81,6 +82,12 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     // only used by transaction thread
     private @MonotonicNonNull TimerImpl extendedTimer;
 
+    // non-zero once this entry has been moved off heap, see TraceEntryComponent.spill()
+    // only used by transaction thread
+    private int spillId;
+    // only used by transaction thread
+    private boolean spilledEntryUpdated;
+
     TraceEntryImpl(ThreadContextImpl threadContext, @Nullable TraceEntryImpl parentTraceEntry,
             @Nullable Object messageSupplier, @Nullable QueryData queryData,
             long queryExecutionCount, long startTick, @Nullable TimerImpl syncTimer,
@@ -270,6 +277,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         // timer is only null for trace entries added using addEntryEntry(), and these trace entries
         // are not returned from plugin api so no way for extend() to be called when timer is null
         checkNotNull(syncTimer);
+        checkSpilledEntryUpdate();
         if (selfNestingLevel++ == 0) {
             long priorDurationNanos = endTick - revisedStartTick;
             long currTick = ticker.read();
@@ -280,6 +288,24 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         return this;
     }
 
+    @Override
+    public void rowNavigationAttempted() {
+        super.rowNavigationAttempted();
+        checkSpilledEntryUpdate();
+    }
+
+    @Override
+    public void incrementCurrRow() {
+        super.incrementCurrRow();
+        checkSpilledEntryUpdate();
+    }
+
+    @Override
+    public void setCurrRow(long row) {
+        super.setCurrRow(row);
+        checkSpilledEntryUpdate();
+    }
+
     // this is called for stopping an extension
     @Override
     public void stop() {
@@ -323,6 +349,21 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         this.nextTraceEntry = nextTraceEntry;
     }
 
+    int getSpillId() {
+        return spillId;
+    }
+
+    void setSpillId(int spillId) {
+        this.spillId = spillId;
+    }
+
+    // once a spilled entry has been updated it is retained by TraceEntryComponent, so it is
+    // unlinked from the other spilled entries so that those can still be garbage collected
+    void unlinkSpilled() {
+        parentTraceEntry = null;
+        nextTraceEntry = null;
+    }
+
     void immediateEndAsErrorEntry(ErrorMessage errorMessage, long endTick) {
         this.errorMessage = errorMessage;
         this.endTick = endTick;
@@ -335,13 +376,13 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         return syncTimer != null && syncTimer.getName().equals("auxiliary thread");
     }
 
-    private boolean isCompleted() {
+    boolean isCompleted() {
         // initialComplete is needed for async trace entries which have selfNestingLevel = 0 after
         // calling stopSyncTimer(), but are not complete until end() is called
         return initialComplete && selfNestingLevel == 0;
     }
 
-    private boolean isAsync() {
+    boolean isAsync() {
         return asyncTimer != null;
     }
 
@@ -382,6 +423,15 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         initialComplete = true;
     }
 
+    // e.g. a query entry that is extended while iterating its result set after it has already been
+    // moved off heap
+    private void checkSpilledEntryUpdate() {
+        if (spillId != 0 && !spilledEntryUpdated) {
+            spilledEntryUpdated = true;
+            threadContext.onSpilledEntryUpdated(this);
+        }
+    }
+
     private String getRowCountSuffix() {
         if (!isRowNavigationAttempted()) {
             return "";
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Maps;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// adaptive sampling of traces while the trace collector is falling behind
+//
+// each transaction name gets its fair share of the current collector throughput (token bucket per
+// transaction name), so that a representative sample of traces for every transaction name is still
+// stored during an overload, instead of whichever traces happen to arrive while there is room in
+// the backlog
+class TraceSampler {
+
+    // this is just to limit memory, transaction names beyond this share a single bucket
+    private static final int TRANSACTION_NAME_LIMIT = 1000;
+
+    private static final long THROUGHPUT_WINDOW_NANOS = SECONDS.toNanos(1);
+
+    // sampling state is reset after this long without any sampling, so that the sample ratios
+    // recorded during one overload do not carry over to the next
+    private static final long RESET_NANOS = SECONDS.toNanos(30);
+
+    // allow small burst per transaction name
+    private static final double BUCKET_CAPACITY = 2;
+
+    // floor so that sampling can get started before any collector throughput has been measured
+    private static final double MIN_THROUGHPUT_PER_SECOND = 1;
+
+    private final Ticker ticker;
+
+    // incremented by the collector thread after each trace is collected
+    private final AtomicInteger collectedCount = new AtomicInteger();
+
+    @GuardedBy("this")
+    private final Map<String, Map<String, Bucket>> buckets = Maps.newHashMap();
+    @GuardedBy("this")
+    private final Bucket overflowBucket;
+    @GuardedBy("this")
+    private int bucketCount;
+
+    @GuardedBy("this")
+    private long lastSampleTick;
+    @GuardedBy("this")
+    private long throughputWindowStartTick;
+    @GuardedBy("this")
+    private double throughputPerSecond;
+
+    TraceSampler(Ticker ticker) {
+        this.ticker = ticker;
+        long currTick = ticker.read();
+        overflowBucket = new Bucket(currTick);
+        lastSampleTick = currTick;
+        throughputWindowStartTick = currTick;
+    }
+
+    void onTraceCollected() {
+        collectedCount.getAndIncrement();
+    }
+
+    // returns the fraction of eligible traces for the transaction name that have been stored during
+    // the current overload (including this one), or 0 if this trace should not be stored
+    synchronized double sample(String transactionType, String transactionName) {
+        long currTick = ticker.read();
+        if (currTick - lastSampleTick > RESET_NANOS) {
+            buckets.clear();
+            bucketCount = 0;
+            overflowBucket.reset(currTick);
+        }
+        lastSampleTick = currTick;
+        updateThroughput(currTick);
+        Bucket bucket = getBucket(transactionType, transactionName, currTick);
+        double totalTokensPerSecond = Math.max(throughputPerSecond, MIN_THROUGHPUT_PER_SECOND);
+        bucket.refill(currTick, totalTokensPerSecond / Math.max(bucketCount, 1));
+        bucket.eligibleCount++;
+        if (bucket.tokens < 1) {
+            return 0;
+        }
+        bucket.tokens--;
+        bucket.storedCount++;
+        return bucket.storedCount / (double) bucket.eligibleCount;
+    }
+
+    @GuardedBy("this")
+    private void updateThroughput(long currTick) {
+        long windowNanos = currTick - throughputWindowStartTick;
+        if (windowNanos >= THROUGHPUT_WINDOW_NANOS) {
+            throughputPerSecond =
+                    collectedCount.getAndSet(0) * (double) SECONDS.toNanos(1) / windowNanos;
+            throughputWindowStartTick = currTick;
+        }
+    }
+
+    @GuardedBy("this")
+    private Bucket getBucket(String transactionType, String transactionName, long currTick) {
+        Map<String, Bucket> transactionNameBuckets = buckets.get(transactionType);
+        if (transactionNameBuckets == null) {
+            transactionNameBuckets = Maps.newHashMap();
+            buckets.put(transactionType, transactionNameBuckets);
+        }
+        Bucket bucket = transactionNameBuckets.get(transactionName);
+        if (bucket == null) {
+            if (bucketCount >= TRANSACTION_NAME_LIMIT) {
+                return overflowBucket;
+            }
+            bucket = new Bucket(currTick);
+            transactionNameBuckets.put(transactionName, bucket);
+            bucketCount++;
+        }
+        return bucket;
+    }
+
+    private static class Bucket {
+
+        private double tokens;
+        private long lastRefillTick;
+        private long eligibleCount;
+        private long storedCount;
+
+        private Bucket(long currTick) {
+            tokens = BUCKET_CAPACITY;
+            lastRefillTick = currTick;
+        }
+
+        private void reset(long currTick) {
+            tokens = BUCKET_CAPACITY;
+            lastRefillTick = currTick;
+            eligibleCount = 0;
+            storedCount = 0;
+        }
+
+        private void refill(long currTick, double tokensPerSecond) {
+            double elapsedSeconds = (currTick - lastRefillTick) / (double) SECONDS.toNanos(1);
+            tokens = Math.min(tokens + elapsedSeconds * tokensPerSecond, BUCKET_CAPACITY);
+            lastRefillTick = currTick;
+        }
+    }
+}
@@ -151,6 +151,8 @@ public class Transaction {
     private volatile boolean partiallyStored;
 
     private long captureTime;
+    // fraction of eligible traces stored under adaptive sampling, see TraceSampler
+    private double sampleRatio = 1;
 
     // memory barrier is used to ensure memory visibility of entries and timers at key points,
     // namely after each entry
@@ -477,6 +479,21 @@ public class Transaction {
                 captureTick, 0, entryVisitor, async);
     }
 
+    // this is the number of entries that accept() visits (not including the auxiliary thread root
+    // entries, see TraceCreator), without having to build them
+    int getEntryCount() {
+        memoryBarrierRead();
+        int entryCount = mainThreadContext.getEntryCount();
+        synchronized (mainThreadContext) {
+            if (auxThreadContexts != null) {
+                for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
+                    entryCount += auxThreadContext.getEntryCount();
+                }
+            }
+        }
+        return entryCount;
+    }
+
     long getMainThreadProfileSampleCount() {
         if (mainThreadProfile == null) {
             return 0;
@@ -756,7 +773,8 @@ public class Transaction {
         return entryLimitCounter > maxTraceEntriesPerTransaction;
     }
 
-    void captureStackTrace(boolean auxiliary, ThreadInfo threadInfo, int limit) {
+    void captureStackTrace(boolean auxiliary, StackTraceElement[] stackTrace,
+            @Nullable Thread.State threadState, int limit) {
         if (completed) {
             return;
         }
@@ -775,7 +793,7 @@ public class Transaction {
             // transaction profile field, so that it is not possible to read a profile that doesn't
             // have at least one stack trace
             profile = new Profile();
-            profile.addStackTrace(threadInfo, limit);
+            profile.addStackTrace(stackTrace, threadState, limit);
             if (auxiliary) {
                 auxThreadProfile = profile;
             } else {
@@ -783,7 +801,7 @@ public class Transaction {
             }
             return;
         }
-        profile.addStackTrace(threadInfo, limit);
+        profile.addStackTrace(stackTrace, threadState, limit);
     }
 
     void end(long endTick, boolean completeAsyncTransaction) {
@@ -809,14 +827,19 @@ public class Transaction {
     }
 
     // called by the transaction thread
-    void onCompleteWillStoreTrace(long captureTime) {
+    void onCompleteWillStoreTrace(long captureTime, double sampleRatio) {
         this.captureTime = captureTime;
+        this.sampleRatio = sampleRatio;
     }
 
     long getCaptureTime() {
         return captureTime;
     }
 
+    double getSampleRatio() {
+        return sampleRatio;
+    }
+
     TransactionRegistry getTransactionRegistry() {
         return transactionRegistry;
     }
@@ -900,6 +923,9 @@ public class Transaction {
             ListMultimap<TraceEntryImpl, TraceEntryImpl> parentChildMap, long transactionStartTick,
             long captureTick, int depth, EntryVisitor entryVisitor, boolean removeSingleAuxEntry)
             throws Exception {
+        // entries that have been moved off heap always precede the in-memory child entries
+        entry.getThreadContext().acceptSpilledChildEntries(entry, depth, transactionStartTick,
+                captureTick, entryVisitor);
         if (!parentChildMap.containsKey(entry)) {
             // check containsKey to avoid creating garbage empty list via ListMultimap
             return;
@@ -918,6 +944,26 @@ public class Transaction {
         }
     }
 
+    // these are the main thread entries that auxiliary thread contexts hang off of, which need to
+    // stay in memory, see TraceEntryComponent.spill()
+    Set<TraceEntryImpl> getAuxThreadContextAnchorEntries() {
+        synchronized (mainThreadContext) {
+            Set<TraceEntryImpl> anchorEntries = Sets.newIdentityHashSet();
+            if (auxThreadContexts != null) {
+                addAnchorEntries(auxThreadContexts, anchorEntries);
+            }
+            if (unmergedLimitExceededAuxThreadContexts != null) {
+                addAnchorEntries(unmergedLimitExceededAuxThreadContexts, anchorEntries);
+            }
+            return anchorEntries;
+        }
+    }
+
+    // only the main thread context spills entries, see ThreadContextImpl.spillEntries()
+    void releaseSpilledEntries() {
+        mainThreadContext.releaseSpilledEntries();
+    }
+
     private ListMultimap<TraceEntryImpl, ThreadContextImpl> buildPriorEntryChildThreadContextMap() {
         synchronized (mainThreadContext) {
             if (auxThreadContexts == null) {
@@ -936,6 +982,21 @@ public class Transaction {
         }
     }
 
+    private static void addAnchorEntries(Collection<ThreadContextImpl> auxThreadContexts,
+            Set<TraceEntryImpl> anchorEntries) {
+        for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
+            TraceEntryImpl parentTraceEntry = auxThreadContext.getParentTraceEntry();
+            if (parentTraceEntry != null) {
+                anchorEntries.add(parentTraceEntry);
+            }
+            TraceEntryImpl parentThreadContextPriorEntry =
+                    auxThreadContext.getParentThreadContextPriorEntry();
+            if (parentThreadContextPriorEntry != null) {
+                anchorEntries.add(parentThreadContextPriorEntry);
+            }
+        }
+    }
+
     // must be called under synchronized (mainThreadContext)
     private void detachIncompleteAuxThreadContexts() {
         if (auxThreadContexts == null) {
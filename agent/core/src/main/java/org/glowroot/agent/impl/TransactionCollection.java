@@ -22,67 +22,109 @@ import java.util.Iterator;
 import java.util.NoSuchElementException;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
-import static com.google.common.base.Preconditions.checkNotNull;
+import com.google.common.annotations.VisibleForTesting;
 
+// transactions are striped across segments by thread id so that adding and removing transactions
+// from different threads does not contend on a single global lock, and each entry knows its own
+// segment so that removal (including removal of stale entries) is O(1)
+//
+// iteration is weakly consistent, it never blocks adders/removers and may or may not reflect
+// transactions that are added or removed while iterating
 class TransactionCollection implements Iterable<Transaction> {
 
+    private static final int SEGMENT_COUNT;
+
+    static {
+        int segmentCount = Integer.getInteger("glowroot.internal.transactionCollection.segments",
+                Runtime.getRuntime().availableProcessors() * 2);
+        // round up to power of 2 so that segment can be selected with a mask
+        SEGMENT_COUNT = Integer.highestOneBit(Math.max(segmentCount, 1) * 2 - 1);
+    }
+
     private final ReferenceQueue<Transaction> queue = new ReferenceQueue<Transaction>();
 
-    private final TransactionEntry headEntry = new TransactionEntry(null, queue);
+    private final Segment[] segments;
+    private final int segmentMask;
 
-    // tail is non-volatile since only accessed under lock
-    private TransactionEntry tailEntry = headEntry;
+    TransactionCollection() {
+        this(SEGMENT_COUNT);
+    }
 
-    // all structural changes are made under lock for simplicity
-    // TODO implement lock free structure
-    private final Object lock = new Object();
+    @VisibleForTesting
+    TransactionCollection(int segmentCount) {
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment();
+        }
+        segmentMask = segmentCount - 1;
+    }
 
     TransactionEntry add(Transaction transaction) {
-        TransactionEntry newTailEntry = new TransactionEntry(transaction, queue);
-        synchronized (lock) {
-            expungeStaleEntries();
-            tailEntry.nextEntry = newTailEntry;
-            newTailEntry.prevEntry = tailEntry;
-            tailEntry = newTailEntry;
-        }
+        expungeStaleEntries();
+        Segment segment = segments[(int) Thread.currentThread().getId() & segmentMask];
+        TransactionEntry newTailEntry = new TransactionEntry(segment, transaction, queue);
+        segment.add(newTailEntry);
         return newTailEntry;
     }
 
     @Override
     public Iterator<Transaction> iterator() {
-        synchronized (lock) {
-            expungeStaleEntries();
-        }
+        expungeStaleEntries();
         return new TransactionIterator();
     }
 
-    // requires lock
     private void expungeStaleEntries() {
-        Reference<? extends Transaction> ref = queue.poll();
-        if (ref == null) {
-            return;
+        // each reference knows its entry, so no need to scan for stale entries
+        Reference<? extends Transaction> ref;
+        while ((ref = queue.poll()) != null) {
+            ((TransactionRef) ref).entry.remove();
         }
-        // drain the queue, since going to loop over and clean up everything anyways
-        while (queue.poll() != null) {
+    }
+
+    private static class Segment {
+
+        private final TransactionEntry headEntry = new TransactionEntry(this, null, null);
+
+        // tail is non-volatile since only accessed under lock
+        @GuardedBy("this")
+        private TransactionEntry tailEntry = headEntry;
+
+        private synchronized void add(TransactionEntry newTailEntry) {
+            tailEntry.nextEntry = newTailEntry;
+            newTailEntry.prevEntry = tailEntry;
+            tailEntry = newTailEntry;
         }
-        TransactionEntry currEntry = headEntry.nextEntry;
-        while (currEntry != null) {
-            if (currEntry.getTransaction() == null) {
-                currEntry.remove();
+
+        private synchronized void remove(TransactionEntry entry) {
+            if (entry.prevEntry == null) {
+                // already removed
+                return;
+            }
+            TransactionEntry localPrevEntry = entry.prevEntry;
+            TransactionEntry localNextEntry = entry.nextEntry;
+            localPrevEntry.nextEntry = localNextEntry;
+            if (localNextEntry != null) {
+                localNextEntry.prevEntry = localPrevEntry;
+            }
+            if (entry == tailEntry) {
+                tailEntry = localPrevEntry;
             }
-            currEntry = currEntry.nextEntry;
+            // next entry is intentionally left alone so that an iterator that is currently
+            // positioned on this entry can still continue on to the rest of the list
+            entry.prevEntry = null;
         }
     }
 
     private class TransactionIterator implements Iterator<Transaction> {
 
+        private int nextSegmentIndex;
         private @Nullable TransactionEntry nextEntry;
         private @Nullable Transaction nextTransaction;
 
         @SuppressWarnings("method.invocation.invalid")
         private TransactionIterator() {
-            nextEntry = headEntry;
             advance();
         }
 
@@ -107,54 +149,47 @@ class TransactionCollection implements Iterable<Transaction> {
         }
 
         private void advance() {
-            advanceOne();
-            while (nextTransaction == null && nextEntry != null) {
-                advanceOne();
+            nextTransaction = null;
+            while (nextTransaction == null) {
+                if (nextEntry != null) {
+                    nextEntry = nextEntry.nextEntry;
+                }
+                if (nextEntry == null) {
+                    if (nextSegmentIndex == segments.length) {
+                        return;
+                    }
+                    nextEntry = segments[nextSegmentIndex++].headEntry;
+                    continue;
+                }
+                nextTransaction = nextEntry.getTransaction();
             }
         }
-
-        private void advanceOne() {
-            checkNotNull(nextEntry);
-            nextEntry = nextEntry.nextEntry;
-            nextTransaction = nextEntry == null ? null : nextEntry.getTransaction();
-        }
     }
 
-    class TransactionEntry {
+    static class TransactionEntry {
 
-        private final @Nullable WeakReference<Transaction> transactionRef; // only null for head
+        private final Segment segment;
 
-        // prev is non-volatile since only accessed under lock
+        private final @Nullable TransactionRef transactionRef; // only null for head
+
+        // prev is non-volatile since only accessed under segment lock
         private @Nullable TransactionEntry prevEntry; // only null for head and removed
 
-        // next is volatile since accessed by iterator outside of lock
+        // next is volatile since accessed by iterator outside of segment lock
         private volatile @Nullable TransactionEntry nextEntry;
 
-        private TransactionEntry(@Nullable Transaction transaction,
-                ReferenceQueue<Transaction> queue) {
+        private TransactionEntry(Segment segment, @Nullable Transaction transaction,
+                @Nullable ReferenceQueue<Transaction> queue) {
+            this.segment = segment;
             if (transaction == null) {
                 transactionRef = null;
             } else {
-                transactionRef = new WeakReference<Transaction>(transaction, queue);
+                transactionRef = new TransactionRef(transaction, queue, this);
             }
         }
 
         void remove() {
-            synchronized (lock) {
-                if (prevEntry == null) {
-                    // already removed
-                    return;
-                }
-                TransactionEntry localPrevEntry = checkNotNull(prevEntry);
-                localPrevEntry.nextEntry = nextEntry;
-                if (nextEntry != null) {
-                    nextEntry.prevEntry = localPrevEntry;
-                }
-                if (this == tailEntry) {
-                    tailEntry = localPrevEntry;
-                }
-                prevEntry = null;
-            }
+            segment.remove(this);
         }
 
         private @Nullable Transaction getTransaction() {
@@ -164,4 +199,15 @@ class TransactionCollection implements Iterable<Transaction> {
             return transactionRef.get();
         }
     }
+
+    private static class TransactionRef extends WeakReference<Transaction> {
+
+        private final TransactionEntry entry;
+
+        private TransactionRef(Transaction transaction,
+                @Nullable ReferenceQueue<Transaction> queue, TransactionEntry entry) {
+            super(transaction, queue);
+            this.entry = entry;
+        }
+    }
 }
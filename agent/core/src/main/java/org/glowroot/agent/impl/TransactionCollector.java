@@ -45,12 +45,18 @@ public class TransactionCollector {
     // back pressure on trace collection
     private static final int PENDING_LIMIT = 100;
 
+    // adaptive sampling kicks in once the backlog reaches this size, see TraceSampler
+    // (0 means never sample, in which case traces are only dropped once the pending limit is hit)
+    private static final int SAMPLING_THRESHOLD =
+            Integer.getInteger("glowroot.internal.traceSampling.threshold", 0);
+
     private final ExecutorService dedicatedExecutor;
     private final Collector collector;
     private final Aggregator aggregator;
     private final Clock clock;
     private final Ticker ticker;
     private final Set<Transaction> pendingTransactions = Sets.newCopyOnWriteArraySet();
+    private final TraceSampler traceSampler;
 
     private final RateLimitedLogger backPressureLogger =
             new RateLimitedLogger(TransactionCollector.class);
@@ -63,6 +69,7 @@ public class TransactionCollector {
         this.aggregator = aggregator;
         this.clock = clock;
         this.ticker = ticker;
+        traceSampler = new TraceSampler(ticker);
         dedicatedExecutor = Executors.newSingleThreadExecutor(
                 new ThreadFactoryBuilder()
                         .setDaemon(true)
@@ -116,19 +123,33 @@ public class TransactionCollector {
         long captureTime = aggregator.add(transaction);
         final boolean slow = shouldStoreSlow(transaction);
         if (!slow && !shouldStoreError(transaction)) {
+            transaction.releaseSpilledEntries();
             return;
         }
         // limit doesn't apply to transactions that were already (partially) stored to make sure
         // they don't get left out in case they cause an avalanche of slowness
-        if (pendingTransactions.size() >= PENDING_LIMIT && !transaction.isPartiallyStored()) {
-            backPressureLogger.warn("not storing a trace because of an excessive backlog of {}"
-                    + " traces already waiting to be stored", PENDING_LIMIT);
-            return;
+        double sampleRatio = 1;
+        if (!transaction.isPartiallyStored()) {
+            int pendingCount = pendingTransactions.size();
+            if (pendingCount >= PENDING_LIMIT) {
+                backPressureLogger.warn("not storing a trace because of an excessive backlog of"
+                        + " {} traces already waiting to be stored", PENDING_LIMIT);
+                transaction.releaseSpilledEntries();
+                return;
+            }
+            if (SAMPLING_THRESHOLD > 0 && pendingCount >= SAMPLING_THRESHOLD) {
+                sampleRatio = traceSampler.sample(transaction.getTransactionType(),
+                        transaction.getTransactionName());
+                if (sampleRatio == 0) {
+                    transaction.releaseSpilledEntries();
+                    return;
+                }
+            }
         }
         pendingTransactions.add(transaction);
 
         // this need to be called inside the transaction thread
-        transaction.onCompleteWillStoreTrace(captureTime);
+        transaction.onCompleteWillStoreTrace(captureTime, sampleRatio);
 
         // transaction is ended, so Executor Plugin won't tie this async work to the transaction
         // (which is good)
@@ -139,9 +160,13 @@ public class TransactionCollector {
                     TraceReader traceReader =
                             TraceCreator.createTraceReaderForCompleted(transaction, slow);
                     collector.collectTrace(traceReader);
+                    traceSampler.onTraceCollected();
                 } catch (Throwable t) {
                     logger.error(t.getMessage(), t);
                 } finally {
+                    // spilled entries are not released here since the central collector can
+                    // re-read the trace (asynchronously) when retrying after a failure, their
+                    // native memory is freed once they are garbage collected instead
                     pendingTransactions.remove(transaction);
                 }
             }
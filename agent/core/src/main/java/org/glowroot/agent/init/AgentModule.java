@@ -60,9 +60,12 @@ import org.glowroot.agent.util.ThreadAllocatedBytes;
 import org.glowroot.agent.util.Tickers;
 import org.glowroot.agent.weaving.AdviceCache;
 import org.glowroot.agent.weaving.AnalyzedWorld;
+import org.glowroot.agent.weaving.DeferredWeaver;
 import org.glowroot.agent.weaving.IsolatedWeavingClassLoader;
+import org.glowroot.agent.weaving.PreAnalyzer;
 import org.glowroot.agent.weaving.PreInitializeWeavingClasses;
 import org.glowroot.agent.weaving.Weaver;
+import org.glowroot.agent.weaving.WeavingCache;
 import org.glowroot.agent.weaving.WeavingClassFileTransformer;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
@@ -82,6 +85,21 @@ public class AgentModule {
     private static final long ROLLUP_0_INTERVAL_MILLIS =
             Long.getLong("glowroot.internal.rollup.0.intervalMillis", MINUTES.toMillis(1));
 
+    // persists the analysis of classes that do not need weaving across restarts, see WeavingCache
+    private static final boolean WEAVING_CACHE = Boolean.getBoolean("glowroot.weaving.cache");
+
+    // analyzes super types of the classes on the class path in the background at startup, see
+    // PreAnalyzer
+    private static final boolean PRE_ANALYZE = Boolean.getBoolean("glowroot.weaving.preAnalyze");
+
+    // defers weaving of classes until they are first used, see DeferredWeaver
+    private static final boolean DEFERRED_WEAVING =
+            Boolean.getBoolean("glowroot.weaving.deferred");
+
+    // keeps the original stack map frames when weaving, see FrameUpdatingMethodVisitor
+    private static final boolean PRESERVE_FRAMES =
+            Boolean.getBoolean("glowroot.weaving.preserveFrames");
+
     @OnlyUsedByTests
     public static final ThreadLocal</*@Nullable*/ IsolatedWeavingClassLoader> isolatedWeavingClassLoader =
             new ThreadLocal</*@Nullable*/ IsolatedWeavingClassLoader>();
@@ -98,6 +116,8 @@ public class AgentModule {
 
     private final GaugeCollector gaugeCollector;
     private final StackTraceCollector stackTraceCollector;
+    private final @Nullable PreAnalyzer preAnalyzer;
+    private final @Nullable DeferredWeaver deferredWeaver;
 
     private final boolean jvmRetransformClassesSupported;
 
@@ -125,13 +145,25 @@ public class AgentModule {
         }
         adviceCache = new AdviceCache(pluginCache.pluginDescriptors(), pluginCache.pluginJars(),
                 configService.getInstrumentationConfigs(), instrumentation, agentDir);
+        WeavingCache weavingCache = null;
+        if (instrumentation != null && WEAVING_CACHE) {
+            weavingCache = new WeavingCache(new File(agentDir, "tmp/weaving-cache.dat"),
+                    adviceCache.getAdvisorsSupplier(), adviceCache.getShimTypes(),
+                    adviceCache.getMixinTypes());
+        }
         analyzedWorld = new AnalyzedWorld(adviceCache.getAdvisorsSupplier(),
-                adviceCache.getShimTypes(), adviceCache.getMixinTypes());
+                adviceCache.getShimTypes(), adviceCache.getMixinTypes(), weavingCache != null);
         final TimerNameCache timerNameCache = new TimerNameCache();
 
+        if (instrumentation != null && DEFERRED_WEAVING
+                && instrumentation.isRetransformClassesSupported()) {
+            deferredWeaver = DeferredWeaver.create(instrumentation);
+        } else {
+            deferredWeaver = null;
+        }
         Weaver weaver = new Weaver(adviceCache.getAdvisorsSupplier(), adviceCache.getShimTypes(),
                 adviceCache.getMixinTypes(), analyzedWorld, transactionRegistry, timerNameCache,
-                configService);
+                configService, weavingCache, deferredWeaver, PRESERVE_FRAMES);
 
         if (instrumentation == null) {
             // instrumentation is null when debugging with LocalContainer
@@ -152,6 +184,19 @@ public class AgentModule {
             }
             logRunnableCallableClassWarningIfNeeded(instrumentation);
         }
+        if (instrumentation != null && PRE_ANALYZE) {
+            // the transformer is already in place, so application classes loaded while this is
+            // running are analyzed (and woven) as usual
+            preAnalyzer = PreAnalyzer.start(analyzedWorld, ClassLoader.getSystemClassLoader(),
+                    PreAnalyzer.getClassPathJarFiles());
+        } else {
+            preAnalyzer = null;
+        }
+        if (deferredWeaver != null) {
+            // started after the transformer is in place since the deferred classes are woven by
+            // retransforming them
+            deferredWeaver.start();
+        }
 
         // now that instrumentation is set up, it is safe to create scheduled executor
         ScheduledExecutorService backgroundExecutor = backgroundExecutorSupplier.get();
@@ -199,6 +244,8 @@ public class AgentModule {
         long gaugeCollectionIntervalMillis = configService.getGaugeCollectionIntervalMillis();
         gaugeCollector.scheduleWithFixedDelay(gaugeCollectionIntervalMillis, MILLISECONDS);
         stackTraceCollector = new StackTraceCollector(transactionRegistry, configService, random);
+        lazyPlatformMBeanServer.lazyRegisterMBean(stackTraceCollector.getStats(),
+                "org.glowroot:type=StackTraceCollector");
 
         immedateTraceStoreWatcher = new ImmediateTraceStoreWatcher(backgroundExecutor,
                 transactionRegistry, transactionCollector, configService, ticker);
@@ -317,6 +364,12 @@ public class AgentModule {
         aggregator.close();
         gaugeCollector.close();
         stackTraceCollector.close();
+        if (preAnalyzer != null) {
+            preAnalyzer.close();
+        }
+        if (deferredWeaver != null) {
+            deferredWeaver.close();
+        }
         lazyPlatformMBeanServer.close();
     }
 }
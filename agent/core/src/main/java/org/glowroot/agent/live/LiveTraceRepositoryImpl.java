@@ -39,6 +39,7 @@ import org.glowroot.agent.impl.TransactionCollector;
 import org.glowroot.agent.impl.TransactionRegistry;
 import org.glowroot.agent.model.ErrorMessage;
 import org.glowroot.common.live.ImmutableEntries;
+import org.glowroot.common.live.ImmutableFullTrace;
 import org.glowroot.common.live.ImmutableTracePoint;
 import org.glowroot.common.live.LiveTraceRepository;
 import org.glowroot.common.util.Clock;
@@ -79,22 +80,30 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
     }
 
     @Override
-    public @Nullable Entries getEntries(String agentRollupId, String agentId, String traceId)
-            throws Exception {
+    public @Nullable ChunkedEntries getEntries(String agentRollupId, String agentId,
+            String traceId) throws Exception {
+        CollectingEntryVisitor entryVisitor = new CollectingEntryVisitor();
+        if (!visitEntries(traceId, entryVisitor)) {
+            return null;
+        }
+        return new UnchunkedEntries(ImmutableEntries.builder()
+                .addAllEntries(entryVisitor.entries)
+                .addAllSharedQueryTexts(TraceCreator.toProto(entryVisitor.sharedQueryTextIndexes))
+                .build());
+    }
+
+    // returns false if the trace was not found
+    //
+    // this is used to stream the entries to the central collector without collecting them first
+    public boolean visitEntries(String traceId, EntryVisitor entryVisitor) throws Exception {
         for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
                 transactionCollector.getPendingTransactions())) {
             if (transaction.getTraceId().equals(traceId)) {
-                // FIXME stream to central, similar to collectTrace
-                CollectingEntryVisitor entryVisitor = new CollectingEntryVisitor();
                 transaction.accept(ticker.read(), entryVisitor);
-                return ImmutableEntries.builder()
-                        .addAllEntries(entryVisitor.entries)
-                        .addAllSharedQueryTexts(
-                                TraceCreator.toProto(entryVisitor.sharedQueryTextIndexes))
-                        .build();
+                return true;
             }
         }
-        return null;
+        return false;
     }
 
     @Override
@@ -123,12 +132,11 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
     }
 
     @Override
-    public @Nullable Trace getFullTrace(String agentRollupId, String agentId, String traceId)
+    public @Nullable FullTrace getFullTrace(String agentRollupId, String agentId, String traceId)
             throws Exception {
         for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
                 transactionCollector.getPendingTransactions())) {
             if (transaction.getTraceId().equals(traceId)) {
-                // FIXME stream to central, similar to collectTrace
                 CollectingTraceVisitor traceVisitor = new CollectingTraceVisitor();
                 TraceReader traceReader = createTraceReader(transaction);
                 traceReader.accept(traceVisitor);
@@ -143,10 +151,15 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
                 if (auxThreadProfile != null) {
                     builder.setAuxThreadProfile(auxThreadProfile);
                 }
-                return builder.setHeader(checkNotNull(traceVisitor.header))
-                        .addAllEntry(((CollectingEntryVisitor) traceVisitor).entries)
-                        .addAllSharedQueryText(TraceCreator.toProto(
-                                ((CollectingEntryVisitor) traceVisitor).sharedQueryTextIndexes))
+                return ImmutableFullTrace.builder()
+                        .trace(builder.setHeader(checkNotNull(traceVisitor.header))
+                                .build())
+                        .entries(new UnchunkedEntries(ImmutableEntries.builder()
+                                .addAllEntries(((CollectingEntryVisitor) traceVisitor).entries)
+                                .addAllSharedQueryTexts(TraceCreator.toProto(
+                                        ((CollectingEntryVisitor) traceVisitor)
+                                                .sharedQueryTextIndexes))
+                                .build()))
                         .build();
             }
         }
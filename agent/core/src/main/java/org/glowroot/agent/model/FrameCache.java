@@ -0,0 +1,57 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+// maps each distinct stack trace element in a transaction profile to a frame id, so that the
+// profile tree only needs to store frame ids
+//
+// this is scoped to a single transaction profile (as opposed to shared across the jvm), so that
+// the stack trace elements are released along with the profile, since the number of distinct stack
+// trace elements in the jvm is not bounded when classes are generated at runtime (e.g. lambdas,
+// proxies, recompiled jsps and groovy scripts, or webapp redeploys)
+//
+// this is not thread safe, access is guarded by the Profile lock
+class FrameCache {
+
+    private final Map<StackTraceElement, Integer> frameIds = Maps.newHashMap();
+
+    // frame id -> stack trace element
+    private StackTraceElement[] frames = new StackTraceElement[64];
+    private int frameCount;
+
+    int getFrameId(StackTraceElement frame) {
+        Integer frameId = frameIds.get(frame);
+        if (frameId != null) {
+            return frameId;
+        }
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+        frameId = frameCount++;
+        frames[frameId] = frame;
+        frameIds.put(frame, frameId);
+        return frameId;
+    }
+
+    StackTraceElement getFrame(int frameId) {
+        return frames[frameId];
+    }
+}
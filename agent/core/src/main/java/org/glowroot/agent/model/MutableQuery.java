@@ -62,6 +62,12 @@ class MutableQuery {
         }
     }
 
+    void merge(MutableQuery query) {
+        totalDurationNanos.add(query.totalDurationNanos);
+        executionCount += query.executionCount;
+        addToTotalRows(query.hasTotalRows, query.totalRows);
+    }
+
     Aggregate.Query toAggregateProto(String queryText,
             SharedQueryTextCollector sharedQueryTextCollector) {
         int sharedQueryTextIndex = sharedQueryTextCollector.getIndex(queryText);
@@ -77,6 +83,7 @@ class MutableQuery {
 
     private interface MutableNumber {
         void add(long value);
+        void add(MutableNumber value);
         long getLong();
         double getDouble();
     }
@@ -90,6 +97,11 @@ class MutableQuery {
             this.value += value;
         }
 
+        @Override
+        public void add(MutableNumber value) {
+            this.value += value.getLong();
+        }
+
         @Override
         public long getLong() {
             return value;
@@ -111,6 +123,11 @@ class MutableQuery {
             this.value += value;
         }
 
+        @Override
+        public void add(MutableNumber value) {
+            this.value += value.getDouble();
+        }
+
         @Override
         public long getLong() {
             // not ok to convert double to long
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2016 the original author or authors.
+ * Copyright 2011-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -18,50 +18,156 @@ package org.glowroot.agent.model;
 import java.lang.management.ThreadInfo;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
-import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import com.google.common.collect.Maps;
 
 import org.glowroot.common.model.MutableProfile;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile.LeafThreadState;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile.ProfileNode;
 
+// transaction profile is stored as a tree of frame ids (in parallel arrays indexed by node, with
+// node 0 being a synthetic root), so that adding a stack trace sample only allocates when the
+// sample adds new nodes to the tree
 public class Profile {
 
+    private static final Thread.State[] THREAD_STATES = Thread.State.values();
+
+    private static final int ROOT = 0;
+    private static final int NONE = -1;
+
+    private static final int INITIAL_NODE_CAPACITY = 64;
+
     private final Object lock = new Object();
+
+    @GuardedBy("lock")
+    private final FrameCache frameCache = new FrameCache();
+
     @GuardedBy("lock")
-    private final List<List<StackTraceElement>> unmergedStackTraces = Lists.newArrayList();
+    private int[] frameIds = new int[INITIAL_NODE_CAPACITY];
+    // Thread.State ordinal + 1 for leaf nodes, 0 for non-leaf nodes
     @GuardedBy("lock")
-    private final List<Thread.State> unmergedStackTraceThreadStates = Lists.newArrayList();
+    private byte[] leafThreadStates = new byte[INITIAL_NODE_CAPACITY];
     @GuardedBy("lock")
-    private @MonotonicNonNull MutableProfile profile;
+    private int[] sampleCounts = new int[INITIAL_NODE_CAPACITY];
+    @GuardedBy("lock")
+    private int[] parents = new int[INITIAL_NODE_CAPACITY];
+    @GuardedBy("lock")
+    private int[] firstChilds = new int[INITIAL_NODE_CAPACITY];
+    @GuardedBy("lock")
+    private int[] lastChilds = new int[INITIAL_NODE_CAPACITY];
+    @GuardedBy("lock")
+    private int[] nextSiblings = new int[INITIAL_NODE_CAPACITY];
+    @GuardedBy("lock")
+    private int nodeCount;
+
     @GuardedBy("lock")
     private long sampleCount;
 
     @VisibleForTesting
-    public Profile() {}
+    public Profile() {
+        // synthetic root node
+        parents[ROOT] = NONE;
+        firstChilds[ROOT] = NONE;
+        lastChilds[ROOT] = NONE;
+        nextSiblings[ROOT] = NONE;
+        nodeCount = 1;
+    }
 
     public void mergeInto(MutableProfile profile) {
         synchronized (lock) {
-            if (this.profile == null) {
-                mergeTheUnmergedInto(profile);
-            } else {
-                profile.merge(this.profile);
+            // destinationStack[depth] is the parent of the next node at that depth
+            int[] destinationStack = new int[16];
+            destinationStack[0] = MutableProfile.ROOT_NODE_ID;
+            // iterative depth first traversal to avoid StackOverflowError on deep stack traces
+            int node = firstChilds[ROOT];
+            int depth = 0;
+            while (node != NONE) {
+                byte leafThreadState = leafThreadStates[node];
+                int destinationNode = profile.mergeNode(destinationStack[depth],
+                        frameCache.getFrame(frameIds[node]),
+                        leafThreadState == 0 ? null : THREAD_STATES[leafThreadState - 1],
+                        sampleCounts[node]);
+                if (firstChilds[node] != NONE) {
+                    if (depth + 1 == destinationStack.length) {
+                        destinationStack =
+                                Arrays.copyOf(destinationStack, destinationStack.length * 2);
+                    }
+                    destinationStack[depth + 1] = destinationNode;
+                    node = firstChilds[node];
+                    depth++;
+                    continue;
+                }
+                while (nextSiblings[node] == NONE && parents[node] != ROOT) {
+                    node = parents[node];
+                    depth--;
+                }
+                node = nextSiblings[node];
             }
         }
     }
 
     public org.glowroot.wire.api.model.ProfileOuterClass.Profile toProto() {
+        NameIndexes packageNames = new NameIndexes();
+        NameIndexes classNames = new NameIndexes();
+        NameIndexes methodNames = new NameIndexes();
+        NameIndexes fileNames = new NameIndexes();
+        List<ProfileNode> nodes = Lists.newArrayList();
         synchronized (lock) {
-            if (profile == null) {
-                profile = new MutableProfile();
-                mergeTheUnmergedInto(profile);
-                unmergedStackTraces.clear();
-                unmergedStackTraceThreadStates.clear();
+            // iterative depth first traversal to avoid StackOverflowError on deep stack traces
+            int node = firstChilds[ROOT];
+            int depth = 0;
+            while (node != NONE) {
+                StackTraceElement frame = frameCache.getFrame(frameIds[node]);
+                String fullClassName = frame.getClassName();
+                int index = fullClassName.lastIndexOf('.');
+                String packageName;
+                String className;
+                if (index == -1) {
+                    packageName = "";
+                    className = fullClassName;
+                } else {
+                    packageName = fullClassName.substring(0, index);
+                    className = fullClassName.substring(index + 1);
+                }
+                nodes.add(ProfileNode.newBuilder()
+                        .setDepth(depth)
+                        .setPackageNameIndex(packageNames.getIndex(packageName))
+                        .setClassNameIndex(classNames.getIndex(className))
+                        .setMethodNameIndex(methodNames.getIndex(MoreObjects
+                                .firstNonNull(frame.getMethodName(), "<null method name>")))
+                        .setFileNameIndex(
+                                fileNames.getIndex(Strings.nullToEmpty(frame.getFileName())))
+                        .setLineNumber(frame.getLineNumber())
+                        .setLeafThreadState(getLeafThreadState(leafThreadStates[node]))
+                        .setSampleCount(sampleCounts[node])
+                        .build());
+                if (firstChilds[node] != NONE) {
+                    node = firstChilds[node];
+                    depth++;
+                    continue;
+                }
+                while (nextSiblings[node] == NONE && parents[node] != ROOT) {
+                    node = parents[node];
+                    depth--;
+                }
+                node = nextSiblings[node];
             }
-            return profile.toProto();
         }
+        return org.glowroot.wire.api.model.ProfileOuterClass.Profile.newBuilder()
+                .addAllPackageName(packageNames.names)
+                .addAllClassName(classNames.names)
+                .addAllMethodName(methodNames.names)
+                .addAllFileName(fileNames.names)
+                .addAllNode(nodes)
+                .build();
     }
 
     public long getSampleCount() {
@@ -74,34 +180,118 @@ public class Profile {
     // limit is just to cap memory consumption for a single transaction profile in case it runs for
     // a very very very long time
     public void addStackTrace(ThreadInfo threadInfo, int limit) {
+        addStackTrace(threadInfo.getStackTrace(), threadInfo.getThreadState(), limit);
+    }
+
+    public void addStackTrace(StackTraceElement[] stackTrace, @Nullable Thread.State threadState,
+            int limit) {
         synchronized (lock) {
             if (sampleCount >= limit) {
                 return;
             }
-            List<StackTraceElement> stackTrace = Arrays.asList(threadInfo.getStackTrace());
-            Thread.State threadState = threadInfo.getThreadState();
-            if (profile == null) {
-                unmergedStackTraces.add(stackTrace);
-                unmergedStackTraceThreadStates.add(threadState);
-                if (unmergedStackTraces.size() >= 10) {
-                    // merged stack tree takes up less memory
-                    profile = new MutableProfile();
-                    mergeTheUnmergedInto(profile);
-                    unmergedStackTraces.clear();
-                    unmergedStackTraceThreadStates.clear();
+            byte leafThreadState = threadState == null ? 0 : (byte) (threadState.ordinal() + 1);
+            int parent = ROOT;
+            boolean lookingForMatch = true;
+            for (int i = stackTrace.length - 1; i >= 0; i--) {
+                int frameId = frameCache.getFrameId(stackTrace[i]);
+                byte nodeLeafThreadState = i == 0 ? leafThreadState : 0;
+                int node = NONE;
+                if (lookingForMatch) {
+                    node = findChild(parent, frameId, nodeLeafThreadState);
+                }
+                if (node == NONE) {
+                    // once a new node is added, there is no point looking for matches below it
+                    lookingForMatch = false;
+                    node = addChild(parent, frameId, nodeLeafThreadState);
                 }
-            } else {
-                profile.merge(stackTrace, threadState);
+                sampleCounts[node]++;
+                parent = node;
             }
             sampleCount++;
         }
     }
 
-    private void mergeTheUnmergedInto(MutableProfile profile) {
-        for (int i = 0; i < unmergedStackTraces.size(); i++) {
-            List<StackTraceElement> stackTrace = unmergedStackTraces.get(i);
-            Thread.State threadState = unmergedStackTraceThreadStates.get(i);
-            profile.merge(stackTrace, threadState);
+    @GuardedBy("lock")
+    private int findChild(int parent, int frameId, byte leafThreadState) {
+        // transaction profiles are narrow, so linear search of children is fine
+        for (int node = firstChilds[parent]; node != NONE; node = nextSiblings[node]) {
+            if (frameIds[node] == frameId && leafThreadStates[node] == leafThreadState) {
+                return node;
+            }
+        }
+        return NONE;
+    }
+
+    @GuardedBy("lock")
+    private int addChild(int parent, int frameId, byte leafThreadState) {
+        if (nodeCount == frameIds.length) {
+            int newCapacity = nodeCount * 2;
+            frameIds = Arrays.copyOf(frameIds, newCapacity);
+            leafThreadStates = Arrays.copyOf(leafThreadStates, newCapacity);
+            sampleCounts = Arrays.copyOf(sampleCounts, newCapacity);
+            parents = Arrays.copyOf(parents, newCapacity);
+            firstChilds = Arrays.copyOf(firstChilds, newCapacity);
+            lastChilds = Arrays.copyOf(lastChilds, newCapacity);
+            nextSiblings = Arrays.copyOf(nextSiblings, newCapacity);
+        }
+        int node = nodeCount++;
+        frameIds[node] = frameId;
+        leafThreadStates[node] = leafThreadState;
+        parents[node] = parent;
+        firstChilds[node] = NONE;
+        lastChilds[node] = NONE;
+        nextSiblings[node] = NONE;
+        if (firstChilds[parent] == NONE) {
+            firstChilds[parent] = node;
+        } else {
+            nextSiblings[lastChilds[parent]] = node;
+        }
+        lastChilds[parent] = node;
+        return node;
+    }
+
+    private static LeafThreadState getLeafThreadState(byte leafThreadState) {
+        if (leafThreadState == 0) {
+            return LeafThreadState.NONE;
+        }
+        return getLeafThreadState(THREAD_STATES[leafThreadState - 1]);
+    }
+
+    private static LeafThreadState getLeafThreadState(@Nullable Thread.State state) {
+        if (state == null) {
+            return LeafThreadState.NONE;
+        }
+        switch (state) {
+            case NEW:
+                return LeafThreadState.NEW;
+            case RUNNABLE:
+                return LeafThreadState.RUNNABLE;
+            case BLOCKED:
+                return LeafThreadState.BLOCKED;
+            case WAITING:
+                return LeafThreadState.WAITING;
+            case TIMED_WAITING:
+                return LeafThreadState.TIMED_WAITING;
+            case TERMINATED:
+                return LeafThreadState.TERMINATED;
+            default:
+                return LeafThreadState.NONE;
+        }
+    }
+
+    private static class NameIndexes {
+
+        private final Map<String, Integer> indexes = Maps.newHashMap();
+        private final List<String> names = Lists.newArrayList();
+
+        private int getIndex(String name) {
+            Integer index = indexes.get(name);
+            if (index == null) {
+                index = names.size();
+                names.add(name);
+                indexes.put(name, index);
+            }
+            return index;
         }
     }
 }
@@ -123,6 +123,21 @@ public class QueryCollector {
         }
     }
 
+    // used to merge aggregate query collectors (e.g. from different aggregation shards)
+    public void mergeQueriesInto(QueryCollector collector) {
+        for (Entry<String, Map<String, MutableQuery>> outerEntry : queries.entrySet()) {
+            String queryType = outerEntry.getKey();
+            Map<String, MutableQuery> queriesForType = collector.queries.get(queryType);
+            if (queriesForType == null) {
+                queriesForType = Maps.newHashMap();
+                collector.queries.put(queryType, queriesForType);
+            }
+            for (Entry<String, MutableQuery> entry : outerEntry.getValue().entrySet()) {
+                collector.mergeQuery(queryType, entry.getKey(), entry.getValue(), queriesForType);
+            }
+        }
+    }
+
     public @Nullable String getFullQueryText(String fullQueryTextSha1) {
         for (Entry<String, Map<String, MutableQuery>> entry : queries.entrySet()) {
             for (String fullQueryText : entry.getValue().keySet()) {
@@ -144,8 +159,7 @@ public class QueryCollector {
         MutableQuery aggregateQuery = queriesForType.get(queryText);
         boolean truncateAndRecalculateMinQuery = false;
         if (aggregateQuery == null) {
-            if (maxMultiplierWhileBuilding != 0
-                    && queriesForType.size() >= limit * maxMultiplierWhileBuilding) {
+            if (isAtLimitWhileBuilding(queriesForType)) {
                 MinQuery minQuery = minQueryPerType.get(queryType);
                 if (minQuery != null && totalDurationNanos < minQuery.totalDurationNanos()) {
                     return;
@@ -159,18 +173,50 @@ public class QueryCollector {
         aggregateQuery.addToExecutionCount(executionCount);
         aggregateQuery.addToTotalRows(hasTotalRows, totalRows);
         if (truncateAndRecalculateMinQuery) {
-            // TODO report checker framework issue that occurs without this suppression
-            @SuppressWarnings("assignment.type.incompatible")
-            List<Entry<String, MutableQuery>> sortedEntries =
-                    bySmallestTotalDuration.sortedCopy(queriesForType.entrySet());
-            // remove smallest N (instead of just smallest 1) to avoid re-sort again so quickly
-            for (int i = 0; i < REMOVE_SMALLEST_N; i++) {
-                queriesForType.remove(sortedEntries.get(i).getKey());
+            truncateAndRecalculateMinQuery(queryType, queriesForType);
+        }
+    }
+
+    private void mergeQuery(String queryType, String queryText, MutableQuery toBeMergedQuery,
+            Map<String, MutableQuery> queriesForType) {
+        MutableQuery aggregateQuery = queriesForType.get(queryText);
+        boolean truncateAndRecalculateMinQuery = false;
+        if (aggregateQuery == null) {
+            if (isAtLimitWhileBuilding(queriesForType)) {
+                MinQuery minQuery = minQueryPerType.get(queryType);
+                if (minQuery != null && toBeMergedQuery.getTotalDurationNanos() < minQuery
+                        .totalDurationNanos()) {
+                    return;
+                }
+                truncateAndRecalculateMinQuery = true;
             }
-            MutableQuery lastQuery = sortedEntries.get(REMOVE_SMALLEST_N).getValue();
-            minQueryPerType.put(queryType,
-                    ImmutableMinQuery.of(lastQuery, lastQuery.getTotalDurationNanos()));
+            aggregateQuery = new MutableQuery(traceLevel);
+            queriesForType.put(queryText, aggregateQuery);
+        }
+        aggregateQuery.merge(toBeMergedQuery);
+        if (truncateAndRecalculateMinQuery) {
+            truncateAndRecalculateMinQuery(queryType, queriesForType);
+        }
+    }
+
+    private boolean isAtLimitWhileBuilding(Map<String, MutableQuery> queriesForType) {
+        return maxMultiplierWhileBuilding != 0
+                && queriesForType.size() >= limit * maxMultiplierWhileBuilding;
+    }
+
+    private void truncateAndRecalculateMinQuery(String queryType,
+            Map<String, MutableQuery> queriesForType) {
+        // TODO report checker framework issue that occurs without this suppression
+        @SuppressWarnings("assignment.type.incompatible")
+        List<Entry<String, MutableQuery>> sortedEntries =
+                bySmallestTotalDuration.sortedCopy(queriesForType.entrySet());
+        // remove smallest N (instead of just smallest 1) to avoid re-sort again so quickly
+        for (int i = 0; i < REMOVE_SMALLEST_N; i++) {
+            queriesForType.remove(sortedEntries.get(i).getKey());
         }
+        MutableQuery lastQuery = sortedEntries.get(REMOVE_SMALLEST_N).getValue();
+        minQueryPerType.put(queryType,
+                ImmutableMinQuery.of(lastQuery, lastQuery.getTotalDurationNanos()));
     }
 
     private static void orderAggregateQueries(List<Aggregate.Query> queries) {
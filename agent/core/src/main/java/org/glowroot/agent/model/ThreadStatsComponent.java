@@ -37,6 +37,13 @@ public class ThreadStatsComponent {
     private static final boolean IS_THREAD_CONTENTION_MONITORING_SUPPORTED =
             threadMXBean.isThreadContentionMonitoringSupported();
 
+    // "cheap" mode only captures thread cpu time and thread allocated bytes, which avoids the two
+    // ThreadMXBean.getThreadInfo() calls per transaction thread (each one goes through a VM
+    // operation and allocates a ThreadInfo), at the cost of reporting blocked/waited time as not
+    // available (blocked/waiting thread states are still visible in the stack trace samples)
+    private static final boolean CAPTURE_BLOCKED_WAITED_TIME =
+            !System.getProperty("glowroot.threadStats.mode", "full").equals("cheap");
+
     private final long threadId;
     private final long startingCpuNanos;
     private final long startingBlockedMillis;
@@ -52,15 +59,15 @@ public class ThreadStatsComponent {
 
     public ThreadStatsComponent(@Nullable ThreadAllocatedBytes threadAllocatedBytes) {
         threadId = Thread.currentThread().getId();
-        ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
-        // thread info for current thread cannot be null
-        checkNotNull(threadInfo);
         if (IS_THREAD_CPU_TIME_SUPPORTED) {
             startingCpuNanos = threadMXBean.getCurrentThreadCpuTime();
         } else {
             startingCpuNanos = -1;
         }
-        if (IS_THREAD_CONTENTION_MONITORING_SUPPORTED) {
+        if (CAPTURE_BLOCKED_WAITED_TIME && IS_THREAD_CONTENTION_MONITORING_SUPPORTED) {
+            ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
+            // thread info for current thread cannot be null
+            checkNotNull(threadInfo);
             startingBlockedMillis = threadInfo.getBlockedTime();
             startingWaitedMillis = threadInfo.getWaitedTime();
         } else {
@@ -115,10 +122,13 @@ public class ThreadStatsComponent {
     }
 
     private ThreadStats getThreadStatsInternal() {
-        ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
-        if (threadInfo == null) {
-            // thread must have just recently terminated
-            return new ThreadStats(-1, -1, -1, -1);
+        ThreadInfo threadInfo = null;
+        if (startingBlockedMillis != -1 || startingWaitedMillis != -1) {
+            threadInfo = threadMXBean.getThreadInfo(threadId, 0);
+            if (threadInfo == null) {
+                // thread must have just recently terminated
+                return new ThreadStats(-1, -1, -1, -1);
+            }
         }
         long totalCpuNanos;
         if (IS_THREAD_CPU_TIME_SUPPORTED) {
@@ -128,7 +138,7 @@ public class ThreadStatsComponent {
         }
         long totalBlockedMillis;
         long totalWaitedMillis;
-        if (IS_THREAD_CONTENTION_MONITORING_SUPPORTED) {
+        if (threadInfo != null) {
             totalBlockedMillis = getTotalBlockedMillis(threadInfo);
             totalWaitedMillis = getTotalWaitedMillis(threadInfo);
         } else {
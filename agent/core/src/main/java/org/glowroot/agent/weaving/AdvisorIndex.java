@@ -0,0 +1,55 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+// index of advisors by pointcut class name, owned by AnalyzedWorld (and shared with its Weaver)
+//
+// the same advisors list is passed in for (nearly) every class, so the index is only rebuilt when
+// the advisors list changes, e.g. after reweaving or for a class with @Instrumentation annotations
+class AdvisorIndex {
+
+    private volatile @Nullable Entry entry;
+
+    List<Advice> getCandidates(String className, List<Advice> advisors) {
+        Entry entry = this.entry;
+        if (entry == null || entry.advisors != advisors) {
+            // benign race if multiple threads build the index at the same time
+            entry = new Entry(advisors);
+            this.entry = entry;
+        }
+        return entry.index.getCandidates(className);
+    }
+
+    private static class Entry {
+
+        private final List<Advice> advisors;
+        private final ClassNameIndex<Advice> index;
+
+        // not private, to avoid a synthetic accessor (see PreInitializeWeavingClasses)
+        Entry(List<Advice> advisors) {
+            this.advisors = advisors;
+            ClassNameIndex.Builder<Advice> builder = ClassNameIndex.builder();
+            for (Advice advice : advisors) {
+                builder.add(advice.pointcutMethodDeclaringClassName(), advice);
+            }
+            index = builder.build();
+        }
+    }
+}
@@ -39,6 +39,10 @@ abstract class AnalyzedClass {
     abstract ImmutableList<PublicFinalMethod> publicFinalMethods();
     abstract ImmutableList<ShimType> shimTypes();
     abstract ImmutableList<MixinType> mixinTypes();
+    // hash of the class name and class bytes (see WeavingCache.getKey()), this is only recorded
+    // when the weaving cache is enabled, and is used to check that the super types of a cached
+    // class are unchanged
+    abstract @Nullable String classBytesHash();
 
     // not using @Value.Derived to keep down memory footprint
     boolean isInterface() {
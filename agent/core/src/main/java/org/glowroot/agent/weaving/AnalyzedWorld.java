@@ -28,6 +28,7 @@ import java.util.Map.Entry;
 import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 
 import javax.annotation.Nullable;
 
@@ -49,10 +50,23 @@ import org.glowroot.agent.config.InstrumentationConfig;
 import org.glowroot.agent.weaving.ClassLoaders.LazyDefinedClass;
 import org.glowroot.common.util.Styles;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
 public class AnalyzedWorld {
 
     private static final Logger logger = LoggerFactory.getLogger(AnalyzedWorld.class);
 
+    // how long to wait for another thread that is already analyzing the same class before giving up
+    // and analyzing it independently, this is just a safety net since waiting also stops as soon as
+    // the other thread is not making progress, see awaitInFlightAnalysis()
+    private static final long IN_FLIGHT_WAIT_MILLIS = 1000;
+
+    // how often to check that the other thread is still making progress while waiting for it
+    private static final long IN_FLIGHT_CHECK_MILLIS = 10;
+
+    // bound on following the chain of waiting threads, in case it changes while being followed
+    private static final int MAX_WAIT_CHAIN_LENGTH = 100;
+
     private static final Method findLoadedClassMethod;
 
     static {
@@ -86,15 +100,36 @@ public class AnalyzedWorld {
     private final ConcurrentMap<String, AnalyzedClass> bootstrapLoaderWorld =
             new ConcurrentHashMap<String, AnalyzedClass>();
 
+    // parallel class loading (e.g. during application startup) often has multiple threads needing
+    // the same (not yet analyzed) super types at the same time, so only one thread analyzes a given
+    // class while the others wait for its result
+    //
+    // entries are removed as soon as the analysis completes, so this does not retain class loaders
+    private final ConcurrentMap<InFlightKey, InFlightAnalysis> inFlightAnalyses =
+            new ConcurrentHashMap<InFlightKey, InFlightAnalysis>();
+
+    // the in-flight analysis that each thread is currently waiting for, used to detect wait cycles
+    private final ConcurrentMap<Thread, InFlightAnalysis> waitingThreads =
+            new ConcurrentHashMap<Thread, InFlightAnalysis>();
+
     private final Supplier<List<Advice>> advisors;
     private final ImmutableList<ShimType> shimTypes;
     private final ImmutableList<MixinType> mixinTypes;
+    // see AnalyzedClass.classBytesHash()
+    private final boolean recordClassBytesHashes;
+
+    private final AdvisorIndex advisorIndex = new AdvisorIndex();
 
     public AnalyzedWorld(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
-            List<MixinType> mixinTypes) {
+            List<MixinType> mixinTypes, boolean recordClassBytesHashes) {
         this.advisors = advisors;
         this.shimTypes = ImmutableList.copyOf(shimTypes);
         this.mixinTypes = ImmutableList.copyOf(mixinTypes);
+        this.recordClassBytesHashes = recordClassBytesHashes;
+    }
+
+    AdvisorIndex getAdvisorIndex() {
+        return advisorIndex;
     }
 
     public List<Class<?>> getClassesWithReweavableAdvice(boolean remove) {
@@ -123,6 +158,17 @@ public class AnalyzedWorld {
         }
     }
 
+    // this is used to warm up the analyzed world ahead of class loading, see PreAnalyzer
+    void preAnalyze(String className, @Nullable ClassLoader loader) {
+        try {
+            getOrCreateAnalyzedClass(className, loader);
+        } catch (ClassNotFoundException e) {
+            logger.debug(e.getMessage(), e);
+        } catch (IOException e) {
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
     void add(AnalyzedClass analyzedClass, @Nullable ClassLoader loader) {
         ConcurrentMap<String, AnalyzedClass> loaderAnalyzedClasses = getAnalyzedClasses(loader);
         loaderAnalyzedClasses.put(analyzedClass.name(), analyzedClass);
@@ -229,12 +275,97 @@ public class AnalyzedWorld {
                     return analyzedClass;
                 }
             }
-            analyzedClass = createAnalyzedClass(className, analyzedClassLoader);
-            analyzedClass = putAnalyzedClass(loaderAnalyzedClasses, analyzedClass);
+            analyzedClass = createAnalyzedClassOnce(className, analyzedClassLoader,
+                    loaderAnalyzedClasses);
         }
         return analyzedClass;
     }
 
+    private AnalyzedClass createAnalyzedClassOnce(String className, @Nullable ClassLoader loader,
+            ConcurrentMap<String, AnalyzedClass> loaderAnalyzedClasses)
+            throws ClassNotFoundException, IOException {
+        InFlightKey key = new InFlightKey(className, loader);
+        InFlightAnalysis inFlightAnalysis = new InFlightAnalysis();
+        InFlightAnalysis existingInFlightAnalysis =
+                inFlightAnalyses.putIfAbsent(key, inFlightAnalysis);
+        if (existingInFlightAnalysis != null) {
+            AnalyzedClass analyzedClass = awaitInFlightAnalysis(existingInFlightAnalysis, loader);
+            if (analyzedClass != null) {
+                return analyzedClass;
+            }
+            // the other thread's analysis failed, or it was not safe to wait (or waited too long),
+            // so fall back to analyzing independently
+            return putAnalyzedClass(loaderAnalyzedClasses, createAnalyzedClass(className, loader));
+        }
+        try {
+            // check again now that this thread owns the analysis, since another thread may have
+            // completed it in between
+            AnalyzedClass analyzedClass = loaderAnalyzedClasses.get(className);
+            if (analyzedClass == null) {
+                analyzedClass = putAnalyzedClass(loaderAnalyzedClasses,
+                        createAnalyzedClass(className, loader));
+            }
+            inFlightAnalysis.analyzedClass = analyzedClass;
+            return analyzedClass;
+        } finally {
+            inFlightAnalyses.remove(key, inFlightAnalysis);
+            inFlightAnalysis.latch.countDown();
+        }
+    }
+
+    // returns null if the analysis failed or if it is not safe to keep waiting for it
+    //
+    // the class loading locks held by the current thread are not all visible here (e.g. the per
+    // class name locks of parallel capable class loaders), so instead of trying to determine up
+    // front whether it is safe to wait, this stops waiting as soon as the analyzing thread (or the
+    // thread that it is in turn waiting for) is not running, since it may be blocked on one of
+    // those locks
+    private @Nullable AnalyzedClass awaitInFlightAnalysis(InFlightAnalysis inFlightAnalysis,
+            @Nullable ClassLoader loader) {
+        if (loader != null && Thread.holdsLock(loader)) {
+            // optimization, the analyzing thread will need this class loader's lock in order to
+            // read the class bytes (see createAnalyzedClass())
+            return null;
+        }
+        Thread currentThread = Thread.currentThread();
+        waitingThreads.put(currentThread, inFlightAnalysis);
+        try {
+            long deadline = System.nanoTime() + MILLISECONDS.toNanos(IN_FLIGHT_WAIT_MILLIS);
+            while (isMakingProgress(inFlightAnalysis, currentThread)) {
+                if (inFlightAnalysis.latch.await(IN_FLIGHT_CHECK_MILLIS, MILLISECONDS)) {
+                    return inFlightAnalysis.analyzedClass;
+                }
+                if (System.nanoTime() - deadline > 0) {
+                    return null;
+                }
+            }
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            waitingThreads.remove(currentThread);
+        }
+    }
+
+    private boolean isMakingProgress(InFlightAnalysis inFlightAnalysis, Thread currentThread) {
+        Thread thread = inFlightAnalysis.thread;
+        for (int i = 0; i < MAX_WAIT_CHAIN_LENGTH; i++) {
+            if (thread == currentThread) {
+                // wait cycle, which includes re-entrant analysis of the same class, e.g. circular
+                // type hierarchy in malformed bytecode
+                return false;
+            }
+            InFlightAnalysis waitingFor = waitingThreads.get(thread);
+            if (waitingFor == null) {
+                // e.g. BLOCKED or WAITING on a class loading lock
+                return thread.getState() == Thread.State.RUNNABLE;
+            }
+            thread = waitingFor.thread;
+        }
+        return false;
+    }
+
     private AnalyzedClass putAnalyzedClass(
             ConcurrentMap<String, AnalyzedClass> loaderAnalyzedClasses,
             AnalyzedClass analyzedClass) {
@@ -330,8 +461,10 @@ public class AnalyzedWorld {
                 mergeInstrumentationAnnotations(this.advisors.get(), bytes, loader, className);
         ThinClassVisitor accv = new ThinClassVisitor();
         new ClassReader(bytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
+        String classBytesHash = recordClassBytesHashes
+                ? WeavingCache.getKey(ClassNames.toInternalName(className), bytes) : null;
         ClassAnalyzer classAnalyzer = new ClassAnalyzer(accv.getThinClass(), advisors, shimTypes,
-                mixinTypes, loader, this, null, bytes);
+                mixinTypes, loader, this, null, bytes, classBytesHash);
         classAnalyzer.analyzeMethods();
         return classAnalyzer.getAnalyzedClass();
     }
@@ -377,7 +510,7 @@ public class AnalyzedWorld {
         }
         // the class loaded by Class.forName() above was not previously loaded which means
         // weaving was bypassed since ClassFileTransformer.transform() is not re-entrant
-        analyzedClass = createAnalyzedClassPlanC(clazz, advisors.get());
+        analyzedClass = createAnalyzedClassPlanC(clazz, advisors.get(), advisorIndex);
         if (analyzedClass.isInterface()) {
             return analyzedClass;
         }
@@ -418,7 +551,8 @@ public class AnalyzedWorld {
     }
 
     // now that the type has been loaded anyways, build the analyzed class via reflection
-    private static AnalyzedClass createAnalyzedClassPlanC(Class<?> clazz, List<Advice> advisors) {
+    private static AnalyzedClass createAnalyzedClassPlanC(Class<?> clazz, List<Advice> advisors,
+            AdvisorIndex advisorIndex) {
         ImmutableAnalyzedClass.Builder classBuilder = ImmutableAnalyzedClass.builder();
         classBuilder.modifiers(clazz.getModifiers());
         classBuilder.name(clazz.getName());
@@ -434,7 +568,8 @@ public class AnalyzedWorld {
             classAnnotations.add(annotation.annotationType().getName());
         }
         List<AdviceMatcher> adviceMatchers =
-                AdviceMatcher.getAdviceMatchers(clazz.getName(), classAnnotations, advisors);
+                AdviceMatcher.getAdviceMatchers(clazz.getName(), classAnnotations, advisors,
+                        advisorIndex);
         Map<Method, List<Advice>> bridgeTargetAdvisors = Maps.newHashMap();
         for (Method method : clazz.getDeclaredMethods()) {
             if (!method.isBridge()) {
@@ -566,4 +701,38 @@ public class AnalyzedWorld {
             }
         }
     }
+
+    // not private, to avoid a synthetic accessor (see PreInitializeWeavingClasses)
+    static class InFlightKey {
+
+        private final String className;
+        private final @Nullable ClassLoader loader;
+
+        InFlightKey(String className, @Nullable ClassLoader loader) {
+            this.className = className;
+            this.loader = loader;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (!(obj instanceof InFlightKey)) {
+                return false;
+            }
+            InFlightKey that = (InFlightKey) obj;
+            return className.equals(that.className) && loader == that.loader;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * className.hashCode() + System.identityHashCode(loader);
+        }
+    }
+
+    // not private, to avoid a synthetic accessor (see PreInitializeWeavingClasses)
+    static class InFlightAnalysis {
+
+        private final Thread thread = Thread.currentThread();
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile @Nullable AnalyzedClass analyzedClass;
+    }
 }
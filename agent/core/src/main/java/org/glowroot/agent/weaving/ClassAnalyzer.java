@@ -81,7 +81,7 @@ class ClassAnalyzer {
 
     ClassAnalyzer(ThinClass thinClass, List<Advice> advisors, List<ShimType> shimTypes,
             List<MixinType> mixinTypes, @Nullable ClassLoader loader, AnalyzedWorld analyzedWorld,
-            @Nullable CodeSource codeSource, byte[] classBytes) {
+            @Nullable CodeSource codeSource, byte[] classBytes, @Nullable String classBytesHash) {
         this.thinClass = thinClass;
         ImmutableList<String> interfaceNames = ClassNames.fromInternalNames(thinClass.interfaces());
         className = ClassNames.fromInternalName(thinClass.name());
@@ -90,9 +90,11 @@ class ClassAnalyzer {
                 .modifiers(thinClass.access())
                 .name(className)
                 .superName(superClassName)
-                .addAllInterfaceNames(interfaceNames);
+                .addAllInterfaceNames(interfaceNames)
+                .classBytesHash(classBytesHash);
         adviceMatchers =
-                AdviceMatcher.getAdviceMatchers(className, thinClass.annotations(), advisors);
+                AdviceMatcher.getAdviceMatchers(className, thinClass.annotations(), advisors,
+                        analyzedWorld.getAdvisorIndex());
         if (Modifier.isInterface(thinClass.access())) {
             superAnalyzedClasses = ImmutableList.of();
             matchedShimTypes = getMatchedShimTypes(shimTypes, className,
@@ -189,6 +191,10 @@ class ClassAnalyzer {
         return analyzedClassBuilder.build();
     }
 
+    List<AnalyzedClass> getSuperAnalyzedClasses() {
+        return superAnalyzedClasses;
+    }
+
     List<AnalyzedMethod> getMethodsThatOnlyNowFulfillAdvice() {
         return checkNotNull(methodsThatOnlyNowFulfillAdvice);
     }
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+// index of values by class name pattern, using the same pattern syntax as Pointcut.className()
+// (exact name, simple * wildcards, | alternatives, or /full regex/), so that the candidates for a
+// given class name can be found without evaluating every pattern
+//
+// exact names are looked up by hash, simple wildcard patterns are looked up by their literal
+// prefix (or literal suffix if they start with a wildcard), and only the remaining patterns (full
+// regex, or a lone wildcard) are returned as candidates for every class name
+//
+// this only narrows down the candidates, callers still need to perform the full match
+//
+// this is built and used from inside ClassFileTransformer.transform(), so it intentionally avoids
+// guava collections (see PreInitializeWeavingClasses), and it is public (with only java.util types
+// in its api) so that it can be benchmarked from outside of the shaded agent jar
+public class ClassNameIndex<T> {
+
+    private final List<T> values;
+
+    private final Map<String, int[]> exactNames;
+    private final Map<String, int[]> prefixes;
+    private final int[] prefixLengths;
+    private final Map<String, int[]> suffixes;
+    private final int[] suffixLengths;
+    private final int[] unindexed;
+
+    // not private, to avoid a synthetic accessor (see PreInitializeWeavingClasses)
+    ClassNameIndex(Builder<T> builder) {
+        values = new ArrayList<T>(builder.values);
+        exactNames = toArrays(builder.exactNames);
+        prefixes = toArrays(builder.prefixes);
+        prefixLengths = getLengths(prefixes.keySet());
+        suffixes = toArrays(builder.suffixes);
+        suffixLengths = getLengths(suffixes.keySet());
+        unindexed = toArray(builder.unindexed);
+    }
+
+    public static <T> Builder<T> builder() {
+        return new Builder<T>();
+    }
+
+    // returns candidates in the same order that they were added to the index
+    public List<T> getCandidates(String className) {
+        BitSet candidates = new BitSet(values.size());
+        set(candidates, unindexed);
+        set(candidates, exactNames.get(className));
+        int classNameLength = className.length();
+        for (int prefixLength : prefixLengths) {
+            if (prefixLength > classNameLength) {
+                // lengths are sorted
+                break;
+            }
+            set(candidates, prefixes.get(className.substring(0, prefixLength)));
+        }
+        for (int suffixLength : suffixLengths) {
+            if (suffixLength > classNameLength) {
+                break;
+            }
+            set(candidates, suffixes.get(className.substring(classNameLength - suffixLength)));
+        }
+        if (candidates.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<T> list = new ArrayList<T>(candidates.cardinality());
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            list.add(values.get(i));
+        }
+        return list;
+    }
+
+    private static void set(BitSet bitSet, int /*@Nullable*/[] indexes) {
+        if (indexes == null) {
+            return;
+        }
+        for (int index : indexes) {
+            bitSet.set(index);
+        }
+    }
+
+    private static Map<String, int[]> toArrays(Map<String, List<Integer>> map) {
+        Map<String, int[]> arrays = new HashMap<String, int[]>();
+        for (Map.Entry<String, List<Integer>> entry : map.entrySet()) {
+            arrays.put(entry.getKey(), toArray(entry.getValue()));
+        }
+        return arrays;
+    }
+
+    private static int[] getLengths(Collection<String> strings) {
+        Set<Integer> lengths = new TreeSet<Integer>();
+        for (String string : strings) {
+            lengths.add(string.length());
+        }
+        return toArray(lengths);
+    }
+
+    private static int[] toArray(Collection<Integer> collection) {
+        int[] array = new int[collection.size()];
+        int i = 0;
+        for (Integer value : collection) {
+            array[i++] = value;
+        }
+        return array;
+    }
+
+    public static class Builder<T> {
+
+        private final List<T> values = new ArrayList<T>();
+
+        private final Map<String, List<Integer>> exactNames =
+                new HashMap<String, List<Integer>>();
+        private final Map<String, List<Integer>> prefixes = new HashMap<String, List<Integer>>();
+        private final Map<String, List<Integer>> suffixes = new HashMap<String, List<Integer>>();
+        private final List<Integer> unindexed = new ArrayList<Integer>();
+
+        // not private, to avoid a synthetic accessor (see PreInitializeWeavingClasses)
+        Builder() {}
+
+        // empty class name pattern matches every class name
+        public Builder<T> add(String classNamePattern, T value) {
+            int index = values.size();
+            values.add(value);
+            if (classNamePattern.isEmpty() || classNamePattern.startsWith("/")
+                    && classNamePattern.endsWith("/")) {
+                unindexed.add(index);
+                return this;
+            }
+            for (String part : classNamePattern.split("\\|")) {
+                addPart(part, index);
+            }
+            return this;
+        }
+
+        public ClassNameIndex<T> build() {
+            return new ClassNameIndex<T>(this);
+        }
+
+        private void addPart(String part, int index) {
+            int firstWildcard = part.indexOf('*');
+            if (firstWildcard == -1) {
+                put(exactNames, part, index);
+            } else if (firstWildcard > 0) {
+                put(prefixes, part.substring(0, firstWildcard), index);
+            } else {
+                int lastWildcard = part.lastIndexOf('*');
+                if (lastWildcard == part.length() - 1) {
+                    unindexed.add(index);
+                } else {
+                    put(suffixes, part.substring(lastWildcard + 1), index);
+                }
+            }
+        }
+
+        private static void put(Map<String, List<Integer>> map, String key, int index) {
+            List<Integer> indexes = map.get(key);
+            if (indexes == null) {
+                indexes = new ArrayList<Integer>();
+                map.put(key, indexes);
+            }
+            indexes.add(index);
+        }
+    }
+}
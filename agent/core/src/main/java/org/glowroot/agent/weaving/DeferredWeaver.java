@@ -0,0 +1,281 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.lang.instrument.Instrumentation;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.common.util.OnlyUsedByTests;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.objectweb.asm.Opcodes.ACC_ABSTRACT;
+import static org.objectweb.asm.Opcodes.ACC_NATIVE;
+import static org.objectweb.asm.Opcodes.ACC_SYNTHETIC;
+import static org.objectweb.asm.Opcodes.ASM5;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+
+// defers weaving of classes until they are first used
+//
+// at class load time, instead of weaving the advice, a call to onFirstInvocation() is inserted at
+// the start of each method that would receive advice, and the first time that one of those methods
+// is invoked the class is queued to be retransformed (in the background), at which point it is
+// woven as usual (the trampolines are not part of the retransformed class since retransformation
+// starts from the original class bytes)
+//
+// this trades the advice on the first invocation(s) of each class for not having to weave classes
+// that are never used, and so it is only applied when the woven class has the same structure as
+// the original class (no shims, mixins or overridden inherited methods), since retransformation
+// cannot add fields or methods
+//
+// a class that fails to be retransformed keeps its trampolines, so it runs without advice and each
+// invocation of its trampolined methods still costs a call to onFirstInvocation() and a weak map
+// lookup, and since the cause of the failure is not necessarily specific to the class (e.g. another
+// agent's ClassFileTransformer failing), no further classes are deferred after the first failure
+// (which is logged once at warn level)
+public class DeferredWeaver implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeferredWeaver.class);
+
+    private static volatile @Nullable DeferredWeaver instance;
+
+    private final Instrumentation instrumentation;
+
+    // weak keys so that this doesn't retain class loaders, and entries are never removed so that a
+    // class that fails to retransform is not queued again (and again)
+    private final ConcurrentMap<Class<?>, Boolean> triggeredClasses =
+            new MapMaker().weakKeys().makeMap();
+
+    private final BlockingQueue<Class<?>> queue = new LinkedBlockingQueue<Class<?>>();
+
+    private final Object pendingLock = new Object();
+    // number of classes that have been triggered but not yet retransformed
+    @GuardedBy("pendingLock")
+    private int pendingCount;
+
+    private final Thread thread;
+
+    private volatile boolean retransformFailed;
+
+    private volatile boolean closed;
+
+    private DeferredWeaver(Instrumentation instrumentation) {
+        this.instrumentation = instrumentation;
+        thread = new Thread(this);
+        thread.setDaemon(true);
+        thread.setName("Glowroot-Deferred-Weaver");
+    }
+
+    // classes that are first invoked prior to start() are queued and then retransformed after
+    // start()
+    public static DeferredWeaver create(Instrumentation instrumentation) {
+        DeferredWeaver deferredWeaver = new DeferredWeaver(instrumentation);
+        instance = deferredWeaver;
+        return deferredWeaver;
+    }
+
+    // this is called from the trampolines inserted into deferred classes
+    public static void onFirstInvocation(Class<?> clazz) {
+        DeferredWeaver deferredWeaver = instance;
+        if (deferredWeaver != null) {
+            deferredWeaver.trigger(clazz);
+        }
+    }
+
+    // waits until the classes that have been first invoked so far are retransformed, this is used
+    // by WeavingBenchmark to include the deferred weaving in its measurement
+    public static void awaitRetransformation() throws InterruptedException {
+        DeferredWeaver deferredWeaver = instance;
+        if (deferredWeaver != null) {
+            deferredWeaver.awaitPending();
+        }
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    // false once a class has failed to be retransformed
+    boolean isDeferring() {
+        return !retransformFailed;
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            List<Class<?>> classes = Lists.newArrayList();
+            try {
+                classes.add(queue.take());
+            } catch (InterruptedException e) {
+                // only interrupted by close()
+                return;
+            }
+            // retransform the classes that are first used together (e.g. during the startup class
+            // loading burst) in a single batch since each retransformation pauses the jvm
+            queue.drainTo(classes);
+            retransform(classes);
+            synchronized (pendingLock) {
+                pendingCount -= classes.size();
+                pendingLock.notifyAll();
+            }
+        }
+    }
+
+    @OnlyUsedByTests
+    public void close() throws InterruptedException {
+        closed = true;
+        instance = null;
+        thread.interrupt();
+        thread.join();
+    }
+
+    // returns null if there are no methods to insert trampolines into, in which case the class
+    // should be woven as usual
+    byte /*@Nullable*/[] weaveTrampolines(ClassReader cr, Set<String> methodKeys) {
+        ClassWriter cw = new ClassWriter(cr, 0);
+        TrampolineClassVisitor cv = new TrampolineClassVisitor(cw, methodKeys);
+        // not expanding frames since the trampolines are inserted at the very start of the methods
+        // and don't change the frames (other than their offsets which are written from labels)
+        cr.accept(cv, 0);
+        if (!cv.trampolinesInserted) {
+            return null;
+        }
+        return cw.toByteArray();
+    }
+
+    private void trigger(Class<?> clazz) {
+        // optimization, check first since putIfAbsent() locks even when the key is present, and
+        // the trampolines continue to be hit until the class is retransformed
+        if (triggeredClasses.containsKey(clazz)) {
+            return;
+        }
+        if (triggeredClasses.putIfAbsent(clazz, true) == null) {
+            synchronized (pendingLock) {
+                pendingCount++;
+            }
+            queue.add(clazz);
+        }
+    }
+
+    private void awaitPending() throws InterruptedException {
+        synchronized (pendingLock) {
+            while (pendingCount > 0) {
+                pendingLock.wait();
+            }
+        }
+    }
+
+    private void retransform(List<Class<?>> classes) {
+        try {
+            instrumentation.retransformClasses(classes.toArray(new Class<?>[classes.size()]));
+            logger.debug("retransformed {} deferred classes", classes.size());
+            return;
+        } catch (Throwable t) {
+            logger.debug(t.getMessage(), t);
+        }
+        // retry one at a time so that one bad class doesn't prevent the rest from being woven
+        for (Class<?> clazz : classes) {
+            try {
+                instrumentation.retransformClasses(clazz);
+            } catch (Throwable t) {
+                if (retransformFailed) {
+                    logger.debug("unable to weave deferred class {}: {}", clazz.getName(),
+                            t.getMessage(), t);
+                } else {
+                    retransformFailed = true;
+                    logger.warn("unable to weave deferred class {}, weaving will no longer be"
+                            + " deferred: {}", clazz.getName(), t.getMessage(), t);
+                }
+            }
+        }
+    }
+
+    private static class TrampolineClassVisitor extends ClassVisitor {
+
+        private final Set<String> methodKeys;
+
+        private @Nullable Type type;
+
+        private boolean trampolinesInserted;
+
+        // not private, to avoid a synthetic accessor (see PreInitializeWeavingClasses)
+        TrampolineClassVisitor(ClassWriter cw, Set<String> methodKeys) {
+            super(ASM5, cw);
+            this.methodKeys = methodKeys;
+        }
+
+        @Override
+        public void visit(int version, int access, String name, @Nullable String signature,
+                @Nullable String superName, String /*@Nullable*/[] interfaces) {
+            type = Type.getObjectType(name);
+            super.visit(version, access, name, signature, superName, interfaces);
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String desc,
+                @Nullable String signature, String /*@Nullable*/[] exceptions) {
+            MethodVisitor mv = cv.visitMethod(access, name, desc, signature, exceptions);
+            // same methods that are skipped by WeavingClassVisitor
+            if ((access & (ACC_ABSTRACT | ACC_NATIVE | ACC_SYNTHETIC)) != 0
+                    || !methodKeys.contains(name + desc)) {
+                return mv;
+            }
+            trampolinesInserted = true;
+            return new TrampolineMethodVisitor(mv, checkNotNull(type));
+        }
+    }
+
+    private static class TrampolineMethodVisitor extends MethodVisitor {
+
+        private final Type type;
+
+        // not private, to avoid a synthetic accessor (see PreInitializeWeavingClasses)
+        TrampolineMethodVisitor(MethodVisitor mv, Type type) {
+            super(ASM5, mv);
+            this.type = type;
+        }
+
+        @Override
+        public void visitCode() {
+            super.visitCode();
+            // this is valid even at the start of constructors since it doesn't touch "this"
+            super.visitLdcInsn(type);
+            super.visitMethodInsn(INVOKESTATIC, "org/glowroot/agent/weaving/DeferredWeaver",
+                    "onFirstInvocation", "(Ljava/lang/Class;)V", false);
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            super.visitMaxs(Math.max(maxStack, 1), maxLocals);
+        }
+    }
+}
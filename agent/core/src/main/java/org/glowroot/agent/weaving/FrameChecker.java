@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.List;
+import java.util.Set;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+
+import static org.objectweb.asm.Opcodes.DOUBLE;
+import static org.objectweb.asm.Opcodes.FLOAT;
+import static org.objectweb.asm.Opcodes.INTEGER;
+import static org.objectweb.asm.Opcodes.LONG;
+import static org.objectweb.asm.Opcodes.TOP;
+
+// checks the stack map frames of the methods woven by FrameUpdatingMethodVisitor against a data
+// flow analysis of the woven bytecode, since a wrong frame would otherwise only be found by the
+// JVM's verifier when the class is defined, which is too late to fall back to
+// ClassWriter.COMPUTE_FRAMES
+//
+// the analysis uses BasicInterpreter, which doesn't need the type hierarchy (that would defeat the
+// purpose of not computing frames), so reference types are only checked for being references
+// (the reference types in the inserted frames are the declared parameter types and the declared
+// types of the locals added by WeavingMethodVisitor, see FrameUpdatingMethodVisitor)
+//
+// loads of locals that are TOP in an inserted frame are already rejected by
+// FrameUpdatingMethodVisitor
+class FrameChecker {
+
+    private FrameChecker() {}
+
+    static void check(byte[] classBytes, Set<String> methodKeys) throws AnalyzerException {
+        ClassNode classNode = new ClassNode();
+        new ClassReader(classBytes).accept(classNode, ClassReader.EXPAND_FRAMES);
+        // SuppressWarnings because generics are explicitly removed from asm binaries
+        @SuppressWarnings("unchecked")
+        List<MethodNode> methodNodes = classNode.methods;
+        for (MethodNode methodNode : methodNodes) {
+            if (methodNode.instructions.size() > 0
+                    && methodKeys.contains(methodNode.name + methodNode.desc)) {
+                check(classNode.name, methodNode);
+            }
+        }
+    }
+
+    private static void check(String owner, MethodNode methodNode) throws AnalyzerException {
+        Frame[] frames = new Analyzer(new BasicInterpreter()).analyze(owner, methodNode);
+        for (int i = 0; i < frames.length; i++) {
+            AbstractInsnNode insn = methodNode.instructions.get(i);
+            Frame frame = frames[i];
+            if (insn instanceof FrameNode && frame != null) {
+                // frame is null for unreachable code
+                check((FrameNode) insn, frame);
+            }
+        }
+    }
+
+    private static void check(FrameNode frameNode, Frame frame)
+            throws AnalyzerException {
+        @SuppressWarnings("unchecked")
+        List<Object> frameLocals = frameNode.local;
+        int local = 0;
+        for (Object type : frameLocals) {
+            if (local >= frame.getLocals()) {
+                throw new AnalyzerException(frameNode, "too many locals in frame");
+            }
+            if (type != (Object) TOP && !isCompatible(type, (BasicValue) frame.getLocal(local))) {
+                throw new AnalyzerException(frameNode,
+                        "local " + local + " does not match frame");
+            }
+            local += type == (Object) LONG || type == (Object) DOUBLE ? 2 : 1;
+        }
+        @SuppressWarnings("unchecked")
+        List<Object> frameStack = frameNode.stack;
+        if (frameStack.size() != frame.getStackSize()) {
+            throw new AnalyzerException(frameNode, "stack size does not match frame");
+        }
+        for (int i = 0; i < frameStack.size(); i++) {
+            if (!isCompatible(frameStack.get(i), (BasicValue) frame.getStack(i))) {
+                throw new AnalyzerException(frameNode, "stack " + i + " does not match frame");
+            }
+        }
+    }
+
+    private static boolean isCompatible(Object frameType, BasicValue value) {
+        if (frameType == (Object) INTEGER) {
+            return BasicValue.INT_VALUE.equals(value);
+        } else if (frameType == (Object) FLOAT) {
+            return BasicValue.FLOAT_VALUE.equals(value);
+        } else if (frameType == (Object) LONG) {
+            return BasicValue.LONG_VALUE.equals(value);
+        } else if (frameType == (Object) DOUBLE) {
+            return BasicValue.DOUBLE_VALUE.equals(value);
+        } else {
+            // NULL, UNINITIALIZED_THIS, uninitialized (label) or reference type
+            return value.isReference();
+        }
+    }
+}
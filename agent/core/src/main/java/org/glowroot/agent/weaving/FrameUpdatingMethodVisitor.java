@@ -0,0 +1,539 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AnalyzerAdapter;
+
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ASM5;
+import static org.objectweb.asm.Opcodes.ASTORE;
+import static org.objectweb.asm.Opcodes.DOUBLE;
+import static org.objectweb.asm.Opcodes.DSTORE;
+import static org.objectweb.asm.Opcodes.FLOAT;
+import static org.objectweb.asm.Opcodes.FSTORE;
+import static org.objectweb.asm.Opcodes.F_NEW;
+import static org.objectweb.asm.Opcodes.GOTO;
+import static org.objectweb.asm.Opcodes.ILOAD;
+import static org.objectweb.asm.Opcodes.INTEGER;
+import static org.objectweb.asm.Opcodes.ISTORE;
+import static org.objectweb.asm.Opcodes.LONG;
+import static org.objectweb.asm.Opcodes.LSTORE;
+import static org.objectweb.asm.Opcodes.NULL;
+import static org.objectweb.asm.Opcodes.TOP;
+
+// sits between WeavingMethodVisitor and the ClassWriter when weaving without
+// ClassWriter.COMPUTE_FRAMES, passing the original (expanded) stack map frames through and
+// inserting frames only at the labels added by WeavingMethodVisitor that need one (jump targets
+// and catch handlers), so that weaving doesn't need getCommonSuperClass() lookups
+//
+// the inserted frames are built from the types that are known without any type hierarchy:
+// * the declared parameter types (and "this"), for those that still hold their declared type on
+//   every path to the label (some compilers mark unused parameters as TOP in their frames)
+// * the declared types of the locals added by WeavingMethodVisitor, for those that are assigned
+//   on every path to the label
+// * TOP for the original method's own locals (WeavingMethodVisitor never reads them)
+// * the stack, which must agree on every path to the label (other than null vs reference), with
+//   the exception of labels whose stack is declared up front (e.g. the return value at the
+//   shared @OnReturn label)
+//
+// anything else (e.g. the original code storing a different type into a parameter, which would
+// then not match the inserted frames) throws UnsupportedFrameException, in which case the caller
+// falls back to weaving the class with ClassWriter.COMPUTE_FRAMES
+//
+// this is not used for constructors (since "this" is uninitialized in part of the method) or for
+// classes with mixins (since their constructors are woven)
+class FrameUpdatingMethodVisitor extends AnalyzerAdapter {
+
+    private static final Object CONFLICT = new Object();
+
+    // "this" (if not static) and the method parameters
+    private final Object[] parameterLocals;
+    // parameter slots that don't hold their declared type in some original frame
+    private final BitSet nonParameterTypeLocals = new BitSet();
+
+    // indexed by local, non-null only for the locals added by WeavingMethodVisitor
+    private final List</*@Nullable*/ Object> declaredLocals = new ArrayList</*@Nullable*/ Object>();
+    private final Map<Label, Object[]> declaredStacks = new HashMap<Label, Object[]>();
+
+    // merged state of the jumps seen so far to each (not yet visited) label
+    private final Map<Label, FrameState> jumpStates = new HashMap<Label, FrameState>();
+    private final Map<Label, List<TryCatchBlock>> handlerTryCatchBlocks =
+            new HashMap<Label, List<TryCatchBlock>>();
+    // locals at each label, needed for the catch handler frames
+    private final Map<Label, Object[]> labelLocals = new HashMap<Label, Object[]>();
+
+    private final Set<Label> visitedLabels = new HashSet<Label>();
+    private final Set<Label> originalFrameLabels = new HashSet<Label>();
+
+    private final List<Label> pendingLabels = new ArrayList<Label>();
+    private boolean pendingOriginalFrame;
+
+    FrameUpdatingMethodVisitor(String owner, int access, String name, String desc,
+            MethodVisitor mv) {
+        super(ASM5, owner, access, name, desc, mv);
+        parameterLocals = locals.toArray();
+    }
+
+    // called by WeavingMethodVisitor for each local that it adds
+    void declareLocal(int local, Type type) {
+        while (declaredLocals.size() < local + type.getSize()) {
+            declaredLocals.add(null);
+        }
+        declaredLocals.set(local, getFrameType(type));
+        if (type.getSize() == 2) {
+            declaredLocals.set(local + 1, TOP);
+        }
+    }
+
+    // called by WeavingMethodVisitor for labels where the stack is known, but where the types on
+    // the stack on the different paths to the label can differ (e.g. returning different subtypes
+    // of the method's return type)
+    void declareStack(Label label, Type type) {
+        if (type.getSize() == 2) {
+            declaredStacks.put(label, new Object[] {getFrameType(type), TOP});
+        } else {
+            declaredStacks.put(label, new Object[] {getFrameType(type)});
+        }
+    }
+
+    @Override
+    public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+        super.visitFrame(type, nLocal, local, nStack, stack);
+        for (int i = 0; i < parameterLocals.length; i++) {
+            if (i >= locals.size() || !isParameterType(locals.get(i), parameterLocals[i])) {
+                nonParameterTypeLocals.set(i);
+            }
+        }
+        originalFrameLabels.addAll(pendingLabels);
+        pendingOriginalFrame = true;
+    }
+
+    @Override
+    public void visitLabel(Label label) {
+        super.visitLabel(label);
+        visitedLabels.add(label);
+        pendingLabels.add(label);
+    }
+
+    @Override
+    public void visitTryCatchBlock(Label start, Label end, Label handler, @Nullable String type) {
+        if (visitedLabels.contains(handler) && !originalFrameLabels.contains(handler)) {
+            throw new UnsupportedFrameException("catch handler visited before its try catch block");
+        }
+        List<TryCatchBlock> tryCatchBlocks = handlerTryCatchBlocks.get(handler);
+        if (tryCatchBlocks == null) {
+            tryCatchBlocks = new ArrayList<TryCatchBlock>();
+            handlerTryCatchBlocks.put(handler, tryCatchBlocks);
+        }
+        tryCatchBlocks.add(new TryCatchBlock(start, type == null ? "java/lang/Throwable" : type));
+        super.visitTryCatchBlock(start, end, handler, type);
+    }
+
+    @Override
+    public void visitInsn(int opcode) {
+        beforeInsn();
+        super.visitInsn(opcode);
+    }
+
+    @Override
+    public void visitIntInsn(int opcode, int operand) {
+        beforeInsn();
+        super.visitIntInsn(opcode, operand);
+    }
+
+    @Override
+    public void visitVarInsn(int opcode, int var) {
+        beforeInsn();
+        if (opcode >= ILOAD && opcode <= ALOAD && (var >= locals.size()
+                || locals.get(var) == (Object) TOP)) {
+            // e.g. woven code reading a parameter that is not available in an inserted frame
+            throw new UnsupportedFrameException("load of local that is not available");
+        }
+        if (opcode >= ISTORE && opcode <= ASTORE && var < parameterLocals.length) {
+            checkParameterStore(opcode, var);
+        }
+        super.visitVarInsn(opcode, var);
+    }
+
+    @Override
+    public void visitTypeInsn(int opcode, String type) {
+        beforeInsn();
+        super.visitTypeInsn(opcode, type);
+    }
+
+    @Override
+    public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+        beforeInsn();
+        super.visitFieldInsn(opcode, owner, name, desc);
+    }
+
+    @Override
+    public void visitMethodInsn(int opcode, String owner, String name, String desc,
+            boolean itf) {
+        beforeInsn();
+        super.visitMethodInsn(opcode, owner, name, desc, itf);
+    }
+
+    @Override
+    public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+        beforeInsn();
+        super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+    }
+
+    @Override
+    public void visitJumpInsn(int opcode, Label label) {
+        beforeInsn();
+        if (opcode == GOTO) {
+            addJumpState(label, 0);
+            super.visitJumpInsn(opcode, label);
+        } else {
+            super.visitJumpInsn(opcode, label);
+            // conditional jump operands have been popped at this point
+            addJumpState(label, 0);
+        }
+    }
+
+    @Override
+    public void visitLdcInsn(Object cst) {
+        beforeInsn();
+        super.visitLdcInsn(cst);
+    }
+
+    @Override
+    public void visitIincInsn(int var, int increment) {
+        beforeInsn();
+        if (var < parameterLocals.length && parameterLocals[var] != (Object) INTEGER) {
+            throw new UnsupportedFrameException("iinc of non-int parameter slot");
+        }
+        super.visitIincInsn(var, increment);
+    }
+
+    @Override
+    public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+        beforeInsn();
+        addJumpState(dflt, 1);
+        for (Label label : labels) {
+            addJumpState(label, 1);
+        }
+        super.visitTableSwitchInsn(min, max, dflt, labels);
+    }
+
+    @Override
+    public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+        beforeInsn();
+        addJumpState(dflt, 1);
+        for (Label label : labels) {
+            addJumpState(label, 1);
+        }
+        super.visitLookupSwitchInsn(dflt, keys, labels);
+    }
+
+    @Override
+    public void visitMultiANewArrayInsn(String desc, int dims) {
+        beforeInsn();
+        super.visitMultiANewArrayInsn(desc, dims);
+    }
+
+    @Override
+    public void visitMaxs(int maxStack, int maxLocals) {
+        // labels at the very end of the method (e.g. local variable end labels) don't need frames
+        pendingLabels.clear();
+        super.visitMaxs(maxStack, maxLocals);
+    }
+
+    private void beforeInsn() {
+        if (!pendingLabels.isEmpty()) {
+            if (pendingOriginalFrame) {
+                for (Label label : pendingLabels) {
+                    jumpStates.remove(label);
+                }
+            } else {
+                insertFrameIfNeeded();
+            }
+            if (locals != null) {
+                Object[] currLocals = locals.toArray();
+                for (Label label : pendingLabels) {
+                    labelLocals.put(label, currLocals);
+                }
+            }
+            pendingLabels.clear();
+        }
+        pendingOriginalFrame = false;
+        if (locals == null) {
+            throw new UnsupportedFrameException("unreachable code without a frame");
+        }
+    }
+
+    private void insertFrameIfNeeded() {
+        FrameState merged = null;
+        Object[] declaredStack = null;
+        boolean catchHandler = false;
+        for (Label label : pendingLabels) {
+            FrameState jumpState = jumpStates.remove(label);
+            if (jumpState != null) {
+                merged = FrameState.merge(merged, jumpState);
+            }
+            List<TryCatchBlock> tryCatchBlocks = handlerTryCatchBlocks.get(label);
+            if (tryCatchBlocks != null) {
+                catchHandler = true;
+                for (TryCatchBlock tryCatchBlock : tryCatchBlocks) {
+                    // locals that are assigned at the start of the try block stay assigned (with
+                    // a compatible type) throughout the try block
+                    Object[] startLocals = labelLocals.get(tryCatchBlock.start);
+                    if (startLocals == null) {
+                        throw new UnsupportedFrameException("unknown locals at try start label");
+                    }
+                    merged = FrameState.merge(merged,
+                            new FrameState(startLocals, new Object[] {tryCatchBlock.type}));
+                }
+            }
+            Object[] labelStack = declaredStacks.get(label);
+            if (labelStack != null) {
+                declaredStack = labelStack;
+            }
+        }
+        if (merged == null) {
+            // not a jump target or catch handler, so only reached by falling through
+            return;
+        }
+        if (locals != null) {
+            merged = FrameState.merge(merged, new FrameState(locals.toArray(), stack.toArray()));
+        }
+        Object[] frameStack;
+        if (declaredStack == null) {
+            for (Object type : merged.stack) {
+                if (type == CONFLICT) {
+                    throw new UnsupportedFrameException("conflicting types on the stack");
+                }
+            }
+            frameStack = compress(merged.stack);
+        } else if (declaredStack.length == merged.stack.length) {
+            frameStack = compress(declaredStack);
+        } else {
+            throw new UnsupportedFrameException("unexpected stack size at label");
+        }
+        Object[] frameLocals =
+                trimTop(compress(getFrameLocals(merged.locals, catchHandler)));
+        super.visitFrame(F_NEW, frameLocals.length, frameLocals, frameStack.length, frameStack);
+    }
+
+    private Object[] getFrameLocals(Object[] mergedLocals, boolean catchHandler) {
+        Object[] frameLocals = new Object[Math.max(parameterLocals.length, declaredLocals.size())];
+        for (int i = 0; i < parameterLocals.length; i++) {
+            // catch handler frames also need to match every frame inside of the try block (and the
+            // glowroot try blocks end after all of the original code, so all of the original frames
+            // have been visited at this point)
+            if (i < mergedLocals.length && isParameterType(mergedLocals[i], parameterLocals[i])
+                    && !(catchHandler && nonParameterTypeLocals.get(i))) {
+                frameLocals[i] = parameterLocals[i];
+            } else {
+                frameLocals[i] = TOP;
+            }
+        }
+        for (int i = parameterLocals.length; i < frameLocals.length; i++) {
+            Object declaredType = declaredLocals.get(i);
+            if (declaredType != null && i < mergedLocals.length
+                    && mergedLocals[i] != (Object) TOP) {
+                frameLocals[i] = declaredType;
+            } else {
+                // the second slot of long and double locals is also TOP
+                frameLocals[i] = TOP;
+            }
+        }
+        return frameLocals;
+    }
+
+    private void addJumpState(Label label, int pop) {
+        if (visitedLabels.contains(label)) {
+            // backwards jump, which is only supported to labels with an original frame (since
+            // an inserted frame cannot be revised once it has been written)
+            if (!originalFrameLabels.contains(label)) {
+                throw new UnsupportedFrameException("backwards jump to label without a frame");
+            }
+            return;
+        }
+        if (locals == null) {
+            return;
+        }
+        Object[] currStack = stack.subList(0, stack.size() - pop).toArray();
+        FrameState state = new FrameState(locals.toArray(), currStack);
+        jumpStates.put(label, FrameState.merge(jumpStates.get(label), state));
+    }
+
+    private void checkParameterStore(int opcode, int var) {
+        Object valueType;
+        switch (opcode) {
+            case ISTORE:
+                valueType = INTEGER;
+                break;
+            case LSTORE:
+                valueType = LONG;
+                break;
+            case FSTORE:
+                valueType = FLOAT;
+                break;
+            case DSTORE:
+                valueType = DOUBLE;
+                break;
+            default:
+                valueType = stack.get(stack.size() - 1);
+                break;
+        }
+        if (!isParameterType(valueType, parameterLocals[var])) {
+            throw new UnsupportedFrameException("store of different type into parameter slot");
+        }
+    }
+
+    // whether the type can be treated as the parameter type, without any type hierarchy
+    private static boolean isParameterType(Object type, Object parameterType) {
+        if (parameterType == (Object) TOP) {
+            // second slot of long or double parameter
+            return true;
+        }
+        if (type.equals(parameterType)) {
+            return true;
+        }
+        return parameterType instanceof String && (type == (Object) NULL
+                || type instanceof String && parameterType.equals("java/lang/Object"));
+    }
+
+    // converts from one entry per slot (which is how AnalyzerAdapter tracks them) to one entry per
+    // value (which is how frames are visited)
+    private static Object[] compress(Object[] types) {
+        List<Object> compressed = new ArrayList<Object>(types.length);
+        for (int i = 0; i < types.length; i++) {
+            Object type = types[i];
+            compressed.add(type);
+            if (type == (Object) LONG || type == (Object) DOUBLE) {
+                i++;
+            }
+        }
+        return compressed.toArray();
+    }
+
+    private static Object[] trimTop(Object[] locals) {
+        int length = locals.length;
+        while (length > 0 && locals[length - 1] == (Object) TOP) {
+            length--;
+        }
+        Object[] trimmed = new Object[length];
+        System.arraycopy(locals, 0, trimmed, 0, length);
+        return trimmed;
+    }
+
+    private static Object getFrameType(Type type) {
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+            case Type.CHAR:
+            case Type.BYTE:
+            case Type.SHORT:
+            case Type.INT:
+                return INTEGER;
+            case Type.FLOAT:
+                return FLOAT;
+            case Type.LONG:
+                return LONG;
+            case Type.DOUBLE:
+                return DOUBLE;
+            case Type.ARRAY:
+                return type.getDescriptor();
+            default:
+                return type.getInternalName();
+        }
+    }
+
+    private static class FrameState {
+
+        // TOP if not assigned on every path, otherwise the type from one of the paths (only
+        // whether or not a local is assigned is used when building the inserted frame)
+        private final Object[] locals;
+        private final Object[] stack;
+
+        // not private, to avoid a synthetic accessor (see PreInitializeWeavingClasses)
+        FrameState(Object[] locals, Object[] stack) {
+            this.locals = locals;
+            this.stack = stack;
+        }
+
+        private static FrameState merge(@Nullable FrameState state1, FrameState state2) {
+            if (state1 == null) {
+                return state2;
+            }
+            if (state1.stack.length != state2.stack.length) {
+                throw new UnsupportedFrameException("different stack sizes");
+            }
+            Object[] locals = new Object[Math.min(state1.locals.length, state2.locals.length)];
+            for (int i = 0; i < locals.length; i++) {
+                Object type1 = state1.locals[i];
+                Object type2 = state2.locals[i];
+                locals[i] = type1 == (Object) TOP || type2 == (Object) TOP ? TOP : type1;
+            }
+            Object[] stack = new Object[state1.stack.length];
+            for (int i = 0; i < stack.length; i++) {
+                stack[i] = mergeStackType(state1.stack[i], state2.stack[i]);
+            }
+            return new FrameState(locals, stack);
+        }
+
+        private static Object mergeStackType(Object type1, Object type2) {
+            if (type1.equals(type2)) {
+                return type1;
+            }
+            if (type1 == (Object) NULL && type2 instanceof String) {
+                return type2;
+            }
+            if (type2 == (Object) NULL && type1 instanceof String) {
+                return type1;
+            }
+            return CONFLICT;
+        }
+    }
+
+    private static class TryCatchBlock {
+
+        private final Label start;
+        private final String type;
+
+        // not private, to avoid a synthetic accessor (see PreInitializeWeavingClasses)
+        TryCatchBlock(Label start, String type) {
+            this.start = start;
+            this.type = type;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    static class UnsupportedFrameException extends RuntimeException {
+
+        // not private, to avoid a synthetic accessor (see PreInitializeWeavingClasses)
+        UnsupportedFrameException(String message) {
+            super(message);
+        }
+    }
+}
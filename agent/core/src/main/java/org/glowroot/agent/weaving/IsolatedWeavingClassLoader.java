@@ -139,7 +139,7 @@ public class IsolatedWeavingClassLoader extends ClassLoader {
             inWeaving.set(true);
             try {
                 byte[] wovenBytes =
-                        weaver.weave(bytes, ClassNames.toInternalName(name), null, this);
+                        weaver.weave(bytes, ClassNames.toInternalName(name), false, null, this);
                 if (wovenBytes == null) {
                     return bytes;
                 } else {
@@ -183,6 +183,7 @@ public class IsolatedWeavingClassLoader extends ClassLoader {
                 || name.startsWith("org.glowroot.agent.plugin.api.")
                 || name.startsWith("org.glowroot.agent.weaving.GeneratedAdvice")
                 || name.startsWith("org.glowroot.agent.weaving.GeneratedMethodMeta")
+                || name.equals(DeferredWeaver.class.getName())
                 || name.equals(OptionalThreadContextImpl.class.getName())
                 || name.equals(ServiceRegistryImpl.class.getName())
                 || name.equals(ThreadContextImpl.class.getName())
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.StandardSystemProperty;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.objectweb.asm.ClassReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.common.util.OnlyUsedByTests;
+
+// analyzes the super types of the classes in the jars on the class path in the background during
+// startup, so that the type hierarchy lookups made while weaving the startup class loading burst
+// are mostly hits in the analyzed world
+//
+// only super types are analyzed (as opposed to every class in the jars) since those are the only
+// ones looked up during weaving (all other classes are analyzed when they are loaded anyways), and
+// since analyzed classes are retained for the life of their class loader
+public class PreAnalyzer implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PreAnalyzer.class);
+
+    private final AnalyzedWorld analyzedWorld;
+    private final ClassLoader loader;
+    private final ImmutableList<File> jarFiles;
+
+    private final Thread thread;
+
+    private volatile boolean closed;
+
+    private PreAnalyzer(AnalyzedWorld analyzedWorld, ClassLoader loader, List<File> jarFiles) {
+        this.analyzedWorld = analyzedWorld;
+        this.loader = loader;
+        this.jarFiles = ImmutableList.copyOf(jarFiles);
+        thread = new Thread(this);
+        thread.setDaemon(true);
+        thread.setName("Glowroot-Pre-Analyzer");
+        // this is only an optimization, so don't compete with application startup
+        thread.setPriority(Thread.MIN_PRIORITY);
+    }
+
+    public static PreAnalyzer start(AnalyzedWorld analyzedWorld, ClassLoader loader,
+            List<File> jarFiles) {
+        PreAnalyzer preAnalyzer = new PreAnalyzer(analyzedWorld, loader, jarFiles);
+        preAnalyzer.thread.start();
+        return preAnalyzer;
+    }
+
+    public static List<File> getClassPathJarFiles() {
+        String classPath = StandardSystemProperty.JAVA_CLASS_PATH.value();
+        if (classPath == null) {
+            return ImmutableList.of();
+        }
+        List<File> jarFiles = Lists.newArrayList();
+        for (String path : Splitter.on(File.pathSeparatorChar).omitEmptyStrings()
+                .split(classPath)) {
+            if (path.endsWith(".jar")) {
+                jarFiles.add(new File(path));
+            }
+        }
+        return jarFiles;
+    }
+
+    @Override
+    public void run() {
+        Set<String> superTypeNames = Sets.newLinkedHashSet();
+        for (File jarFile : jarFiles) {
+            if (closed) {
+                return;
+            }
+            try {
+                addSuperTypeNames(jarFile, superTypeNames);
+            } catch (IOException e) {
+                logger.debug(e.getMessage(), e);
+            }
+        }
+        logger.debug("pre-analyzing {} super types", superTypeNames.size());
+        for (String superTypeName : superTypeNames) {
+            if (closed) {
+                return;
+            }
+            try {
+                analyzedWorld.preAnalyze(superTypeName, loader);
+            } catch (Throwable t) {
+                // e.g. unexpected bytecode, in which case it will be analyzed (and any problem
+                // logged) as usual when it is needed during weaving
+                logger.debug(t.getMessage(), t);
+            }
+        }
+    }
+
+    @OnlyUsedByTests
+    public void close() throws InterruptedException {
+        closed = true;
+        thread.join();
+    }
+
+    private static void addSuperTypeNames(File file, Set<String> superTypeNames)
+            throws IOException {
+        JarFile jarFile = new JarFile(file);
+        try {
+            Enumeration<JarEntry> e = jarFile.entries();
+            while (e.hasMoreElements()) {
+                JarEntry jarEntry = e.nextElement();
+                String name = jarEntry.getName();
+                if (!name.endsWith(".class") || name.startsWith("META-INF/")
+                        || name.equals("module-info.class")) {
+                    continue;
+                }
+                InputStream in = jarFile.getInputStream(jarEntry);
+                ClassReader classReader;
+                try {
+                    classReader = new ClassReader(in);
+                } finally {
+                    in.close();
+                }
+                String superName = classReader.getSuperName();
+                if (superName != null && !superName.equals("java/lang/Object")) {
+                    superTypeNames.add(ClassNames.fromInternalName(superName));
+                }
+                for (String interfaceName : classReader.getInterfaces()) {
+                    superTypeNames.add(ClassNames.fromInternalName(interfaceName));
+                }
+            }
+        } finally {
+            jarFile.close();
+        }
+    }
+}
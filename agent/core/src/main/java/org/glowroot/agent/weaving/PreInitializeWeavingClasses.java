@@ -292,9 +292,13 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.AdviceBuilder$1");
         types.add("org.glowroot.agent.weaving.AdviceBuilder$AdviceConstructionException");
         types.add("org.glowroot.agent.weaving.AdviceMatcher");
+        types.add("org.glowroot.agent.weaving.AdvisorIndex");
+        types.add("org.glowroot.agent.weaving.AdvisorIndex$Entry");
         types.add("org.glowroot.agent.weaving.AnalyzedClass");
         types.add("org.glowroot.agent.weaving.AnalyzedMethod");
         types.add("org.glowroot.agent.weaving.AnalyzedWorld");
+        types.add("org.glowroot.agent.weaving.AnalyzedWorld$InFlightAnalysis");
+        types.add("org.glowroot.agent.weaving.AnalyzedWorld$InFlightKey");
         types.add("org.glowroot.agent.weaving.AnalyzedWorld$ParseContext");
         types.add("org.glowroot.agent.weaving.BootstrapMetaHolders");
         types.add("org.glowroot.agent.weaving.BootstrapMetaHolders$ClassMetaHolder");
@@ -306,9 +310,20 @@ public class PreInitializeWeavingClasses {
                 + "$BridgeMethodVisitor");
         types.add("org.glowroot.agent.weaving.ClassLoaders");
         types.add("org.glowroot.agent.weaving.ClassLoaders$LazyDefinedClass");
+        types.add("org.glowroot.agent.weaving.ClassNameIndex");
+        types.add("org.glowroot.agent.weaving.ClassNameIndex$Builder");
         types.add("org.glowroot.agent.weaving.ClassNames");
         types.add("org.glowroot.agent.weaving.Weaver$FelixOsgiHackClassVisitor");
         types.add("org.glowroot.agent.weaving.Weaver$FelixOsgiHackMethodVisitor");
+        types.add("org.glowroot.agent.weaving.DeferredWeaver");
+        types.add("org.glowroot.agent.weaving.DeferredWeaver$TrampolineClassVisitor");
+        types.add("org.glowroot.agent.weaving.DeferredWeaver$TrampolineMethodVisitor");
+        types.add("org.glowroot.agent.weaving.FrameChecker");
+        types.add("org.glowroot.agent.weaving.FrameUpdatingMethodVisitor");
+        types.add("org.glowroot.agent.weaving.FrameUpdatingMethodVisitor$FrameState");
+        types.add("org.glowroot.agent.weaving.FrameUpdatingMethodVisitor$TryCatchBlock");
+        types.add("org.glowroot.agent.weaving.FrameUpdatingMethodVisitor"
+                + "$UnsupportedFrameException");
         types.add("org.glowroot.agent.weaving.GeneratedBytecodeUtil");
         types.add("org.glowroot.agent.weaving.ImmutableAdvice");
         types.add("org.glowroot.agent.weaving.ImmutableAdvice$Builder");
@@ -353,6 +368,9 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.Weaver");
         types.add("org.glowroot.agent.weaving.Weaver$ComputeFramesClassWriter");
         types.add("org.glowroot.agent.weaving.Weaver$JSRInlinerClassVisitor");
+        types.add("org.glowroot.agent.weaving.WeavingCache");
+        types.add("org.glowroot.agent.weaving.WeavingCache$AdvisorSet");
+        types.add("org.glowroot.agent.weaving.WeavingCache$CachedAnalyzedClass");
         types.add("org.glowroot.agent.weaving.WeavingClassFileTransformer");
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor");
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor$InitMixins");
@@ -393,6 +411,7 @@ public class PreInitializeWeavingClasses {
         types.add("org.objectweb.asm.TypePath");
         types.add("org.objectweb.asm.TypeReference");
         types.add("org.objectweb.asm.commons.AdviceAdapter");
+        types.add("org.objectweb.asm.commons.AnalyzerAdapter");
         types.add("org.objectweb.asm.commons.AnnotationRemapper");
         types.add("org.objectweb.asm.commons.GeneratorAdapter");
         types.add("org.objectweb.asm.commons.JSRInlinerAdapter");
@@ -21,6 +21,7 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.security.CodeSource;
 import java.util.List;
+import java.util.Set;
 
 import javax.annotation.Nullable;
 
@@ -28,6 +29,8 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.StandardSystemProperty;
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.google.common.io.Files;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
@@ -36,6 +39,7 @@ import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.commons.AdviceAdapter;
 import org.objectweb.asm.commons.JSRInlinerAdapter;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
 import org.objectweb.asm.util.CheckClassAdapter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,9 +53,12 @@ import org.glowroot.agent.plugin.api.TimerName;
 import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.agent.plugin.api.weaving.Pointcut;
 import org.glowroot.agent.weaving.AnalyzedWorld.ParseContext;
+import org.glowroot.agent.weaving.WeavingCache.CachedAnalyzedClass;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static org.objectweb.asm.Opcodes.ASM5;
+import static org.objectweb.asm.Opcodes.V1_5;
+import static org.objectweb.asm.Opcodes.V1_6;
 
 public class Weaver {
 
@@ -66,13 +73,19 @@ public class Weaver {
     private final AnalyzedWorld analyzedWorld;
     private final TransactionRegistry transactionRegistry;
     private final TimerName timerName;
+    private final @Nullable WeavingCache weavingCache;
+    private final @Nullable DeferredWeaver deferredWeaver;
+    // keep the original stack map frames and only insert frames where needed by the woven code,
+    // instead of recomputing all frames (falling back to recomputing all frames when needed)
+    private final boolean preserveFrames;
 
     private volatile boolean enabled;
 
     public Weaver(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
             List<MixinType> mixinTypes, AnalyzedWorld analyzedWorld,
             TransactionRegistry transactionRegistry, TimerNameCache timerNameCache,
-            final ConfigService configService) {
+            final ConfigService configService, @Nullable WeavingCache weavingCache,
+            @Nullable DeferredWeaver deferredWeaver, boolean preserveFrames) {
         this.advisors = advisors;
         this.shimTypes = ImmutableList.copyOf(shimTypes);
         this.mixinTypes = ImmutableList.copyOf(mixinTypes);
@@ -85,14 +98,20 @@ public class Weaver {
             }
         });
         this.timerName = timerNameCache.getTimerName(OnlyForTheTimerName.class);
+        this.weavingCache = weavingCache;
+        this.deferredWeaver = deferredWeaver;
+        this.preserveFrames = preserveFrames;
     }
 
-    byte /*@Nullable*/[] weave(byte[] classBytes, String className, @Nullable CodeSource codeSource,
-            @Nullable ClassLoader loader) {
+    // deferrable is false when the class is being retransformed (and for classes that cannot be
+    // retransformed), see DeferredWeaver
+    byte /*@Nullable*/[] weave(byte[] classBytes, String className, boolean deferrable,
+            @Nullable CodeSource codeSource, @Nullable ClassLoader loader) {
         TimerImpl weavingTimer = startWeavingTimer();
         try {
             logger.trace("transform(): className={}", className);
-            byte[] transformedBytes = weaveUnderTimer(classBytes, className, codeSource, loader);
+            byte[] transformedBytes =
+                    weaveUnderTimer(classBytes, className, deferrable, codeSource, loader);
             if (transformedBytes != null) {
                 logger.debug("transform(): transformed {}", className);
             }
@@ -120,9 +139,33 @@ public class Weaver {
     }
 
     private byte/*@Nullable*/[] weaveUnderTimer(byte[] classBytes, String className,
-            @Nullable CodeSource codeSource, @Nullable ClassLoader loader) {
-        List<Advice> advisors = analyzedWorld.mergeInstrumentationAnnotations(this.advisors.get(),
+            boolean deferrable, @Nullable CodeSource codeSource, @Nullable ClassLoader loader) {
+        List<Advice> allAdvisors = this.advisors.get();
+        List<Advice> advisors = analyzedWorld.mergeInstrumentationAnnotations(allAdvisors,
                 classBytes, loader, className);
+        // the hash is recorded even when the weaving cache is bypassed below, since it is needed
+        // for caching the sub classes (see AnalyzedClass.classBytesHash())
+        String classBytesHash =
+                weavingCache == null ? null : WeavingCache.getKey(className, classBytes);
+        String weavingCacheKey = null;
+        // advisors from @Instrumentation annotations are class-specific and so are not part of the
+        // weaving cache's advisor set, in which case (rare) the weaving cache is bypassed
+        if (weavingCache != null && advisors == allAdvisors && !VERIFY_WEAVING
+                && !className.equals("org/apache/felix/framework/BundleWiringImpl")) {
+            weavingCacheKey = classBytesHash;
+            checkNotNull(weavingCacheKey);
+            CachedAnalyzedClass cachedAnalyzedClass = weavingCache.get(weavingCacheKey, advisors);
+            if (cachedAnalyzedClass != null) {
+                AnalyzedClass analyzedClass = cachedAnalyzedClass.analyzedClass();
+                if (cachedAnalyzedClass.superTypeHashes().equals(WeavingCache.getSuperTypeHashes(
+                        getSuperAnalyzedClasses(analyzedClass, loader, codeSource)))) {
+                    analyzedWorld.add(analyzedClass, loader);
+                    return null;
+                }
+                // a super type has changed since the class was cached
+                weavingCache.invalidate(weavingCacheKey);
+            }
+        }
         ThinClassVisitor accv = new ThinClassVisitor();
         new ClassReader(classBytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
         byte[] maybeFelixBytes = null;
@@ -135,12 +178,92 @@ public class Weaver {
             maybeFelixBytes = cw.toByteArray();
         }
         ClassAnalyzer classAnalyzer = new ClassAnalyzer(accv.getThinClass(), advisors, shimTypes,
-                mixinTypes, loader, analyzedWorld, codeSource, classBytes);
+                mixinTypes, loader, analyzedWorld, codeSource, classBytes, classBytesHash);
         classAnalyzer.analyzeMethods();
         if (!classAnalyzer.isWeavingRequired()) {
-            analyzedWorld.add(classAnalyzer.getAnalyzedClass(), loader);
+            AnalyzedClass analyzedClass = classAnalyzer.getAnalyzedClass();
+            analyzedWorld.add(analyzedClass, loader);
+            if (weavingCache != null && weavingCacheKey != null) {
+                weavingCache.put(weavingCacheKey, analyzedClass,
+                        classAnalyzer.getSuperAnalyzedClasses(), advisors);
+            }
             return maybeFelixBytes;
         }
+        ClassReader cr = new ClassReader(maybeFelixBytes == null ? classBytes : maybeFelixBytes);
+        if (deferredWeaver != null && deferrable && maybeFelixBytes == null
+                && deferredWeaver.isDeferring() && canDefer(classAnalyzer, cr)) {
+            byte[] trampolineBytes = weaveTrampolines(cr, classAnalyzer, className);
+            if (trampolineBytes != null) {
+                // the class is fully analyzed, and the analyzed class is needed for analyzing its
+                // sub classes, it is only the weaving that is deferred
+                analyzedWorld.add(classAnalyzer.getAnalyzedClass(), loader);
+                return trampolineBytes;
+            }
+        }
+        byte[] transformedBytes = null;
+        if (preserveFrames && canPreserveFrames(classAnalyzer)) {
+            try {
+                transformedBytes = weavePreservingFrames(cr, classAnalyzer, loader);
+            } catch (Exception e) {
+                // e.g. FrameUpdatingMethodVisitor.UnsupportedFrameException, or AnalyzerException
+                // from FrameChecker
+                logger.debug("falling back to computing frames for {}: {}", className,
+                        e.getMessage(), e);
+            }
+        }
+        if (transformedBytes == null) {
+            try {
+                transformedBytes = weaveComputingFrames(cr, classAnalyzer, loader, codeSource,
+                        className);
+            } catch (RuntimeException e) {
+                logger.error("unable to weave {}: {}", className, e.getMessage(), e);
+                try {
+                    File tempFile = getTempFile(className, "glowroot-weaving-error-", ".class");
+                    Files.write(classBytes, tempFile);
+                    logger.error("wrote bytecode to: {}", tempFile.getAbsolutePath());
+                } catch (IOException f) {
+                    logger.error(f.getMessage(), f);
+                }
+                return null;
+            }
+        }
+        if (VERIFY_WEAVING) {
+            verify(transformedBytes, loader, classBytes, className);
+        }
+        return transformedBytes;
+    }
+
+    // same super types as resolved by ClassAnalyzer
+    private List<AnalyzedClass> getSuperAnalyzedClasses(AnalyzedClass analyzedClass,
+            @Nullable ClassLoader loader, @Nullable CodeSource codeSource) {
+        if (analyzedClass.isInterface()) {
+            return ImmutableList.of();
+        }
+        ParseContext parseContext = ImmutableParseContext.of(analyzedClass.name(), codeSource);
+        List<AnalyzedClass> superAnalyzedClasses = Lists.newArrayList();
+        superAnalyzedClasses.addAll(
+                analyzedWorld.getAnalyzedHierarchy(analyzedClass.superName(), loader, parseContext));
+        for (String interfaceName : analyzedClass.interfaceNames()) {
+            superAnalyzedClasses.addAll(
+                    analyzedWorld.getAnalyzedHierarchy(interfaceName, loader, parseContext));
+        }
+        return superAnalyzedClasses;
+    }
+
+    private byte /*@Nullable*/[] weaveTrampolines(ClassReader cr, ClassAnalyzer classAnalyzer,
+            String className) {
+        checkNotNull(deferredWeaver);
+        try {
+            return deferredWeaver.weaveTrampolines(cr, classAnalyzer.getMethodAdvisors().keySet());
+        } catch (RuntimeException e) {
+            // e.g. method code too large after inserting the trampoline
+            logger.debug("unable to defer weaving of {}: {}", className, e.getMessage(), e);
+            return null;
+        }
+    }
+
+    private byte[] weaveComputingFrames(ClassReader cr, ClassAnalyzer classAnalyzer,
+            @Nullable ClassLoader loader, @Nullable CodeSource codeSource, String className) {
         // from http://www.oracle.com/technetwork/java/javase/compatibility-417013.html:
         //
         // "Classfiles with version number 51 are exclusively verified using the type-checking
@@ -155,32 +278,71 @@ public class Weaver {
         //
         ClassWriter cw = new ComputeFramesClassWriter(ClassWriter.COMPUTE_FRAMES, analyzedWorld,
                 loader, codeSource, className);
-        WeavingClassVisitor cv =
-                new WeavingClassVisitor(cw, loader, classAnalyzer.getAnalyzedClass(),
-                        classAnalyzer.getMethodsThatOnlyNowFulfillAdvice(),
-                        classAnalyzer.getMatchedShimTypes(), classAnalyzer.getMatchedMixinTypes(),
-                        classAnalyzer.getMethodAdvisors(), analyzedWorld);
-        ClassReader cr = new ClassReader(maybeFelixBytes == null ? classBytes : maybeFelixBytes);
-        try {
-            cr.accept(new JSRInlinerClassVisitor(cv), ClassReader.SKIP_FRAMES);
-        } catch (RuntimeException e) {
-            logger.error("unable to weave {}: {}", className, e.getMessage(), e);
-            try {
-                File tempFile = getTempFile(className, "glowroot-weaving-error-", ".class");
-                Files.write(classBytes, tempFile);
-                logger.error("wrote bytecode to: {}", tempFile.getAbsolutePath());
-            } catch (IOException f) {
-                logger.error(f.getMessage(), f);
-            }
-            return null;
-        }
+        ClassVisitor cv = createWeavingClassVisitor(cw, classAnalyzer, loader, false);
+        cr.accept(new JSRInlinerClassVisitor(cv), ClassReader.SKIP_FRAMES);
+        return cw.toByteArray();
+    }
+
+    // weaves without ClassWriter.COMPUTE_FRAMES, which avoids the getCommonSuperClass() lookups
+    // (and the class loading that they can trigger)
+    //
+    // classfiles prior to version 50 don't have (or need) stack map frames, and for later
+    // classfiles the original frames are kept and frames are only inserted where needed by the
+    // woven code (see FrameUpdatingMethodVisitor), which are then checked (see FrameChecker)
+    private byte[] weavePreservingFrames(ClassReader cr, ClassAnalyzer classAnalyzer,
+            @Nullable ClassLoader loader) throws AnalyzerException {
+        boolean updateFrames = cr.readShort(6) >= V1_6;
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        ClassVisitor cv = createWeavingClassVisitor(cw, classAnalyzer, loader, updateFrames);
+        cr.accept(new JSRInlinerClassVisitor(cv),
+                updateFrames ? ClassReader.EXPAND_FRAMES : ClassReader.SKIP_FRAMES);
         byte[] transformedBytes = cw.toByteArray();
-        if (VERIFY_WEAVING) {
-            verify(transformedBytes, loader, classBytes, className);
+        if (updateFrames) {
+            FrameChecker.check(transformedBytes, getWovenMethodKeys(classAnalyzer));
         }
         return transformedBytes;
     }
 
+    private ClassVisitor createWeavingClassVisitor(ClassWriter cw, ClassAnalyzer classAnalyzer,
+            @Nullable ClassLoader loader, boolean updateFrames) {
+        return new WeavingClassVisitor(cw, loader, classAnalyzer.getAnalyzedClass(),
+                classAnalyzer.getMethodsThatOnlyNowFulfillAdvice(),
+                classAnalyzer.getMatchedShimTypes(), classAnalyzer.getMatchedMixinTypes(),
+                classAnalyzer.getMethodAdvisors(), analyzedWorld, updateFrames);
+    }
+
+    private static Set<String> getWovenMethodKeys(ClassAnalyzer classAnalyzer) {
+        Set<String> methodKeys = Sets.newHashSet(classAnalyzer.getMethodAdvisors().keySet());
+        for (AnalyzedMethod analyzedMethod : classAnalyzer.getMethodsThatOnlyNowFulfillAdvice()) {
+            methodKeys.add(analyzedMethod.name() + analyzedMethod.getDesc());
+        }
+        return methodKeys;
+    }
+
+    // constructors are not supported by FrameUpdatingMethodVisitor (and constructors are always
+    // woven when there are mixins)
+    private static boolean canPreserveFrames(ClassAnalyzer classAnalyzer) {
+        if (!classAnalyzer.getMatchedMixinTypes().isEmpty()) {
+            return false;
+        }
+        for (String methodKey : classAnalyzer.getMethodAdvisors().keySet()) {
+            if (methodKey.startsWith("<init>")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // retransformation cannot change the structure of the class, so the deferred (retransformed)
+    // class must have the same fields, methods and interfaces as the original class, and the
+    // trampolines pass the class as a class literal which requires classfile version 49
+    private static boolean canDefer(ClassAnalyzer classAnalyzer, ClassReader cr) {
+        return classAnalyzer.getMatchedShimTypes().isEmpty()
+                && classAnalyzer.getMatchedMixinTypes().isEmpty()
+                && classAnalyzer.getMethodsThatOnlyNowFulfillAdvice().isEmpty()
+                && cr.readShort(6) >= V1_5;
+    }
+
     private static void verify(byte[] transformedBytes, @Nullable ClassLoader loader,
             byte[] originalBytes, String className) {
         String originalBytesVerifyError = verify(originalBytes, loader);
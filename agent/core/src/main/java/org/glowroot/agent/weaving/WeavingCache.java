@@ -0,0 +1,591 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.common.util.OnlyUsedByTests;
+
+// on-disk cache of the analysis of classes that do not need weaving, so that warm restarts can skip
+// parsing and analyzing unchanged classes
+//
+// only classes that do not need weaving are cached, since woven bytecode references meta holder
+// classes that are generated (and defined) during weaving
+//
+// entries are keyed by hash of the class name and class bytes, and the whole cache is discarded
+// whenever the advisor set version changes (which includes the shim and mixin types, and the agent
+// jar itself)
+//
+// get() and put() are called from inside ClassFileTransformer.transform(), so this uses jdk hashing
+// instead of guava hashing to avoid adding to PreInitializeWeavingClasses (the guava collections
+// used here are already pre-initialized since they are used throughout weaving)
+//
+// the cached analysis of a class also reflects (the advice of) its super types at the time it was
+// cached, so each entry also records the names and class bytes hashes of its analyzed super types
+// (see AnalyzedClass.classBytesHash()), and the entry is only used if the super types currently
+// resolved for the class are the same, e.g. not after upgrading a library jar without changing the
+// class bytes of its subclasses in other jars, or when the same class bytes are loaded by a
+// different class loader that sees different super types (this means the super type hierarchy
+// still needs to be resolved on a cache hit, but the super types are normally already analyzed)
+//
+// classes with a super type whose class bytes hash is not known (e.g. a super type that could only
+// be analyzed via reflection, see AnalyzedWorld.createAnalyzedClassPlanB()) are not cached
+public class WeavingCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(WeavingCache.class);
+
+    // this needs to be incremented whenever the file format or the class analysis changes
+    private static final int FORMAT_VERSION = 2;
+
+    private static final int FLUSH_INTERVAL = 100;
+
+    private static final int MAX_ENTRY_SIZE = 1024 * 1024;
+
+    private static final int KEY_SIZE = 16;
+
+    // marker for entries that have already been handed out and so no longer need to be held in
+    // memory, but are still on disk (so don't need to be written again)
+    private static final byte[] ON_DISK_ONLY = new byte[0];
+
+    private final File file;
+    private final String shimMixinAndAgentVersion;
+
+    // keys are 16 byte hashes stored as 16 char strings, see getKey()
+    private final ConcurrentMap<String, byte[]> entries = new ConcurrentHashMap<String, byte[]>();
+
+    private volatile AdvisorSet currAdvisorSet;
+
+    private final Object lock = new Object();
+    // the advisor set version that the entries (in memory and on disk) were analyzed with
+    private volatile String entriesAdvisorSetVersion;
+    @GuardedBy("lock")
+    private @Nullable DataOutputStream out;
+    @GuardedBy("lock")
+    private int unflushedCount;
+
+    private final Thread shutdownHookThread;
+
+    private volatile boolean closed;
+
+    public WeavingCache(File file, Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes) {
+        this.file = file;
+        shimMixinAndAgentVersion = getShimMixinAndAgentVersion(shimTypes, mixinTypes);
+        currAdvisorSet = createAdvisorSet(advisors.get(), shimMixinAndAgentVersion);
+        entriesAdvisorSetVersion = currAdvisorSet.version;
+        synchronized (lock) {
+            boolean loaded = false;
+            try {
+                loaded = load(entriesAdvisorSetVersion);
+            } catch (IOException e) {
+                logger.warn("unable to read weaving cache {}: {}", file.getAbsolutePath(),
+                        e.getMessage(), e);
+                entries.clear();
+            }
+            if (!loaded) {
+                try {
+                    openForWrite(entriesAdvisorSetVersion);
+                } catch (IOException e) {
+                    logger.warn("unable to write weaving cache {}: {}", file.getAbsolutePath(),
+                            e.getMessage(), e);
+                }
+            }
+        }
+        shutdownHookThread = new ShutdownHookThread();
+        Runtime.getRuntime().addShutdownHook(shutdownHookThread);
+    }
+
+    static String getKey(String className, byte[] classBytes) {
+        MessageDigest messageDigest = newMessageDigest();
+        messageDigest.update(className.getBytes(Charsets.UTF_8));
+        messageDigest.update(classBytes);
+        // ISO-8859-1 maps each byte to a single char (and back), which keeps the key compact
+        return new String(messageDigest.digest(), Charsets.ISO_8859_1);
+    }
+
+    // returns null if any of the super types do not have a class bytes hash
+    static @Nullable Map<String, String> getSuperTypeHashes(
+            List<AnalyzedClass> superAnalyzedClasses) {
+        Map<String, String> superTypeHashes = Maps.newHashMap();
+        for (AnalyzedClass superAnalyzedClass : superAnalyzedClasses) {
+            String classBytesHash = superAnalyzedClass.classBytesHash();
+            if (classBytesHash == null) {
+                return null;
+            }
+            superTypeHashes.put(superAnalyzedClass.name(), classBytesHash);
+        }
+        return superTypeHashes;
+    }
+
+    // the caller must check CachedAnalyzedClass.superTypeHashes() against the super types that are
+    // currently resolved for the class, and call invalidate() if they don't match
+    @Nullable
+    CachedAnalyzedClass get(String key, List<Advice> advisors) {
+        byte[] bytes = entries.get(key);
+        if (bytes == null || bytes == ON_DISK_ONLY) {
+            return null;
+        }
+        AdvisorSet advisorSet = getAdvisorSet(advisors);
+        if (!advisorSet.version.equals(entriesAdvisorSetVersion)) {
+            return null;
+        }
+        CachedAnalyzedClass cachedAnalyzedClass;
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            AnalyzedClass analyzedClass = readAnalyzedClass(in, advisorSet.advisors, key);
+            if (analyzedClass == null) {
+                return null;
+            }
+            cachedAnalyzedClass = new CachedAnalyzedClass(analyzedClass, readSuperTypeHashes(in));
+        } catch (IOException e) {
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+        // the same class bytes are rarely loaded by more than one class loader, so not worth
+        // holding on to the encoded analysis any longer
+        entries.replace(key, bytes, ON_DISK_ONLY);
+        return cachedAnalyzedClass;
+    }
+
+    // allows put() to write a new analysis for the key, which replaces the prior one when the cache
+    // is loaded after restart, since later entries in the file replace earlier entries
+    void invalidate(String key) {
+        entries.remove(key);
+    }
+
+    void put(String key, AnalyzedClass analyzedClass, List<AnalyzedClass> superAnalyzedClasses,
+            List<Advice> advisors) {
+        if (closed || entries.containsKey(key) || !analyzedClass.shimTypes().isEmpty()
+                || !analyzedClass.mixinTypes().isEmpty()) {
+            return;
+        }
+        Map<String, String> superTypeHashes = getSuperTypeHashes(superAnalyzedClasses);
+        if (superTypeHashes == null) {
+            return;
+        }
+        byte[] bytes;
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dataOut = new DataOutputStream(baos);
+            writeAnalyzedClass(dataOut, analyzedClass);
+            writeSuperTypeHashes(dataOut, superTypeHashes);
+            bytes = baos.toByteArray();
+        } catch (IOException e) {
+            // e.g. UTFDataFormatException if a (generic) signature is too long
+            logger.debug(e.getMessage(), e);
+            return;
+        }
+        AdvisorSet advisorSet = getAdvisorSet(advisors);
+        synchronized (lock) {
+            try {
+                if (!advisorSet.version.equals(entriesAdvisorSetVersion)) {
+                    // the entries in memory and on disk are for a prior advisor set
+                    closeQuietly();
+                    entries.clear();
+                    entriesAdvisorSetVersion = advisorSet.version;
+                    openForWrite(advisorSet.version);
+                }
+                DataOutputStream out = this.out;
+                if (out == null || entries.putIfAbsent(key, ON_DISK_ONLY) != null) {
+                    return;
+                }
+                out.write(key.getBytes(Charsets.ISO_8859_1));
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                if (++unflushedCount >= FLUSH_INTERVAL) {
+                    out.flush();
+                    unflushedCount = 0;
+                }
+            } catch (IOException e) {
+                logger.warn("unable to write weaving cache {}: {}", file.getAbsolutePath(),
+                        e.getMessage(), e);
+                closeQuietly();
+            }
+        }
+    }
+
+    @OnlyUsedByTests
+    public void close() {
+        closed = true;
+        synchronized (lock) {
+            closeQuietly();
+        }
+        Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
+    }
+
+    // returns false if the file does not exist or was written for a different advisor set
+    @GuardedBy("lock")
+    private boolean load(String advisorSetVersion) throws IOException {
+        if (!file.exists()) {
+            return false;
+        }
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            DataInputStream dataIn = new DataInputStream(in);
+            if (!advisorSetVersion.equals(dataIn.readUTF())) {
+                return false;
+            }
+            int firstByte;
+            while ((firstByte = dataIn.read()) != -1) {
+                byte[] key = new byte[KEY_SIZE];
+                key[0] = (byte) firstByte;
+                byte[] bytes;
+                try {
+                    dataIn.readFully(key, 1, key.length - 1);
+                    int length = dataIn.readInt();
+                    if (length < 0 || length > MAX_ENTRY_SIZE) {
+                        logger.warn("discarding corrupt weaving cache: {}", file.getAbsolutePath());
+                        entries.clear();
+                        return false;
+                    }
+                    bytes = new byte[length];
+                    dataIn.readFully(bytes);
+                } catch (EOFException e) {
+                    // partially written entry at the end of the file (e.g. the JVM was killed), so
+                    // start over instead of appending after it
+                    entries.clear();
+                    return false;
+                }
+                entries.put(new String(key, Charsets.ISO_8859_1), bytes);
+            }
+        } finally {
+            in.close();
+        }
+        // append to the existing file
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        return true;
+    }
+
+    @GuardedBy("lock")
+    private void openForWrite(String advisorSetVersion) throws IOException {
+        File parentDir = file.getParentFile();
+        if (parentDir != null && !parentDir.exists() && !parentDir.mkdirs()) {
+            throw new IOException("Could not create directory: " + parentDir.getAbsolutePath());
+        }
+        DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        out.writeUTF(advisorSetVersion);
+        this.out = out;
+        unflushedCount = 0;
+    }
+
+    @GuardedBy("lock")
+    private void closeQuietly() {
+        DataOutputStream out = this.out;
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            logger.debug(e.getMessage(), e);
+        }
+        this.out = null;
+    }
+
+    // the advisor set can change at runtime (reweaving), so this checks by identity whether it is
+    // the same list as last time, which is normally the case
+    private AdvisorSet getAdvisorSet(List<Advice> advisors) {
+        AdvisorSet advisorSet = currAdvisorSet;
+        if (advisorSet.advisorList == advisors) {
+            return advisorSet;
+        }
+        // benign race if multiple threads create the new advisor set at the same time
+        advisorSet = createAdvisorSet(advisors, shimMixinAndAgentVersion);
+        currAdvisorSet = advisorSet;
+        return advisorSet;
+    }
+
+    private static AdvisorSet createAdvisorSet(List<Advice> advisors,
+            String shimMixinAndAgentVersion) {
+        Map<String, Advice> advisorMap = Maps.newHashMap();
+        MessageDigest messageDigest = newMessageDigest();
+        update(messageDigest, Integer.toString(FORMAT_VERSION));
+        update(messageDigest, shimMixinAndAgentVersion);
+        for (Advice advice : advisors) {
+            String adviceTypeName = advice.adviceType().getInternalName();
+            advisorMap.put(adviceTypeName, advice);
+            update(messageDigest, adviceTypeName);
+            // Pointcut is an annotation, and toString() includes all of its attribute values
+            update(messageDigest, advice.pointcut().toString());
+        }
+        return new AdvisorSet(advisors, toHex(messageDigest.digest()), advisorMap);
+    }
+
+    private static String getShimMixinAndAgentVersion(List<ShimType> shimTypes,
+            List<MixinType> mixinTypes) {
+        MessageDigest messageDigest = newMessageDigest();
+        for (ShimType shimType : shimTypes) {
+            update(messageDigest, shimType.iface().getInternalName());
+            update(messageDigest, shimType.target());
+        }
+        for (MixinType mixinType : mixinTypes) {
+            update(messageDigest, mixinType.implementation().getInternalName());
+            for (String target : mixinType.targets()) {
+                update(messageDigest, target);
+            }
+        }
+        // Pointcut.toString() format is JVM-specific
+        update(messageDigest, String.valueOf(System.getProperty("java.version")));
+        // pick up agent upgrades (which may change the class analysis)
+        CodeSource codeSource = WeavingCache.class.getProtectionDomain().getCodeSource();
+        if (codeSource != null && codeSource.getLocation() != null) {
+            String location = codeSource.getLocation().toString();
+            update(messageDigest, location);
+            if (location.startsWith("file:")) {
+                File agentJarFile = new File(codeSource.getLocation().getPath());
+                update(messageDigest, Long.toString(agentJarFile.length()));
+                update(messageDigest, Long.toString(agentJarFile.lastModified()));
+            }
+        }
+        return toHex(messageDigest.digest());
+    }
+
+    private static MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // every implementation of the java platform is required to support MD5
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void update(MessageDigest messageDigest, String string) {
+        messageDigest.update(string.getBytes(Charsets.UTF_8));
+        // separator so that adjacent strings cannot run together
+        messageDigest.update((byte) 0);
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static void writeAnalyzedClass(DataOutput out, AnalyzedClass analyzedClass)
+            throws IOException {
+        out.writeInt(analyzedClass.modifiers());
+        out.writeUTF(analyzedClass.name());
+        writeNullableString(out, analyzedClass.superName());
+        writeStrings(out, analyzedClass.interfaceNames());
+        List<AnalyzedMethod> analyzedMethods = analyzedClass.analyzedMethods();
+        out.writeInt(analyzedMethods.size());
+        for (AnalyzedMethod analyzedMethod : analyzedMethods) {
+            out.writeUTF(analyzedMethod.name());
+            writeStrings(out, analyzedMethod.parameterTypes());
+            out.writeUTF(analyzedMethod.returnType());
+            out.writeInt(analyzedMethod.modifiers());
+            writeNullableString(out, analyzedMethod.signature());
+            writeStrings(out, analyzedMethod.exceptions());
+            writeAdvisors(out, analyzedMethod.advisors());
+            writeAdvisors(out, analyzedMethod.declaredOnlyAdvisors());
+        }
+        List<PublicFinalMethod> publicFinalMethods = analyzedClass.publicFinalMethods();
+        out.writeInt(publicFinalMethods.size());
+        for (PublicFinalMethod publicFinalMethod : publicFinalMethods) {
+            out.writeUTF(publicFinalMethod.name());
+            writeStrings(out, publicFinalMethod.parameterTypes());
+        }
+    }
+
+    // returns null if any of the advisors are no longer present
+    private static @Nullable AnalyzedClass readAnalyzedClass(DataInput in,
+            Map<String, Advice> advisors, String key) throws IOException {
+        ImmutableAnalyzedClass.Builder builder = ImmutableAnalyzedClass.builder()
+                .modifiers(in.readInt())
+                .name(in.readUTF())
+                .superName(readNullableString(in))
+                .addAllInterfaceNames(readStrings(in))
+                .classBytesHash(key);
+        int analyzedMethodCount = in.readInt();
+        for (int i = 0; i < analyzedMethodCount; i++) {
+            ImmutableAnalyzedMethod.Builder methodBuilder = ImmutableAnalyzedMethod.builder()
+                    .name(in.readUTF())
+                    .addAllParameterTypes(readStrings(in))
+                    .returnType(in.readUTF())
+                    .modifiers(in.readInt())
+                    .signature(readNullableString(in))
+                    .addAllExceptions(readStrings(in));
+            List<Advice> methodAdvisors = readAdvisors(in, advisors);
+            List<Advice> declaredOnlyAdvisors = readAdvisors(in, advisors);
+            if (methodAdvisors == null || declaredOnlyAdvisors == null) {
+                return null;
+            }
+            builder.addAnalyzedMethods(methodBuilder.addAllAdvisors(methodAdvisors)
+                    .addAllDeclaredOnlyAdvisors(declaredOnlyAdvisors)
+                    .build());
+        }
+        int publicFinalMethodCount = in.readInt();
+        for (int i = 0; i < publicFinalMethodCount; i++) {
+            builder.addPublicFinalMethods(ImmutablePublicFinalMethod.builder()
+                    .name(in.readUTF())
+                    .addAllParameterTypes(readStrings(in))
+                    .build());
+        }
+        return builder.build();
+    }
+
+    private static void writeSuperTypeHashes(DataOutput out, Map<String, String> superTypeHashes)
+            throws IOException {
+        out.writeInt(superTypeHashes.size());
+        for (Map.Entry<String, String> entry : superTypeHashes.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.write(entry.getValue().getBytes(Charsets.ISO_8859_1));
+        }
+    }
+
+    private static Map<String, String> readSuperTypeHashes(DataInput in) throws IOException {
+        int count = in.readInt();
+        Map<String, String> superTypeHashes = Maps.newHashMap();
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            byte[] hash = new byte[KEY_SIZE];
+            in.readFully(hash);
+            superTypeHashes.put(name, new String(hash, Charsets.ISO_8859_1));
+        }
+        return superTypeHashes;
+    }
+
+    private static void writeAdvisors(DataOutput out, List<Advice> advisors) throws IOException {
+        out.writeInt(advisors.size());
+        for (Advice advice : advisors) {
+            out.writeUTF(advice.adviceType().getInternalName());
+        }
+    }
+
+    private static @Nullable List<Advice> readAdvisors(DataInput in, Map<String, Advice> advisors)
+            throws IOException {
+        int count = in.readInt();
+        List<Advice> list = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            Advice advice = advisors.get(in.readUTF());
+            if (advice == null) {
+                return null;
+            }
+            list.add(advice);
+        }
+        return list;
+    }
+
+    private static void writeStrings(DataOutput out, List<String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (String string : strings) {
+            out.writeUTF(string);
+        }
+    }
+
+    private static List<String> readStrings(DataInput in) throws IOException {
+        int count = in.readInt();
+        ImmutableList.Builder<String> strings = ImmutableList.builder();
+        for (int i = 0; i < count; i++) {
+            strings.add(in.readUTF());
+        }
+        return strings.build();
+    }
+
+    private static void writeNullableString(DataOutput out, @Nullable String string)
+            throws IOException {
+        out.writeBoolean(string != null);
+        if (string != null) {
+            out.writeUTF(string);
+        }
+    }
+
+    private static @Nullable String readNullableString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static class AdvisorSet {
+
+        private final List<Advice> advisorList;
+        private final String version;
+        // keyed by advice type internal name
+        private final Map<String, Advice> advisors;
+
+        // not private, to avoid a synthetic accessor (see PreInitializeWeavingClasses)
+        AdvisorSet(List<Advice> advisorList, String version,
+                Map<String, Advice> advisors) {
+            this.advisorList = advisorList;
+            this.version = version;
+            this.advisors = advisors;
+        }
+    }
+
+    static class CachedAnalyzedClass {
+
+        private final AnalyzedClass analyzedClass;
+        // keyed by super type name
+        private final Map<String, String> superTypeHashes;
+
+        // not private, to avoid a synthetic accessor (see PreInitializeWeavingClasses)
+        CachedAnalyzedClass(AnalyzedClass analyzedClass, Map<String, String> superTypeHashes) {
+            this.analyzedClass = analyzedClass;
+            this.superTypeHashes = superTypeHashes;
+        }
+
+        AnalyzedClass analyzedClass() {
+            return analyzedClass;
+        }
+
+        Map<String, String> superTypeHashes() {
+            return superTypeHashes;
+        }
+    }
+
+    private class ShutdownHookThread extends Thread {
+        @Override
+        public void run() {
+            closed = true;
+            synchronized (lock) {
+                closeQuietly();
+            }
+        }
+    }
+}
@@ -62,7 +62,12 @@ public class WeavingClassFileTransformer implements ClassFileTransformer {
         // be woven by executor plugin
         String nonNullClassName = className == null ? "unnamed" : className;
         try {
-            return transformInternal(loader, nonNullClassName, protectionDomain, bytes);
+            // classes with null className cannot be retransformed, and classes that are being
+            // retransformed are either deferred classes that are now being woven (see
+            // DeferredWeaver) or are being reweaved, and in either case need to be fully woven
+            boolean deferrable = className != null && classBeingRedefined == null;
+            return transformInternal(loader, nonNullClassName, deferrable, protectionDomain,
+                    bytes);
         } catch (Throwable t) {
             // see method-level comment
             logger.error("error weaving {}: {}", nonNullClassName, t.getMessage(), t);
@@ -71,7 +76,7 @@ public class WeavingClassFileTransformer implements ClassFileTransformer {
     }
 
     private byte /*@Nullable*/[] transformInternal(@Nullable ClassLoader loader, String className,
-            @Nullable ProtectionDomain protectionDomain, byte[] bytes) {
+            boolean deferrable, @Nullable ProtectionDomain protectionDomain, byte[] bytes) {
         if (ignoreClass(className)) {
             return null;
         }
@@ -83,7 +88,7 @@ public class WeavingClassFileTransformer implements ClassFileTransformer {
             return null;
         }
         CodeSource codeSource = protectionDomain == null ? null : protectionDomain.getCodeSource();
-        return weaver.weave(bytes, className, codeSource, loader);
+        return weaver.weave(bytes, className, deferrable, codeSource, loader);
     }
 
     private static boolean ignoreClass(String className) {
@@ -100,6 +100,9 @@ class WeavingClassVisitor extends ClassVisitor {
 
     private final AnalyzedWorld analyzedWorld;
 
+    // true when weaving without ClassWriter.COMPUTE_FRAMES (see FrameUpdatingMethodVisitor)
+    private final boolean updateFrames;
+
     private @MonotonicNonNull Type type;
 
     // these are for handling class and method metas
@@ -111,7 +114,8 @@ class WeavingClassVisitor extends ClassVisitor {
     public WeavingClassVisitor(ClassWriter cw, @Nullable ClassLoader loader,
             AnalyzedClass analyzedClass, List<AnalyzedMethod> methodsThatOnlyNowFulfillAdvice,
             List<ShimType> shimTypes, List<MixinType> mixinTypes,
-            Map<String, List<Advice>> methodAdvisors, AnalyzedWorld analyzedWorld) {
+            Map<String, List<Advice>> methodAdvisors, AnalyzedWorld analyzedWorld,
+            boolean updateFrames) {
         super(ASM5, cw);
         this.cw = cw;
         this.loader = loader;
@@ -121,6 +125,7 @@ class WeavingClassVisitor extends ClassVisitor {
         this.mixinTypes = mixinTypes;
         this.methodAdvisors = methodAdvisors;
         this.analyzedWorld = analyzedWorld;
+        this.updateFrames = updateFrames;
     }
 
     @Override
@@ -395,7 +400,7 @@ class WeavingClassVisitor extends ClassVisitor {
             }
         }
         return new WeavingMethodVisitor(mv, access, name, desc, type, matchingAdvisors,
-                metaHolderInternalName, methodMetaUniqueNum, loader == null, null);
+                metaHolderInternalName, methodMetaUniqueNum, loader == null, null, null);
     }
 
     @RequiresNonNull("type")
@@ -405,8 +410,13 @@ class WeavingClassVisitor extends ClassVisitor {
         // FIXME remove superseded advisors
         Integer methodMetaUniqueNum = collectMetasAtMethod(matchingAdvisors, name, desc);
         MethodVisitor mv = cw.visitMethod(access, name, desc, signature, exceptions);
+        FrameUpdatingMethodVisitor fmv = null;
+        if (updateFrames) {
+            fmv = new FrameUpdatingMethodVisitor(type.getInternalName(), access, name, desc, mv);
+            mv = fmv;
+        }
         return new WeavingMethodVisitor(mv, access, name, desc, type, matchingAdvisors,
-                metaHolderInternalName, methodMetaUniqueNum, loader == null, null);
+                metaHolderInternalName, methodMetaUniqueNum, loader == null, null, fmv);
     }
 
     private @Nullable Integer collectMetasAtMethod(Iterable<Advice> matchingAdvisors,
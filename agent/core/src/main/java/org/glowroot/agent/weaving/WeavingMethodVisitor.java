@@ -102,6 +102,7 @@ class WeavingMethodVisitor extends AdviceAdapter {
     private final boolean needsOnReturn;
     private final boolean needsOnThrow;
     private final @Nullable MethodVisitor outerMethodVisitor;
+    private final @Nullable FrameUpdatingMethodVisitor frameUpdatingMethodVisitor;
 
     private final Map<Advice, Integer> enabledLocals = Maps.newHashMap();
     private final Map<Advice, Integer> travelerLocals = Maps.newHashMap();
@@ -127,7 +128,8 @@ class WeavingMethodVisitor extends AdviceAdapter {
     WeavingMethodVisitor(MethodVisitor mv, int access, String name, String desc, Type owner,
             Iterable<Advice> advisors, @Nullable String metaHolderInternalName,
             @Nullable Integer methodMetaGroupUniqueNum, boolean bootstrapClassLoader,
-            @Nullable MethodVisitor outerMethodVisitor) {
+            @Nullable MethodVisitor outerMethodVisitor,
+            @Nullable FrameUpdatingMethodVisitor frameUpdatingMethodVisitor) {
         super(ASM5, mv, access, name, desc);
         this.access = access;
         this.name = name;
@@ -158,6 +160,7 @@ class WeavingMethodVisitor extends AdviceAdapter {
         this.needsOnReturn = needsOnReturn;
         this.needsOnThrow = needsOnThrow;
         this.outerMethodVisitor = outerMethodVisitor;
+        this.frameUpdatingMethodVisitor = frameUpdatingMethodVisitor;
     }
 
     @Override
@@ -168,6 +171,15 @@ class WeavingMethodVisitor extends AdviceAdapter {
         return super.visitAnnotation(desc, visible);
     }
 
+    @Override
+    public int newLocal(Type type) {
+        int local = super.newLocal(type);
+        if (frameUpdatingMethodVisitor != null) {
+            frameUpdatingMethodVisitor.declareLocal(local, type);
+        }
+        return local;
+    }
+
     @Override
     protected void onMethodEnter() {
         stackFrameTracking = false;
@@ -294,6 +306,9 @@ class WeavingMethodVisitor extends AdviceAdapter {
         }
         if (needsOnReturn) {
             onReturnLabel = new Label();
+            if (frameUpdatingMethodVisitor != null && returnType.getSort() != Type.VOID) {
+                frameUpdatingMethodVisitor.declareStack(onReturnLabel, returnType);
+            }
         }
         if (needsOnThrow && catchHandlers.isEmpty()) {
             // need catch for resetting thread locals
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ChunkingEntryVisitorTest {
+
+    @Test
+    public void shouldSplitEntriesIntoChunks() throws Exception {
+        // given
+        Trace.Entry entry = entry("0123456789");
+        RecordingEntryVisitor visitor = new RecordingEntryVisitor(entry.getSerializedSize() * 2);
+        // when
+        for (int i = 0; i < 5; i++) {
+            visitor.visitEntry(entry);
+        }
+        visitor.finish();
+        // then
+        assertThat(visitor.chunks).hasSize(3);
+        assertThat(visitor.chunks.get(0).entries).hasSize(2);
+        assertThat(visitor.chunks.get(0).moreChunks).isTrue();
+        assertThat(visitor.chunks.get(1).entries).hasSize(2);
+        assertThat(visitor.chunks.get(1).moreChunks).isTrue();
+        assertThat(visitor.chunks.get(2).entries).hasSize(1);
+        assertThat(visitor.chunks.get(2).moreChunks).isFalse();
+    }
+
+    @Test
+    public void shouldSendEmptyLastChunk() throws Exception {
+        // given
+        Trace.Entry entry = entry("0123456789");
+        RecordingEntryVisitor visitor = new RecordingEntryVisitor(entry.getSerializedSize());
+        // when
+        visitor.visitEntry(entry);
+        visitor.finish();
+        // then
+        assertThat(visitor.chunks).hasSize(2);
+        assertThat(visitor.chunks.get(0).entries).hasSize(1);
+        assertThat(visitor.chunks.get(0).moreChunks).isTrue();
+        assertThat(visitor.chunks.get(1).entries).isEmpty();
+        assertThat(visitor.chunks.get(1).moreChunks).isFalse();
+    }
+
+    @Test
+    public void shouldSendSingleChunkWhenNoEntries() throws Exception {
+        // given
+        RecordingEntryVisitor visitor = new RecordingEntryVisitor(1000);
+        // when
+        visitor.finish();
+        // then
+        assertThat(visitor.chunks).hasSize(1);
+        assertThat(visitor.chunks.get(0).entries).isEmpty();
+        assertThat(visitor.chunks.get(0).moreChunks).isFalse();
+    }
+
+    @Test
+    public void shouldSendSharedQueryTextsWithFirstReferencingChunk() throws Exception {
+        // given
+        Trace.Entry entry = entry("0123456789");
+        RecordingEntryVisitor visitor = new RecordingEntryVisitor(entry.getSerializedSize());
+        // when
+        int first = visitor.visitSharedQueryText("select 1");
+        visitor.visitEntry(entry);
+        int firstAgain = visitor.visitSharedQueryText("select 1");
+        int second = visitor.visitSharedQueryText("select 2");
+        visitor.visitEntry(entry);
+        visitor.finish();
+        // then
+        assertThat(first).isEqualTo(0);
+        assertThat(firstAgain).isEqualTo(0);
+        assertThat(second).isEqualTo(1);
+        assertThat(visitor.chunks).hasSize(3);
+        assertThat(visitor.chunks.get(0).sharedQueryTexts).hasSize(1);
+        assertThat(visitor.chunks.get(0).sharedQueryTexts.get(0).getFullText())
+                .isEqualTo("select 1");
+        assertThat(visitor.chunks.get(1).sharedQueryTexts).hasSize(1);
+        assertThat(visitor.chunks.get(1).sharedQueryTexts.get(0).getFullText())
+                .isEqualTo("select 2");
+        assertThat(visitor.chunks.get(2).sharedQueryTexts).isEmpty();
+    }
+
+    private static Trace.Entry entry(String message) {
+        return Trace.Entry.newBuilder()
+                .setMessage(message)
+                .build();
+    }
+
+    private static class RecordingEntryVisitor extends ChunkingEntryVisitor {
+
+        private final List<Chunk> chunks = Lists.newArrayList();
+
+        private RecordingEntryVisitor(int chunkSizeBytes) {
+            super(chunkSizeBytes);
+        }
+
+        @Override
+        void sendChunk(List<Trace.Entry> entries, List<Trace.SharedQueryText> sharedQueryTexts,
+                boolean moreChunks) {
+            chunks.add(new Chunk(entries, sharedQueryTexts, moreChunks));
+        }
+    }
+
+    private static class Chunk {
+
+        private final List<Trace.Entry> entries;
+        private final List<Trace.SharedQueryText> sharedQueryTexts;
+        private final boolean moreChunks;
+
+        private Chunk(List<Trace.Entry> entries, List<Trace.SharedQueryText> sharedQueryTexts,
+                boolean moreChunks) {
+            this.entries = entries;
+            this.sharedQueryTexts = sharedQueryTexts;
+            this.moreChunks = moreChunks;
+        }
+    }
+}
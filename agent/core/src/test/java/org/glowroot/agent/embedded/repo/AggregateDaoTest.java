@@ -133,6 +133,31 @@ public class AggregateDaoTest {
         assertThat(queryResult.records().get(2).transactionCount()).isEqualTo(2);
     }
 
+    @Test
+    public void shouldRollupAsync() throws Exception {
+        // given
+        aggregateDao.enableAsyncRollups();
+        populateAggregates();
+        TransactionQuery query = ImmutableTransactionQuery.builder()
+                .transactionType("a type")
+                .from(0)
+                .to(100000)
+                .rollupLevel(1)
+                .build();
+        assertThat(aggregateDao.readOverviewAggregates(AGENT_ID, query)).isEmpty();
+        assertThat(aggregateDao.getRollupLagMillis()).containsExactly(0L, 15000L, 0L);
+
+        // when
+        aggregateDao.rollup(1);
+
+        // then
+        List<OverviewAggregate> overviewAggregates =
+                aggregateDao.readOverviewAggregates(AGENT_ID, query);
+        assertThat(overviewAggregates).hasSize(1);
+        assertThat(overviewAggregates.get(0).captureTime()).isEqualTo(15000);
+        assertThat(aggregateDao.getRollupLagMillis()).containsExactly(0L, 0L, 0L);
+    }
+
     // also used by TransactionCommonServiceTest
     public void populateAggregates() throws Exception {
         aggregateDao.store(new AggregateReader() {
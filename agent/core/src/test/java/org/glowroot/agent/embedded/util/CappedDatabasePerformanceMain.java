@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Ticker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// measures concurrent readMessage() throughput while writes are ongoing
+public class CappedDatabasePerformanceMain {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(CappedDatabasePerformanceMain.class);
+
+    private static final int READER_THREADS = 8;
+    private static final int RECENT_IDS = 1000;
+    private static final long DURATION_SECONDS = 30;
+
+    private CappedDatabasePerformanceMain() {}
+
+    public static void main(String... args) throws Exception {
+        File file = File.createTempFile("glowroot-perf-", ".capped.db");
+        final CappedDatabase cappedDatabase =
+                new CappedDatabase(file, 100000, Ticker.systemTicker());
+        final Profile profile = createProfile();
+        final AtomicLongArray recentCappedIds = new AtomicLongArray(RECENT_IDS);
+        for (int i = 0; i < RECENT_IDS; i++) {
+            recentCappedIds.set(i, cappedDatabase.writeMessage(profile, "test"));
+        }
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicLong writeCount = new AtomicLong();
+        final AtomicLong readCount = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(READER_THREADS + 1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int i = 0;
+                while (!done.get()) {
+                    try {
+                        recentCappedIds.set(i++ % RECENT_IDS,
+                                cappedDatabase.writeMessage(profile, "test"));
+                        writeCount.incrementAndGet();
+                    } catch (Exception e) {
+                        logger.error(e.getMessage(), e);
+                        return;
+                    }
+                }
+            }
+        });
+        for (int i = 0; i < READER_THREADS; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random();
+                    while (!done.get()) {
+                        long cappedId = recentCappedIds.get(random.nextInt(RECENT_IDS));
+                        try {
+                            cappedDatabase.readMessage(cappedId, Profile.parser());
+                            readCount.incrementAndGet();
+                        } catch (Exception e) {
+                            logger.error(e.getMessage(), e);
+                            return;
+                        }
+                    }
+                }
+            });
+        }
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        Thread.sleep(SECONDS.toMillis(DURATION_SECONDS));
+        done.set(true);
+        long elapsedMillis = stopwatch.elapsed(MILLISECONDS);
+        executor.shutdown();
+        executor.awaitTermination(10, SECONDS);
+        logger.info("writes per second: {}", writeCount.get() * 1000 / elapsedMillis);
+        logger.info("reads per second: {}", readCount.get() * 1000 / elapsedMillis);
+        cappedDatabase.close();
+        file.delete();
+    }
+
+    private static Profile createProfile() {
+        Profile.Builder builder = Profile.newBuilder();
+        for (int i = 0; i < 500; i++) {
+            builder.addClassName("org.example.SomeClass" + i);
+            builder.addMethodName("someMethod" + i);
+            builder.addNode(Profile.ProfileNode.newBuilder()
+                    .setDepth(i)
+                    .setClassNameIndex(i)
+                    .setMethodNameIndex(i)
+                    .setSampleCount(1));
+        }
+        return builder.build();
+    }
+}
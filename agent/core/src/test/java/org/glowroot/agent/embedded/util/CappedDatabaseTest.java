@@ -19,16 +19,21 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
 import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Stopwatch;
 import com.google.common.base.Ticker;
 import com.google.common.io.ByteSource;
+import com.google.common.io.CharStreams;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class CappedDatabaseTest {
@@ -157,4 +162,86 @@ public class CappedDatabaseTest {
         assertThat(exceptionClassName).isEqualTo("org.glowroot.agent.embedded.util.CappedDatabase"
                 + "$CappedBlockRolledOverMidReadException");
     }
+
+    @Test
+    public void shouldDetectBlockOverwrittenPartwayThroughRead() throws Exception {
+        // given
+        // the block is larger than both the read buffer and the lzf chunk size, so that it is read
+        // from the file in several reads, and the reader below only consumes the first of them
+        File largeTempFile = File.createTempFile("glowroot-test-", ".capped.db");
+        CappedDatabase largeCappedDatabase =
+                new CappedDatabase(largeTempFile, 512, Ticker.systemTicker());
+        try {
+            Random random = new Random();
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 200000; i++) {
+                sb.append((char) ('a' + random.nextInt(26)));
+            }
+            String text = sb.toString();
+            long cappedId = largeCappedDatabase
+                    .write(ByteSource.wrap(text.getBytes(Charsets.UTF_8)), "test");
+            Reader reader = largeCappedDatabase.read(cappedId).openStream();
+            char[] chars = new char[100];
+            assertThat(reader.read(chars)).isEqualTo(100);
+
+            // when
+            for (int i = 0; i < 3; i++) {
+                largeCappedDatabase.write(ByteSource.wrap(text.getBytes(Charsets.UTF_8)), "test");
+            }
+
+            // then
+            String exceptionClassName = null;
+            try {
+                CharStreams.toString(reader);
+            } catch (Exception e) {
+                exceptionClassName = e.getClass().getName();
+            }
+            assertThat(exceptionClassName).isEqualTo(
+                    "org.glowroot.agent.embedded.util.CappedDatabase"
+                            + "$CappedBlockRolledOverMidReadException");
+            reader.close();
+        } finally {
+            largeCappedDatabase.close();
+            largeTempFile.delete();
+        }
+    }
+
+    @Test
+    public void shouldRecordSyncOnlyForWrittenType() throws Exception {
+        // given
+        String text = "0123456789";
+
+        // when
+        cappedDatabase.write(ByteSource.wrap(text.getBytes(Charsets.UTF_8)), "test");
+        cappedDatabase.write(ByteSource.wrap(text.getBytes(Charsets.UTF_8)), "test");
+        cappedDatabase.write(ByteSource.wrap(text.getBytes(Charsets.UTF_8)), "other");
+
+        // then
+        assertThat(cappedDatabase.getStats("test").getSyncCount()).isEqualTo(2);
+        assertThat(cappedDatabase.getStats("other").getSyncCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldWriteWithGroupCommit() throws Exception {
+        // given
+        ScheduledExecutorService syncExecutor = Executors.newSingleThreadScheduledExecutor();
+        cappedDatabase.enableGroupCommit(syncExecutor, 10, 1024 * 1024);
+        String text = "0123456789";
+
+        // when
+        long cappedId =
+                cappedDatabase.write(ByteSource.wrap(text.getBytes(Charsets.UTF_8)), "test");
+
+        // then
+        String text2 = cappedDatabase.read(cappedId).read();
+        assertThat(text2).isEqualTo(text);
+        CappedDatabaseStats stats = cappedDatabase.getStats("test");
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        while (stats.getSyncCount() == 0 && stopwatch.elapsed(SECONDS) < 5) {
+            Thread.sleep(10);
+        }
+        assertThat(stats.getSyncCount()).isEqualTo(1);
+        assertThat(stats.getMaxDurabilityWindowMillis()).isGreaterThan(0);
+        syncExecutor.shutdown();
+    }
 }
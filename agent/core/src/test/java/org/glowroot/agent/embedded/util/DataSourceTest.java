@@ -16,10 +16,12 @@
 package org.glowroot.agent.embedded.util;
 
 import java.sql.SQLException;
+import java.util.List;
 
 import org.junit.Test;
 import org.slf4j.Logger;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -93,4 +95,42 @@ public class DataSourceTest {
                 "'aaa', NULL, 99");
         verifyNoMoreInteractions(logger);
     }
+
+    @Test
+    public void testStatementStats() throws Exception {
+        // given
+        DataSource dataSource = new DataSource();
+        dataSource.execute("create table test (x bigint)");
+        // when
+        dataSource.update("insert into test (x) values (?)", 11L);
+        long value = dataSource.queryForLong("select x from test");
+        // then
+        assertThat(value).isEqualTo(11);
+        List<H2StatementStats> statementStats = dataSource.getStatementStats();
+        assertThat(statementStats).hasSize(3);
+        for (H2StatementStats stats : statementStats) {
+            assertThat(stats.getExecutionCount()).isEqualTo(1);
+        }
+        dataSource.close();
+    }
+
+    @Test
+    public void testStatementStatsAreBounded() throws Exception {
+        // given
+        DataSource dataSource = new DataSource();
+        // when
+        for (int i = 0; i < 1100; i++) {
+            dataSource.queryForLong("select " + i);
+        }
+        dataSource.queryForLong("select 0");
+        // then
+        List<H2StatementStats> statementStats = dataSource.getStatementStats();
+        assertThat(statementStats).hasSize(1000);
+        for (H2StatementStats stats : statementStats) {
+            if (stats.getSql().equals("select 0")) {
+                assertThat(stats.getExecutionCount()).isEqualTo(2);
+            }
+        }
+        dataSource.close();
+    }
 }
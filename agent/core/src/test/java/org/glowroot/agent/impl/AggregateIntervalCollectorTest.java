@@ -0,0 +1,201 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.agent.collector.Collector;
+import org.glowroot.agent.model.ThreadStats;
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.Environment;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogEvent;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AggregateIntervalCollectorTest {
+
+    @Test
+    public void shouldRefreshLiveSnapshotAfterAdd() {
+        // given
+        AggregateIntervalCollector intervalCollector = new AggregateIntervalCollector(
+                System.currentTimeMillis(), 60000, 500, 500, 500, 2, Clock.systemClock());
+        intervalCollector.add(buildTransaction(), 0);
+
+        // when
+        long firstCount =
+                intervalCollector.getThroughputAggregate("a type", "a name").transactionCount();
+        long firstCountAgain =
+                intervalCollector.getThroughputAggregate("a type", "a name").transactionCount();
+        intervalCollector.add(buildTransaction(), 1);
+        long secondCount =
+                intervalCollector.getThroughputAggregate("a type", "a name").transactionCount();
+        intervalCollector.add(buildTransaction(), 0);
+        long thirdCount = intervalCollector.getThroughputAggregate("a type", null)
+                .transactionCount();
+
+        // then
+        assertThat(firstCount).isEqualTo(1);
+        assertThat(firstCountAgain).isEqualTo(1);
+        assertThat(secondCount).isEqualTo(2);
+        assertThat(thirdCount).isEqualTo(3);
+        assertThat(intervalCollector.getThroughputAggregate("a type", "another name")).isNull();
+    }
+
+    @Test
+    public void shouldNotReturnSnapshotAfterClear() {
+        // given
+        AggregateIntervalCollector intervalCollector = new AggregateIntervalCollector(
+                System.currentTimeMillis(), 60000, 500, 500, 500, 1, Clock.systemClock());
+        intervalCollector.add(buildTransaction());
+        intervalCollector.getOverviewAggregate("a type", "a name");
+
+        // when
+        intervalCollector.clear();
+
+        // then
+        assertThat(intervalCollector.getOverviewAggregate("a type", "a name")).isNull();
+    }
+
+    @Test
+    public void shouldFlushConsistentlyWhileAddingAcrossShards() throws Exception {
+        // given
+        final int shardCount = 4;
+        final int transactionsPerShard = 1000;
+        final AggregateIntervalCollector intervalCollector = new AggregateIntervalCollector(
+                System.currentTimeMillis(), 60000, 500, 500, 500, shardCount,
+                Clock.systemClock());
+        // transactions are mocked up front since stubbing is not thread safe
+        final List<List<Transaction>> transactions = Lists.newArrayList();
+        for (int i = 0; i < shardCount; i++) {
+            List<Transaction> shardTransactions = Lists.newArrayList();
+            for (int j = 0; j < transactionsPerShard; j++) {
+                shardTransactions.add(buildTransaction(j % 2 == 0 ? "a name" : "another name"));
+            }
+            transactions.add(shardTransactions);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(shardCount);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        List<Future<?>> futures = Lists.newArrayList();
+        for (int i = 0; i < shardCount; i++) {
+            final int shardIndex = i;
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    for (Transaction transaction : transactions.get(shardIndex)) {
+                        intervalCollector.add(transaction, shardIndex);
+                    }
+                }
+            }));
+        }
+
+        // when
+        startLatch.countDown();
+        List<CountingCollector> concurrentFlushes = Lists.newArrayList();
+        for (int i = 0; i < 20; i++) {
+            CountingCollector collector = new CountingCollector();
+            intervalCollector.flush(collector);
+            concurrentFlushes.add(collector);
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        CountingCollector finalFlush = new CountingCollector();
+        intervalCollector.flush(finalFlush);
+
+        // then
+        // every flush sees all shards at a single point in time
+        for (CountingCollector collector : concurrentFlushes) {
+            assertThat(collector.overallCount).isEqualTo(collector.transactionCount);
+        }
+        assertThat(finalFlush.overallCount).isEqualTo(shardCount * transactionsPerShard);
+        assertThat(finalFlush.transactionCount).isEqualTo(shardCount * transactionsPerShard);
+        assertThat(finalFlush.transactionNameCount).isEqualTo(2);
+    }
+
+    private static Transaction buildTransaction() {
+        return buildTransaction("a name");
+    }
+
+    private static Transaction buildTransaction(String transactionName) {
+        Transaction transaction = mock(Transaction.class);
+        TimerImpl mainThreadRootTimer = mock(TimerImpl.class);
+        when(mainThreadRootTimer.getName()).thenReturn("mock timer");
+        when(transaction.getTransactionType()).thenReturn("a type");
+        when(transaction.getTransactionName()).thenReturn(transactionName);
+        when(transaction.getDurationNanos()).thenReturn(MILLISECONDS.toNanos(123));
+        when(transaction.getMainThreadRootTimer()).thenReturn(mainThreadRootTimer);
+        when(transaction.getMainThreadStats()).thenReturn(ThreadStats.NA);
+        return transaction;
+    }
+
+    private static class CountingCollector implements Collector {
+
+        private long overallCount;
+        private long transactionCount;
+        private int transactionNameCount;
+
+        @Override
+        public void init(File glowrootDir, File agentDir, Environment environment,
+                AgentConfig agentConfig, AgentConfigUpdater agentConfigUpdater) {}
+
+        @Override
+        public void collectAggregates(AggregateReader aggregateReader) throws Exception {
+            aggregateReader.accept(new AggregateVisitor() {
+                @Override
+                public void visitOverallAggregate(String transactionType,
+                        List<String> sharedQueryTexts, Aggregate overallAggregate) {
+                    overallCount += overallAggregate.getTransactionCount();
+                }
+                @Override
+                public void visitTransactionAggregate(String transactionType,
+                        String transactionName, List<String> sharedQueryTexts,
+                        Aggregate transactionAggregate) {
+                    transactionCount += transactionAggregate.getTransactionCount();
+                    transactionNameCount++;
+                }
+            });
+        }
+
+        @Override
+        public void collectGaugeValues(List<GaugeValue> gaugeValues) {}
+
+        @Override
+        public void collectTrace(TraceReader traceReader) {}
+
+        @Override
+        public void log(LogEvent logEvent) {}
+    }
+}
@@ -40,13 +40,24 @@ public class AggregatorTest {
 
     @Test
     public void shouldFlushWithTrace() throws InterruptedException {
+        shouldFlushWithTrace(1);
+    }
+
+    @Test
+    public void shouldFlushWithTraceAcrossAggregationWorkers() throws InterruptedException {
+        // the flush must wait for every worker to merge the interval's transactions into its shard
+        shouldFlushWithTrace(4);
+    }
+
+    private static void shouldFlushWithTrace(int aggregationWorkerCount)
+            throws InterruptedException {
         // given
         MockCollector aggregateCollector = new MockCollector();
         ConfigService configService = mock(ConfigService.class);
         when(configService.getAdvancedConfig())
                 .thenReturn(ImmutableAdvancedConfig.builder().build());
-        Aggregator aggregator =
-                new Aggregator(aggregateCollector, configService, 1000, Clock.systemClock());
+        Aggregator aggregator = new Aggregator(aggregateCollector, configService, 1000,
+                aggregationWorkerCount, Clock.systemClock());
 
         // when
         int count = 0;
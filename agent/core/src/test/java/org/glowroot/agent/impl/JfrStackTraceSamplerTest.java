@@ -0,0 +1,182 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.agent.impl.JfrStackTraceSampler.EventHandler;
+import org.glowroot.agent.impl.JfrStackTraceSampler.RecentThreadContexts;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class JfrStackTraceSamplerTest {
+
+    @Test
+    public void shouldAttributeSampleToThreadContextActiveAtSampleTime() {
+        // given
+        RecentThreadContexts recentThreadContexts = new RecentThreadContexts(5000);
+        ThreadContextImpl first = mockThreadContext(1, 100);
+        recentThreadContexts.update(ImmutableList.of(first), 150);
+        complete(first, 200);
+        // pooled thread moves on to the next transaction before the sample is delivered
+        ThreadContextImpl second = mockThreadContext(1, 300);
+        recentThreadContexts.update(ImmutableList.of(second), 350);
+        // when
+        ThreadContextImpl sampledAt180 = recentThreadContexts.get(1, 180);
+        ThreadContextImpl sampledAt250 = recentThreadContexts.get(1, 250);
+        ThreadContextImpl sampledAt320 = recentThreadContexts.get(1, 320);
+        // then
+        assertThat(sampledAt180).isSameAs(first);
+        assertThat(sampledAt250).isNull();
+        assertThat(sampledAt320).isSameAs(second);
+    }
+
+    @Test
+    public void shouldNotAttributeSampleFromBeforeThreadContextStarted() {
+        // given
+        RecentThreadContexts recentThreadContexts = new RecentThreadContexts(5000);
+        ThreadContextImpl threadContext = mockThreadContext(1, 100);
+        recentThreadContexts.update(ImmutableList.of(threadContext), 150);
+        // when
+        ThreadContextImpl sampled = recentThreadContexts.get(1, 50);
+        // then
+        assertThat(sampled).isNull();
+    }
+
+    @Test
+    public void shouldNotAttributeSampleFromOtherThread() {
+        // given
+        RecentThreadContexts recentThreadContexts = new RecentThreadContexts(5000);
+        ThreadContextImpl threadContext = mockThreadContext(1, 100);
+        recentThreadContexts.update(ImmutableList.of(threadContext), 150);
+        // when
+        ThreadContextImpl sampled = recentThreadContexts.get(2, 120);
+        // then
+        assertThat(sampled).isNull();
+    }
+
+    @Test
+    public void shouldAttributeSampleToInnerThreadContext() {
+        // given
+        RecentThreadContexts recentThreadContexts = new RecentThreadContexts(5000);
+        ThreadContextImpl outer = mockThreadContext(1, 100);
+        recentThreadContexts.update(ImmutableList.of(outer), 150);
+        ThreadContextImpl inner = mockThreadContext(1, 200);
+        recentThreadContexts.update(ImmutableList.of(inner), 250);
+        complete(inner, 300);
+        // when
+        ThreadContextImpl sampledAt280 = recentThreadContexts.get(1, 280);
+        ThreadContextImpl sampledAt320 = recentThreadContexts.get(1, 320);
+        // then
+        assertThat(sampledAt280).isSameAs(inner);
+        assertThat(sampledAt320).isSameAs(outer);
+    }
+
+    @Test
+    public void shouldDropCompletedThreadContextsAfterRetention() {
+        // given
+        RecentThreadContexts recentThreadContexts = new RecentThreadContexts(1000);
+        ThreadContextImpl threadContext = mockThreadContext(1, 100);
+        recentThreadContexts.update(ImmutableList.of(threadContext), 150);
+        complete(threadContext, 200);
+        recentThreadContexts.update(ImmutableList.<ThreadContextImpl>of(), 1100);
+        assertThat(recentThreadContexts.get(1, 180)).isSameAs(threadContext);
+        // when
+        recentThreadContexts.update(ImmutableList.<ThreadContextImpl>of(), 1300);
+        // then
+        assertThat(recentThreadContexts.get(1, 180)).isNull();
+    }
+
+    @Test
+    public void shouldNotAddSameThreadContextTwice() {
+        // given
+        RecentThreadContexts recentThreadContexts = new RecentThreadContexts(5000);
+        ThreadContextImpl threadContext = mockThreadContext(1, 100);
+        ThreadContextImpl other = mockThreadContext(1, 50);
+        recentThreadContexts.update(ImmutableList.of(other), 120);
+        recentThreadContexts.update(ImmutableList.of(threadContext), 150);
+        // when
+        recentThreadContexts.update(ImmutableList.of(other), 160);
+        // then
+        // other was not moved ahead of threadContext
+        assertThat(recentThreadContexts.get(1, 170)).isSameAs(threadContext);
+    }
+
+    @Test
+    public void shouldHandleConsumerMethods() {
+        // given
+        final List<Object> events = Lists.newArrayList();
+        Consumer consumer = (Consumer) Proxy.newProxyInstance(
+                JfrStackTraceSamplerTest.class.getClassLoader(), new Class<?>[] {Consumer.class},
+                new EventHandler() {
+                    @Override
+                    void accept(Object event) {
+                        events.add(event);
+                    }
+                });
+        Consumer other = mock(Consumer.class);
+        // when
+        consumer.accept("x");
+        // then
+        assertThat(events).containsExactly("x");
+        assertThat(consumer.equals(consumer)).isTrue();
+        assertThat(consumer.equals(other)).isFalse();
+        assertThat(consumer.hashCode()).isEqualTo(System.identityHashCode(consumer));
+        assertThat(consumer.toString()).isEqualTo("JfrStackTraceSampler$EventHandler");
+        assertThat(consumer.andThen(other)).isNull();
+    }
+
+    @Test
+    public void shouldNotThrowFromAccept() {
+        // given
+        Consumer consumer = (Consumer) Proxy.newProxyInstance(
+                JfrStackTraceSamplerTest.class.getClassLoader(), new Class<?>[] {Consumer.class},
+                new EventHandler() {
+                    @Override
+                    void accept(Object event) throws Exception {
+                        throw new Exception("test");
+                    }
+                });
+        // when
+        consumer.accept("x");
+        // then (no exception)
+    }
+
+    // same shape as java.util.function.Consumer, which is not available in Java 6
+    public interface Consumer {
+        void accept(Object event);
+        Consumer andThen(Consumer after);
+    }
+
+    private static ThreadContextImpl mockThreadContext(long threadId, long startTick) {
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        when(threadContext.getThreadId()).thenReturn(threadId);
+        when(threadContext.getStartTick()).thenReturn(startTick);
+        return threadContext;
+    }
+
+    private static void complete(ThreadContextImpl threadContext, long endTick) {
+        when(threadContext.isCompleted()).thenReturn(true);
+        when(threadContext.getEndTick()).thenReturn(endTick);
+    }
+}
@@ -62,4 +62,28 @@ public class QueryCollectorTest {
         assertThat(queriesByType.getQueryList().get(0).getTotalDurationNanos()).isEqualTo(300);
         assertThat(queriesByType.getQueryList().get(99).getTotalDurationNanos()).isEqualTo(201);
     }
+
+    @Test
+    public void testMergeQueriesInto() {
+        // given
+        QueryCollector queries = new QueryCollector(100, 2, false);
+        QueryCollector otherQueries = new QueryCollector(100, 2, false);
+        for (int i = 1; i <= 150; i++) {
+            queries.mergeQuery("SQL", Integer.toString(i), i, 1, true, 1);
+            otherQueries.mergeQuery("SQL", Integer.toString(i + 150), i + 150, 1, true, 1);
+        }
+        otherQueries.mergeQuery("SQL", "150", 150, 1, true, 1);
+        // when
+        otherQueries.mergeQueriesInto(queries);
+        List<Aggregate.QueriesByType> queriesByTypeList =
+                queries.toAggregateProto(new SharedQueryTextCollector());
+        // then
+        assertThat(queriesByTypeList).hasSize(1);
+        Aggregate.QueriesByType queriesByType = queriesByTypeList.get(0);
+        assertThat(queriesByType.getQueryList()).hasSize(100);
+        // query "150" was merged from both collectors
+        assertThat(queriesByType.getQueryList().get(0).getTotalDurationNanos()).isEqualTo(300);
+        assertThat(queriesByType.getQueryList().get(1).getTotalDurationNanos()).isEqualTo(300);
+        assertThat(queriesByType.getQueryList().get(99).getTotalDurationNanos()).isEqualTo(202);
+    }
 }
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.agent.impl.StackTraceCollector.AdaptiveThreadSelector;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class StackTraceCollectorTest {
+
+    @Test
+    public void shouldRotateAcrossTransactions() {
+        // given
+        AdaptiveThreadSelector selector =
+                new AdaptiveThreadSelector(2, 0, new StackTraceCollectorStats());
+        List<ThreadContextImpl> threadContexts = Lists.newArrayList();
+        List<Transaction> transactions = Lists.newArrayList();
+        for (int i = 0; i < 5; i++) {
+            ThreadContextImpl threadContext = mockThreadContext(true);
+            threadContexts.add(threadContext);
+            transactions.add(mockTransaction(threadContext));
+        }
+        // when
+        List<ThreadContextImpl> first = selector.selectThreadContexts(transactions);
+        List<ThreadContextImpl> second = selector.selectThreadContexts(transactions);
+        List<ThreadContextImpl> third = selector.selectThreadContexts(transactions);
+        // then
+        assertThat(first).containsExactly(threadContexts.get(0), threadContexts.get(1));
+        assertThat(second).containsExactly(threadContexts.get(2), threadContexts.get(3));
+        assertThat(third).containsExactly(threadContexts.get(4), threadContexts.get(0));
+    }
+
+    @Test
+    public void shouldRestartRotationWhenTransactionsShrink() {
+        // given
+        AdaptiveThreadSelector selector =
+                new AdaptiveThreadSelector(3, 0, new StackTraceCollectorStats());
+        List<ThreadContextImpl> threadContexts = Lists.newArrayList();
+        List<Transaction> transactions = Lists.newArrayList();
+        for (int i = 0; i < 5; i++) {
+            ThreadContextImpl threadContext = mockThreadContext(true);
+            threadContexts.add(threadContext);
+            transactions.add(mockTransaction(threadContext));
+        }
+        selector.selectThreadContexts(transactions);
+        // when
+        List<ThreadContextImpl> selected =
+                selector.selectThreadContexts(transactions.subList(0, 2));
+        // then
+        assertThat(selected).containsExactly(threadContexts.get(0), threadContexts.get(1));
+    }
+
+    @Test
+    public void shouldCapAuxThreadContexts() {
+        // given
+        AdaptiveThreadSelector selector =
+                new AdaptiveThreadSelector(3, 0, new StackTraceCollectorStats());
+        ThreadContextImpl main1 = mockThreadContext(true);
+        ThreadContextImpl main2 = mockThreadContext(true);
+        ThreadContextImpl aux1 = mockThreadContext(true);
+        ThreadContextImpl aux2 = mockThreadContext(true);
+        ThreadContextImpl inactiveMain = mockThreadContext(false);
+        List<Transaction> transactions = ImmutableList.of(mockTransaction(main1),
+                mockTransaction(inactiveMain), mockTransaction(main2, aux1, aux2));
+        // when
+        List<ThreadContextImpl> selected = selector.selectThreadContexts(transactions);
+        // then
+        assertThat(selected).containsExactly(main1, main2, aux1);
+    }
+
+    @Test
+    public void shouldBackOffWhenOverBudget() {
+        // given
+        StackTraceCollectorStats stats = new StackTraceCollectorStats();
+        AdaptiveThreadSelector selector =
+                new AdaptiveThreadSelector(100, MILLISECONDS.toNanos(10), stats);
+        // when
+        selector.adjustMaxThreadsPerCycle(MILLISECONDS.toNanos(20), 100);
+        // then
+        assertThat(selector.getMaxThreadsPerCycle()).isEqualTo(50);
+        // when
+        selector.adjustMaxThreadsPerCycle(MILLISECONDS.toNanos(20), 50);
+        selector.adjustMaxThreadsPerCycle(MILLISECONDS.toNanos(20), 25);
+        selector.adjustMaxThreadsPerCycle(MILLISECONDS.toNanos(20), 12);
+        // then
+        assertThat(selector.getMaxThreadsPerCycle()).isEqualTo(10);
+        assertThat(stats.getBackoffCount()).isEqualTo(4);
+        assertThat(stats.getCurrentMaxThreadsPerCycle()).isEqualTo(10);
+    }
+
+    @Test
+    public void shouldBackOffBasedOnSampledThreadCount() {
+        // given
+        AdaptiveThreadSelector selector = new AdaptiveThreadSelector(100,
+                MILLISECONDS.toNanos(10), new StackTraceCollectorStats());
+        // when
+        selector.adjustMaxThreadsPerCycle(MILLISECONDS.toNanos(20), 40);
+        // then
+        assertThat(selector.getMaxThreadsPerCycle()).isEqualTo(20);
+    }
+
+    @Test
+    public void shouldNotBackOffBelowConfiguredMax() {
+        // given
+        AdaptiveThreadSelector selector = new AdaptiveThreadSelector(4,
+                MILLISECONDS.toNanos(10), new StackTraceCollectorStats());
+        // when
+        selector.adjustMaxThreadsPerCycle(MILLISECONDS.toNanos(20), 4);
+        // then
+        assertThat(selector.getMaxThreadsPerCycle()).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldGrowBackWhenUnderHalfBudget() {
+        // given
+        StackTraceCollectorStats stats = new StackTraceCollectorStats();
+        AdaptiveThreadSelector selector =
+                new AdaptiveThreadSelector(30, MILLISECONDS.toNanos(10), stats);
+        selector.adjustMaxThreadsPerCycle(MILLISECONDS.toNanos(20), 30);
+        assertThat(selector.getMaxThreadsPerCycle()).isEqualTo(15);
+        // when
+        selector.adjustMaxThreadsPerCycle(MILLISECONDS.toNanos(1), 15);
+        // then
+        assertThat(selector.getMaxThreadsPerCycle()).isEqualTo(18);
+        // when
+        for (int i = 0; i < 10; i++) {
+            selector.adjustMaxThreadsPerCycle(MILLISECONDS.toNanos(1),
+                    selector.getMaxThreadsPerCycle());
+        }
+        // then
+        assertThat(selector.getMaxThreadsPerCycle()).isEqualTo(30);
+        assertThat(stats.getCurrentMaxThreadsPerCycle()).isEqualTo(30);
+    }
+
+    @Test
+    public void shouldNotGrowWhenCapWasNotTheLimit() {
+        // given
+        AdaptiveThreadSelector selector = new AdaptiveThreadSelector(30,
+                MILLISECONDS.toNanos(10), new StackTraceCollectorStats());
+        selector.adjustMaxThreadsPerCycle(MILLISECONDS.toNanos(20), 30);
+        // when
+        selector.adjustMaxThreadsPerCycle(MILLISECONDS.toNanos(1), 5);
+        // then
+        assertThat(selector.getMaxThreadsPerCycle()).isEqualTo(15);
+    }
+
+    @Test
+    public void shouldNotAdjustWithoutBudget() {
+        // given
+        AdaptiveThreadSelector selector =
+                new AdaptiveThreadSelector(30, 0, new StackTraceCollectorStats());
+        // when
+        selector.adjustMaxThreadsPerCycle(MILLISECONDS.toNanos(1000), 30);
+        // then
+        assertThat(selector.getMaxThreadsPerCycle()).isEqualTo(30);
+    }
+
+    private static ThreadContextImpl mockThreadContext(boolean active) {
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        when(threadContext.isActive()).thenReturn(active);
+        return threadContext;
+    }
+
+    private static Transaction mockTransaction(ThreadContextImpl mainThreadContext,
+            ThreadContextImpl... auxThreadContexts) {
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getMainThreadContext()).thenReturn(mainThreadContext);
+        when(transaction.getActiveAuxThreadContexts())
+                .thenReturn(ImmutableList.copyOf(auxThreadContexts));
+        return transaction;
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,12 +15,25 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.List;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import org.glowroot.agent.collector.Collector.EntryVisitor;
+import org.glowroot.agent.model.QueryData;
 import org.glowroot.agent.plugin.api.Message;
 import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.agent.plugin.api.QueryMessageSupplier;
+import org.glowroot.agent.util.Tickers;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -78,4 +91,290 @@ public class TraceEntryComponentTest {
         // then
         assertThat(traceEntryComponent.isCompleted()).isFalse();
     }
+
+    @Test
+    public void testEntryCount() {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        MessageSupplier messageSupplier1 = mock(MessageSupplier.class);
+        MessageSupplier messageSupplier2 = mock(MessageSupplier.class);
+        when(messageSupplier1.get()).thenReturn(Message.create("abc"));
+        when(messageSupplier2.get()).thenReturn(Message.create("xyz"));
+        TimerImpl timer1 = mock(TimerImpl.class);
+        TimerImpl timer2 = mock(TimerImpl.class);
+        TraceEntryComponent traceEntryComponent =
+                new TraceEntryComponent(threadContext, messageSupplier1, timer1, 0);
+        // when
+        TraceEntryImpl entry =
+                traceEntryComponent.pushEntry(0, messageSupplier2, timer2, null, null, 0);
+        traceEntryComponent.popEntry(entry, 0);
+        traceEntryComponent.pushEntry(0, messageSupplier2, timer2, null, null, 0);
+        // then
+        // root entry is not counted
+        assertThat(traceEntryComponent.getEntryCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testSpill() throws Exception {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        MessageSupplier messageSupplier1 = mock(MessageSupplier.class);
+        MessageSupplier messageSupplier2 = mock(MessageSupplier.class);
+        when(messageSupplier1.get()).thenReturn(Message.create("abc"));
+        when(messageSupplier2.get()).thenReturn(Message.create("xyz"));
+        TimerImpl timer1 = mock(TimerImpl.class);
+        TimerImpl timer2 = mock(TimerImpl.class);
+        TraceEntryComponent traceEntryComponent =
+                new TraceEntryComponent(threadContext, messageSupplier1, timer1, 0);
+        for (int i = 0; i < 150; i++) {
+            TraceEntryImpl entry =
+                    traceEntryComponent.pushEntry(0, messageSupplier2, timer2, null, null, 0);
+            entry.end();
+            traceEntryComponent.popNonRootEntry(entry);
+        }
+        // when
+        traceEntryComponent.spill(ImmutableSet.<TraceEntryImpl>of(), 0,
+                Tickers.getTicker().read());
+        // then
+        int inMemoryEntryCount = 0;
+        TraceEntryImpl entry = traceEntryComponent.getRootEntry().getNextTraceEntry();
+        while (entry != null) {
+            inMemoryEntryCount++;
+            entry = entry.getNextTraceEntry();
+        }
+        assertThat(inMemoryEntryCount).isEqualTo(100);
+        assertThat(traceEntryComponent.getEntryCount()).isEqualTo(150);
+        final List<Trace.Entry> spilledEntries = Lists.newArrayList();
+        traceEntryComponent.acceptSpilledChildEntries(traceEntryComponent.getRootEntry(), 1, 0,
+                Tickers.getTicker().read(), new EntryVisitor() {
+                    @Override
+                    public int visitSharedQueryText(String sharedQueryText) {
+                        return 0;
+                    }
+
+                    @Override
+                    public void visitEntry(Trace.Entry traceEntry) {
+                        spilledEntries.add(traceEntry);
+                    }
+                });
+        assertThat(spilledEntries).hasSize(50);
+        for (Trace.Entry spilledEntry : spilledEntries) {
+            assertThat(spilledEntry.getDepth()).isEqualTo(1);
+            assertThat(spilledEntry.getMessage()).isEqualTo("xyz");
+            assertThat(spilledEntry.getActive()).isFalse();
+        }
+    }
+
+    @Test
+    public void testRepeatedSpill() throws Exception {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        TimerImpl timer = mock(TimerImpl.class);
+        TraceEntryComponent traceEntryComponent =
+                new TraceEntryComponent(threadContext, MessageSupplier.create("root"), timer, 0);
+        for (int i = 0; i < 150; i++) {
+            addCompletedEntry(traceEntryComponent, MessageSupplier.create("entry " + i), timer);
+        }
+        traceEntryComponent.spill(ImmutableSet.<TraceEntryImpl>of(), 0,
+                Tickers.getTicker().read());
+        for (int i = 150; i < 300; i++) {
+            addCompletedEntry(traceEntryComponent, MessageSupplier.create("entry " + i), timer);
+        }
+        // when
+        traceEntryComponent.spill(ImmutableSet.<TraceEntryImpl>of(), 0,
+                Tickers.getTicker().read());
+        // then
+        assertThat(getInMemoryEntryCount(traceEntryComponent)).isEqualTo(100);
+        List<Trace.Entry> spilledEntries =
+                getSpilledChildEntries(traceEntryComponent, traceEntryComponent.getRootEntry());
+        assertThat(spilledEntries).hasSize(200);
+        for (int i = 0; i < 200; i++) {
+            assertThat(spilledEntries.get(i).getDepth()).isEqualTo(1);
+            assertThat(spilledEntries.get(i).getMessage()).isEqualTo("entry " + i);
+        }
+    }
+
+    @Test
+    public void testNestedSpill() throws Exception {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        TimerImpl timer = mock(TimerImpl.class);
+        TraceEntryComponent traceEntryComponent =
+                new TraceEntryComponent(threadContext, MessageSupplier.create("root"), timer, 0);
+        TraceEntryImpl outerEntry = traceEntryComponent.pushEntry(0,
+                MessageSupplier.create("outer"), timer, null, null, 0);
+        for (int i = 0; i < 150; i++) {
+            addCompletedEntry(traceEntryComponent, MessageSupplier.create("inner " + i), timer);
+        }
+        // outer entry is still active, so only its oldest child entries are spilled
+        traceEntryComponent.spill(ImmutableSet.<TraceEntryImpl>of(), 0,
+                Tickers.getTicker().read());
+        outerEntry.end();
+        traceEntryComponent.popNonRootEntry(outerEntry);
+        for (int i = 0; i < 200; i++) {
+            addCompletedEntry(traceEntryComponent, MessageSupplier.create("after " + i), timer);
+        }
+        // when
+        traceEntryComponent.spill(ImmutableSet.<TraceEntryImpl>of(), 0,
+                Tickers.getTicker().read());
+        // then
+        assertThat(getInMemoryEntryCount(traceEntryComponent)).isEqualTo(100);
+        assertThat(getSpilledChildEntries(traceEntryComponent, outerEntry)).isEmpty();
+        List<Trace.Entry> spilledEntries =
+                getSpilledChildEntries(traceEntryComponent, traceEntryComponent.getRootEntry());
+        assertThat(spilledEntries).hasSize(251);
+        assertThat(spilledEntries.get(0).getDepth()).isEqualTo(1);
+        assertThat(spilledEntries.get(0).getMessage()).isEqualTo("outer");
+        for (int i = 0; i < 150; i++) {
+            assertThat(spilledEntries.get(i + 1).getDepth()).isEqualTo(2);
+            assertThat(spilledEntries.get(i + 1).getMessage()).isEqualTo("inner " + i);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertThat(spilledEntries.get(i + 151).getDepth()).isEqualTo(1);
+            assertThat(spilledEntries.get(i + 151).getMessage()).isEqualTo("after " + i);
+        }
+    }
+
+    @Test
+    public void testSpilledEntryUpdated() throws Exception {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        TimerImpl timer = mock(TimerImpl.class);
+        final TraceEntryComponent traceEntryComponent =
+                new TraceEntryComponent(threadContext, MessageSupplier.create("root"), timer, 0);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                traceEntryComponent
+                        .onSpilledEntryUpdated((TraceEntryImpl) invocation.getArgument(0));
+                return null;
+            }
+        }).when(threadContext).onSpilledEntryUpdated(any(TraceEntryImpl.class));
+        TraceEntryImpl queryEntry = traceEntryComponent.pushEntry(0,
+                QueryMessageSupplier.create("query: "), timer, null,
+                new QueryData("SQL", "select 1", null), 1);
+        queryEntry.end();
+        traceEntryComponent.popNonRootEntry(queryEntry);
+        for (int i = 0; i < 150; i++) {
+            addCompletedEntry(traceEntryComponent, MessageSupplier.create("entry " + i), timer);
+        }
+        traceEntryComponent.spill(ImmutableSet.<TraceEntryImpl>of(), 0,
+                Tickers.getTicker().read());
+        // when
+        // e.g. the result set is still being iterated after the query entry has been spilled
+        queryEntry.incrementCurrRow();
+        queryEntry.incrementCurrRow();
+        queryEntry.incrementCurrRow();
+        // then
+        assertThat(getInMemoryEntryCount(traceEntryComponent)).isEqualTo(100);
+        List<Trace.Entry> spilledEntries =
+                getSpilledChildEntries(traceEntryComponent, traceEntryComponent.getRootEntry());
+        assertThat(spilledEntries).hasSize(51);
+        Trace.Entry spilledQueryEntry = spilledEntries.get(0);
+        assertThat(spilledQueryEntry.getDepth()).isEqualTo(1);
+        assertThat(spilledQueryEntry.getQueryEntryMessage().getPrefix()).isEqualTo("query: ");
+        assertThat(spilledQueryEntry.getQueryEntryMessage().getSuffix()).isEqualTo(" => 3 rows");
+        assertThat(spilledEntries.get(1).getMessage()).isEqualTo("entry 0");
+    }
+
+    @Test
+    public void testSpilledQueryEntries() throws Exception {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        TimerImpl timer = mock(TimerImpl.class);
+        TraceEntryComponent traceEntryComponent =
+                new TraceEntryComponent(threadContext, MessageSupplier.create("root"), timer, 0);
+        for (int i = 0; i < 150; i++) {
+            TraceEntryImpl queryEntry = traceEntryComponent.pushEntry(0,
+                    QueryMessageSupplier.create("query: "), timer, null,
+                    new QueryData("SQL", "select " + (i % 2), null), 1);
+            queryEntry.end();
+            traceEntryComponent.popNonRootEntry(queryEntry);
+        }
+        // when
+        traceEntryComponent.spill(ImmutableSet.<TraceEntryImpl>of(), 0,
+                Tickers.getTicker().read());
+        // then
+        final List<String> sharedQueryTexts = Lists.newArrayList();
+        final List<Trace.Entry> spilledEntries = Lists.newArrayList();
+        traceEntryComponent.acceptSpilledChildEntries(traceEntryComponent.getRootEntry(), 1, 0,
+                Tickers.getTicker().read(), new EntryVisitor() {
+                    @Override
+                    public int visitSharedQueryText(String sharedQueryText) {
+                        int index = sharedQueryTexts.indexOf(sharedQueryText);
+                        if (index == -1) {
+                            index = sharedQueryTexts.size();
+                            sharedQueryTexts.add(sharedQueryText);
+                        }
+                        return index;
+                    }
+
+                    @Override
+                    public void visitEntry(Trace.Entry traceEntry) {
+                        spilledEntries.add(traceEntry);
+                    }
+                });
+        assertThat(sharedQueryTexts).containsExactly("select 0", "select 1");
+        assertThat(spilledEntries).hasSize(50);
+        for (int i = 0; i < 50; i++) {
+            int sharedQueryTextIndex =
+                    spilledEntries.get(i).getQueryEntryMessage().getSharedQueryTextIndex();
+            assertThat(sharedQueryTexts.get(sharedQueryTextIndex)).isEqualTo("select " + (i % 2));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReadAfterRelease() throws Exception {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        TimerImpl timer = mock(TimerImpl.class);
+        TraceEntryComponent traceEntryComponent =
+                new TraceEntryComponent(threadContext, MessageSupplier.create("root"), timer, 0);
+        for (int i = 0; i < 150; i++) {
+            addCompletedEntry(traceEntryComponent, MessageSupplier.create("entry " + i), timer);
+        }
+        traceEntryComponent.spill(ImmutableSet.<TraceEntryImpl>of(), 0,
+                Tickers.getTicker().read());
+        // when
+        traceEntryComponent.releaseSpilledEntries();
+        // then
+        getSpilledChildEntries(traceEntryComponent, traceEntryComponent.getRootEntry());
+    }
+
+    private static void addCompletedEntry(TraceEntryComponent traceEntryComponent,
+            MessageSupplier messageSupplier, TimerImpl timer) {
+        TraceEntryImpl entry =
+                traceEntryComponent.pushEntry(0, messageSupplier, timer, null, null, 0);
+        entry.end();
+        traceEntryComponent.popNonRootEntry(entry);
+    }
+
+    private static int getInMemoryEntryCount(TraceEntryComponent traceEntryComponent) {
+        int inMemoryEntryCount = 0;
+        TraceEntryImpl entry = traceEntryComponent.getRootEntry().getNextTraceEntry();
+        while (entry != null) {
+            inMemoryEntryCount++;
+            entry = entry.getNextTraceEntry();
+        }
+        return inMemoryEntryCount;
+    }
+
+    private static List<Trace.Entry> getSpilledChildEntries(
+            TraceEntryComponent traceEntryComponent, TraceEntryImpl parentEntry)
+            throws Exception {
+        final List<Trace.Entry> spilledEntries = Lists.newArrayList();
+        traceEntryComponent.acceptSpilledChildEntries(parentEntry, 1, 0,
+                Tickers.getTicker().read(), new EntryVisitor() {
+                    @Override
+                    public int visitSharedQueryText(String sharedQueryText) {
+                        return 0;
+                    }
+
+                    @Override
+                    public void visitEntry(Trace.Entry traceEntry) {
+                        spilledEntries.add(traceEntry);
+                    }
+                });
+        return spilledEntries;
+    }
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import com.google.common.base.Ticker;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TraceSamplerTest {
+
+    @Test
+    public void shouldAllowBurstThenSample() {
+        // given
+        Ticker ticker = mock(Ticker.class);
+        when(ticker.read()).thenReturn(0L);
+        TraceSampler traceSampler = new TraceSampler(ticker);
+        // when
+        double sampleRatio1 = traceSampler.sample("Web", "/a");
+        double sampleRatio2 = traceSampler.sample("Web", "/a");
+        double sampleRatio3 = traceSampler.sample("Web", "/a");
+        // then
+        assertThat(sampleRatio1).isEqualTo(1);
+        assertThat(sampleRatio2).isEqualTo(1);
+        assertThat(sampleRatio3).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldRecordSampleRatio() {
+        // given
+        Ticker ticker = mock(Ticker.class);
+        when(ticker.read()).thenReturn(0L);
+        TraceSampler traceSampler = new TraceSampler(ticker);
+        traceSampler.sample("Web", "/a");
+        traceSampler.sample("Web", "/a");
+        traceSampler.sample("Web", "/a");
+        traceSampler.sample("Web", "/a");
+        // when
+        when(ticker.read()).thenReturn(SECONDS.toNanos(1));
+        double sampleRatio = traceSampler.sample("Web", "/a");
+        // then
+        assertThat(sampleRatio).isEqualTo(3 / 5.0);
+    }
+
+    @Test
+    public void shouldNotStarveOtherTransactionNames() {
+        // given
+        Ticker ticker = mock(Ticker.class);
+        when(ticker.read()).thenReturn(0L);
+        TraceSampler traceSampler = new TraceSampler(ticker);
+        for (int i = 0; i < 100; i++) {
+            traceSampler.sample("Web", "/a");
+        }
+        // when
+        when(ticker.read()).thenReturn(MILLISECONDS.toNanos(10));
+        double sampleRatio = traceSampler.sample("Web", "/b");
+        // then
+        assertThat(sampleRatio).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldResetAfterOverload() {
+        // given
+        Ticker ticker = mock(Ticker.class);
+        when(ticker.read()).thenReturn(0L);
+        TraceSampler traceSampler = new TraceSampler(ticker);
+        for (int i = 0; i < 100; i++) {
+            traceSampler.sample("Web", "/a");
+        }
+        // when
+        when(ticker.read()).thenReturn(SECONDS.toNanos(60));
+        double sampleRatio = traceSampler.sample("Web", "/a");
+        // then
+        assertThat(sampleRatio).isEqualTo(1);
+    }
+}
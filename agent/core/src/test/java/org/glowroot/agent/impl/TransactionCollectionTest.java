@@ -15,8 +15,14 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.junit.Test;
 
@@ -39,4 +45,55 @@ public class TransactionCollectionTest {
         }
         assertThat(collection.iterator().hasNext()).isFalse();
     }
+
+    @Test
+    public void testMultipleSegments() throws Exception {
+        final TransactionCollection collection = new TransactionCollection(4);
+        List<Transaction> transactions = Lists.newArrayList();
+        List<TransactionEntry> entries = Lists.newArrayList();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 100; i++) {
+            final Transaction transaction = mock(Transaction.class);
+            transactions.add(transaction);
+            Future<TransactionEntry> future = executor.submit(new Callable<TransactionEntry>() {
+                @Override
+                public TransactionEntry call() {
+                    return collection.add(transaction);
+                }
+            });
+            entries.add(future.get());
+        }
+        executor.shutdown();
+        assertThat(ImmutableList.copyOf(collection)).containsOnlyElementsOf(transactions)
+                .hasSize(100);
+        for (int i = 0; i < 50; i++) {
+            entries.get(i * 2).remove();
+        }
+        assertThat(ImmutableList.copyOf(collection)).hasSize(50);
+        for (int i = 0; i < 50; i++) {
+            entries.get(i * 2 + 1).remove();
+        }
+        assertThat(collection.iterator().hasNext()).isFalse();
+    }
+
+    @Test
+    public void testRemoveWhileIterating() {
+        TransactionCollection collection = new TransactionCollection(2);
+        List<Transaction> transactions = Lists.newArrayList();
+        List<TransactionEntry> entries = Lists.newArrayList();
+        for (int i = 0; i < 3; i++) {
+            Transaction transaction = mock(Transaction.class);
+            transactions.add(transaction);
+            entries.add(collection.add(transaction));
+        }
+        Iterator<Transaction> i = collection.iterator();
+        assertThat(i.next()).isSameAs(transactions.get(0));
+        // iterator is now positioned on the second entry, removing it (and the one before it)
+        // should not strand the iterator
+        entries.get(1).remove();
+        entries.get(0).remove();
+        assertThat(i.next()).isSameAs(transactions.get(1));
+        assertThat(i.next()).isSameAs(transactions.get(2));
+        assertThat(i.hasNext()).isFalse();
+    }
 }
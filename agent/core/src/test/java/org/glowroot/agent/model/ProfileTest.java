@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.lang.management.ThreadInfo;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import org.glowroot.common.model.MutableProfile;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile.LeafThreadState;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile.ProfileNode;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ProfileTest {
+
+    @Test
+    public void shouldMergeStackTraces() {
+        // given
+        Profile profile = new Profile();
+        StackTraceElement[] stackTrace1 = new StackTraceElement[] {
+                new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 123),
+                new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789)};
+        StackTraceElement[] stackTrace2 = new StackTraceElement[] {
+                new StackTraceElement("aa.bb.cc.Def", "jkl", "Def.java", 456),
+                new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789)};
+        // when
+        profile.addStackTrace(mockThreadInfo(stackTrace1, Thread.State.RUNNABLE), 100);
+        profile.addStackTrace(mockThreadInfo(stackTrace1, Thread.State.RUNNABLE), 100);
+        profile.addStackTrace(mockThreadInfo(stackTrace1, Thread.State.BLOCKED), 100);
+        profile.addStackTrace(mockThreadInfo(stackTrace2, Thread.State.RUNNABLE), 100);
+        // then
+        assertThat(profile.getSampleCount()).isEqualTo(4);
+        org.glowroot.wire.api.model.ProfileOuterClass.Profile proto = profile.toProto();
+        List<ProfileNode> nodes = proto.getNodeList();
+        assertThat(nodes).hasSize(4);
+        assertThat(nodes.get(0).getDepth()).isEqualTo(0);
+        assertThat(proto.getMethodName(nodes.get(0).getMethodNameIndex())).isEqualTo("main");
+        assertThat(nodes.get(0).getSampleCount()).isEqualTo(4);
+        assertThat(nodes.get(1).getDepth()).isEqualTo(1);
+        assertThat(proto.getMethodName(nodes.get(1).getMethodNameIndex())).isEqualTo("ghi");
+        assertThat(nodes.get(1).getLeafThreadState()).isEqualTo(LeafThreadState.RUNNABLE);
+        assertThat(nodes.get(1).getSampleCount()).isEqualTo(2);
+        assertThat(nodes.get(2).getDepth()).isEqualTo(1);
+        assertThat(nodes.get(2).getLeafThreadState()).isEqualTo(LeafThreadState.BLOCKED);
+        assertThat(nodes.get(2).getSampleCount()).isEqualTo(1);
+        assertThat(nodes.get(3).getDepth()).isEqualTo(1);
+        assertThat(proto.getMethodName(nodes.get(3).getMethodNameIndex())).isEqualTo("jkl");
+        assertThat(nodes.get(3).getSampleCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldRespectLimit() {
+        // given
+        Profile profile = new Profile();
+        StackTraceElement[] stackTrace = new StackTraceElement[] {
+                new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789)};
+        // when
+        for (int i = 0; i < 10; i++) {
+            profile.addStackTrace(mockThreadInfo(stackTrace, Thread.State.RUNNABLE), 5);
+        }
+        // then
+        assertThat(profile.getSampleCount()).isEqualTo(5);
+        MutableProfile mutableProfile = new MutableProfile();
+        profile.mergeInto(mutableProfile);
+        assertThat(mutableProfile.getSampleCount()).isEqualTo(5);
+    }
+
+    @Test
+    public void shouldMergeIntoMutableProfile() {
+        // given
+        Profile profile = new Profile();
+        StackTraceElement[] stackTrace1 = new StackTraceElement[] {
+                new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 123),
+                new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789)};
+        StackTraceElement[] stackTrace2 = new StackTraceElement[] {
+                new StackTraceElement("aa.bb.cc.Def", "jkl", "Def.java", 456),
+                new StackTraceElement("Def", "mno", null, -1),
+                new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789)};
+        profile.addStackTrace(mockThreadInfo(stackTrace1, Thread.State.RUNNABLE), 100);
+        profile.addStackTrace(mockThreadInfo(stackTrace1, Thread.State.BLOCKED), 100);
+        profile.addStackTrace(mockThreadInfo(stackTrace2, Thread.State.WAITING), 100);
+        MutableProfile mutableProfile = new MutableProfile();
+        mutableProfile.merge(Arrays.asList(stackTrace1), Thread.State.RUNNABLE);
+        MutableProfile expected = new MutableProfile();
+        expected.merge(Arrays.asList(stackTrace1), Thread.State.RUNNABLE);
+        expected.merge(profile.toProto());
+        // when
+        profile.mergeInto(mutableProfile);
+        // then
+        assertThat(mutableProfile.getSampleCount()).isEqualTo(4);
+        assertThat(mutableProfile.toProto()).isEqualTo(expected.toProto());
+    }
+
+    private static ThreadInfo mockThreadInfo(StackTraceElement[] stackTrace,
+            Thread.State threadState) {
+        ThreadInfo threadInfo = mock(ThreadInfo.class);
+        when(threadInfo.getStackTrace()).thenReturn(stackTrace);
+        when(threadInfo.getThreadState()).thenReturn(threadState);
+        return threadInfo;
+    }
+}
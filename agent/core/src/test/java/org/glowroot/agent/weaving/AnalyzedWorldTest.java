@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AnalyzedWorldTest {
+
+    private static final String TARGET_CLASS_NAME = Target.class.getName();
+
+    private AnalyzedWorld analyzedWorld;
+
+    @Before
+    public void beforeEachTest() {
+        analyzedWorld = new AnalyzedWorld(
+                Suppliers.<List<Advice>>ofInstance(ImmutableList.<Advice>of()),
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of(), false);
+    }
+
+    @Test
+    public void shouldWaitForInFlightAnalysis() throws Exception {
+        // given
+        CountingClassLoader loader = new CountingClassLoader(null);
+        Thread analyzingThread = startPreAnalyze(loader);
+        loader.firstReadStarted.await();
+        Thread waitingThread = startPreAnalyze(loader);
+        while (waitingThread.getState() != Thread.State.TIMED_WAITING) {
+            Thread.yield();
+        }
+        // when
+        loader.releaseFirstRead = true;
+        analyzingThread.join();
+        waitingThread.join();
+        // then
+        assertThat(loader.readCount.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotWaitForBlockedInFlightAnalysis() throws Exception {
+        // given
+        // simulates a class loading lock held by the waiting thread that the analyzing thread needs
+        Object lock = new Object();
+        CountingClassLoader loader = new CountingClassLoader(lock);
+        Thread analyzingThread;
+        synchronized (lock) {
+            analyzingThread = startPreAnalyze(loader);
+            while (analyzingThread.getState() != Thread.State.BLOCKED) {
+                Thread.yield();
+            }
+            // when
+            analyzedWorld.preAnalyze(TARGET_CLASS_NAME, loader);
+            // then
+            assertThat(loader.readCount.get()).isEqualTo(2);
+        }
+        analyzingThread.join();
+    }
+
+    private Thread startPreAnalyze(final ClassLoader loader) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                analyzedWorld.preAnalyze(TARGET_CLASS_NAME, loader);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    public static class Target {}
+
+    private static class CountingClassLoader extends ClassLoader {
+
+        private final AtomicInteger readCount = new AtomicInteger();
+        private final CountDownLatch firstReadStarted = new CountDownLatch(1);
+        private volatile boolean releaseFirstRead;
+
+        // if non-null, the first read blocks on this lock
+        private final @Nullable Object firstReadLock;
+
+        private CountingClassLoader(@Nullable Object firstReadLock) {
+            super(CountingClassLoader.class.getClassLoader());
+            this.firstReadLock = firstReadLock;
+        }
+
+        @Override
+        public URL getResource(String name) {
+            if (!name.equals(ClassNames.toInternalName(TARGET_CLASS_NAME) + ".class")) {
+                return super.getResource(name);
+            }
+            if (readCount.getAndIncrement() == 0) {
+                firstReadStarted.countDown();
+                if (firstReadLock == null) {
+                    // spin (as opposed to blocking) so that this thread is still seen as running
+                    while (!releaseFirstRead) {
+                        Thread.yield();
+                    }
+                } else {
+                    synchronized (firstReadLock) {
+                        releaseFirstRead = true;
+                    }
+                }
+            }
+            return super.getResource(name);
+        }
+    }
+}
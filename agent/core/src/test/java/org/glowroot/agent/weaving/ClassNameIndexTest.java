@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClassNameIndexTest {
+
+    @Test
+    public void shouldFindExactName() {
+        // given
+        ClassNameIndex<String> index = ClassNameIndex.<String>builder()
+                .add("a.b.C", "1")
+                .add("a.b.D", "2")
+                .build();
+        // when
+        // then
+        assertThat(index.getCandidates("a.b.C")).containsExactly("1");
+        assertThat(index.getCandidates("a.b.E")).isEmpty();
+    }
+
+    @Test
+    public void shouldFindPrefixAndSuffix() {
+        // given
+        ClassNameIndex<String> index = ClassNameIndex.<String>builder()
+                .add("a.b.*", "1")
+                .add("*Servlet", "2")
+                .add("a.*.C*", "3")
+                .add("x.*", "4")
+                .build();
+        // when
+        // then
+        assertThat(index.getCandidates("a.b.MyServlet")).containsExactly("1", "2", "3");
+        assertThat(index.getCandidates("x")).isEmpty();
+    }
+
+    @Test
+    public void shouldFindAlternatives() {
+        // given
+        ClassNameIndex<String> index = ClassNameIndex.<String>builder()
+                .add("a.b.C|d.*", "1")
+                .add("a.b.C|a.b.*", "2")
+                .build();
+        // when
+        // then
+        assertThat(index.getCandidates("a.b.C")).containsExactly("1", "2");
+        assertThat(index.getCandidates("d.E")).containsExactly("1");
+    }
+
+    @Test
+    public void shouldAlwaysReturnUnindexed() {
+        // given
+        ClassNameIndex<String> index = ClassNameIndex.<String>builder()
+                .add("", "1")
+                .add("/a\\.b\\..*/", "2")
+                .add("*", "3")
+                .add("a.b.C", "4")
+                .build();
+        // when
+        // then
+        assertThat(index.getCandidates("x.y.Z")).containsExactly("1", "2", "3");
+    }
+}
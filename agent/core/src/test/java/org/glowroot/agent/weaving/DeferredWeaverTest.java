@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.lang.instrument.Instrumentation;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Resources;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+public class DeferredWeaverTest {
+
+    private Instrumentation instrumentation;
+    private DeferredWeaver deferredWeaver;
+
+    @Before
+    public void beforeEachTest() {
+        instrumentation = mock(Instrumentation.class);
+        deferredWeaver = DeferredWeaver.create(instrumentation);
+        deferredWeaver.start();
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        deferredWeaver.close();
+    }
+
+    @Test
+    public void shouldRetransformOnFirstInvocation() throws Exception {
+        // given
+        Class<?> clazz = defineWithTrampolines(ImmutableSet.of("execute()V"));
+        Runnable runnable = (Runnable) clazz.newInstance();
+        // when
+        runnable.run();
+        // then
+        verify(instrumentation, timeout(5000)).retransformClasses(clazz);
+    }
+
+    @Test
+    public void shouldNotInsertTrampolinesIfNoMethodsMatch() throws Exception {
+        // given
+        ClassReader cr = new ClassReader(Resources.toByteArray(Resources
+                .getResource(ClassNames.toInternalName(Deferred.class.getName()) + ".class")));
+        // when
+        byte[] bytes = deferredWeaver.weaveTrampolines(cr, ImmutableSet.of("other()V"));
+        // then
+        assertThat(bytes).isNull();
+    }
+
+    private Class<?> defineWithTrampolines(ImmutableSet<String> methodKeys) throws Exception {
+        String name = Deferred.class.getName();
+        ClassReader cr = new ClassReader(Resources
+                .toByteArray(Resources.getResource(ClassNames.toInternalName(name) + ".class")));
+        byte[] bytes = deferredWeaver.weaveTrampolines(cr, methodKeys);
+        assertThat(bytes).isNotNull();
+        return new DefiningClassLoader().define(name, bytes);
+    }
+
+    public static class Deferred implements Runnable {
+        @Override
+        public void run() {
+            execute();
+        }
+        private void execute() {}
+    }
+
+    private static class DefiningClassLoader extends ClassLoader {
+
+        private DefiningClassLoader() {
+            super(DefiningClassLoader.class.getClassLoader());
+        }
+
+        private Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.lang.instrument.Instrumentation;
+import java.util.List;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Resources;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.impl.ThreadContextImpl;
+import org.glowroot.agent.impl.TimerNameCache;
+import org.glowroot.agent.impl.TransactionRegistry;
+import org.glowroot.agent.plugin.api.util.FastThreadLocal;
+import org.glowroot.agent.plugin.api.weaving.Mixin;
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+import org.glowroot.agent.plugin.api.weaving.Shim;
+import org.glowroot.agent.weaving.SomeAspect.BasicAdvice;
+import org.glowroot.agent.weaving.SomeAspect.BindReturnAdvice;
+import org.glowroot.agent.weaving.SomeAspect.HasString;
+import org.glowroot.agent.weaving.SomeAspect.HasStringClassMixin;
+import org.glowroot.agent.weaving.SomeAspect.Shimmy;
+import org.glowroot.agent.weaving.SomeAspectThreadLocals.IntegerThreadLocal;
+import org.glowroot.agent.weaving.targets.AbstractNotMisc.ExtendsAbstractNotMisc;
+import org.glowroot.agent.weaving.targets.BasicMisc;
+import org.glowroot.agent.weaving.targets.Misc;
+import org.glowroot.agent.weaving.targets.ShimmedMisc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.objectweb.asm.Opcodes.V1_4;
+
+// the jvm's retransformation is simulated by weaving the original class bytes again (which is what
+// the jvm passes to the ClassFileTransformer when retransforming) and defining the result in a new
+// class loader
+public class DeferredWeavingTest {
+
+    private Instrumentation instrumentation;
+    private DeferredWeaver deferredWeaver;
+
+    @Before
+    public void beforeEachTest() {
+        SomeAspectThreadLocals.resetThreadLocals();
+        instrumentation = mock(Instrumentation.class);
+        deferredWeaver = DeferredWeaver.create(instrumentation);
+        deferredWeaver.start();
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        deferredWeaver.close();
+    }
+
+    @Test
+    public void shouldDeferWeavingUntilFirstInvocation() throws Exception {
+        // given
+        AnalyzedWorld analyzedWorld = newAnalyzedWorld(BasicAdvice.class);
+        Weaver weaver = newWeaver(analyzedWorld, BasicAdvice.class);
+        IsolatedWeavingClassLoader loader = newIsolatedWeavingClassLoader();
+        // when
+        Misc test = weaveAndLoad(weaver, loader, BasicMisc.class, true);
+        test.execute1();
+        // then
+        assertThat(SomeAspectThreadLocals.onBeforeCount.get()).isEqualTo(0);
+        verify(instrumentation, timeout(5000)).retransformClasses(test.getClass());
+        // the class is still analyzed at load time, since the analysis is needed for its sub
+        // classes
+        ArgumentCaptor<AnalyzedClass> captor = ArgumentCaptor.forClass(AnalyzedClass.class);
+        verify(analyzedWorld, atLeastOnce()).add(captor.capture(), eq(loader));
+        List<String> analyzedClassNames = Lists.newArrayList();
+        for (AnalyzedClass analyzedClass : captor.getAllValues()) {
+            analyzedClassNames.add(analyzedClass.name());
+        }
+        assertThat(analyzedClassNames).contains(BasicMisc.class.getName());
+    }
+
+    @Test
+    public void shouldWeaveDeferredClassWhenRetransformed() throws Exception {
+        // given
+        Weaver weaver = newWeaver(newAnalyzedWorld(BasicAdvice.class), BasicAdvice.class);
+        IsolatedWeavingClassLoader loader = newIsolatedWeavingClassLoader();
+        Misc test = weaveAndLoad(weaver, loader, BasicMisc.class, true);
+        test.execute1();
+        verify(instrumentation, timeout(5000)).retransformClasses(test.getClass());
+        // when
+        // classes being retransformed (classBeingRedefined != null) are not deferrable
+        byte[] retransformedBytes = weaver.weave(getBytes(BasicMisc.class),
+                ClassNames.toInternalName(BasicMisc.class.getName()), false, null, loader);
+        IsolatedWeavingClassLoader retransformedLoader = newIsolatedWeavingClassLoader();
+        retransformedLoader.addManualClass(BasicMisc.class.getName(), retransformedBytes);
+        Misc retransformedTest = retransformedLoader.newInstance(BasicMisc.class, Misc.class);
+        retransformedTest.execute1();
+        // then
+        assertThat(SomeAspectThreadLocals.onBeforeCount.get()).isEqualTo(1);
+        assertThat(SomeAspectThreadLocals.onReturnCount.get()).isEqualTo(1);
+        assertThat(SomeAspectThreadLocals.onAfterCount.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotDeferWhenNotDeferrable() throws Exception {
+        // given
+        Weaver weaver = newWeaver(newAnalyzedWorld(BasicAdvice.class), BasicAdvice.class);
+        IsolatedWeavingClassLoader loader = newIsolatedWeavingClassLoader();
+        // when
+        Misc test = weaveAndLoad(weaver, loader, BasicMisc.class, false);
+        test.execute1();
+        // then
+        assertThat(SomeAspectThreadLocals.onBeforeCount.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotDeferClassWithShim() throws Exception {
+        // given
+        Weaver weaver = newWeaver(newAnalyzedWorld(BasicAdvice.class, Shimmy.class),
+                BasicAdvice.class, Shimmy.class);
+        IsolatedWeavingClassLoader loader = newIsolatedWeavingClassLoader(Shimmy.class);
+        // when
+        Misc test = weaveAndLoad(weaver, loader, ShimmedMisc.class, true);
+        test.execute1();
+        ((Shimmy) test).shimmySetString("another value");
+        // then
+        assertThat(SomeAspectThreadLocals.onBeforeCount.get()).isEqualTo(1);
+        assertThat(((Shimmy) test).shimmyGetString()).isEqualTo("another value");
+    }
+
+    @Test
+    public void shouldNotDeferClassWithMixin() throws Exception {
+        // given
+        Weaver weaver = newWeaver(newAnalyzedWorld(BasicAdvice.class, HasStringClassMixin.class),
+                BasicAdvice.class, HasStringClassMixin.class);
+        IsolatedWeavingClassLoader loader = newIsolatedWeavingClassLoader(HasString.class);
+        // when
+        Misc test = weaveAndLoad(weaver, loader, BasicMisc.class, true);
+        test.execute1();
+        // then
+        assertThat(SomeAspectThreadLocals.onBeforeCount.get()).isEqualTo(1);
+        assertThat(((HasString) test).getString()).isEqualTo("a string");
+    }
+
+    @Test
+    public void shouldNotDeferClassWithInheritedMethodThatOnlyNowFulfillsAdvice()
+            throws Exception {
+        // given
+        // BindReturnAdvice is for a method declared in the class, so that there is something to
+        // defer
+        Weaver weaver = newWeaver(newAnalyzedWorld(BasicAdvice.class, BindReturnAdvice.class),
+                BasicAdvice.class, BindReturnAdvice.class);
+        IsolatedWeavingClassLoader loader = newIsolatedWeavingClassLoader();
+        // when
+        Misc test = weaveAndLoad(weaver, loader, ExtendsAbstractNotMisc.class, true);
+        test.execute1();
+        // then
+        assertThat(SomeAspectThreadLocals.onBeforeCount.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotDeferPreJava5Class() throws Exception {
+        // given
+        Weaver weaver = newWeaver(newAnalyzedWorld(BasicAdvice.class), BasicAdvice.class);
+        IsolatedWeavingClassLoader loader = newIsolatedWeavingClassLoader();
+        byte[] bytes = getBytes(ShimmedMisc.class);
+        // the trampolines need class literals, which are not supported prior to java 5
+        bytes[6] = 0;
+        bytes[7] = V1_4;
+        // when
+        byte[] wovenBytes = weaver.weave(bytes,
+                ClassNames.toInternalName(ShimmedMisc.class.getName()), true, null, loader);
+        loader.addManualClass(ShimmedMisc.class.getName(), wovenBytes);
+        Misc test = loader.newInstance(ShimmedMisc.class, Misc.class);
+        test.execute1();
+        // then
+        assertThat(SomeAspectThreadLocals.onBeforeCount.get()).isEqualTo(1);
+    }
+
+    private <T extends Misc> Misc weaveAndLoad(Weaver weaver, IsolatedWeavingClassLoader loader,
+            Class<T> implClass, boolean deferrable) throws Exception {
+        byte[] wovenBytes = weaver.weave(getBytes(implClass),
+                ClassNames.toInternalName(implClass.getName()), deferrable, null, loader);
+        assertThat(wovenBytes).isNotNull();
+        loader.addManualClass(implClass.getName(), wovenBytes);
+        return loader.newInstance(implClass, Misc.class);
+    }
+
+    private Weaver newWeaver(AnalyzedWorld analyzedWorld, Class<?>... adviceOrShimOrMixinClasses)
+            throws Exception {
+        TransactionRegistry transactionRegistry = mock(TransactionRegistry.class);
+        when(transactionRegistry.getCurrentThreadContextHolder())
+                .thenReturn(new FastThreadLocal<ThreadContextImpl>().getHolder());
+        return new Weaver(getAdvisorsSupplier(adviceOrShimOrMixinClasses),
+                getShimTypes(adviceOrShimOrMixinClasses), getMixinTypes(adviceOrShimOrMixinClasses),
+                analyzedWorld, transactionRegistry, new TimerNameCache(),
+                mock(ConfigService.class), null, deferredWeaver, false);
+    }
+
+    // spied so that the analyzed classes can be verified
+    private static AnalyzedWorld newAnalyzedWorld(Class<?>... adviceOrShimOrMixinClasses)
+            throws Exception {
+        return spy(new AnalyzedWorld(getAdvisorsSupplier(adviceOrShimOrMixinClasses),
+                getShimTypes(adviceOrShimOrMixinClasses),
+                getMixinTypes(adviceOrShimOrMixinClasses), false));
+    }
+
+    private static Supplier<List<Advice>> getAdvisorsSupplier(
+            Class<?>... adviceOrShimOrMixinClasses) throws Exception {
+        List<Advice> advisors = Lists.newArrayList();
+        for (Class<?> clazz : adviceOrShimOrMixinClasses) {
+            if (clazz.isAnnotationPresent(Pointcut.class)) {
+                advisors.add(new AdviceBuilder(clazz).build());
+            }
+        }
+        return Suppliers.<List<Advice>>ofInstance(ImmutableList.copyOf(advisors));
+    }
+
+    private static List<ShimType> getShimTypes(Class<?>... adviceOrShimOrMixinClasses)
+            throws Exception {
+        List<ShimType> shimTypes = Lists.newArrayList();
+        for (Class<?> clazz : adviceOrShimOrMixinClasses) {
+            Shim shim = clazz.getAnnotation(Shim.class);
+            if (shim != null) {
+                shimTypes.add(ShimType.create(shim, clazz));
+            }
+        }
+        return shimTypes;
+    }
+
+    private static List<MixinType> getMixinTypes(Class<?>... adviceOrShimOrMixinClasses)
+            throws Exception {
+        List<MixinType> mixinTypes = Lists.newArrayList();
+        for (Class<?> clazz : adviceOrShimOrMixinClasses) {
+            Mixin mixin = clazz.getAnnotation(Mixin.class);
+            if (mixin != null) {
+                mixinTypes.add(MixinType.create(mixin, clazz));
+            }
+        }
+        return mixinTypes;
+    }
+
+    private static IsolatedWeavingClassLoader newIsolatedWeavingClassLoader(
+            Class<?>... extraBridgeClasses) {
+        List<Class<?>> bridgeClasses = Lists.newArrayList();
+        bridgeClasses.add(Misc.class);
+        bridgeClasses.add(SomeAspectThreadLocals.class);
+        bridgeClasses.add(IntegerThreadLocal.class);
+        bridgeClasses.addAll(ImmutableList.copyOf(extraBridgeClasses));
+        return new IsolatedWeavingClassLoader(bridgeClasses.toArray(new Class<?>[0]));
+    }
+
+    private static byte[] getBytes(Class<?> clazz) throws Exception {
+        return Resources.toByteArray(
+                Resources.getResource(ClassNames.toInternalName(clazz.getName()) + ".class"));
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_STATIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.F_NEW;
+import static org.objectweb.asm.Opcodes.ICONST_0;
+import static org.objectweb.asm.Opcodes.IFEQ;
+import static org.objectweb.asm.Opcodes.ILOAD;
+import static org.objectweb.asm.Opcodes.INTEGER;
+import static org.objectweb.asm.Opcodes.IRETURN;
+import static org.objectweb.asm.Opcodes.TOP;
+import static org.objectweb.asm.Opcodes.V1_7;
+
+public class FrameCheckerTest {
+
+    @Test
+    public void shouldAcceptMatchingFrame() throws Exception {
+        // given
+        byte[] bytes = generate(new Object[] {INTEGER});
+        // when
+        FrameChecker.check(bytes, ImmutableSet.of("test(I)I"));
+        // then no exception
+    }
+
+    @Test
+    public void shouldAcceptTopInFrame() throws Exception {
+        // given
+        byte[] bytes = generate(new Object[] {TOP});
+        // when
+        FrameChecker.check(bytes, ImmutableSet.of("test(I)I"));
+        // then no exception
+    }
+
+    @Test
+    public void shouldRejectMismatchedFrame() throws Exception {
+        // given
+        byte[] bytes = generate(new Object[] {"java/lang/String"});
+        // when
+        AnalyzerException exception = null;
+        try {
+            FrameChecker.check(bytes, ImmutableSet.of("test(I)I"));
+        } catch (AnalyzerException e) {
+            exception = e;
+        }
+        // then
+        assertThat(exception).isNotNull();
+    }
+
+    @Test
+    public void shouldOnlyCheckGivenMethods() throws Exception {
+        // given
+        byte[] bytes = generate(new Object[] {"java/lang/String"});
+        // when
+        FrameChecker.check(bytes, ImmutableSet.of("other()V"));
+        // then no exception
+    }
+
+    // generates "static int test(int x) { return x == 0 ? 0 : x; }" with the given frame locals at
+    // the jump target
+    private static byte[] generate(Object[] frameLocals) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_7, ACC_PUBLIC + ACC_SUPER, "FrameCheckerBytecode", null, "java/lang/Object",
+                null);
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC + ACC_STATIC, "test", "(I)I", null, null);
+        mv.visitCode();
+        Label zero = new Label();
+        mv.visitVarInsn(ILOAD, 0);
+        mv.visitJumpInsn(IFEQ, zero);
+        mv.visitVarInsn(ILOAD, 0);
+        mv.visitInsn(IRETURN);
+        mv.visitLabel(zero);
+        mv.visitFrame(F_NEW, frameLocals.length, frameLocals, 0, new Object[0]);
+        mv.visitInsn(ICONST_0);
+        mv.visitInsn(IRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import org.glowroot.agent.weaving.ClassLoaders.LazyDefinedClass;
+
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ARETURN;
+import static org.objectweb.asm.Opcodes.ASTORE;
+import static org.objectweb.asm.Opcodes.ATHROW;
+import static org.objectweb.asm.Opcodes.DUP;
+import static org.objectweb.asm.Opcodes.ICONST_0;
+import static org.objectweb.asm.Opcodes.ICONST_1;
+import static org.objectweb.asm.Opcodes.ICONST_2;
+import static org.objectweb.asm.Opcodes.ICONST_3;
+import static org.objectweb.asm.Opcodes.ICONST_M1;
+import static org.objectweb.asm.Opcodes.IFEQ;
+import static org.objectweb.asm.Opcodes.IFGE;
+import static org.objectweb.asm.Opcodes.IFLE;
+import static org.objectweb.asm.Opcodes.ILOAD;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.IRETURN;
+import static org.objectweb.asm.Opcodes.ISTORE;
+import static org.objectweb.asm.Opcodes.NEW;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V1_7;
+
+// generates classfile version 51, since the JVM falls back to the type inferencing verifier for
+// classfile version 50 (which is what the test classes are compiled to) when the stack map frames
+// are wrong, which would hide problems with the frames written when weaving with
+// glowroot.weaving.preserveFrames
+public class GenerateStackMapFrameBytecode {
+
+    static LazyDefinedClass generateStackMapFrameBytecode() throws Exception {
+
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS + ClassWriter.COMPUTE_FRAMES);
+        MethodVisitor mv;
+
+        cw.visit(V1_7, ACC_PUBLIC + ACC_SUPER, "StackMapFrameBytecode", null, "java/lang/Object",
+                new String[] {Test.class.getName().replace('.', '/')});
+
+        {
+            mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+            mv.visitCode();
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+            mv.visitInsn(RETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+        {
+            // returns x, or -1 (from the catch handler) if x is negative
+            mv = cw.visitMethod(ACC_PUBLIC, "catchHandler", "(I)I", null, null);
+            mv.visitCode();
+            Label tryStart = new Label();
+            Label tryEnd = new Label();
+            Label handler = new Label();
+            Label nonNegative = new Label();
+            mv.visitTryCatchBlock(tryStart, tryEnd, handler, "java/lang/IllegalStateException");
+            mv.visitLabel(tryStart);
+            mv.visitVarInsn(ILOAD, 1);
+            mv.visitJumpInsn(IFGE, nonNegative);
+            mv.visitTypeInsn(NEW, "java/lang/IllegalStateException");
+            mv.visitInsn(DUP);
+            mv.visitMethodInsn(INVOKESPECIAL, "java/lang/IllegalStateException", "<init>", "()V",
+                    false);
+            mv.visitInsn(ATHROW);
+            mv.visitLabel(nonNegative);
+            mv.visitVarInsn(ILOAD, 1);
+            mv.visitLabel(tryEnd);
+            mv.visitInsn(IRETURN);
+            mv.visitLabel(handler);
+            mv.visitVarInsn(ASTORE, 2);
+            mv.visitInsn(ICONST_M1);
+            mv.visitInsn(IRETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+        {
+            // returns different subtypes of the return type, which all reach the @OnReturn label
+            mv = cw.visitMethod(ACC_PUBLIC, "multipleReturnTypes", "(Z)Ljava/lang/CharSequence;",
+                    null, null);
+            mv.visitCode();
+            Label stringBuilder = new Label();
+            mv.visitVarInsn(ILOAD, 1);
+            mv.visitJumpInsn(IFEQ, stringBuilder);
+            mv.visitLdcInsn("abc");
+            mv.visitInsn(ARETURN);
+            mv.visitLabel(stringBuilder);
+            mv.visitTypeInsn(NEW, "java/lang/StringBuilder");
+            mv.visitInsn(DUP);
+            mv.visitLdcInsn("xyz");
+            mv.visitMethodInsn(INVOKESPECIAL, "java/lang/StringBuilder", "<init>",
+                    "(Ljava/lang/String;)V", false);
+            mv.visitInsn(ARETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+        {
+            mv = cw.visitMethod(ACC_PUBLIC, "tableSwitch", "(I)I", null, null);
+            mv.visitCode();
+            Label case0 = new Label();
+            Label case1 = new Label();
+            Label dflt = new Label();
+            mv.visitVarInsn(ILOAD, 1);
+            mv.visitTableSwitchInsn(0, 1, dflt, case0, case1);
+            mv.visitLabel(case0);
+            mv.visitInsn(ICONST_1);
+            mv.visitInsn(IRETURN);
+            mv.visitLabel(case1);
+            mv.visitInsn(ICONST_2);
+            mv.visitInsn(IRETURN);
+            mv.visitLabel(dflt);
+            mv.visitInsn(ICONST_0);
+            mv.visitInsn(IRETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+        {
+            mv = cw.visitMethod(ACC_PUBLIC, "lookupSwitch", "(I)I", null, null);
+            mv.visitCode();
+            Label case10 = new Label();
+            Label case20 = new Label();
+            Label dflt = new Label();
+            mv.visitVarInsn(ILOAD, 1);
+            mv.visitLookupSwitchInsn(dflt, new int[] {10, 20}, new Label[] {case10, case20});
+            mv.visitLabel(case10);
+            mv.visitInsn(ICONST_1);
+            mv.visitInsn(IRETURN);
+            mv.visitLabel(case20);
+            mv.visitInsn(ICONST_3);
+            mv.visitInsn(IRETURN);
+            mv.visitLabel(dflt);
+            mv.visitInsn(ICONST_0);
+            mv.visitInsn(IRETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+        cw.visitEnd();
+
+        return ImmutableLazyDefinedClass.builder()
+                .type(Type.getObjectType("StackMapFrameBytecode"))
+                .bytes(cw.toByteArray())
+                .build();
+    }
+
+    // this is a separate class since the whole class falls back to ClassWriter.COMPUTE_FRAMES
+    static LazyDefinedClass generateParameterSlotReuseBytecode() throws Exception {
+
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS + ClassWriter.COMPUTE_FRAMES);
+        MethodVisitor mv;
+
+        cw.visit(V1_7, ACC_PUBLIC + ACC_SUPER, "ParameterSlotReuseBytecode", null,
+                "java/lang/Object",
+                new String[] {ParameterSlotReuseTest.class.getName().replace('.', '/')});
+
+        {
+            mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+            mv.visitCode();
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+            mv.visitInsn(RETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+        {
+            // stores the length of the string parameter into the parameter's own slot, which
+            // javac never does, but other bytecode generators can (this is not supported by
+            // FrameUpdatingMethodVisitor)
+            mv = cw.visitMethod(ACC_PUBLIC, "parameterSlotReuse",
+                    "(Ljava/lang/String;)Ljava/lang/String;", null, null);
+            mv.visitCode();
+            Label empty = new Label();
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "length", "()I", false);
+            mv.visitVarInsn(ISTORE, 1);
+            mv.visitVarInsn(ILOAD, 1);
+            mv.visitJumpInsn(IFLE, empty);
+            mv.visitVarInsn(ILOAD, 1);
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/String", "valueOf",
+                    "(I)Ljava/lang/String;", false);
+            mv.visitInsn(ARETURN);
+            mv.visitLabel(empty);
+            mv.visitLdcInsn("empty");
+            mv.visitInsn(ARETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+        cw.visitEnd();
+
+        return ImmutableLazyDefinedClass.builder()
+                .type(Type.getObjectType("ParameterSlotReuseBytecode"))
+                .bytes(cw.toByteArray())
+                .build();
+    }
+
+    public interface Test {
+        int catchHandler(int x);
+        CharSequence multipleReturnTypes(boolean string);
+        int tableSwitch(int x);
+        int lookupSwitch(int x);
+    }
+
+    public interface ParameterSlotReuseTest {
+        String parameterSlotReuse(String s);
+    }
+}
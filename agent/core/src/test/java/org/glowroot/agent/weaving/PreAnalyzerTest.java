@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Resources;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+public class PreAnalyzerTest {
+
+    private File jarFile;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        jarFile = File.createTempFile("glowroot-unit-test-", ".jar");
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jarFile));
+        try {
+            addClass(out, Sub.class);
+            out.putNextEntry(new JarEntry("META-INF/versions/9/Ignored.class"));
+            out.write(new byte[] {1, 2, 3});
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+    }
+
+    @After
+    public void afterEachTest() {
+        jarFile.delete();
+    }
+
+    @Test
+    public void shouldPreAnalyzeSuperTypes() throws Exception {
+        // given
+        AnalyzedWorld analyzedWorld = mock(AnalyzedWorld.class);
+        ClassLoader loader = PreAnalyzerTest.class.getClassLoader();
+        // when
+        PreAnalyzer preAnalyzer =
+                PreAnalyzer.start(analyzedWorld, loader, ImmutableList.of(jarFile));
+        // then
+        verify(analyzedWorld, timeout(5000)).preAnalyze(Base.class.getName(), loader);
+        verify(analyzedWorld, timeout(5000)).preAnalyze(Runnable.class.getName(), loader);
+        preAnalyzer.close();
+        // Sub itself is not a super type, and java.lang.Object is always skipped
+        verify(analyzedWorld, timeout(5000).times(2)).preAnalyze(anyString(), eq(loader));
+    }
+
+    private static void addClass(JarOutputStream out, Class<?> clazz) throws Exception {
+        String path = ClassNames.toInternalName(clazz.getName()) + ".class";
+        out.putNextEntry(new JarEntry(path));
+        out.write(Resources.toByteArray(Resources.getResource(path)));
+        out.closeEntry();
+    }
+
+    public static class Base {}
+
+    public static class Sub extends Base implements Runnable {
+        @Override
+        public void run() {}
+    }
+}
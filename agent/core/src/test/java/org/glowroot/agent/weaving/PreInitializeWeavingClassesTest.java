@@ -41,7 +41,7 @@ public class PreInitializeWeavingClassesTest {
         globalCollector.processMethodFailIfNotFound(
                 ReferencedMethod.create("org/glowroot/agent/weaving/AnalyzedWorld", "<init>",
                         "(L" + getGuavaSupplierInternalName()
-                                + ";Ljava/util/List;Ljava/util/List;)V"));
+                                + ";Ljava/util/List;Ljava/util/List;Z)V"));
         // "call" WeavingClassFileTransformer constructor
         globalCollector.processMethodFailIfNotFound(
                 ReferencedMethod.create("org/glowroot/agent/weaving/WeavingClassFileTransformer",
@@ -1232,6 +1232,36 @@ public class SomeAspect {
         }
     }
 
+    @Pointcut(className = "org.glowroot.agent.weaving.GenerateStackMapFrameBytecode$Test"
+            + "|org.glowroot.agent.weaving.GenerateStackMapFrameBytecode$ParameterSlotReuseTest",
+            methodName = "*", methodParameterTypes = {".."}, timerName = "xyz")
+    public static class StackMapFrameBytecodeAdvice {
+        @IsEnabled
+        public static boolean isEnabled() {
+            SomeAspectThreadLocals.enabledCount.increment();
+            return true;
+        }
+        @OnBefore
+        public static String onBefore() {
+            SomeAspectThreadLocals.onBeforeCount.increment();
+            return "a traveler";
+        }
+        @OnReturn
+        public static void onReturn(@BindReturn Object value) {
+            SomeAspectThreadLocals.onReturnCount.increment();
+            SomeAspectThreadLocals.returnValue.set(value);
+        }
+        @OnThrow
+        public static void onThrow() {
+            SomeAspectThreadLocals.onThrowCount.increment();
+        }
+        @OnAfter
+        public static void onAfter(@BindTraveler String traveler) {
+            SomeAspectThreadLocals.onAfterCount.increment();
+            SomeAspectThreadLocals.onAfterTraveler.set(traveler);
+        }
+    }
+
     public static class TestClassMeta {
 
         private final Class<?> clazz;
@@ -24,9 +24,14 @@ import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import org.junit.After;
 import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
 
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.impl.ThreadContextImpl;
@@ -92,6 +97,7 @@ import org.glowroot.agent.weaving.SomeAspect.PrimitiveAdvice;
 import org.glowroot.agent.weaving.SomeAspect.PrimitiveWithAutoboxAdvice;
 import org.glowroot.agent.weaving.SomeAspect.PrimitiveWithWildcardAdvice;
 import org.glowroot.agent.weaving.SomeAspect.Shimmy;
+import org.glowroot.agent.weaving.SomeAspect.StackMapFrameBytecodeAdvice;
 import org.glowroot.agent.weaving.SomeAspect.StaticAdvice;
 import org.glowroot.agent.weaving.SomeAspect.SuperBasicAdvice;
 import org.glowroot.agent.weaving.SomeAspect.TargetedAdvice;
@@ -141,11 +147,30 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+@RunWith(Parameterized.class)
 public class WeaverTest {
 
+    // newWovenObject() is static (and is also used by other tests), so the parameter is passed to
+    // it through this field
+    private static boolean preserveFrames;
+
+    @Parameter
+    public boolean preserveFramesParameter;
+
+    @Parameters(name = "preserveFrames={0}")
+    public static List<Object[]> parameters() {
+        return ImmutableList.of(new Object[] {false}, new Object[] {true});
+    }
+
     @Before
     public void before() {
         SomeAspectThreadLocals.resetThreadLocals();
+        preserveFrames = preserveFramesParameter;
+    }
+
+    @After
+    public void after() {
+        preserveFrames = false;
     }
 
     // ===================== @IsEnabled =====================
@@ -872,13 +897,13 @@ public class WeaverTest {
         Supplier<List<Advice>> advisorsSupplier =
                 Suppliers.<List<Advice>>ofInstance(ImmutableList.copyOf(advisors));
         AnalyzedWorld analyzedWorld = new AnalyzedWorld(advisorsSupplier,
-                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of());
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of(), false);
         TransactionRegistry transactionRegistry = mock(TransactionRegistry.class);
         when(transactionRegistry.getCurrentThreadContextHolder())
                 .thenReturn(new FastThreadLocal<ThreadContextImpl>().getHolder());
         Weaver weaver = new Weaver(advisorsSupplier, ImmutableList.<ShimType>of(),
                 ImmutableList.<MixinType>of(), analyzedWorld, transactionRegistry,
-                new TimerNameCache(), mock(ConfigService.class));
+                new TimerNameCache(), mock(ConfigService.class), null, null, preserveFrames);
         isolatedWeavingClassLoader.setWeaver(weaver);
         Misc test = isolatedWeavingClassLoader.newInstance(BasicMisc.class, Misc.class);
         // when
@@ -1543,6 +1568,79 @@ public class WeaverTest {
         assertThat(SomeAspectThreadLocals.onAfterCount.get()).isEqualTo(1);
     }
 
+    // ===================== stack map frames =====================
+
+    @Test
+    public void shouldExecuteAdviceOnCatchHandlerBytecode() throws Exception {
+        // given
+        GenerateStackMapFrameBytecode.Test test = newStackMapFrameBytecodeObject();
+        // when
+        int value = test.catchHandler(1);
+        int caughtValue = test.catchHandler(-1);
+        // then
+        assertThat(value).isEqualTo(1);
+        assertThat(caughtValue).isEqualTo(-1);
+        assertThat(SomeAspectThreadLocals.onBeforeCount.get()).isEqualTo(2);
+        assertThat(SomeAspectThreadLocals.onReturnCount.get()).isEqualTo(2);
+        assertThat(SomeAspectThreadLocals.onThrowCount.get()).isEqualTo(0);
+        assertThat(SomeAspectThreadLocals.onAfterCount.get()).isEqualTo(2);
+        assertThat(SomeAspectThreadLocals.returnValue.get()).isEqualTo(-1);
+        assertThat(SomeAspectThreadLocals.onAfterTraveler.get()).isEqualTo("a traveler");
+    }
+
+    @Test
+    public void shouldExecuteAdviceOnMultipleReturnTypesBytecode() throws Exception {
+        // given
+        GenerateStackMapFrameBytecode.Test test = newStackMapFrameBytecodeObject();
+        // when
+        test.multipleReturnTypes(true);
+        Object stringReturnValue = SomeAspectThreadLocals.returnValue.get();
+        test.multipleReturnTypes(false);
+        Object stringBuilderReturnValue = SomeAspectThreadLocals.returnValue.get();
+        // then
+        assertThat(stringReturnValue).isEqualTo("abc");
+        assertThat(stringBuilderReturnValue).isInstanceOf(StringBuilder.class);
+        assertThat(stringBuilderReturnValue.toString()).isEqualTo("xyz");
+        assertThat(SomeAspectThreadLocals.onReturnCount.get()).isEqualTo(2);
+        assertThat(SomeAspectThreadLocals.onAfterCount.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldExecuteAdviceOnSwitchBytecode() throws Exception {
+        // given
+        GenerateStackMapFrameBytecode.Test test = newStackMapFrameBytecodeObject();
+        // when
+        int tableSwitchValue = test.tableSwitch(1);
+        int tableSwitchDefaultValue = test.tableSwitch(5);
+        int lookupSwitchValue = test.lookupSwitch(20);
+        int lookupSwitchDefaultValue = test.lookupSwitch(15);
+        // then
+        assertThat(tableSwitchValue).isEqualTo(2);
+        assertThat(tableSwitchDefaultValue).isEqualTo(0);
+        assertThat(lookupSwitchValue).isEqualTo(3);
+        assertThat(lookupSwitchDefaultValue).isEqualTo(0);
+        assertThat(SomeAspectThreadLocals.onReturnCount.get()).isEqualTo(4);
+        assertThat(SomeAspectThreadLocals.onAfterCount.get()).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldExecuteAdviceOnParameterSlotReuseBytecode() throws Exception {
+        // given
+        LazyDefinedClass implClass =
+                GenerateStackMapFrameBytecode.generateParameterSlotReuseBytecode();
+        GenerateStackMapFrameBytecode.ParameterSlotReuseTest test = newWovenObject(implClass,
+                GenerateStackMapFrameBytecode.ParameterSlotReuseTest.class,
+                StackMapFrameBytecodeAdvice.class);
+        // when
+        String value = test.parameterSlotReuse("abc");
+        String emptyValue = test.parameterSlotReuse("");
+        // then
+        assertThat(value).isEqualTo("3");
+        assertThat(emptyValue).isEqualTo("empty");
+        assertThat(SomeAspectThreadLocals.onReturnCount.get()).isEqualTo(2);
+        assertThat(SomeAspectThreadLocals.onAfterCount.get()).isEqualTo(2);
+    }
+
     @Test
     public void shouldExecuteAdviceOnMoreNotPerfectBytecodeVariant() throws Exception {
         // given
@@ -1586,12 +1684,14 @@ public class WeaverTest {
         }
         Supplier<List<Advice>> advisorsSupplier =
                 Suppliers.<List<Advice>>ofInstance(ImmutableList.copyOf(advisors));
-        AnalyzedWorld analyzedWorld = new AnalyzedWorld(advisorsSupplier, shimTypes, mixinTypes);
+        AnalyzedWorld analyzedWorld =
+                new AnalyzedWorld(advisorsSupplier, shimTypes, mixinTypes, false);
         TransactionRegistry transactionRegistry = mock(TransactionRegistry.class);
         when(transactionRegistry.getCurrentThreadContextHolder())
                 .thenReturn(new FastThreadLocal<ThreadContextImpl>().getHolder());
         Weaver weaver = new Weaver(advisorsSupplier, shimTypes, mixinTypes, analyzedWorld,
-                transactionRegistry, new TimerNameCache(), mock(ConfigService.class));
+                transactionRegistry, new TimerNameCache(), mock(ConfigService.class), null, null,
+                preserveFrames);
         isolatedWeavingClassLoader.setWeaver(weaver);
         return isolatedWeavingClassLoader.newInstance(implClass, bridgeClass);
     }
@@ -1625,12 +1725,13 @@ public class WeaverTest {
         Supplier<List<Advice>> advisorsSupplier =
                 Suppliers.<List<Advice>>ofInstance(ImmutableList.copyOf(advisors));
         AnalyzedWorld analyzedWorld =
-                new AnalyzedWorld(advisorsSupplier, shimTypes, mixinTypes);
+                new AnalyzedWorld(advisorsSupplier, shimTypes, mixinTypes, false);
         TransactionRegistry transactionRegistry = mock(TransactionRegistry.class);
         when(transactionRegistry.getCurrentThreadContextHolder())
                 .thenReturn(new FastThreadLocal<ThreadContextImpl>().getHolder());
         Weaver weaver = new Weaver(advisorsSupplier, shimTypes, mixinTypes, analyzedWorld,
-                transactionRegistry, new TimerNameCache(), mock(ConfigService.class));
+                transactionRegistry, new TimerNameCache(), mock(ConfigService.class), null, null,
+                preserveFrames);
         isolatedWeavingClassLoader.setWeaver(weaver);
 
         String className = toBeDefinedImplClass.type().getClassName();
@@ -1640,6 +1741,13 @@ public class WeaverTest {
         return isolatedWeavingClassLoader.newInstance(implClass, bridgeClass);
     }
 
+    private static GenerateStackMapFrameBytecode.Test newStackMapFrameBytecodeObject()
+            throws Exception {
+        LazyDefinedClass implClass = GenerateStackMapFrameBytecode.generateStackMapFrameBytecode();
+        return newWovenObject(implClass, GenerateStackMapFrameBytecode.Test.class,
+                StackMapFrameBytecodeAdvice.class);
+    }
+
     private static void assumeJdk7() {
         Assume.assumeFalse(StandardSystemProperty.JAVA_VERSION.value().startsWith("1.6"));
     }
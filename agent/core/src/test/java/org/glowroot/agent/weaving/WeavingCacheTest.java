@@ -0,0 +1,261 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Resources;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.impl.ThreadContextImpl;
+import org.glowroot.agent.impl.TimerNameCache;
+import org.glowroot.agent.impl.TransactionRegistry;
+import org.glowroot.agent.plugin.api.util.FastThreadLocal;
+import org.glowroot.agent.weaving.WeavingCache.CachedAnalyzedClass;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyListOf;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class WeavingCacheTest {
+
+    private static final List<Advice> NO_ADVISORS = ImmutableList.of();
+
+    private static final List<AnalyzedClass> NO_SUPER_TYPES = ImmutableList.of();
+
+    private File file;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        file = File.createTempFile("glowroot-unit-test-", ".dat");
+        // weaving cache is created on first use
+        file.delete();
+    }
+
+    @After
+    public void afterEachTest() {
+        file.delete();
+    }
+
+    @Test
+    public void shouldReadAnalyzedClassAfterRestart() {
+        // given
+        AnalyzedClass analyzedClass = createAnalyzedClass();
+        String key = WeavingCache.getKey("a/b/C", new byte[] {1, 2, 3});
+        WeavingCache weavingCache = createWeavingCache();
+        weavingCache.put(key, analyzedClass, NO_SUPER_TYPES, NO_ADVISORS);
+        weavingCache.close();
+        // when
+        weavingCache = createWeavingCache();
+        CachedAnalyzedClass cachedAnalyzedClass = weavingCache.get(key, NO_ADVISORS);
+        weavingCache.close();
+        // then
+        assertThat(cachedAnalyzedClass).isNotNull();
+        assertThat(cachedAnalyzedClass.analyzedClass())
+                .isEqualTo(ImmutableAnalyzedClass.copyOf(analyzedClass).withClassBytesHash(key));
+        assertThat(cachedAnalyzedClass.superTypeHashes()).isEmpty();
+    }
+
+    @Test
+    public void shouldReadSuperTypeHashesAfterRestart() {
+        // given
+        String key = WeavingCache.getKey("a/b/C", new byte[] {1, 2, 3});
+        String superKey = WeavingCache.getKey("a/b/Base", new byte[] {4, 5, 6});
+        WeavingCache weavingCache = createWeavingCache();
+        weavingCache.put(key, createAnalyzedClass(),
+                ImmutableList.of(createSuperAnalyzedClass(superKey)), NO_ADVISORS);
+        weavingCache.close();
+        // when
+        weavingCache = createWeavingCache();
+        CachedAnalyzedClass cachedAnalyzedClass = weavingCache.get(key, NO_ADVISORS);
+        weavingCache.close();
+        // then
+        assertThat(cachedAnalyzedClass).isNotNull();
+        assertThat(cachedAnalyzedClass.superTypeHashes())
+                .isEqualTo(ImmutableMap.of("a.b.Base", superKey));
+    }
+
+    @Test
+    public void shouldNotCacheClassWithUnknownSuperTypeHash() {
+        // given
+        String key = WeavingCache.getKey("a/b/C", new byte[] {1, 2, 3});
+        WeavingCache weavingCache = createWeavingCache();
+        weavingCache.put(key, createAnalyzedClass(),
+                ImmutableList.of(createSuperAnalyzedClass(null)), NO_ADVISORS);
+        weavingCache.close();
+        // when
+        weavingCache = createWeavingCache();
+        CachedAnalyzedClass cachedAnalyzedClass = weavingCache.get(key, NO_ADVISORS);
+        weavingCache.close();
+        // then
+        assertThat(cachedAnalyzedClass).isNull();
+    }
+
+    @Test
+    public void shouldUseCachedAnalysisWhenSuperTypesAreUnchanged() throws Exception {
+        // given
+        WeavingCache weavingCache = createWeavingCache();
+        weave(weavingCache, newAnalyzedWorld(), Sub.class);
+        weavingCache.close();
+        // when
+        weavingCache = spy(createWeavingCache());
+        weave(weavingCache, newAnalyzedWorld(), Sub.class);
+        weavingCache.close();
+        // then
+        verify(weavingCache, never()).invalidate(anyString());
+        verify(weavingCache, never()).put(anyString(), any(AnalyzedClass.class),
+                anyListOf(AnalyzedClass.class), anyListOf(Advice.class));
+    }
+
+    @Test
+    public void shouldNotUseCachedAnalysisWhenSuperTypeChanged() throws Exception {
+        // given
+        WeavingCache weavingCache = createWeavingCache();
+        weave(weavingCache, newAnalyzedWorld(), Sub.class);
+        weavingCache.close();
+        // same sub class bytes, but the super type now has different class bytes (e.g. after a
+        // library upgrade)
+        AnalyzedWorld analyzedWorld = newAnalyzedWorld();
+        analyzedWorld.add(ImmutableAnalyzedClass.builder()
+                .modifiers(1)
+                .name(Base.class.getName())
+                .superName("java.lang.Object")
+                .classBytesHash(WeavingCache.getKey("x", new byte[] {1}))
+                .build(), Sub.class.getClassLoader());
+        // when
+        weavingCache = spy(createWeavingCache());
+        weave(weavingCache, analyzedWorld, Sub.class);
+        weavingCache.close();
+        // then
+        String key = WeavingCache.getKey(ClassNames.toInternalName(Sub.class.getName()),
+                getBytes(Sub.class));
+        verify(weavingCache).invalidate(key);
+        verify(weavingCache).put(anyString(), any(AnalyzedClass.class),
+                anyListOf(AnalyzedClass.class), anyListOf(Advice.class));
+    }
+
+    @Test
+    public void shouldNotReadOtherClassBytes() {
+        // given
+        String key = WeavingCache.getKey("a/b/C", new byte[] {1, 2, 3});
+        WeavingCache weavingCache = createWeavingCache();
+        weavingCache.put(key, createAnalyzedClass(), NO_SUPER_TYPES, NO_ADVISORS);
+        weavingCache.close();
+        // when
+        weavingCache = createWeavingCache();
+        CachedAnalyzedClass cachedAnalyzedClass =
+                weavingCache.get(WeavingCache.getKey("a/b/C", new byte[] {1, 2, 4}), NO_ADVISORS);
+        weavingCache.close();
+        // then
+        assertThat(cachedAnalyzedClass).isNull();
+    }
+
+    @Test
+    public void shouldDiscardPartiallyWrittenEntry() throws Exception {
+        // given
+        String key = WeavingCache.getKey("a/b/C", new byte[] {1, 2, 3});
+        WeavingCache weavingCache = createWeavingCache();
+        weavingCache.put(key, createAnalyzedClass(), NO_SUPER_TYPES, NO_ADVISORS);
+        weavingCache.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 1);
+        raf.close();
+        // when
+        weavingCache = createWeavingCache();
+        CachedAnalyzedClass cachedAnalyzedClass = weavingCache.get(key, NO_ADVISORS);
+        weavingCache.close();
+        // then
+        assertThat(cachedAnalyzedClass).isNull();
+    }
+
+    private static void weave(WeavingCache weavingCache, AnalyzedWorld analyzedWorld,
+            Class<?> clazz) throws Exception {
+        TransactionRegistry transactionRegistry = mock(TransactionRegistry.class);
+        when(transactionRegistry.getCurrentThreadContextHolder())
+                .thenReturn(new FastThreadLocal<ThreadContextImpl>().getHolder());
+        Weaver weaver = new Weaver(Suppliers.ofInstance(NO_ADVISORS),
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of(), analyzedWorld,
+                transactionRegistry, new TimerNameCache(), mock(ConfigService.class), weavingCache,
+                null, false);
+        weaver.weave(getBytes(clazz), ClassNames.toInternalName(clazz.getName()), false, null,
+                clazz.getClassLoader());
+    }
+
+    private static AnalyzedWorld newAnalyzedWorld() {
+        return new AnalyzedWorld(Suppliers.ofInstance(NO_ADVISORS), ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of(), true);
+    }
+
+    private static byte[] getBytes(Class<?> clazz) throws Exception {
+        return Resources.toByteArray(
+                Resources.getResource(ClassNames.toInternalName(clazz.getName()) + ".class"));
+    }
+
+    private WeavingCache createWeavingCache() {
+        Supplier<List<Advice>> advisorsSupplier = Suppliers.ofInstance(NO_ADVISORS);
+        return new WeavingCache(file, advisorsSupplier, ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of());
+    }
+
+    private static AnalyzedClass createAnalyzedClass() {
+        return ImmutableAnalyzedClass.builder()
+                .modifiers(1)
+                .name("a.b.C")
+                .superName("java.lang.Object")
+                .addInterfaceNames("java.io.Serializable")
+                .addAnalyzedMethods(ImmutableAnalyzedMethod.builder()
+                        .name("m")
+                        .addParameterTypes("int")
+                        .returnType("void")
+                        .modifiers(1)
+                        .addExceptions("java.io.IOException")
+                        .build())
+                .addPublicFinalMethods(ImmutablePublicFinalMethod.builder()
+                        .name("f")
+                        .build())
+                .build();
+    }
+
+    private static AnalyzedClass createSuperAnalyzedClass(@Nullable String classBytesHash) {
+        return ImmutableAnalyzedClass.builder()
+                .modifiers(1)
+                .name("a.b.Base")
+                .superName("java.lang.Object")
+                .classBytesHash(classBytesHash)
+                .build();
+    }
+
+    public static class Base {}
+
+    public static class Sub extends Base {}
+}
@@ -50,6 +50,7 @@ import org.slf4j.bridge.SLF4JBridgeHandler;
 import org.glowroot.central.repo.AgentDao;
 import org.glowroot.central.repo.AggregateDao;
 import org.glowroot.central.repo.CentralConfigDao;
+import org.glowroot.central.repo.CentralNodeDao;
 import org.glowroot.central.repo.ConfigDao;
 import org.glowroot.central.repo.ConfigRepositoryImpl;
 import org.glowroot.central.repo.ConfigRepositoryImpl.AgentConfigListener;
@@ -65,6 +66,7 @@ import org.glowroot.central.repo.TraceDao;
 import org.glowroot.central.repo.TransactionTypeDao;
 import org.glowroot.central.repo.TriggeredAlertDao;
 import org.glowroot.central.repo.UserDao;
+import org.glowroot.central.util.AsyncQueryLimiter;
 import org.glowroot.central.util.MailService;
 import org.glowroot.central.util.Sessions;
 import org.glowroot.common.config.ImmutableWebConfig;
@@ -187,16 +189,19 @@ class CentralModule {
             TransactionTypeDao transactionTypeDao =
                     new TransactionTypeDao(session, configRepository);
             FullQueryTextDao fullQueryTextDao = new FullQueryTextDao(session, configRepository);
+            // shared by all of the rollup worker threads
+            AsyncQueryLimiter rollupQueryLimiter =
+                    new AsyncQueryLimiter(centralConfig.rollupMaxConcurrentQueries());
             AggregateDao aggregateDao = new AggregateDao(session, agentDao, transactionTypeDao,
-                    fullQueryTextDao, configRepository, clock);
+                    fullQueryTextDao, configRepository, rollupQueryLimiter, clock);
             TraceAttributeNameDao traceAttributeNameDao =
                     new TraceAttributeNameDao(session, configRepository);
             TraceDao traceDao = new TraceDao(session, agentDao, transactionTypeDao,
                     fullQueryTextDao, traceAttributeNameDao, configRepository, clock);
-            GaugeValueDao gaugeValueDao =
-                    new GaugeValueDao(session, agentDao, configRepository, clock);
-            SyntheticResultDao syntheticResultDao =
-                    new SyntheticResultDao(session, configRepository, clock);
+            GaugeValueDao gaugeValueDao = new GaugeValueDao(session, agentDao, configRepository,
+                    rollupQueryLimiter, clock);
+            SyntheticResultDao syntheticResultDao = new SyntheticResultDao(session,
+                    configRepository, rollupQueryLimiter, clock);
             EnvironmentDao environmentDao = new EnvironmentDao(session);
             HeartbeatDao heartbeatDao = new HeartbeatDao(session, agentDao, clock);
             TriggeredAlertDao triggeredAlertDao = new TriggeredAlertDao(session);
@@ -224,7 +229,8 @@ class CentralModule {
             });
             rollupService = new RollupService(agentDao, aggregateDao, gaugeValueDao,
                     syntheticResultDao, heartbeatDao, configRepository, alertingService,
-                    downstreamService, clock);
+                    downstreamService, new CentralNodeDao(session, clock),
+                    centralConfig.rollupThreads(), clock);
             pingAndSyntheticAlertService = new SyntheticMonitorService(agentDao, configRepository,
                     triggeredAlertDao, alertingService, syntheticResultDao, ticker, clock);
 
@@ -358,6 +364,14 @@ class CentralModule {
         if (!Strings.isNullOrEmpty(uiPortText)) {
             builder.uiPortOverride(Integer.parseInt(uiPortText));
         }
+        String rollupThreadsText = props.getProperty("rollup.threads");
+        if (!Strings.isNullOrEmpty(rollupThreadsText)) {
+            builder.rollupThreads(Integer.parseInt(rollupThreadsText));
+        }
+        String rollupMaxConcurrentQueriesText = props.getProperty("rollup.maxConcurrentQueries");
+        if (!Strings.isNullOrEmpty(rollupMaxConcurrentQueriesText)) {
+            builder.rollupMaxConcurrentQueries(Integer.parseInt(rollupMaxConcurrentQueriesText));
+        }
         return builder.build();
     }
 
@@ -469,6 +483,14 @@ class CentralModule {
         }
         abstract @Nullable String uiBindAddressOverride();
         abstract @Nullable Integer uiPortOverride();
+        @Value.Default
+        int rollupThreads() {
+            return 4;
+        }
+        @Value.Default
+        int rollupMaxConcurrentQueries() {
+            return 512;
+        }
     }
 
     private static class RepoAdminImpl implements RepoAdmin {
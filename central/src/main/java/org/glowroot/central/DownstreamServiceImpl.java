@@ -17,15 +17,20 @@ package org.glowroot.central;
 
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Exchanger;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
 import com.google.common.collect.Maps;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.slf4j.Logger;
@@ -35,12 +40,16 @@ import org.glowroot.central.repo.AgentDao;
 import org.glowroot.central.repo.AgentDao.AgentConfigUpdate;
 import org.glowroot.central.repo.ConfigDao;
 import org.glowroot.common.live.ImmutableEntries;
+import org.glowroot.common.live.ImmutableFullTrace;
 import org.glowroot.common.live.LiveJvmService.AgentNotConnectedException;
 import org.glowroot.common.live.LiveJvmService.AgentUnsupportedOperationException;
 import org.glowroot.common.live.LiveJvmService.DirectoryDoesNotExistException;
 import org.glowroot.common.live.LiveJvmService.UnavailableDueToRunningInIbmJvmException;
 import org.glowroot.common.live.LiveJvmService.UnavailableDueToRunningInJreException;
+import org.glowroot.common.live.LiveTraceRepository.ChunkedEntries;
 import org.glowroot.common.live.LiveTraceRepository.Entries;
+import org.glowroot.common.live.LiveTraceRepository.FullTrace;
+import org.glowroot.common.live.LiveTraceRepository.UnchunkedEntries;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.DownstreamServiceGrpc.DownstreamServiceImplBase;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.AgentConfigUpdateRequest;
@@ -101,6 +110,9 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
     // log startup messages using logger name "org.glowroot"
     private static final Logger startupLogger = LoggerFactory.getLogger("org.glowroot");
 
+    // max chunks of a chunked response that are received from the agent ahead of being consumed
+    private static final int MAX_QUEUED_CHUNKS = 4;
+
     private final Map<String, ConnectedAgent> connectedAgents = Maps.newConcurrentMap();
     private final AgentDao agentDao;
     private final ConfigDao configDao;
@@ -112,7 +124,15 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
 
     @Override
     public StreamObserver<AgentResponse> connect(StreamObserver<CentralRequest> requestObserver) {
-        return new ConnectedAgent(requestObserver);
+        ConnectedAgent connectedAgent = new ConnectedAgent(requestObserver);
+        if (requestObserver instanceof ServerCallStreamObserver) {
+            // responses are requested from the agent one at a time, see ConnectedAgent.onNext()
+            ServerCallStreamObserver<CentralRequest> serverCallStreamObserver =
+                    (ServerCallStreamObserver<CentralRequest>) requestObserver;
+            serverCallStreamObserver.disableAutoInboundFlowControl();
+            serverCallStreamObserver.request(1);
+        }
+        return connectedAgent;
     }
 
     void updateAgentConfigIfConnectedAndNeeded(String agentId) throws Exception {
@@ -281,7 +301,7 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
     }
 
     @Nullable
-    Entries getEntries(String agentId, String traceId) throws Exception {
+    ChunkedEntries getEntries(String agentId, String traceId) throws Exception {
         ConnectedAgent connectedAgent = connectedAgents.get(agentId);
         if (connectedAgent == null) {
             throw new AgentNotConnectedException();
@@ -308,7 +328,7 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
     }
 
     @Nullable
-    Trace getFullTrace(String agentId, String traceId) throws Exception {
+    FullTrace getFullTrace(String agentId, String traceId) throws Exception {
         ConnectedAgent connectedAgent = connectedAgents.get(agentId);
         if (connectedAgent == null) {
             throw new AgentNotConnectedException();
@@ -320,9 +340,17 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
 
         private final AtomicLong nextRequestId = new AtomicLong(1);
 
-        // expiration in the unlikely case that response is never returned from agent
+        // expiration in the unlikely case that response is never returned from agent (or that a
+        // chunked response is never read to the end or closed, in which case closing it resumes
+        // reading responses from the agent)
         private final Cache<Long, ResponseHolder> responseHolders = CacheBuilder.newBuilder()
                 .expireAfterWrite(1, HOURS)
+                .removalListener((RemovalNotification<Long, ResponseHolder> notification) -> {
+                    ResponseHolder responseHolder = notification.getValue();
+                    if (notification.wasEvicted() && responseHolder != null) {
+                        responseHolder.close();
+                    }
+                })
                 .build();
 
         private volatile @MonotonicNonNull String agentId;
@@ -333,8 +361,19 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
             this.requestObserver = requestObserver;
         }
 
+        // this never blocks (which would hold up the grpc executor thread), instead the next
+        // response is not requested from the agent while the queue of unread chunks is full, which
+        // applies backpressure to the agent via grpc flow control
         @Override
         public void onNext(AgentResponse value) {
+            if (!onNextInternal(value)) {
+                requestNextResponse();
+            }
+        }
+
+        // returns true if reading responses from the agent has been paused until the response
+        // holder's queued chunks are read (or the response holder is closed)
+        private boolean onNextInternal(AgentResponse value) {
             if (value.getMessageCase() == MessageCase.HELLO) {
                 agentId = value.getHello().getAgentId();
                 connectedAgents.put(agentId, ConnectedAgent.this);
@@ -345,27 +384,29 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
                 }
                 startupLogger.info("downstream connection (re-)established with agent: {}",
                         getDisplayForLogging(agentId));
-                return;
+                return false;
             }
             if (agentId == null) {
                 logger.error("first message from agent to downstream service must be HELLO");
-                return;
+                return false;
             }
             long requestId = value.getRequestId();
             ResponseHolder responseHolder = responseHolders.getIfPresent(requestId);
-            responseHolders.invalidate(requestId);
+            if (!hasMoreChunks(value)) {
+                responseHolders.invalidate(requestId);
+            }
             if (responseHolder == null) {
                 logger.error("no response holder for request id: {}", requestId);
-                return;
+                return false;
             }
-            try {
-                // this shouldn't timeout since it is the other side of the exchange that is waiting
-                responseHolder.response.exchange(value, 1, MINUTES);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                logger.error("{} - {}", getDisplayForLogging(agentId), e.getMessage(), e);
-            } catch (TimeoutException e) {
-                logger.error("{} - {}", getDisplayForLogging(agentId), e.getMessage(), e);
+            return responseHolder.add(value);
+        }
+
+        private void requestNextResponse() {
+            if (requestObserver instanceof ServerCallStreamObserver) {
+                // request() is thread-safe, so this is also called from the threads reading the
+                // chunks, see ResponseHolder
+                ((ServerCallStreamObserver<CentralRequest>) requestObserver).request(1);
             }
         }
 
@@ -587,21 +628,22 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
             }
         }
 
-        private @Nullable Entries getEntries(String traceId) throws Exception {
-            AgentResponse responseWrapper = sendRequest(CentralRequest.newBuilder()
+        private @Nullable ChunkedEntries getEntries(String traceId) throws Exception {
+            CentralRequest request = CentralRequest.newBuilder()
                     .setRequestId(nextRequestId.getAndIncrement())
                     .setEntriesRequest(EntriesRequest.newBuilder()
-                            .setTraceId(traceId))
-                    .build());
+                            .setTraceId(traceId)
+                            .setChunked(true))
+                    .build();
+            ResponseHolder responseHolder = sendRequestInternal(request);
+            // older agents ignore the chunked flag and respond with a single message
+            AgentResponse responseWrapper = pollResponse(request.getRequestId(), responseHolder);
             EntriesResponse response = responseWrapper.getEntriesResponse();
-            List<Trace.Entry> entries = response.getEntryList();
-            if (entries.isEmpty()) {
+            if (response.getEntryCount() == 0 && !response.getMoreChunks()) {
                 return null;
             }
-            return ImmutableEntries.builder()
-                    .addAllEntries(entries)
-                    .addAllSharedQueryTexts(response.getSharedQueryTextList())
-                    .build();
+            return new AgentChunkedEntries(request.getRequestId(), responseHolder,
+                    responseWrapper);
         }
 
         private @Nullable Profile getMainThreadProfile(String traceId) throws Exception {
@@ -632,31 +674,65 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
             }
         }
 
-        private @Nullable Trace getFullTrace(String traceId) throws Exception {
-            AgentResponse responseWrapper = sendRequest(CentralRequest.newBuilder()
+        private @Nullable FullTrace getFullTrace(String traceId) throws Exception {
+            CentralRequest request = CentralRequest.newBuilder()
                     .setRequestId(nextRequestId.getAndIncrement())
                     .setFullTraceRequest(FullTraceRequest.newBuilder()
-                            .setTraceId(traceId))
-                    .build());
-            FullTraceResponse response = responseWrapper.getFullTraceResponse();
-            if (response.hasTrace()) {
-                return response.getTrace();
-            } else {
+                            .setTraceId(traceId)
+                            .setChunked(true))
+                    .build();
+            ResponseHolder responseHolder = sendRequestInternal(request);
+            FullTraceResponse response =
+                    pollResponse(request.getRequestId(), responseHolder).getFullTraceResponse();
+            if (!response.hasTrace()) {
                 return null;
             }
+            Trace trace = response.getTrace();
+            if (!response.getMoreChunks()) {
+                // older agents ignore the chunked flag and respond with a single message that has
+                // the entries in the trace
+                return ImmutableFullTrace.builder()
+                        .trace(trace.toBuilder()
+                                .clearEntry()
+                                .clearSharedQueryText()
+                                .build())
+                        .entries(new UnchunkedEntries(ImmutableEntries.builder()
+                                .addAllEntries(trace.getEntryList())
+                                .addAllSharedQueryTexts(trace.getSharedQueryTextList())
+                                .build()))
+                        .build();
+            }
+            // first chunk is the trace without entries, remaining chunks are the entries
+            return ImmutableFullTrace.builder()
+                    .trace(trace)
+                    .entries(new AgentChunkedEntries(request.getRequestId(), responseHolder, null))
+                    .build();
         }
 
         private AgentResponse sendRequest(CentralRequest request) throws Exception {
-            ResponseHolder responseHolder = new ResponseHolder();
+            ResponseHolder responseHolder = sendRequestInternal(request);
+            return pollResponse(request.getRequestId(), responseHolder);
+        }
+
+        private ResponseHolder sendRequestInternal(CentralRequest request) {
+            ResponseHolder responseHolder = new ResponseHolder(this::requestNextResponse);
             responseHolders.put(request.getRequestId(), responseHolder);
             // synchronization required since individual StreamObservers are not thread-safe
             synchronized (requestObserver) {
                 requestObserver.onNext(request);
             }
-            // timeout is in case agent never responds
-            // passing AgentResponse.getDefaultInstance() is just dummy (non-null) value
-            AgentResponse response = responseHolder.response
-                    .exchange(AgentResponse.getDefaultInstance(), 1, MINUTES);
+            return responseHolder;
+        }
+
+        private AgentResponse pollResponse(long requestId, ResponseHolder responseHolder)
+                throws Exception {
+            // timeout is in case agent never responds (applied to each chunk of a chunked
+            // response, so that large traces are not subject to a single overall timeout)
+            AgentResponse response = responseHolder.poll(1, MINUTES);
+            if (response == null) {
+                responseHolders.invalidate(requestId);
+                throw new TimeoutException();
+            }
             if (response.getMessageCase() == MessageCase.UNKNOWN_REQUEST_RESPONSE) {
                 throw new AgentUnsupportedOperationException();
             }
@@ -666,6 +742,59 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
             return response;
         }
 
+        // the remaining chunks are read from the agent as they are consumed (e.g. as they are
+        // written to the browser), see ResponseHolder
+        private class AgentChunkedEntries implements ChunkedEntries {
+
+            private final long requestId;
+            private final ResponseHolder responseHolder;
+
+            // response that has already been read from the response holder
+            private @Nullable AgentResponse nextResponse;
+            private boolean moreChunks = true;
+
+            private AgentChunkedEntries(long requestId, ResponseHolder responseHolder,
+                    @Nullable AgentResponse firstResponse) {
+                this.requestId = requestId;
+                this.responseHolder = responseHolder;
+                nextResponse = firstResponse;
+            }
+
+            @Override
+            public @Nullable Entries readNextChunk() throws Exception {
+                AgentResponse response = nextResponse;
+                if (response == null) {
+                    if (!moreChunks) {
+                        return null;
+                    }
+                    response = pollResponse(requestId, responseHolder);
+                } else {
+                    nextResponse = null;
+                }
+                moreChunks = hasMoreChunks(response);
+                if (response.getMessageCase() == MessageCase.FULL_TRACE_RESPONSE) {
+                    FullTraceResponse fullTraceResponse = response.getFullTraceResponse();
+                    return ImmutableEntries.builder()
+                            .addAllEntries(fullTraceResponse.getEntryList())
+                            .addAllSharedQueryTexts(
+                                    fullTraceResponse.getEntrySharedQueryTextList())
+                            .build();
+                }
+                EntriesResponse entriesResponse = response.getEntriesResponse();
+                return ImmutableEntries.builder()
+                        .addAllEntries(entriesResponse.getEntryList())
+                        .addAllSharedQueryTexts(entriesResponse.getSharedQueryTextList())
+                        .build();
+            }
+
+            @Override
+            public void close() {
+                if (moreChunks) {
+                    responseHolder.close();
+                }
+            }
+        }
+
         private String getDisplayForLogging(String agentRollupId) {
             try {
                 return agentDao.readAgentRollupDisplay(agentRollupId);
@@ -676,8 +805,78 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
         }
     }
 
+    private static boolean hasMoreChunks(AgentResponse response) {
+        switch (response.getMessageCase()) {
+            case ENTRIES_RESPONSE:
+                return response.getEntriesResponse().getMoreChunks();
+            case FULL_TRACE_RESPONSE:
+                return response.getFullTraceResponse().getMoreChunks();
+            default:
+                return false;
+        }
+    }
+
+    // the chunks of a large response are only received from the agent as quickly as they are
+    // consumed, once MAX_QUEUED_CHUNKS are queued, no further responses are requested from the agent
+    // until a chunk is read (or the response holder is closed)
     private static class ResponseHolder {
-        private final Exchanger<AgentResponse> response = new Exchanger<>();
+
+        private final BlockingQueue<AgentResponse> responses = new LinkedBlockingQueue<>();
+
+        private final Runnable requestNextResponse;
+
+        @GuardedBy("this")
+        private boolean inboundPaused;
+
+        // once closed, any remaining chunks are discarded
+        @GuardedBy("this")
+        private boolean closed;
+
+        private ResponseHolder(Runnable requestNextResponse) {
+            this.requestNextResponse = requestNextResponse;
+        }
+
+        // called on the grpc executor thread, returns true if reading responses from the agent
+        // has been paused, in which case it is resumed by poll() or close()
+        private synchronized boolean add(AgentResponse response) {
+            if (closed) {
+                // the remaining chunks are no longer needed
+                return false;
+            }
+            responses.add(response);
+            if (hasMoreChunks(response) && responses.size() >= MAX_QUEUED_CHUNKS) {
+                inboundPaused = true;
+            }
+            return inboundPaused;
+        }
+
+        private @Nullable AgentResponse poll(long timeout, TimeUnit unit)
+                throws InterruptedException {
+            AgentResponse response = responses.poll(timeout, unit);
+            if (response != null) {
+                resumeIfPaused();
+            }
+            return response;
+        }
+
+        private void close() {
+            synchronized (this) {
+                closed = true;
+                responses.clear();
+            }
+            resumeIfPaused();
+        }
+
+        private void resumeIfPaused() {
+            synchronized (this) {
+                if (!inboundPaused) {
+                    return;
+                }
+                inboundPaused = false;
+            }
+            // called outside of the lock since this calls into grpc
+            requestNextResponse.run();
+        }
     }
 
     @SuppressWarnings("serial")
@@ -104,7 +104,11 @@ public class GlowrootServlet extends HttpServlet {
             if (zipFileName == null) {
                 PrintWriter out = res.getWriter();
                 ChunkCopier copier = chunkSource.getCopier(out);
-                while (copier.copyNext()) {
+                try {
+                    while (copier.copyNext()) {
+                    }
+                } finally {
+                    copier.close();
                 }
                 out.flush();
             } else {
@@ -113,7 +117,11 @@ public class GlowrootServlet extends HttpServlet {
                 zipOut.putNextEntry(new ZipEntry(zipFileName + ".html"));
                 OutputStreamWriter zipWriter = new OutputStreamWriter(zipOut, Charsets.UTF_8);
                 ChunkCopier copier = chunkSource.getCopier(zipWriter);
-                while (copier.copyNext()) {
+                try {
+                    while (copier.copyNext()) {
+                    }
+                } finally {
+                    copier.close();
                 }
                 zipWriter.close();
                 out.flush();
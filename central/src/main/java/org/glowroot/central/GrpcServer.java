@@ -18,15 +18,15 @@ package org.glowroot.central;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.annotation.Nullable;
+
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import io.grpc.internal.ServerImpl;
 import io.grpc.netty.NettyServerBuilder;
 import io.grpc.stub.StreamObserver;
@@ -38,6 +38,7 @@ import org.slf4j.LoggerFactory;
 import org.glowroot.agent.api.Instrumentation;
 import org.glowroot.central.repo.AgentDao;
 import org.glowroot.central.repo.AggregateDao;
+import org.glowroot.central.repo.AggregateDao.AggregateStreamWriter;
 import org.glowroot.central.repo.ConfigDao;
 import org.glowroot.central.repo.ConfigRepositoryImpl;
 import org.glowroot.central.repo.EnvironmentDao;
@@ -50,7 +51,6 @@ import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertKind;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
-import org.glowroot.wire.api.model.AggregateOuterClass.OldTransactionAggregate;
 import org.glowroot.wire.api.model.CollectorServiceGrpc.CollectorServiceImplBase;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateResponseMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamHeader;
@@ -126,8 +126,8 @@ class GrpcServer {
         server = NettyServerBuilder.forAddress(new InetSocketAddress(bindAddress, port))
                 .addService(new CollectorServiceImpl().bindService())
                 .addService(downstreamService.bindService())
-                // need to override default max message size of 4mb until streaming is implemented
-                // for DownstreamService.EntriesResponse and FullTraceResponse
+                // need to override default max message size of 4mb for agents prior to 0.9.13 which
+                // do not chunk DownstreamService.EntriesResponse and FullTraceResponse
                 .maxMessageSize(64 * 1024 * 1024)
                 .build()
                 .start();
@@ -199,36 +199,53 @@ class GrpcServer {
             return new StreamObserver<AggregateStreamMessage>() {
 
                 private @MonotonicNonNull AggregateStreamHeader streamHeader;
-                private List<Aggregate.SharedQueryText> sharedQueryTexts = Lists.newArrayList();
-                private Map<String, OldAggregatesByType.Builder> aggregatesByTypeMap =
-                        Maps.newHashMap();
+                private @MonotonicNonNull AggregateStreamWriter writer;
+                // once a write fails, the remainder of the stream is ignored and the failure is
+                // reported back to the agent (which will then re-send the whole stream)
+                private @Nullable Throwable failure;
 
                 @Override
                 public void onNext(AggregateStreamMessage value) {
+                    if (failure != null) {
+                        return;
+                    }
+                    try {
+                        onNextInternal(value);
+                    } catch (Throwable t) {
+                        if (streamHeader == null) {
+                            logger.error(t.getMessage(), t);
+                        } else {
+                            logger.error("{} - {}",
+                                    getDisplayForLogging(streamHeader.getAgentId()),
+                                    t.getMessage(), t);
+                        }
+                        failure = t;
+                    }
+                }
+
+                private void onNextInternal(AggregateStreamMessage value) throws Exception {
                     switch (value.getMessageCase()) {
                         case STREAM_HEADER:
                             streamHeader = value.getStreamHeader();
+                            writer = aggregateDao.startStore(streamHeader.getAgentId(),
+                                    streamHeader.getCaptureTime());
                             break;
                         case SHARED_QUERY_TEXT:
-                            sharedQueryTexts.add(value.getSharedQueryText());
+                            checkNotNull(writer).addSharedQueryText(value.getSharedQueryText());
                             break;
                         case OVERALL_AGGREGATE:
                             OverallAggregate overallAggregate = value.getOverallAggregate();
-                            String transactionType = overallAggregate.getTransactionType();
-                            aggregatesByTypeMap.put(transactionType,
-                                    OldAggregatesByType.newBuilder()
-                                            .setTransactionType(transactionType)
-                                            .setOverallAggregate(overallAggregate.getAggregate()));
+                            checkNotNull(writer).storeOverallAggregate(
+                                    overallAggregate.getTransactionType(),
+                                    overallAggregate.getAggregate());
                             break;
                         case TRANSACTION_AGGREGATE:
                             TransactionAggregate transactionAggregate =
                                     value.getTransactionAggregate();
-                            OldAggregatesByType.Builder builder = checkNotNull(aggregatesByTypeMap
-                                    .get(transactionAggregate.getTransactionType()));
-                            builder.addTransactionAggregate(OldTransactionAggregate.newBuilder()
-                                    .setTransactionName(transactionAggregate.getTransactionName())
-                                    .setAggregate(transactionAggregate.getAggregate())
-                                    .build());
+                            checkNotNull(writer).storeTransactionAggregate(
+                                    transactionAggregate.getTransactionType(),
+                                    transactionAggregate.getTransactionName(),
+                                    transactionAggregate.getAggregate());
                             break;
                         default:
                             throw new RuntimeException(
@@ -252,15 +269,20 @@ class GrpcServer {
                         timer = "aggregates")
                 @Override
                 public void onCompleted() {
+                    if (failure != null) {
+                        responseObserver.onError(failure);
+                        return;
+                    }
                     checkNotNull(streamHeader);
-                    List<OldAggregatesByType> aggregatesByTypeList = Lists.newArrayList();
-                    for (OldAggregatesByType.Builder aggregatesByType : aggregatesByTypeMap
-                            .values()) {
-                        aggregatesByTypeList.add(aggregatesByType.build());
+                    String agentId = streamHeader.getAgentId();
+                    try {
+                        checkNotNull(writer).complete();
+                    } catch (Throwable t) {
+                        logger.error("{} - {}", getDisplayForLogging(agentId), t.getMessage(), t);
+                        responseObserver.onError(t);
+                        return;
                     }
-                    collectAggregatesInternal(streamHeader.getAgentId(),
-                            streamHeader.getCaptureTime(),
-                            sharedQueryTexts, aggregatesByTypeList, responseObserver);
+                    onAggregatesStored(agentId, streamHeader.getCaptureTime(), responseObserver);
                 }
             };
         }
@@ -302,6 +324,11 @@ class GrpcServer {
                     return;
                 }
             }
+            onAggregatesStored(agentId, captureTime, responseObserver);
+        }
+
+        private void onAggregatesStored(String agentId, long captureTime,
+                StreamObserver<AggregateResponseMessage> responseObserver) {
             String agentDisplay;
             try {
                 agentDisplay = agentDao.readAgentRollupDisplay(agentId);
@@ -45,8 +45,8 @@ class LiveTraceRepositoryImpl implements LiveTraceRepository {
     }
 
     @Override
-    public @Nullable Entries getEntries(String agentRollupId, String agentId, String traceId)
-            throws Exception {
+    public @Nullable ChunkedEntries getEntries(String agentRollupId, String agentId,
+            String traceId) throws Exception {
         checkValidAgentIdForRequest(agentRollupId, agentId);
         return downstreamService.getEntries(agentId, traceId);
     }
@@ -67,7 +67,7 @@ class LiveTraceRepositoryImpl implements LiveTraceRepository {
     }
 
     @Override
-    public @Nullable Trace getFullTrace(String agentRollupId, String agentId, String traceId)
+    public @Nullable FullTrace getFullTrace(String agentRollupId, String agentId, String traceId)
             throws Exception {
         checkValidAgentIdForRequest(agentRollupId, agentId);
         return downstreamService.getFullTrace(agentId, traceId);
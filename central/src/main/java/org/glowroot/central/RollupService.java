@@ -15,14 +15,20 @@
  */
 package org.glowroot.central;
 
+import java.lang.management.ManagementFactory;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.annotation.Nullable;
+import javax.management.ObjectName;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,6 +36,7 @@ import org.glowroot.agent.api.Glowroot;
 import org.glowroot.agent.api.Instrumentation;
 import org.glowroot.central.repo.AgentDao;
 import org.glowroot.central.repo.AggregateDao;
+import org.glowroot.central.repo.CentralNodeDao;
 import org.glowroot.central.repo.ConfigRepositoryImpl;
 import org.glowroot.central.repo.GaugeValueDao;
 import org.glowroot.central.repo.HeartbeatDao;
@@ -46,6 +53,8 @@ class RollupService implements Runnable {
 
     private static final Logger logger = LoggerFactory.getLogger(RollupService.class);
 
+    private static final String MBEAN_NAME = "org.glowroot.central:type=RollupService";
+
     private final AgentDao agentDao;
     private final AggregateDao aggregateDao;
     private final GaugeValueDao gaugeValueDao;
@@ -56,7 +65,14 @@ class RollupService implements Runnable {
     private final DownstreamServiceImpl downstreamService;
     private final Clock clock;
 
+    private final RollupSharding rollupSharding;
+
     private final ExecutorService executor;
+    // top level agent rollups are independent of each other, so each one (along with its children)
+    // is rolled up on a worker thread
+    private final ExecutorService workerExecutor;
+
+    private final RollupServiceStats stats = new RollupServiceStats();
 
     private final Stopwatch stopwatch = Stopwatch.createStarted();
 
@@ -65,7 +81,8 @@ class RollupService implements Runnable {
     RollupService(AgentDao agentDao, AggregateDao aggregateDao, GaugeValueDao gaugeValueDao,
             SyntheticResultDao syntheticResultDao, HeartbeatDao heartbeatDao,
             ConfigRepositoryImpl configRepository, AlertingService alertingService,
-            DownstreamServiceImpl downstreamService, Clock clock) {
+            DownstreamServiceImpl downstreamService, CentralNodeDao centralNodeDao,
+            int rollupThreads, Clock clock) throws Exception {
         this.agentDao = agentDao;
         this.aggregateDao = aggregateDao;
         this.gaugeValueDao = gaugeValueDao;
@@ -75,6 +92,11 @@ class RollupService implements Runnable {
         this.alertingService = alertingService;
         this.downstreamService = downstreamService;
         this.clock = clock;
+        rollupSharding = new RollupSharding(centralNodeDao);
+        workerExecutor = Executors.newFixedThreadPool(rollupThreads,
+                new ThreadFactoryBuilder().setNameFormat("Glowroot-Rollup-Worker-%d").build());
+        ManagementFactory.getPlatformMBeanServer().registerMBean(stats,
+                new ObjectName(MBEAN_NAME));
         executor = Executors.newSingleThreadExecutor();
         executor.execute(castInitialized(this));
     }
@@ -83,8 +105,14 @@ class RollupService implements Runnable {
     public void run() {
         while (!closed) {
             try {
-                Thread.sleep(millisUntilNextRollup(clock.currentTimeMillis()));
+                long millisUntilNextRollup = millisUntilNextRollup(clock.currentTimeMillis());
+                Thread.sleep(millisUntilNextRollup);
+                long startTime = clock.currentTimeMillis();
                 runInternal();
+                long endTime = clock.currentTimeMillis();
+                // lag is the amount of time the cycle ran past the start of the next cycle
+                long nextRollupTime = startTime + millisUntilNextRollup(startTime);
+                stats.recordCycle(endTime - startTime, Math.max(endTime - nextRollupTime, 0));
             } catch (InterruptedException e) {
                 continue;
             } catch (Throwable t) {
@@ -93,47 +121,87 @@ class RollupService implements Runnable {
         }
     }
 
-    void close() throws InterruptedException {
+    void close() throws Exception {
         closed = true;
         // shutdownNow() is needed here to send interrupt to RollupService thread
         executor.shutdownNow();
         if (!executor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
+        workerExecutor.shutdownNow();
+        if (!workerExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(MBEAN_NAME));
+        rollupSharding.close();
     }
 
     @Instrumentation.Transaction(transactionType = "Background",
             transactionName = "Outer rollup loop", traceHeadline = "Outer rollup loop",
             timer = "outer rollup loop")
-    private void runInternal() throws Exception {
+    @VisibleForTesting
+    void runInternal() throws Exception {
         Glowroot.setTransactionOuter();
-        for (AgentRollup agentRollup : agentDao.readAgentRollups()) {
-            rollupAggregates(agentRollup, null);
-            rollupGauges(agentRollup, null);
-            rollupSyntheticMonitors(agentRollup);
-            // checking for deleted alerts doesn't depend on rollup
-            consumeAgentRollups(agentRollup, this::checkForDeletedAlerts);
-            // checking transaction and gauge alerts after rollup since their calculation can depend
-            // on rollups depending on time period length
-            //
-            // these alerts are also checked right after receiving the respective data
-            // (transaction/gauge/heartbeat) from agent, but need to also check once a minute in
-            // case no data has been received from agent recently
-            consumeAgentRollups(agentRollup, this::checkTransactionAlerts);
-            consumeAgentRollups(agentRollup, this::checkGaugeAlerts);
-            // checking heartbeat alerts doesn't depend on rollups, just here for convenience
-            if (stopwatch.elapsed(MINUTES) >= 4) {
-                // give agents plenty of time to re-connect after central start-up
-                // needs to be at least enough time for grpc max reconnect backoff
-                // which is 2 minutes +/- 20% jitter (see io.grpc.internal.ExponentialBackoffPolicy)
-                // but better to give a bit extra (4 minutes above) to avoid false heartbeat alert
-                consumeAgentRollups(agentRollup, this::checkHeartbeatAlerts);
+        List<AgentRollup> agentRollups = agentDao.readAgentRollups();
+        List<Future<?>> futures = Lists.newArrayList();
+        // when there are multiple central nodes, each one only rolls up its share
+        for (AgentRollup agentRollup : rollupSharding.getOwnedAgentRollups(agentRollups)) {
+            futures.add(workerExecutor.submit(() -> {
+                rollupAgentRollupTree(agentRollup);
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    logger.error(e.getMessage(), e);
+                }
             }
-            // updating agent configs doesn't depend on rollups, just here for convenience
+        } catch (InterruptedException e) {
+            // shutdown requested
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+            throw e;
+        }
+        // updating agent configs doesn't depend on rollups, just here for convenience
+        //
+        // this is not sharded since the agent config can only be pushed from the central node that
+        // the agent is connected to, which is not necessarily the central node that owns the
+        // agent's rollup
+        for (AgentRollup agentRollup : agentRollups) {
             consumeAgentRollups(agentRollup, this::updateAgentConfigIfConnectedAndNeeded);
         }
     }
 
+    // children are still rolled up before their parent, since this walks the whole tree under the
+    // top level agent rollup on a single worker thread
+    private void rollupAgentRollupTree(AgentRollup agentRollup) throws Exception {
+        rollupAggregates(agentRollup, null);
+        rollupGauges(agentRollup, null);
+        rollupSyntheticMonitors(agentRollup);
+        // checking for deleted alerts doesn't depend on rollup
+        consumeAgentRollups(agentRollup, this::checkForDeletedAlerts);
+        // checking transaction and gauge alerts after rollup since their calculation can depend
+        // on rollups depending on time period length
+        //
+        // these alerts are also checked right after receiving the respective data
+        // (transaction/gauge/heartbeat) from agent, but need to also check once a minute in
+        // case no data has been received from agent recently
+        consumeAgentRollups(agentRollup, this::checkTransactionAlerts);
+        consumeAgentRollups(agentRollup, this::checkGaugeAlerts);
+        // checking heartbeat alerts doesn't depend on rollups, just here for convenience
+        if (stopwatch.elapsed(MINUTES) >= 4) {
+            // give agents plenty of time to re-connect after central start-up
+            // needs to be at least enough time for grpc max reconnect backoff
+            // which is 2 minutes +/- 20% jitter (see io.grpc.internal.ExponentialBackoffPolicy)
+            // but better to give a bit extra (4 minutes above) to avoid false heartbeat alert
+            consumeAgentRollups(agentRollup, this::checkHeartbeatAlerts);
+        }
+    }
+
     private void rollupAggregates(AgentRollup agentRollup, @Nullable String parentAgentRollupId)
             throws InterruptedException {
         for (AgentRollup childAgentRollup : agentRollup.children()) {
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+public class RollupServiceStats implements RollupServiceStatsMXBean {
+
+    private long cycleCount;
+    private long lastCycleDurationMillis;
+    private long maxCycleDurationMillis;
+    // lag is the amount of time a cycle ran past the start of the next cycle, so anything other
+    // than zero means that more rollup threads (or cassandra capacity) are needed
+    private long lastCycleLagMillis;
+    private long maxCycleLagMillis;
+
+    @Override
+    public synchronized long getCycleCount() {
+        return cycleCount;
+    }
+
+    @Override
+    public synchronized long getLastCycleDurationMillis() {
+        return lastCycleDurationMillis;
+    }
+
+    @Override
+    public synchronized long getMaxCycleDurationMillis() {
+        return maxCycleDurationMillis;
+    }
+
+    @Override
+    public synchronized long getLastCycleLagMillis() {
+        return lastCycleLagMillis;
+    }
+
+    @Override
+    public synchronized long getMaxCycleLagMillis() {
+        return maxCycleLagMillis;
+    }
+
+    synchronized void recordCycle(long durationMillis, long lagMillis) {
+        cycleCount++;
+        lastCycleDurationMillis = durationMillis;
+        maxCycleDurationMillis = Math.max(maxCycleDurationMillis, durationMillis);
+        lastCycleLagMillis = lagMillis;
+        maxCycleLagMillis = Math.max(maxCycleLagMillis, lagMillis);
+    }
+}
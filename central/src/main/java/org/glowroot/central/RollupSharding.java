@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.central.repo.CentralNodeDao;
+import org.glowroot.common.repo.AgentRepository.AgentRollup;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// splits the top level agent rollups between the live central nodes, so that each central node
+// only rolls up its share
+//
+// ownership uses rendezvous hashing so that when a central node joins or leaves, only the agent
+// rollups owned by that node move, and while nodes briefly disagree on membership the worst case
+// is that an agent rollup is rolled up twice (which is harmless) or is picked up on the next cycle
+// (which is also harmless since rollups catch up on anything that still needs rollup)
+class RollupSharding {
+
+    private static final Logger logger = LoggerFactory.getLogger(RollupSharding.class);
+
+    // lease is renewed well within its duration so that one slow or failed renewal does not cause
+    // the other central nodes to take over this node's share
+    private static final int LEASE_SECONDS = 90;
+    private static final int LEASE_RENEWAL_SECONDS = 30;
+
+    private static final HashFunction hashFunction = Hashing.murmur3_128();
+
+    private final CentralNodeDao centralNodeDao;
+    private final String nodeId;
+
+    private final ScheduledExecutorService leaseExecutor;
+
+    RollupSharding(CentralNodeDao centralNodeDao) {
+        this(centralNodeDao, UUID.randomUUID().toString());
+    }
+
+    @VisibleForTesting
+    RollupSharding(CentralNodeDao centralNodeDao, String nodeId) {
+        this.centralNodeDao = centralNodeDao;
+        this.nodeId = nodeId;
+        centralNodeDao.renewLease(nodeId, LEASE_SECONDS);
+        leaseExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Glowroot-Rollup-Lease")
+                .build());
+        leaseExecutor.scheduleWithFixedDelay(this::renewLease, LEASE_RENEWAL_SECONDS,
+                LEASE_RENEWAL_SECONDS, SECONDS);
+    }
+
+    List<AgentRollup> getOwnedAgentRollups(List<AgentRollup> agentRollups) {
+        List<String> nodeIds = centralNodeDao.readLiveNodeIds();
+        if (!nodeIds.contains(nodeId)) {
+            // this can happen if lease renewals are failing, in which case better to (possibly)
+            // duplicate work than to skip it
+            nodeIds.add(nodeId);
+        }
+        if (nodeIds.size() == 1) {
+            return agentRollups;
+        }
+        List<AgentRollup> ownedAgentRollups = Lists.newArrayList();
+        for (AgentRollup agentRollup : agentRollups) {
+            if (getOwnerNodeId(agentRollup.id(), nodeIds).equals(nodeId)) {
+                ownedAgentRollups.add(agentRollup);
+            }
+        }
+        return ownedAgentRollups;
+    }
+
+    void close() throws InterruptedException {
+        leaseExecutor.shutdownNow();
+        if (!leaseExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
+        // release lease so that the other central nodes take over this node's share right away
+        // instead of after the lease expires
+        centralNodeDao.releaseLease(nodeId);
+    }
+
+    private void renewLease() {
+        try {
+            centralNodeDao.renewLease(nodeId, LEASE_SECONDS);
+        } catch (Throwable t) {
+            logger.error(t.getMessage(), t);
+        }
+    }
+
+    @VisibleForTesting
+    static String getOwnerNodeId(String agentRollupId, List<String> nodeIds) {
+        String ownerNodeId = null;
+        long ownerWeight = 0;
+        for (String nodeId : nodeIds) {
+            long weight = hashFunction.newHasher()
+                    .putString(nodeId, UTF_8)
+                    .putString(agentRollupId, UTF_8)
+                    .hash()
+                    .asLong();
+            if (ownerNodeId == null || weight > ownerWeight
+                    || (weight == ownerWeight && nodeId.compareTo(ownerNodeId) < 0)) {
+                ownerNodeId = nodeId;
+                ownerWeight = weight;
+            }
+        }
+        if (ownerNodeId == null) {
+            throw new IllegalArgumentException("No node ids");
+        }
+        return ownerNodeId;
+    }
+}
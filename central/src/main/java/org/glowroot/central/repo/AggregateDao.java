@@ -24,7 +24,6 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.UUID;
-import java.util.stream.Collectors;
 
 import javax.annotation.Nullable;
 
@@ -54,6 +53,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.api.Instrumentation;
+import org.glowroot.central.util.AsyncQueryLimiter;
 import org.glowroot.central.util.Messages;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Sessions;
@@ -108,6 +108,9 @@ public class AggregateDao implements AggregateRepository {
 
     private static final String LCS = "compaction = { 'class' : 'LeveledCompactionStrategy' }";
 
+    // bounds the number of outstanding cassandra writes for each incoming aggregate stream
+    private static final int MAX_IN_FLIGHT_FUTURES_PER_STREAM = 256;
+
     private static final Table summaryTable = ImmutableTable.builder()
             .partialName("summary")
             .addColumns(ImmutableColumn.of("total_duration_nanos", "double"))
@@ -208,6 +211,7 @@ public class AggregateDao implements AggregateRepository {
     private final TransactionTypeDao transactionTypeDao;
     private final FullQueryTextDao fullQueryTextDao;
     private final ConfigRepository configRepository;
+    private final AsyncQueryLimiter rollupQueryLimiter;
     private final Clock clock;
 
     // list index is rollupLevel
@@ -236,13 +240,14 @@ public class AggregateDao implements AggregateRepository {
     private final ImmutableList<Table> allTables;
 
     public AggregateDao(Session session, AgentDao agentDao, TransactionTypeDao transactionTypeDao,
-            FullQueryTextDao fullQueryTextDao, ConfigRepository configRepository, Clock clock)
-            throws Exception {
+            FullQueryTextDao fullQueryTextDao, ConfigRepository configRepository,
+            AsyncQueryLimiter rollupQueryLimiter, Clock clock) throws Exception {
         this.session = session;
         this.agentDao = agentDao;
         this.transactionTypeDao = transactionTypeDao;
         this.fullQueryTextDao = fullQueryTextDao;
         this.configRepository = configRepository;
+        this.rollupQueryLimiter = rollupQueryLimiter;
         this.clock = clock;
 
         int count = configRepository.getRollupConfigs().size();
@@ -399,89 +404,28 @@ public class AggregateDao implements AggregateRepository {
     public void store(String agentId, long captureTime,
             List<OldAggregatesByType> aggregatesByTypeList,
             List<Aggregate.SharedQueryText> initialSharedQueryTexts) throws Exception {
-        if (aggregatesByTypeList.isEmpty()) {
-            agentDao.updateLastCaptureTime(agentId, captureTime).get();
-            return;
-        }
-        List<String> agentRollupIds = agentDao.readAgentRollupIds(agentId);
-        int adjustedTTL = getAdjustedTTL(getTTLs().get(0), captureTime, clock);
-        List<ResultSetFuture> futures = Lists.newArrayList();
-        List<Aggregate.SharedQueryText> sharedQueryTexts = Lists.newArrayList();
+        AggregateStreamWriter writer = startStore(agentId, captureTime);
         for (Aggregate.SharedQueryText sharedQueryText : initialSharedQueryTexts) {
-            String fullTextSha1 = sharedQueryText.getFullTextSha1();
-            if (fullTextSha1.isEmpty()) {
-                String fullText = sharedQueryText.getFullText();
-                if (fullText.length() > StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE) {
-                    fullTextSha1 =
-                            Hashing.sha1().hashString(fullText, Charsets.UTF_8).toString();
-                    futures.addAll(fullQueryTextDao.store(agentId, fullTextSha1, fullText));
-                    sharedQueryTexts.add(Aggregate.SharedQueryText.newBuilder()
-                            .setTruncatedText(fullText.substring(0,
-                                    StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE))
-                            .setFullTextSha1(fullTextSha1)
-                            .build());
-                } else {
-                    sharedQueryTexts.add(sharedQueryText);
-                }
-            } else {
-                futures.addAll(fullQueryTextDao.updateTTL(agentId, fullTextSha1));
-                sharedQueryTexts.add(sharedQueryText);
-            }
+            writer.addSharedQueryText(sharedQueryText);
         }
-
-        // wait for success before proceeding in order to ensure cannot end up with orphaned
-        // fullTextSha1
-        MoreFutures.waitForAll(futures);
-        futures.clear();
-
         for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
             String transactionType = aggregatesByType.getTransactionType();
-            Aggregate overallAggregate = aggregatesByType.getOverallAggregate();
-            futures.addAll(storeOverallAggregate(agentId, transactionType, captureTime,
-                    overallAggregate, sharedQueryTexts, adjustedTTL));
+            writer.storeOverallAggregate(transactionType, aggregatesByType.getOverallAggregate());
             for (OldTransactionAggregate transactionAggregate : aggregatesByType
                     .getTransactionAggregateList()) {
-                futures.addAll(storeTransactionAggregate(agentId, transactionType,
-                        transactionAggregate.getTransactionName(), captureTime,
-                        transactionAggregate.getAggregate(), sharedQueryTexts, adjustedTTL));
+                writer.storeTransactionAggregate(transactionType,
+                        transactionAggregate.getTransactionName(),
+                        transactionAggregate.getAggregate());
             }
-            futures.addAll(transactionTypeDao.store(agentRollupIds, transactionType));
         }
-        futures.add(agentDao.updateLastCaptureTime(agentId, captureTime));
-        // wait for success before inserting "needs rollup" records
-        MoreFutures.waitForAll(futures);
-        futures.clear();
+        writer.complete();
+    }
 
-        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
-        // TODO report checker framework issue that occurs without this suppression
-        @SuppressWarnings("assignment.type.incompatible")
-        Set<String> transactionTypes = aggregatesByTypeList.stream()
-                .map(OldAggregatesByType::getTransactionType).collect(Collectors.toSet());
-
-        int needsRollupAdjustedTTL = getNeedsRollupAdjustedTTL(adjustedTTL, rollupConfigs);
-        if (agentRollupIds.size() > 1) {
-            BoundStatement boundStatement = insertNeedsRollupFromChild.bind();
-            int i = 0;
-            boundStatement.setString(i++, agentRollupIds.get(1));
-            boundStatement.setTimestamp(i++, new Date(captureTime));
-            boundStatement.setUUID(i++, UUIDs.timeBased());
-            boundStatement.setString(i++, agentId);
-            boundStatement.setSet(i++, transactionTypes);
-            boundStatement.setInt(i++, needsRollupAdjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
-        }
-        // insert into aggregate_needs_rollup_1
-        long intervalMillis = rollupConfigs.get(1).intervalMillis();
-        long rollupCaptureTime = Utils.getRollupCaptureTime(captureTime, intervalMillis);
-        BoundStatement boundStatement = insertNeedsRollup.get(0).bind();
-        int i = 0;
-        boundStatement.setString(i++, agentId);
-        boundStatement.setTimestamp(i++, new Date(rollupCaptureTime));
-        boundStatement.setUUID(i++, UUIDs.timeBased());
-        boundStatement.setSet(i++, transactionTypes);
-        boundStatement.setInt(i++, needsRollupAdjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
-        MoreFutures.waitForAll(futures);
+    // aggregates are written as they are added to the returned writer (as opposed to being
+    // collected first), so memory is bounded by the number of in-flight writes instead of growing
+    // with the number of transaction names
+    public AggregateStreamWriter startStore(String agentId, long captureTime) throws Exception {
+        return new AggregateStreamWriter(agentId, captureTime);
     }
 
     // query.from() is non-inclusive
@@ -976,7 +920,7 @@ public class AggregateDao implements AggregateRepository {
     }
 
     private List<ResultSetFuture> rollupOverallSummary(RollupParams rollup,
-            TransactionQuery query) {
+            TransactionQuery query) throws InterruptedException {
         ResultSet results = executeQueryForRollup(rollup.agentRollupId(), query, summaryTable);
         if (results.isExhausted()) {
             // this is unexpected since TTL for "needs rollup" records is shorter than TTL for data
@@ -988,7 +932,8 @@ public class AggregateDao implements AggregateRepository {
     }
 
     private List<ResultSetFuture> rollupOverallSummaryFromChildren(RollupParams rollup,
-            TransactionQuery query, Collection<String> childAgentRollups) {
+            TransactionQuery query, Collection<String> childAgentRollups)
+            throws InterruptedException {
         List<Row> rows = getRowsForRollupFromChildren(query, childAgentRollups, summaryTable);
         if (rows.isEmpty()) {
             // this is unexpected since TTL for "needs rollup" records is shorter than TTL for data
@@ -1000,7 +945,7 @@ public class AggregateDao implements AggregateRepository {
     }
 
     private List<ResultSetFuture> rollupOverallSummaryFromRows(RollupParams rollup,
-            TransactionQuery query, Iterable<Row> rows) {
+            TransactionQuery query, Iterable<Row> rows) throws InterruptedException {
         double totalDurationNanos = 0;
         long transactionCount = 0;
         for (Row row : rows) {
@@ -1016,10 +961,11 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setDouble(i++, totalDurationNanos);
         boundStatement.setLong(i++, transactionCount);
         boundStatement.setInt(i++, rollup.adjustedTTL());
-        return ImmutableList.of(session.executeAsync(boundStatement));
+        return ImmutableList.of(rollupQueryLimiter.executeAsync(session, boundStatement));
     }
 
-    private List<ResultSetFuture> rollupErrorSummary(RollupParams rollup, TransactionQuery query) {
+    private List<ResultSetFuture> rollupErrorSummary(RollupParams rollup, TransactionQuery query)
+            throws InterruptedException {
         ResultSet results = executeQueryForRollup(rollup.agentRollupId(), query, errorSummaryTable);
         if (results.isExhausted()) {
             return ImmutableList.of();
@@ -1028,7 +974,8 @@ public class AggregateDao implements AggregateRepository {
     }
 
     private List<ResultSetFuture> rollupErrorSummaryFromChildren(RollupParams rollup,
-            TransactionQuery query, Collection<String> childAgentRollups) {
+            TransactionQuery query, Collection<String> childAgentRollups)
+            throws InterruptedException {
         List<Row> rows = getRowsForRollupFromChildren(query, childAgentRollups, errorSummaryTable);
         if (rows.isEmpty()) {
             return ImmutableList.of();
@@ -1037,7 +984,7 @@ public class AggregateDao implements AggregateRepository {
     }
 
     private List<ResultSetFuture> rollupErrorSummaryFromRows(RollupParams rollup,
-            TransactionQuery query, Iterable<Row> rows) {
+            TransactionQuery query, Iterable<Row> rows) throws InterruptedException {
         long errorCount = 0;
         long transactionCount = 0;
         for (Row row : rows) {
@@ -1053,12 +1000,12 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setLong(i++, errorCount);
         boundStatement.setLong(i++, transactionCount);
         boundStatement.setInt(i++, rollup.adjustedTTL());
-        return ImmutableList.of(session.executeAsync(boundStatement));
+        return ImmutableList.of(rollupQueryLimiter.executeAsync(session, boundStatement));
     }
 
     // transactionNames is passed in empty, and populated by method
     private List<ResultSetFuture> rollupTransactionSummary(RollupParams rollup,
-            TransactionQuery query, List<String> transactionNames) {
+            TransactionQuery query, List<String> transactionNames) throws InterruptedException {
         BoundStatement boundStatement = checkNotNull(readTransactionForRollupPS.get(summaryTable))
                 .get(query.rollupLevel()).bind();
         bindQuery(boundStatement, rollup.agentRollupId(), query);
@@ -1075,7 +1022,7 @@ public class AggregateDao implements AggregateRepository {
     // transactionNames is passed in empty, and populated by method
     private List<ResultSetFuture> rollupTransactionSummaryFromChildren(RollupParams rollup,
             TransactionQuery query, Collection<String> childAgentRollups,
-            List<String> transactionNames) {
+            List<String> transactionNames) throws InterruptedException {
         List<Row> rows =
                 getRowsForSummaryRollupFromChildren(query, childAgentRollups, summaryTable);
         if (rows.isEmpty()) {
@@ -1089,7 +1036,8 @@ public class AggregateDao implements AggregateRepository {
 
     // transactionNames is passed in empty, and populated by method
     private List<ResultSetFuture> rollupTransactionSummaryFromRows(RollupParams rollup,
-            TransactionQuery query, Iterable<Row> rows, List<String> transactionNames) {
+            TransactionQuery query, Iterable<Row> rows, List<String> transactionNames)
+            throws InterruptedException {
         BoundStatement boundStatement;
         Map<String, MutableSummary> summaries = Maps.newHashMap();
         for (Row row : rows) {
@@ -1117,14 +1065,14 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setDouble(i++, summary.totalDurationNanos);
             boundStatement.setLong(i++, summary.transactionCount);
             boundStatement.setInt(i++, rollup.adjustedTTL());
-            futures.add(session.executeAsync(boundStatement));
+            futures.add(rollupQueryLimiter.executeAsync(session, boundStatement));
         }
         transactionNames.addAll(summaries.keySet());
         return futures;
     }
 
     private List<ResultSetFuture> rollupTransactionErrorSummary(RollupParams rollup,
-            TransactionQuery query) {
+            TransactionQuery query) throws InterruptedException {
         BoundStatement boundStatement =
                 checkNotNull(readTransactionForRollupPS.get(errorSummaryTable))
                         .get(query.rollupLevel()).bind();
@@ -1138,7 +1086,8 @@ public class AggregateDao implements AggregateRepository {
 
     // transactionNames is passed in empty, and populated by method
     private List<ResultSetFuture> rollupTransactionErrorSummaryFromChildren(RollupParams rollup,
-            TransactionQuery query, Collection<String> childAgentRollups) {
+            TransactionQuery query, Collection<String> childAgentRollups)
+            throws InterruptedException {
         List<Row> rows =
                 getRowsForSummaryRollupFromChildren(query, childAgentRollups, errorSummaryTable);
         if (rows.isEmpty()) {
@@ -1148,7 +1097,7 @@ public class AggregateDao implements AggregateRepository {
     }
 
     private List<ResultSetFuture> rollupTransactionErrorSummaryFromRows(RollupParams rollup,
-            TransactionQuery query, Iterable<Row> rows) {
+            TransactionQuery query, Iterable<Row> rows) throws InterruptedException {
         BoundStatement boundStatement;
         Map<String, MutableErrorSummary> summaries = Maps.newHashMap();
         for (Row row : rows) {
@@ -1176,13 +1125,13 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setLong(i++, summary.errorCount);
             boundStatement.setLong(i++, summary.transactionCount);
             boundStatement.setInt(i++, rollup.adjustedTTL());
-            futures.add(session.executeAsync(boundStatement));
+            futures.add(rollupQueryLimiter.executeAsync(session, boundStatement));
         }
         return futures;
     }
 
     private List<ResultSetFuture> rollupOverview(RollupParams rollup, TransactionQuery query)
-            throws IOException {
+            throws IOException, InterruptedException {
         ResultSet results = executeQueryForRollup(rollup.agentRollupId(), query, overviewTable);
         if (results.isExhausted()) {
             // this is unexpected since TTL for "needs rollup" records is shorter than TTL for data
@@ -1194,7 +1143,8 @@ public class AggregateDao implements AggregateRepository {
     }
 
     private List<ResultSetFuture> rollupOverviewFromChildren(RollupParams rollup,
-            TransactionQuery query, Collection<String> childAgentRollups) throws IOException {
+            TransactionQuery query, Collection<String> childAgentRollups)
+            throws IOException, InterruptedException {
         List<Row> rows = getRowsForRollupFromChildren(query, childAgentRollups, overviewTable);
         if (rows.isEmpty()) {
             // this is unexpected since TTL for "needs rollup" records is shorter than TTL for data
@@ -1206,7 +1156,7 @@ public class AggregateDao implements AggregateRepository {
     }
 
     private List<ResultSetFuture> rollupOverviewFromRows(RollupParams rollup,
-            TransactionQuery query, Iterable<Row> rows) throws IOException {
+            TransactionQuery query, Iterable<Row> rows) throws IOException, InterruptedException {
         double totalDurationNanos = 0;
         long transactionCount = 0;
         boolean asyncTransactions = false;
@@ -1271,7 +1221,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setDouble(i++, auxThreadStats.getTotalWaitedNanos());
         boundStatement.setDouble(i++, auxThreadStats.getTotalAllocatedBytes());
         boundStatement.setInt(i++, rollup.adjustedTTL());
-        return ImmutableList.of(session.executeAsync(boundStatement));
+        return ImmutableList.of(rollupQueryLimiter.executeAsync(session, boundStatement));
     }
 
     private List<ResultSetFuture> rollupHistogram(RollupParams rollup, TransactionQuery query,
@@ -1330,10 +1280,11 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setLong(i++, transactionCount);
         boundStatement.setBytes(i++, toByteBuffer(durationNanosHistogram.toProto(scratchBuffer)));
         boundStatement.setInt(i++, rollup.adjustedTTL());
-        return ImmutableList.of(session.executeAsync(boundStatement));
+        return ImmutableList.of(rollupQueryLimiter.executeAsync(session, boundStatement));
     }
 
-    private List<ResultSetFuture> rollupThroughput(RollupParams rollup, TransactionQuery query) {
+    private List<ResultSetFuture> rollupThroughput(RollupParams rollup, TransactionQuery query)
+            throws InterruptedException {
         ResultSet results = executeQueryForRollup(rollup.agentRollupId(), query, throughputTable);
         if (results.isExhausted()) {
             // this is unexpected since TTL for "needs rollup" records is shorter than TTL for data
@@ -1345,7 +1296,8 @@ public class AggregateDao implements AggregateRepository {
     }
 
     private List<ResultSetFuture> rollupThroughputFromChildren(RollupParams rollup,
-            TransactionQuery query, Collection<String> childAgentRollups) {
+            TransactionQuery query, Collection<String> childAgentRollups)
+            throws InterruptedException {
         List<Row> rows = getRowsForRollupFromChildren(query, childAgentRollups, throughputTable);
         if (rows.isEmpty()) {
             // this is unexpected since TTL for "needs rollup" records is shorter than TTL for data
@@ -1357,7 +1309,7 @@ public class AggregateDao implements AggregateRepository {
     }
 
     private List<ResultSetFuture> rollupThroughputFromRows(RollupParams rollup,
-            TransactionQuery query, Iterable<Row> rows) {
+            TransactionQuery query, Iterable<Row> rows) throws InterruptedException {
         long transactionCount = 0;
         for (Row row : rows) {
             transactionCount += row.getLong(0);
@@ -1377,7 +1329,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setTimestamp(i++, new Date(query.to()));
         boundStatement.setLong(i++, transactionCount);
         boundStatement.setInt(i++, rollup.adjustedTTL());
-        return ImmutableList.of(session.executeAsync(boundStatement));
+        return ImmutableList.of(rollupQueryLimiter.executeAsync(session, boundStatement));
     }
 
     private List<ResultSetFuture> rollupQueries(RollupParams rollup, TransactionQuery query)
@@ -1420,7 +1372,7 @@ public class AggregateDao implements AggregateRepository {
     }
 
     private List<ResultSetFuture> rollupServiceCalls(RollupParams rollup, TransactionQuery query)
-            throws IOException {
+            throws IOException, InterruptedException {
         ResultSet results = executeQueryForRollup(rollup.agentRollupId(), query, serviceCallTable);
         if (results.isExhausted()) {
             return ImmutableList.of();
@@ -1429,7 +1381,8 @@ public class AggregateDao implements AggregateRepository {
     }
 
     private List<ResultSetFuture> rollupServiceCallsFromChildren(RollupParams rollup,
-            TransactionQuery query, Collection<String> childAgentRollups) {
+            TransactionQuery query, Collection<String> childAgentRollups)
+            throws InterruptedException {
         List<Row> rows = getRowsForRollupFromChildren(query, childAgentRollups, serviceCallTable);
         if (rows.isEmpty()) {
             return ImmutableList.of();
@@ -1438,7 +1391,7 @@ public class AggregateDao implements AggregateRepository {
     }
 
     private List<ResultSetFuture> rollupServiceCallsFromRows(RollupParams rollup,
-            TransactionQuery query, Iterable<Row> rows) {
+            TransactionQuery query, Iterable<Row> rows) throws InterruptedException {
         ServiceCallCollector collector =
                 new ServiceCallCollector(rollup.maxAggregateServiceCallsPerType(), 0);
         for (Row row : rows) {
@@ -1451,11 +1404,12 @@ public class AggregateDao implements AggregateRepository {
                     executionCount);
         }
         return insertServiceCalls(collector.toProto(), rollup.rollupLevel(), rollup.agentRollupId(),
-                query.transactionType(), query.transactionName(), query.to(), rollup.adjustedTTL());
+                query.transactionType(), query.transactionName(), query.to(), rollup.adjustedTTL(),
+                true);
     }
 
     private List<ResultSetFuture> rollupThreadProfile(RollupParams rollup, TransactionQuery query,
-            Table table) throws InvalidProtocolBufferException {
+            Table table) throws InvalidProtocolBufferException, InterruptedException {
         ResultSet results = executeQueryForRollup(rollup.agentRollupId(), query, table);
         if (results.isExhausted()) {
             return ImmutableList.of();
@@ -1465,7 +1419,7 @@ public class AggregateDao implements AggregateRepository {
 
     private List<ResultSetFuture> rollupThreadProfileFromChildren(RollupParams rollup,
             TransactionQuery query, Collection<String> childAgentRollups, Table table)
-            throws InvalidProtocolBufferException {
+            throws InvalidProtocolBufferException, InterruptedException {
         List<Row> rows = getRowsForRollupFromChildren(query, childAgentRollups, table);
         if (rows.isEmpty()) {
             return ImmutableList.of();
@@ -1475,7 +1429,7 @@ public class AggregateDao implements AggregateRepository {
 
     private List<ResultSetFuture> rollupThreadProfileFromRows(RollupParams rollup,
             TransactionQuery query, Iterable<Row> rows, Table table)
-            throws InvalidProtocolBufferException {
+            throws InvalidProtocolBufferException, InterruptedException {
         MutableProfile profile = new MutableProfile();
         for (Row row : rows) {
             ByteBuffer bytes = checkNotNull(row.getBytes(0));
@@ -1496,7 +1450,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setTimestamp(i++, new Date(query.to()));
         boundStatement.setBytes(i++, toByteBuffer(profile.toProto()));
         boundStatement.setInt(i++, rollup.adjustedTTL());
-        return ImmutableList.of(session.executeAsync(boundStatement));
+        return ImmutableList.of(rollupQueryLimiter.executeAsync(session, boundStatement));
     }
 
     private List<Row> getRowsForSummaryRollupFromChildren(TransactionQuery query,
@@ -1604,13 +1558,14 @@ public class AggregateDao implements AggregateRepository {
         futures.addAll(insertQueries(aggregate.getQueriesByTypeList(), sharedQueryTexts,
                 rollupLevel, agentRollupId, transactionType, null, captureTime, adjustedTTL));
         futures.addAll(insertServiceCalls(aggregate.getServiceCallsByTypeList(), rollupLevel,
-                agentRollupId, transactionType, null, captureTime, adjustedTTL));
+                agentRollupId, transactionType, null, captureTime, adjustedTTL, false));
         return futures;
     }
 
     private List<ResultSetFuture> storeTransactionAggregate(String agentRollupId,
             String transactionType, String transactionName, long captureTime, Aggregate aggregate,
-            List<Aggregate.SharedQueryText> sharedQueryTexts, int adjustedTTL) throws IOException {
+            List<Aggregate.SharedQueryText> sharedQueryTexts, int adjustedTTL)
+            throws IOException, InterruptedException {
 
         final int rollupLevel = 0;
 
@@ -1698,7 +1653,8 @@ public class AggregateDao implements AggregateRepository {
                 insertQueries(aggregate.getQueriesByTypeList(), sharedQueryTexts, rollupLevel,
                         agentRollupId, transactionType, transactionName, captureTime, adjustedTTL));
         futures.addAll(insertServiceCalls(aggregate.getServiceCallsByTypeList(), rollupLevel,
-                agentRollupId, transactionType, transactionName, captureTime, adjustedTTL));
+                agentRollupId, transactionType, transactionName, captureTime, adjustedTTL,
+                false));
         return futures;
     }
 
@@ -1781,7 +1737,7 @@ public class AggregateDao implements AggregateRepository {
                     boundStatement.setToNull(i++);
                 }
                 boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
+                futures.add(rollupQueryLimiter.executeAsync(session, boundStatement));
                 if (rollupFromChildren && fullTextSha1 != null) {
                     futures.addAll(fullQueryTextDao.updateTTL(agentRollupId, fullTextSha1));
                 }
@@ -1793,7 +1749,7 @@ public class AggregateDao implements AggregateRepository {
     private List<ResultSetFuture> insertServiceCalls(
             List<Aggregate.ServiceCallsByType> serviceCallsByTypeList, int rollupLevel,
             String agentRollupId, String transactionType, @Nullable String transactionName,
-            long captureTime, int adjustedTTL) {
+            long captureTime, int adjustedTTL, boolean rollup) throws InterruptedException {
         List<ResultSetFuture> futures = Lists.newArrayList();
         for (Aggregate.ServiceCallsByType serviceCallsByType : serviceCallsByTypeList) {
             for (Aggregate.ServiceCall serviceCall : serviceCallsByType.getServiceCallList()) {
@@ -1815,7 +1771,11 @@ public class AggregateDao implements AggregateRepository {
                 boundStatement.setDouble(i++, serviceCall.getTotalDurationNanos());
                 boundStatement.setLong(i++, serviceCall.getExecutionCount());
                 boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
+                if (rollup) {
+                    futures.add(rollupQueryLimiter.executeAsync(session, boundStatement));
+                } else {
+                    futures.add(session.executeAsync(boundStatement));
+                }
             }
         }
         return futures;
@@ -2473,4 +2433,122 @@ public class AggregateDao implements AggregateRepository {
         private long errorCount;
         private long transactionCount;
     }
+
+    public class AggregateStreamWriter {
+
+        private final String agentId;
+        private final long captureTime;
+        private final List<String> agentRollupIds;
+        private final int adjustedTTL;
+
+        private final List<Aggregate.SharedQueryText> sharedQueryTexts = Lists.newArrayList();
+        private final List<ResultSetFuture> sharedQueryTextFutures = Lists.newArrayList();
+        private final List<ResultSetFuture> futures = Lists.newArrayList();
+        private final Set<String> transactionTypes = Sets.newHashSet();
+
+        private AggregateStreamWriter(String agentId, long captureTime) throws Exception {
+            this.agentId = agentId;
+            this.captureTime = captureTime;
+            agentRollupIds = agentDao.readAgentRollupIds(agentId);
+            adjustedTTL = getAdjustedTTL(getTTLs().get(0), captureTime, clock);
+        }
+
+        public void addSharedQueryText(Aggregate.SharedQueryText sharedQueryText)
+                throws Exception {
+            String fullTextSha1 = sharedQueryText.getFullTextSha1();
+            if (fullTextSha1.isEmpty()) {
+                String fullText = sharedQueryText.getFullText();
+                if (fullText.length() > StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE) {
+                    fullTextSha1 = Hashing.sha1().hashString(fullText, Charsets.UTF_8).toString();
+                    sharedQueryTextFutures
+                            .addAll(fullQueryTextDao.store(agentId, fullTextSha1, fullText));
+                    sharedQueryTexts.add(Aggregate.SharedQueryText.newBuilder()
+                            .setTruncatedText(fullText.substring(0,
+                                    StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE))
+                            .setFullTextSha1(fullTextSha1)
+                            .build());
+                } else {
+                    sharedQueryTexts.add(sharedQueryText);
+                }
+            } else {
+                sharedQueryTextFutures.addAll(fullQueryTextDao.updateTTL(agentId, fullTextSha1));
+                sharedQueryTexts.add(sharedQueryText);
+            }
+        }
+
+        public void storeOverallAggregate(String transactionType, Aggregate overallAggregate)
+                throws Exception {
+            waitForSharedQueryTexts();
+            futures.addAll(AggregateDao.this.storeOverallAggregate(agentId, transactionType,
+                    captureTime, overallAggregate, sharedQueryTexts, adjustedTTL));
+            if (transactionTypes.add(transactionType)) {
+                futures.addAll(transactionTypeDao.store(agentRollupIds, transactionType));
+            }
+            waitIfTooManyInFlight();
+        }
+
+        public void storeTransactionAggregate(String transactionType, String transactionName,
+                Aggregate transactionAggregate) throws Exception {
+            waitForSharedQueryTexts();
+            futures.addAll(AggregateDao.this.storeTransactionAggregate(agentId, transactionType,
+                    transactionName, captureTime, transactionAggregate, sharedQueryTexts,
+                    adjustedTTL));
+            waitIfTooManyInFlight();
+        }
+
+        public void complete() throws Exception {
+            if (transactionTypes.isEmpty()) {
+                MoreFutures.waitForAll(sharedQueryTextFutures);
+                MoreFutures.waitForAll(futures);
+                agentDao.updateLastCaptureTime(agentId, captureTime).get();
+                return;
+            }
+            futures.add(agentDao.updateLastCaptureTime(agentId, captureTime));
+            // wait for success before inserting "needs rollup" records
+            MoreFutures.waitForAll(futures);
+            futures.clear();
+
+            List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+            int needsRollupAdjustedTTL = getNeedsRollupAdjustedTTL(adjustedTTL, rollupConfigs);
+            if (agentRollupIds.size() > 1) {
+                BoundStatement boundStatement = insertNeedsRollupFromChild.bind();
+                int i = 0;
+                boundStatement.setString(i++, agentRollupIds.get(1));
+                boundStatement.setTimestamp(i++, new Date(captureTime));
+                boundStatement.setUUID(i++, UUIDs.timeBased());
+                boundStatement.setString(i++, agentId);
+                boundStatement.setSet(i++, transactionTypes);
+                boundStatement.setInt(i++, needsRollupAdjustedTTL);
+                futures.add(session.executeAsync(boundStatement));
+            }
+            // insert into aggregate_needs_rollup_1
+            long intervalMillis = rollupConfigs.get(1).intervalMillis();
+            long rollupCaptureTime = Utils.getRollupCaptureTime(captureTime, intervalMillis);
+            BoundStatement boundStatement = insertNeedsRollup.get(0).bind();
+            int i = 0;
+            boundStatement.setString(i++, agentId);
+            boundStatement.setTimestamp(i++, new Date(rollupCaptureTime));
+            boundStatement.setUUID(i++, UUIDs.timeBased());
+            boundStatement.setSet(i++, transactionTypes);
+            boundStatement.setInt(i++, needsRollupAdjustedTTL);
+            futures.add(session.executeAsync(boundStatement));
+            MoreFutures.waitForAll(futures);
+        }
+
+        // wait for success before storing aggregates that reference the shared query texts in
+        // order to ensure cannot end up with orphaned fullTextSha1
+        private void waitForSharedQueryTexts() throws Exception {
+            if (!sharedQueryTextFutures.isEmpty()) {
+                MoreFutures.waitForAll(sharedQueryTextFutures);
+                sharedQueryTextFutures.clear();
+            }
+        }
+
+        private void waitIfTooManyInFlight() throws Exception {
+            if (futures.size() >= MAX_IN_FLIGHT_FUTURES_PER_STREAM) {
+                MoreFutures.waitForAll(futures);
+                futures.clear();
+            }
+        }
+    }
 }
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.Date;
+import java.util.List;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.google.common.collect.Lists;
+
+import org.glowroot.common.util.Clock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// each central node holds a lease (a row with ttl) that it renews periodically, so the live
+// central nodes are the ones whose leases have not expired
+public class CentralNodeDao {
+
+    private static final String WITH_LCS =
+            "with compaction = { 'class' : 'LeveledCompactionStrategy' }";
+
+    private final Session session;
+    private final Clock clock;
+
+    private final PreparedStatement insertPS;
+    private final PreparedStatement readPS;
+    private final PreparedStatement deletePS;
+
+    public CentralNodeDao(Session session, Clock clock) {
+        this.session = session;
+        this.clock = clock;
+
+        session.execute("create table if not exists central_node (one int, node_id varchar,"
+                + " last_renewal_time timestamp, primary key (one, node_id)) " + WITH_LCS);
+
+        insertPS = session.prepare("insert into central_node (one, node_id, last_renewal_time)"
+                + " values (1, ?, ?) using ttl ?");
+        readPS = session.prepare("select node_id from central_node where one = 1");
+        deletePS = session.prepare("delete from central_node where one = 1 and node_id = ?");
+    }
+
+    public void renewLease(String nodeId, int leaseSeconds) {
+        BoundStatement boundStatement = insertPS.bind();
+        int i = 0;
+        boundStatement.setString(i++, nodeId);
+        boundStatement.setTimestamp(i++, new Date(clock.currentTimeMillis()));
+        boundStatement.setInt(i++, leaseSeconds);
+        session.execute(boundStatement);
+    }
+
+    public List<String> readLiveNodeIds() {
+        ResultSet results = session.execute(readPS.bind());
+        List<String> nodeIds = Lists.newArrayList();
+        for (Row row : results) {
+            nodeIds.add(checkNotNull(row.getString(0)));
+        }
+        return nodeIds;
+    }
+
+    public void releaseLease(String nodeId) {
+        BoundStatement boundStatement = deletePS.bind();
+        boundStatement.setString(0, nodeId);
+        session.execute(boundStatement);
+    }
+}
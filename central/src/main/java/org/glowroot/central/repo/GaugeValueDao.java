@@ -45,6 +45,7 @@ import org.slf4j.LoggerFactory;
 import org.glowroot.agent.api.Instrumentation;
 import org.glowroot.central.repo.AggregateDao.NeedsRollup;
 import org.glowroot.central.repo.AggregateDao.NeedsRollupFromChildren;
+import org.glowroot.central.util.AsyncQueryLimiter;
 import org.glowroot.central.util.DummyResultSet;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Sessions;
@@ -70,6 +71,7 @@ public class GaugeValueDao implements GaugeValueRepository {
     private final Session session;
     private final AgentDao agentDao;
     private final ConfigRepository configRepository;
+    private final AsyncQueryLimiter rollupQueryLimiter;
     private final Clock clock;
 
     private final GaugeNameDao gaugeNameDao;
@@ -89,10 +91,11 @@ public class GaugeValueDao implements GaugeValueRepository {
     private final PreparedStatement deleteNeedsRollupFromChild;
 
     public GaugeValueDao(Session session, AgentDao agentDao, ConfigRepository configRepository,
-            Clock clock) throws Exception {
+            AsyncQueryLimiter rollupQueryLimiter, Clock clock) throws Exception {
         this.session = session;
         this.agentDao = agentDao;
         this.configRepository = configRepository;
+        this.rollupQueryLimiter = rollupQueryLimiter;
         this.clock = clock;
 
         gaugeNameDao = new GaugeNameDao(session, configRepository);
@@ -350,8 +353,9 @@ public class GaugeValueDao implements GaugeValueRepository {
             Set<String> gaugeNames = needsRollup.getKeys();
             List<ListenableFuture<ResultSet>> futures = Lists.newArrayList();
             for (String gaugeName : gaugeNames) {
-                futures.add(rollupOne(rollupLevel, agentRollupId, gaugeName, from, captureTime,
-                        adjustedTTL));
+                // the permit is held until the dependent insert completes
+                futures.add(rollupQueryLimiter.execute(() -> rollupOne(rollupLevel, agentRollupId,
+                        gaugeName, from, captureTime, adjustedTTL)));
             }
             if (futures.isEmpty()) {
                 // no rollups occurred, warning already logged inside rollupOne() above
@@ -392,7 +396,8 @@ public class GaugeValueDao implements GaugeValueRepository {
     }
 
     private ListenableFuture<ResultSet> rollupOneFromChildren(int rollupLevel, String agentRollupId,
-            String gaugeName, List<String> childAgentRollups, long captureTime, int adjustedTTL) {
+            String gaugeName, List<String> childAgentRollups, long captureTime, int adjustedTTL)
+            throws InterruptedException {
         List<ListenableFuture<ResultSet>> futures = Lists.newArrayList();
         for (String childAgentRollup : childAgentRollups) {
             BoundStatement boundStatement = readValueForRollupFromChildPS.bind();
@@ -400,7 +405,7 @@ public class GaugeValueDao implements GaugeValueRepository {
             boundStatement.setString(i++, childAgentRollup);
             boundStatement.setString(i++, gaugeName);
             boundStatement.setTimestamp(i++, new Date(captureTime));
-            futures.add(session.executeAsync(boundStatement));
+            futures.add(rollupQueryLimiter.executeAsync(session, boundStatement));
         }
         return Futures.transformAsync(
                 Futures.allAsList(futures),
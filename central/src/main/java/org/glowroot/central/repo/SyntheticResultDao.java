@@ -39,6 +39,7 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.api.Instrumentation;
 import org.glowroot.central.repo.AggregateDao.NeedsRollup;
+import org.glowroot.central.util.AsyncQueryLimiter;
 import org.glowroot.central.util.DummyResultSet;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Sessions;
@@ -61,6 +62,7 @@ public class SyntheticResultDao implements SyntheticResultRepository {
 
     private final Session session;
     private final ConfigRepository configRepository;
+    private final AsyncQueryLimiter rollupQueryLimiter;
     private final Clock clock;
 
     // index is rollupLevel
@@ -72,10 +74,11 @@ public class SyntheticResultDao implements SyntheticResultRepository {
     private final List<PreparedStatement> readNeedsRollup;
     private final List<PreparedStatement> deleteNeedsRollup;
 
-    public SyntheticResultDao(Session session, ConfigRepository configRepository, Clock clock)
-            throws Exception {
+    public SyntheticResultDao(Session session, ConfigRepository configRepository,
+            AsyncQueryLimiter rollupQueryLimiter, Clock clock) throws Exception {
         this.session = session;
         this.configRepository = configRepository;
+        this.rollupQueryLimiter = rollupQueryLimiter;
         this.clock = clock;
 
         int count = configRepository.getRollupConfigs().size();
@@ -226,8 +229,9 @@ public class SyntheticResultDao implements SyntheticResultRepository {
             Set<String> syntheticMonitorIds = needsRollup.getKeys();
             List<ListenableFuture<ResultSet>> futures = Lists.newArrayList();
             for (String syntheticMonitorId : syntheticMonitorIds) {
-                futures.add(rollupOne(rollupLevel, agentRollupId, syntheticMonitorId, from,
-                        captureTime, adjustedTTL));
+                // the permit is held until the dependent insert completes
+                futures.add(rollupQueryLimiter.execute(() -> rollupOne(rollupLevel,
+                        agentRollupId, syntheticMonitorId, from, captureTime, adjustedTTL)));
             }
             if (futures.isEmpty()) {
                 // no rollups occurred, warning already logged inside rollupOne() above
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.concurrent.Semaphore;
+
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+// bounds the number of in-flight async queries across all of the threads that share this limiter
+//
+// a permit is acquired on the calling thread (blocking it until earlier queries complete) and is
+// released once the returned future completes, so this must only be called from threads that are
+// ok to block, and never from inside a future callback, since those run on the driver's i/o threads
+// which are needed to complete the earlier queries
+public class AsyncQueryLimiter {
+
+    private final Semaphore semaphore;
+
+    public AsyncQueryLimiter(int maxConcurrentQueries) {
+        semaphore = new Semaphore(maxConcurrentQueries);
+    }
+
+    public ResultSetFuture executeAsync(Session session, Statement statement)
+            throws InterruptedException {
+        semaphore.acquire();
+        ResultSetFuture future;
+        try {
+            future = session.executeAsync(statement);
+        } catch (RuntimeException e) {
+            semaphore.release();
+            throw e;
+        }
+        future.addListener(semaphore::release, MoreExecutors.directExecutor());
+        return future;
+    }
+
+    // the permit is held until the future returned by the query completes, which is useful when
+    // the query is followed by further async work (e.g. a read followed by a dependent write)
+    public <T> ListenableFuture<T> execute(AsyncQuery<T> query) throws Exception {
+        semaphore.acquire();
+        ListenableFuture<T> future;
+        try {
+            future = query.execute();
+        } catch (Exception e) {
+            semaphore.release();
+            throw e;
+        }
+        future.addListener(semaphore::release, MoreExecutors.directExecutor());
+        return future;
+    }
+
+    @VisibleForTesting
+    int availablePermits() {
+        return semaphore.availablePermits();
+    }
+
+    @FunctionalInterface
+    public interface AsyncQuery<T> {
+        ListenableFuture<T> execute() throws Exception;
+    }
+}
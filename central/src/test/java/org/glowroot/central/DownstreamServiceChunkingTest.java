@@ -0,0 +1,293 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import io.grpc.stub.StreamObserver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.central.repo.AgentDao;
+import org.glowroot.central.repo.ConfigDao;
+import org.glowroot.common.live.LiveTraceRepository.ChunkedEntries;
+import org.glowroot.common.live.LiveTraceRepository.Entries;
+import org.glowroot.common.live.LiveTraceRepository.FullTrace;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.AgentResponse;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.CentralRequest;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.CentralRequest.MessageCase;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.EntriesResponse;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.FullTraceResponse;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.Hello;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class DownstreamServiceChunkingTest {
+
+    private ExecutorService executor;
+    private DownstreamServiceImpl downstreamService;
+    private TestAgent agent;
+
+    @Before
+    public void beforeEachTest() {
+        executor = Executors.newSingleThreadExecutor();
+        downstreamService = new DownstreamServiceImpl(mock(AgentDao.class), mock(ConfigDao.class));
+        agent = new TestAgent();
+        agent.responseObserver = downstreamService.connect(agent);
+        agent.responseObserver.onNext(AgentResponse.newBuilder()
+                .setHello(Hello.newBuilder()
+                        .setAgentId("a"))
+                .build());
+    }
+
+    @After
+    public void afterEachTest() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void shouldReadChunkedEntries() throws Exception {
+        // given
+        agent.responses = ImmutableList.of(
+                entriesResponse(true, entry("a"), entry("b")),
+                entriesResponse(true, entry("c")),
+                entriesResponse(false));
+        // when
+        ChunkedEntries entries = downstreamService.getEntries("a", "t");
+        // then
+        assertThat(agent.request.getEntriesRequest().getChunked()).isTrue();
+        assertThat(entries).isNotNull();
+        assertThat(readMessages(entries)).containsExactly("a", "b", "c");
+        entries.close();
+        agent.sending.get(5, SECONDS);
+    }
+
+    @Test
+    public void shouldReadSharedQueryTextsFromEachChunk() throws Exception {
+        // given
+        agent.responses = ImmutableList.of(
+                AgentResponse.newBuilder()
+                        .setEntriesResponse(EntriesResponse.newBuilder()
+                                .addEntry(entry("a"))
+                                .addSharedQueryText(sharedQueryText("select 1"))
+                                .setMoreChunks(true))
+                        .build(),
+                AgentResponse.newBuilder()
+                        .setEntriesResponse(EntriesResponse.newBuilder()
+                                .addEntry(entry("b"))
+                                .addSharedQueryText(sharedQueryText("select 2")))
+                        .build());
+        // when
+        ChunkedEntries entries = downstreamService.getEntries("a", "t");
+        // then
+        assertThat(entries).isNotNull();
+        Entries first = entries.readNextChunk();
+        Entries second = entries.readNextChunk();
+        assertThat(entries.readNextChunk()).isNull();
+        entries.close();
+        assertThat(first.sharedQueryTexts()).containsExactly(sharedQueryText("select 1"));
+        assertThat(second.sharedQueryTexts()).containsExactly(sharedQueryText("select 2"));
+    }
+
+    @Test
+    public void shouldReadEntriesFromAgentThatIgnoresChunkedFlag() throws Exception {
+        // given
+        agent.responses = ImmutableList.of(entriesResponse(false, entry("a"), entry("b")));
+        // when
+        ChunkedEntries entries = downstreamService.getEntries("a", "t");
+        // then
+        assertThat(entries).isNotNull();
+        assertThat(readMessages(entries)).containsExactly("a", "b");
+        entries.close();
+    }
+
+    @Test
+    public void shouldReturnNullWhenNoEntries() throws Exception {
+        // given
+        agent.responses = ImmutableList.of(entriesResponse(false));
+        // when
+        ChunkedEntries entries = downstreamService.getEntries("a", "t");
+        // then
+        assertThat(entries).isNull();
+    }
+
+    @Test
+    public void shouldReadChunkedFullTrace() throws Exception {
+        // given
+        agent.responses = ImmutableList.of(
+                AgentResponse.newBuilder()
+                        .setFullTraceResponse(FullTraceResponse.newBuilder()
+                                .setTrace(trace())
+                                .setMoreChunks(true))
+                        .build(),
+                AgentResponse.newBuilder()
+                        .setFullTraceResponse(FullTraceResponse.newBuilder()
+                                .addEntry(entry("a"))
+                                .addEntrySharedQueryText(sharedQueryText("select 1"))
+                                .setMoreChunks(true))
+                        .build(),
+                AgentResponse.newBuilder()
+                        .setFullTraceResponse(FullTraceResponse.newBuilder()
+                                .addEntry(entry("b")))
+                        .build());
+        // when
+        FullTrace fullTrace = downstreamService.getFullTrace("a", "t");
+        // then
+        assertThat(agent.request.getFullTraceRequest().getChunked()).isTrue();
+        assertThat(fullTrace).isNotNull();
+        assertThat(fullTrace.trace().getId()).isEqualTo("t");
+        Entries first = fullTrace.entries().readNextChunk();
+        assertThat(first.entries()).containsExactly(entry("a"));
+        assertThat(first.sharedQueryTexts()).containsExactly(sharedQueryText("select 1"));
+        Entries second = fullTrace.entries().readNextChunk();
+        assertThat(second.entries()).containsExactly(entry("b"));
+        assertThat(fullTrace.entries().readNextChunk()).isNull();
+        fullTrace.entries().close();
+    }
+
+    @Test
+    public void shouldReadFullTraceFromAgentThatIgnoresChunkedFlag() throws Exception {
+        // given
+        agent.responses = ImmutableList.of(AgentResponse.newBuilder()
+                .setFullTraceResponse(FullTraceResponse.newBuilder()
+                        .setTrace(trace().toBuilder()
+                                .addEntry(entry("a"))
+                                .addEntry(entry("b"))
+                                .addSharedQueryText(sharedQueryText("select 1"))))
+                .build());
+        // when
+        FullTrace fullTrace = downstreamService.getFullTrace("a", "t");
+        // then
+        assertThat(fullTrace).isNotNull();
+        assertThat(fullTrace.trace().getId()).isEqualTo("t");
+        assertThat(fullTrace.trace().getEntryCount()).isZero();
+        assertThat(fullTrace.trace().getSharedQueryTextCount()).isZero();
+        Entries chunk = fullTrace.entries().readNextChunk();
+        assertThat(chunk.entries()).containsExactly(entry("a"), entry("b"));
+        assertThat(chunk.sharedQueryTexts()).containsExactly(sharedQueryText("select 1"));
+        assertThat(fullTrace.entries().readNextChunk()).isNull();
+        fullTrace.entries().close();
+    }
+
+    @Test
+    public void shouldReturnNullWhenNoFullTrace() throws Exception {
+        // given
+        agent.responses = ImmutableList.of(AgentResponse.newBuilder()
+                .setFullTraceResponse(FullTraceResponse.getDefaultInstance())
+                .build());
+        // when
+        FullTrace fullTrace = downstreamService.getFullTrace("a", "t");
+        // then
+        assertThat(fullTrace).isNull();
+    }
+
+    @Test
+    public void shouldDiscardRemainingChunksOnClose() throws Exception {
+        // given
+        List<AgentResponse> responses = Lists.newArrayList();
+        for (int i = 0; i < 20; i++) {
+            responses.add(entriesResponse(true, entry(Integer.toString(i))));
+        }
+        responses.add(entriesResponse(false));
+        agent.responses = responses;
+        // when
+        ChunkedEntries entries = downstreamService.getEntries("a", "t");
+        assertThat(entries).isNotNull();
+        entries.readNextChunk();
+        entries.close();
+        // then
+        // the agent is not left blocked on the (bounded) response queue
+        agent.sending.get(5, SECONDS);
+    }
+
+    private static List<String> readMessages(ChunkedEntries entries) throws Exception {
+        List<String> messages = Lists.newArrayList();
+        Entries chunk;
+        while ((chunk = entries.readNextChunk()) != null) {
+            for (Trace.Entry entry : chunk.entries()) {
+                messages.add(entry.getMessage());
+            }
+        }
+        return messages;
+    }
+
+    private static AgentResponse entriesResponse(boolean moreChunks, Trace.Entry... entries) {
+        return AgentResponse.newBuilder()
+                .setEntriesResponse(EntriesResponse.newBuilder()
+                        .addAllEntry(ImmutableList.copyOf(entries))
+                        .setMoreChunks(moreChunks))
+                .build();
+    }
+
+    private static Trace trace() {
+        return Trace.newBuilder()
+                .setId("t")
+                .setHeader(Trace.Header.getDefaultInstance())
+                .build();
+    }
+
+    private static Trace.Entry entry(String message) {
+        return Trace.Entry.newBuilder()
+                .setMessage(message)
+                .build();
+    }
+
+    private static Trace.SharedQueryText sharedQueryText(String fullText) {
+        return Trace.SharedQueryText.newBuilder()
+                .setFullText(fullText)
+                .build();
+    }
+
+    // responds to trace requests (on a separate thread, like grpc) with the given responses
+    private class TestAgent implements StreamObserver<CentralRequest> {
+
+        private volatile StreamObserver<AgentResponse> responseObserver;
+        private volatile List<AgentResponse> responses;
+
+        private volatile CentralRequest request;
+        private volatile Future<?> sending;
+
+        @Override
+        public void onNext(CentralRequest value) {
+            if (value.getMessageCase() == MessageCase.HELLO_ACK) {
+                return;
+            }
+            request = value;
+            sending = executor.submit(() -> {
+                for (AgentResponse response : responses) {
+                    responseObserver.onNext(response.toBuilder()
+                            .setRequestId(value.getRequestId())
+                            .build());
+                }
+            });
+        }
+
+        @Override
+        public void onError(Throwable t) {}
+
+        @Override
+        public void onCompleted() {}
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,9 +15,29 @@
  */
 package org.glowroot.central;
 
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import org.glowroot.central.repo.AgentDao;
+import org.glowroot.central.repo.AggregateDao;
+import org.glowroot.central.repo.CentralNodeDao;
+import org.glowroot.central.repo.ConfigRepositoryImpl;
+import org.glowroot.central.repo.GaugeValueDao;
+import org.glowroot.central.repo.HeartbeatDao;
+import org.glowroot.central.repo.SyntheticResultDao;
+import org.glowroot.common.repo.AgentRepository.AgentRollup;
+import org.glowroot.common.util.Clock;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 public class RollupServiceTest {
 
@@ -28,4 +48,41 @@ public class RollupServiceTest {
         assertThat(RollupService.millisUntilNextRollup(45000)).isEqualTo(25000);
         assertThat(RollupService.millisUntilNextRollup(60000)).isEqualTo(10000);
     }
+
+    @Test
+    public void shouldUpdateAgentConfigEvenIfRollupIsOwnedByAnotherNode() throws Exception {
+        // given
+        List<AgentRollup> agentRollups = RollupShardingTest.createAgentRollups(20);
+        AgentDao agentDao = mock(AgentDao.class);
+        when(agentDao.readAgentRollups()).thenReturn(agentRollups);
+        AggregateDao aggregateDao = mock(AggregateDao.class);
+        DownstreamServiceImpl downstreamService = mock(DownstreamServiceImpl.class);
+        CentralNodeDao centralNodeDao = mock(CentralNodeDao.class);
+        when(centralNodeDao.readLiveNodeIds())
+                .thenAnswer(invocation -> Lists.newArrayList("other-node"));
+        RollupService rollupService = new RollupService(agentDao, aggregateDao,
+                mock(GaugeValueDao.class), mock(SyntheticResultDao.class),
+                mock(HeartbeatDao.class), mock(ConfigRepositoryImpl.class),
+                mock(AlertingService.class), downstreamService, centralNodeDao, 2,
+                mock(Clock.class));
+        ArgumentCaptor<String> nodeIdCaptor = ArgumentCaptor.forClass(String.class);
+        verify(centralNodeDao).renewLease(nodeIdCaptor.capture(), anyInt());
+        List<String> nodeIds = ImmutableList.of("other-node", nodeIdCaptor.getValue());
+        // when
+        rollupService.runInternal();
+        rollupService.close();
+        // then
+        int ownedCount = 0;
+        for (AgentRollup agentRollup : agentRollups) {
+            String agentId = agentRollup.id();
+            if (RollupSharding.getOwnerNodeId(agentId, nodeIds).equals("other-node")) {
+                verify(aggregateDao, never()).rollup(agentId, null, true);
+            } else {
+                verify(aggregateDao).rollup(agentId, null, true);
+                ownedCount++;
+            }
+            verify(downstreamService).updateAgentConfigIfConnectedAndNeeded(agentId);
+        }
+        assertThat(ownedCount).isBetween(1, agentRollups.size() - 1);
+    }
 }
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.central.repo.CentralNodeDao;
+import org.glowroot.common.repo.AgentRepository.AgentRollup;
+import org.glowroot.common.repo.ImmutableAgentRollup;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RollupShardingTest {
+
+    @Test
+    public void shouldAssignEachAgentRollupToOneNode() {
+        List<String> nodeIds = ImmutableList.of("node-a", "node-b", "node-c");
+        int[] counts = new int[nodeIds.size()];
+        for (int i = 0; i < 3000; i++) {
+            String ownerNodeId = RollupSharding.getOwnerNodeId("agent-" + i, nodeIds);
+            counts[nodeIds.indexOf(ownerNodeId)]++;
+        }
+        for (int count : counts) {
+            assertThat(count).isBetween(800, 1200);
+        }
+    }
+
+    @Test
+    public void shouldOnlyMoveAgentRollupsOfRemovedNode() {
+        List<String> nodeIds = ImmutableList.of("node-a", "node-b", "node-c");
+        List<String> remainingNodeIds = ImmutableList.of("node-a", "node-c");
+        for (int i = 0; i < 3000; i++) {
+            String agentRollupId = "agent-" + i;
+            String ownerNodeId = RollupSharding.getOwnerNodeId(agentRollupId, nodeIds);
+            String newOwnerNodeId = RollupSharding.getOwnerNodeId(agentRollupId, remainingNodeIds);
+            if (!ownerNodeId.equals("node-b")) {
+                assertThat(newOwnerNodeId).isEqualTo(ownerNodeId);
+            }
+        }
+    }
+
+    @Test
+    public void shouldSplitAgentRollupsBetweenLiveNodes() throws Exception {
+        // given
+        CentralNodeDao centralNodeDao = mockCentralNodeDao("node-a", "node-b");
+        RollupSharding rollupShardingA = new RollupSharding(centralNodeDao, "node-a");
+        RollupSharding rollupShardingB = new RollupSharding(centralNodeDao, "node-b");
+        List<AgentRollup> agentRollups = createAgentRollups(100);
+        // when
+        List<AgentRollup> ownedByA = rollupShardingA.getOwnedAgentRollups(agentRollups);
+        List<AgentRollup> ownedByB = rollupShardingB.getOwnedAgentRollups(agentRollups);
+        rollupShardingA.close();
+        rollupShardingB.close();
+        // then
+        assertThat(ownedByA).isNotEmpty();
+        assertThat(ownedByB).isNotEmpty();
+        assertThat(ownedByA).doesNotContainAnyElementsOf(ownedByB);
+        List<AgentRollup> ownedByEither = Lists.newArrayList(ownedByA);
+        ownedByEither.addAll(ownedByB);
+        assertThat(ownedByEither).containsOnlyElementsOf(agentRollups);
+        assertThat(ownedByEither).hasSameSizeAs(agentRollups);
+    }
+
+    @Test
+    public void shouldOwnAllAgentRollupsWhenOnlyLiveNode() throws Exception {
+        // given
+        CentralNodeDao centralNodeDao = mockCentralNodeDao("node-a");
+        RollupSharding rollupSharding = new RollupSharding(centralNodeDao, "node-a");
+        List<AgentRollup> agentRollups = createAgentRollups(100);
+        // when
+        List<AgentRollup> owned = rollupSharding.getOwnedAgentRollups(agentRollups);
+        rollupSharding.close();
+        // then
+        assertThat(owned).isEqualTo(agentRollups);
+    }
+
+    @Test
+    public void shouldTakeShareEvenIfOwnLeaseIsMissing() throws Exception {
+        // given
+        CentralNodeDao centralNodeDao = mockCentralNodeDao("node-b");
+        RollupSharding rollupSharding = new RollupSharding(centralNodeDao, "node-a");
+        List<AgentRollup> agentRollups = createAgentRollups(100);
+        // when
+        List<AgentRollup> owned = rollupSharding.getOwnedAgentRollups(agentRollups);
+        rollupSharding.close();
+        // then
+        List<AgentRollup> expected = Lists.newArrayList();
+        for (AgentRollup agentRollup : agentRollups) {
+            if (RollupSharding.getOwnerNodeId(agentRollup.id(),
+                    ImmutableList.of("node-a", "node-b")).equals("node-a")) {
+                expected.add(agentRollup);
+            }
+        }
+        assertThat(owned).isNotEmpty();
+        assertThat(owned).isEqualTo(expected);
+    }
+
+    private static CentralNodeDao mockCentralNodeDao(String... liveNodeIds) {
+        CentralNodeDao centralNodeDao = mock(CentralNodeDao.class);
+        // new (mutable) list on each call, same as the real dao
+        when(centralNodeDao.readLiveNodeIds())
+                .thenAnswer(invocation -> Lists.newArrayList(liveNodeIds));
+        return centralNodeDao;
+    }
+
+    static List<AgentRollup> createAgentRollups(int count) {
+        List<AgentRollup> agentRollups = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            agentRollups.add(ImmutableAgentRollup.builder()
+                    .id("agent-" + i)
+                    .display("agent-" + i)
+                    .agent(true)
+                    .build());
+        }
+        return agentRollups;
+    }
+}
@@ -25,6 +25,7 @@ import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import org.glowroot.central.util.AsyncQueryLimiter;
 import org.glowroot.central.util.Sessions;
 import org.glowroot.common.config.CentralStorageConfig;
 import org.glowroot.common.config.ImmutableCentralStorageConfig;
@@ -62,7 +63,8 @@ public class GaugeValueDaoIT {
                         .copyOf(storageConfig)
                         .withRollupExpirationHours(0, 0, 0, 0),
                 storageConfig.version());
-        gaugeValueDao = new GaugeValueDao(session, agentDao, configRepository, Clock.systemClock());
+        gaugeValueDao = new GaugeValueDao(session, agentDao, configRepository,
+                new AsyncQueryLimiter(512), Clock.systemClock());
     }
 
     @AfterClass
@@ -25,6 +25,7 @@ import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import org.glowroot.central.util.AsyncQueryLimiter;
 import org.glowroot.central.util.Sessions;
 import org.glowroot.common.config.CentralStorageConfig;
 import org.glowroot.common.config.ImmutableCentralStorageConfig;
@@ -63,7 +64,8 @@ public class SyntheticResultDaoIT {
                         .copyOf(storageConfig)
                         .withRollupExpirationHours(0, 0, 0, 0),
                 storageConfig.version());
-        syntheticResultDao = new SyntheticResultDao(session, configRepository, Clock.systemClock());
+        syntheticResultDao = new SyntheticResultDao(session, configRepository,
+                new AsyncQueryLimiter(512), Clock.systemClock());
     }
 
     @AfterClass
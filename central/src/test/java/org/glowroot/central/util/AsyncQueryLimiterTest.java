@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.base.Stopwatch;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AsyncQueryLimiterTest {
+
+    private Session session;
+    private ResultSetFuture future;
+    private Statement statement;
+
+    @Before
+    public void beforeEachTest() {
+        session = mock(Session.class);
+        future = mock(ResultSetFuture.class);
+        statement = mock(Statement.class);
+        when(session.executeAsync(statement)).thenReturn(future);
+    }
+
+    @Test
+    public void shouldReleasePermitWhenQueryCompletes() throws Exception {
+        // given
+        AsyncQueryLimiter limiter = new AsyncQueryLimiter(2);
+        // when
+        limiter.executeAsync(session, statement);
+        limiter.executeAsync(session, statement);
+        // then
+        assertThat(limiter.availablePermits()).isEqualTo(0);
+        List<Runnable> listeners = captureListeners(2);
+        listeners.get(0).run();
+        assertThat(limiter.availablePermits()).isEqualTo(1);
+        listeners.get(1).run();
+        assertThat(limiter.availablePermits()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldBlockUntilPermitIsAvailable() throws Exception {
+        // given
+        AsyncQueryLimiter limiter = new AsyncQueryLimiter(1);
+        limiter.executeAsync(session, statement);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    limiter.executeAsync(session, statement);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        // when
+        thread.start();
+        // then
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        while (thread.getState() != Thread.State.WAITING && stopwatch.elapsed(SECONDS) < 5) {
+            Thread.sleep(10);
+        }
+        assertThat(thread.getState()).isEqualTo(Thread.State.WAITING);
+        verify(session, times(1)).executeAsync(statement);
+        captureListeners(1).get(0).run();
+        thread.join(5000);
+        assertThat(thread.isAlive()).isFalse();
+        verify(session, times(2)).executeAsync(statement);
+    }
+
+    @Test
+    public void shouldReleasePermitIfQueryFailsToStart() throws Exception {
+        // given
+        AsyncQueryLimiter limiter = new AsyncQueryLimiter(1);
+        when(session.executeAsync(statement)).thenThrow(new IllegalStateException());
+        // when
+        try {
+            limiter.executeAsync(session, statement);
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        // then
+        assertThat(limiter.availablePermits()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldHoldPermitUntilDependentWorkCompletes() throws Exception {
+        // given
+        AsyncQueryLimiter limiter = new AsyncQueryLimiter(1);
+        SettableFuture<String> dependentFuture = SettableFuture.create();
+        // when
+        limiter.execute(() -> dependentFuture);
+        // then
+        assertThat(limiter.availablePermits()).isEqualTo(0);
+        dependentFuture.set("done");
+        assertThat(limiter.availablePermits()).isEqualTo(1);
+    }
+
+    private List<Runnable> captureListeners(int count) {
+        ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+        verify(future, times(count)).addListener(captor.capture(), any(Executor.class));
+        return captor.getAllValues();
+    }
+}
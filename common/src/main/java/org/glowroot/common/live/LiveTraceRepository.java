@@ -39,8 +39,11 @@ public interface LiveTraceRepository {
     //
     // SharedQueryTexts are returned with either fullTrace or
     // truncatedText/truncatedEndText/fullTraceSha1
+    //
+    // caller must close the returned ChunkedEntries
     @Nullable
-    Entries getEntries(String agentRollupId, String agentId, String traceId) throws Exception;
+    ChunkedEntries getEntries(String agentRollupId, String agentId, String traceId)
+            throws Exception;
 
     // null return value means trace not found or was found but had no main thread profile
     @Nullable
@@ -56,8 +59,10 @@ public interface LiveTraceRepository {
     //
     // since this is only used by export, SharedQueryTexts are always returned with fullTrace
     // (never with truncatedText/truncatedEndText/fullTraceSha1)
+    //
+    // caller must close the entries of the returned FullTrace
     @Nullable
-    Trace getFullTrace(String agentRollupId, String agentId, String traceId) throws Exception;
+    FullTrace getFullTrace(String agentRollupId, String agentId, String traceId) throws Exception;
 
     int getMatchingTraceCount(String transactionType, @Nullable String transactionName);
 
@@ -74,6 +79,50 @@ public interface LiveTraceRepository {
         List<Trace.SharedQueryText> sharedQueryTexts();
     }
 
+    // entries are read one chunk at a time so that the entries of a large trace do not need to be
+    // held in memory all at once (e.g. while they are streamed from a remote agent to the browser)
+    //
+    // shared query text indexes in the entries are across all of the chunks, and each chunk has the
+    // shared query texts that are first referenced by the entries in that chunk
+    public interface ChunkedEntries {
+
+        // null return value means there are no more chunks
+        @Nullable
+        Entries readNextChunk() throws Exception;
+
+        // this must be called even if not all of the chunks have been read
+        void close();
+    }
+
+    @Value.Immutable
+    public interface FullTrace {
+        // this does not have the entries or shared query texts, which are read from entries()
+        Trace trace();
+        ChunkedEntries entries();
+    }
+
+    // for entries that are already held in memory
+    public class UnchunkedEntries implements ChunkedEntries {
+
+        private @Nullable Entries entries;
+
+        public UnchunkedEntries(Entries entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public @Nullable Entries readNextChunk() {
+            Entries chunk = entries;
+            entries = null;
+            return chunk;
+        }
+
+        @Override
+        public void close() {
+            entries = null;
+        }
+    }
+
     @Value.Immutable
     abstract class TracePointFilter {
 
@@ -160,7 +209,8 @@ public interface LiveTraceRepository {
         }
 
         @Override
-        public @Nullable Entries getEntries(String agentRollupId, String agentId, String traceId) {
+        public @Nullable ChunkedEntries getEntries(String agentRollupId, String agentId,
+                String traceId) {
             return null;
         }
 
@@ -177,7 +227,8 @@ public interface LiveTraceRepository {
         }
 
         @Override
-        public @Nullable Trace getFullTrace(String agentRollupId, String agentId, String traceId) {
+        public @Nullable FullTrace getFullTrace(String agentRollupId, String agentId,
+                String traceId) {
             return null;
         }
 
@@ -16,12 +16,9 @@
 package org.glowroot.common.model;
 
 import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 
 import javax.annotation.Nullable;
 
@@ -29,41 +26,85 @@ import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Strings;
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
-import com.google.common.collect.PeekingIterator;
-import com.google.common.collect.Queues;
 import com.google.common.io.CharStreams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.common.util.ObjectMappers;
-import org.glowroot.common.util.Traverser;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 
+// profile tree is stored in parallel primitive arrays indexed by node id (instead of one object
+// per node with its own child list), since merged profiles can have millions of nodes
+//
+// node 0 is a synthetic root whose children are the actual root nodes
+//
+// children of a node are kept in a singly linked list (firstChild/nextSibling) in insertion order,
+// and lookup of a child by (parent, frame) goes through a single open-addressing hash table over
+// all nodes
 public class MutableProfile {
 
+    // see mergeNode()
+    public static final int ROOT_NODE_ID = 0;
+
     private static final Logger logger = LoggerFactory.getLogger(MutableProfile.class);
     private static final ObjectMapper mapper = ObjectMappers.create();
 
-    // TODO use primitive maps, e.g. from GS collections
-    private final Map<String, Integer> packageNameIndexes = Maps.newHashMap();
-    private final Map<String, Integer> classNameIndexes = Maps.newHashMap();
-    private final Map<String, Integer> methodNameIndexes = Maps.newHashMap();
-    private final Map<String, Integer> fileNameIndexes = Maps.newHashMap();
+    private static final Profile.LeafThreadState[] LEAF_THREAD_STATES =
+            Profile.LeafThreadState.values();
+
+    private static final int ROOT = ROOT_NODE_ID;
+    private static final int NONE = -1;
+    // parent value for nodes that have been removed by filter() or truncateBranches(), which
+    // ensures they (and therefore their descendants) are never matched by findChild()
+    private static final int DETACHED = -2;
+
+    private static final int INITIAL_NODE_CAPACITY = 64;
+
+    private final NameTable packageNames = new NameTable();
+    private final NameTable classNames = new NameTable();
+    private final NameTable methodNames = new NameTable();
+    private final NameTable fileNames = new NameTable();
+
+    // full class name -> index into the two arrays below, so that splitting class names into
+    // package name and simple class name only happens the first time a class name is seen
+    private final NameTable fullClassNames = new NameTable();
+    private int[] fullClassNamePackageNameIndexes = new int[16];
+    private int[] fullClassNameClassNameIndexes = new int[16];
+
+    private int nodeCount;
+
+    private int[] packageNameIndexes = new int[INITIAL_NODE_CAPACITY];
+    private int[] classNameIndexes = new int[INITIAL_NODE_CAPACITY];
+    private int[] methodNameIndexes = new int[INITIAL_NODE_CAPACITY];
+    private int[] fileNameIndexes = new int[INITIAL_NODE_CAPACITY];
+    private int[] lineNumbers = new int[INITIAL_NODE_CAPACITY];
+    private byte[] leafThreadStates = new byte[INITIAL_NODE_CAPACITY];
+    private long[] sampleCounts = new long[INITIAL_NODE_CAPACITY];
 
-    private final List<String> packageNames = Lists.newArrayList();
-    private final List<String> classNames = Lists.newArrayList();
-    private final List<String> methodNames = Lists.newArrayList();
-    private final List<String> fileNames = Lists.newArrayList();
+    private int[] parents = new int[INITIAL_NODE_CAPACITY];
+    private int[] firstChilds = new int[INITIAL_NODE_CAPACITY];
+    private int[] lastChilds = new int[INITIAL_NODE_CAPACITY];
+    private int[] nextSiblings = new int[INITIAL_NODE_CAPACITY];
 
-    private final List<ProfileNode> rootNodes = Lists.newArrayList();
+    // only allocated by truncateBranches()
+    private long /*@Nullable*/[] ellipsedSampleCounts;
+
+    // open-addressing hash table of node id + 1 (0 means empty slot), keyed by parent and frame
+    private int[] childIndex = new int[INITIAL_NODE_CAPACITY * 2];
 
     // retain original sample count for in case of filtered profile
     private long unfilteredSampleCount = -1;
 
+    public MutableProfile() {
+        // synthetic root node
+        parents[ROOT] = NONE;
+        firstChilds[ROOT] = NONE;
+        lastChilds[ROOT] = NONE;
+        nextSiblings[ROOT] = NONE;
+        nodeCount = 1;
+    }
+
     // this method is not used that often (only for traces with > 20 stack trace samples) so ok
     // that it does not have most optimal implementation (converts unnecessarily to profile tree)
     public void merge(MutableProfile profile) {
@@ -71,113 +112,147 @@ public class MutableProfile {
     }
 
     public void merge(Profile profile) {
-        Merger merger = new Merger(profile);
-        merger.merge(profile.getNodeList(), rootNodes);
+        int[] packageNameIndexMapping = packageNames.indexOfAll(profile.getPackageNameList());
+        int[] classNameIndexMapping = classNames.indexOfAll(profile.getClassNameList());
+        int[] methodNameIndexMapping = methodNames.indexOfAll(profile.getMethodNameList());
+        int[] fileNameIndexMapping = fileNames.indexOfAll(profile.getFileNameList());
+        // destinationStack[depth] is the parent of the next node at that depth
+        int[] destinationStack = new int[16];
+        destinationStack[0] = ROOT;
+        for (Profile.ProfileNode flatNode : profile.getNodeList()) {
+            int depth = flatNode.getDepth();
+            int parent = destinationStack[depth];
+            int packageNameIndex = packageNameIndexMapping[flatNode.getPackageNameIndex()];
+            int classNameIndex = classNameIndexMapping[flatNode.getClassNameIndex()];
+            int methodNameIndex = methodNameIndexMapping[flatNode.getMethodNameIndex()];
+            int fileNameIndex = fileNameIndexMapping[flatNode.getFileNameIndex()];
+            int lineNumber = flatNode.getLineNumber();
+            int leafThreadState = flatNode.getLeafThreadState().ordinal();
+            int node = findChild(parent, packageNameIndex, classNameIndex, methodNameIndex,
+                    fileNameIndex, lineNumber, leafThreadState);
+            if (node == NONE) {
+                node = addChild(parent, packageNameIndex, classNameIndex, methodNameIndex,
+                        fileNameIndex, lineNumber, leafThreadState);
+            }
+            sampleCounts[node] += flatNode.getSampleCount();
+            if (depth + 1 == destinationStack.length) {
+                destinationStack = Arrays.copyOf(destinationStack, destinationStack.length * 2);
+            }
+            destinationStack[depth + 1] = node;
+        }
     }
 
     public void merge(List<StackTraceElement> stackTraceElements, Thread.State threadState) {
-        PeekingIterator<StackTraceElement> i =
-                Iterators.peekingIterator(Lists.reverse(stackTraceElements).iterator());
-        ProfileNode lastMatchedNode = null;
-        List<ProfileNode> mergeIntoNodes = rootNodes;
-
+        int parent = ROOT;
         boolean lookingForMatch = true;
-        while (i.hasNext()) {
-            StackTraceElement stackTraceElement = i.next();
-            String fullClassName = stackTraceElement.getClassName();
-            int index = fullClassName.lastIndexOf('.');
-            String packageName;
-            String className;
-            if (index == -1) {
-                packageName = "";
-                className = fullClassName;
-            } else {
-                packageName = fullClassName.substring(0, index);
-                className = fullClassName.substring(index + 1);
-            }
-            int packageNameIndex = getNameIndex(packageName, packageNameIndexes, packageNames);
-            int classNameIndex = getNameIndex(className, classNameIndexes, classNames);
-            int methodNameIndex =
-                    getNameIndex(MoreObjects.firstNonNull(stackTraceElement.getMethodName(),
-                            "<null method name>"), methodNameIndexes, methodNames);
-            int fileNameIndex = getNameIndex(Strings.nullToEmpty(stackTraceElement.getFileName()),
-                    fileNameIndexes, fileNames);
-            int lineNumber = stackTraceElement.getLineNumber();
+        for (int i = stackTraceElements.size() - 1; i >= 0; i--) {
             Profile.LeafThreadState leafThreadState =
-                    i.hasNext() ? Profile.LeafThreadState.NONE : getThreadState(threadState);
-
-            ProfileNode node = null;
-            if (lookingForMatch) {
-                for (ProfileNode childNode : mergeIntoNodes) {
-                    if (isMatch(childNode, packageNameIndex, classNameIndex, methodNameIndex,
-                            fileNameIndex, lineNumber, leafThreadState)) {
-                        node = childNode;
-                        break;
-                    }
-                }
-            }
-            if (node == null) {
+                    i == 0 ? getThreadState(threadState) : Profile.LeafThreadState.NONE;
+            int priorNodeCount = nodeCount;
+            int node = mergeChild(parent, stackTraceElements.get(i), leafThreadState.ordinal(),
+                    lookingForMatch);
+            if (nodeCount != priorNodeCount) {
+                // once a new node is added, there is no point looking for matches below it
                 lookingForMatch = false;
-                node = new ProfileNode(packageNameIndex, classNameIndex, methodNameIndex,
-                        fileNameIndex, lineNumber, leafThreadState);
-                mergeIntoNodes.add(node);
             }
-            node.sampleCount++;
-            lastMatchedNode = node;
-            mergeIntoNodes = lastMatchedNode.childNodes;
+            sampleCounts[node]++;
+            parent = node;
         }
     }
 
+    // merges a single node under the given parent node (ROOT_NODE_ID for a top level node) and
+    // returns the merged node id, which is then the parent node id for merging its children
+    //
+    // this is so that other tree representations of a profile can be merged directly, without
+    // first converting them to a Profile
+    public int mergeNode(int parentNodeId, StackTraceElement stackTraceElement,
+            @Nullable Thread.State leafThreadState, long sampleCount) {
+        int node = mergeChild(parentNodeId, stackTraceElement,
+                getThreadState(leafThreadState).ordinal(), true);
+        sampleCounts[node] += sampleCount;
+        return node;
+    }
+
     public void filter(List<String> includes, List<String> excludes) {
         unfilteredSampleCount = getSampleCount();
+        // these are shared across the includes and excludes below (no nodes are added while
+        // filtering), matched is reset for each kept root node after each include
+        boolean[] matched = new boolean[nodeCount];
+        String[] textUppers = new String[nodeCount];
         for (String include : includes) {
-            for (Iterator<ProfileNode> i = rootNodes.iterator(); i.hasNext();) {
-                ProfileNode rootNode = i.next();
-                new ProfileFilterer(rootNode, include, false).traverse();
-                if (rootNode.matched) {
-                    new ProfileResetMatches(rootNode).traverse();
+            int rootNode = firstChilds[ROOT];
+            int keptRootNodes = NONE;
+            while (rootNode != NONE) {
+                int nextRootNode = nextSiblings[rootNode];
+                new ProfileFilterer(include, false, matched, textUppers).traverse(rootNode);
+                if (matched[rootNode]) {
+                    new ProfileResetMatches(matched).traverse(rootNode);
+                    keptRootNodes = appendToChildList(ROOT, keptRootNodes, rootNode);
                 } else {
-                    i.remove();
+                    parents[rootNode] = DETACHED;
                 }
+                rootNode = nextRootNode;
             }
+            endChildList(ROOT, keptRootNodes);
         }
         for (String exclude : excludes) {
-            for (Iterator<ProfileNode> i = rootNodes.iterator(); i.hasNext();) {
-                ProfileNode rootNode = i.next();
-                new ProfileFilterer(rootNode, exclude, true).traverse();
-                if (rootNode.matched) {
-                    i.remove();
+            int rootNode = firstChilds[ROOT];
+            int keptRootNodes = NONE;
+            while (rootNode != NONE) {
+                int nextRootNode = nextSiblings[rootNode];
+                new ProfileFilterer(exclude, true, matched, textUppers).traverse(rootNode);
+                if (matched[rootNode]) {
+                    parents[rootNode] = DETACHED;
+                } else {
+                    keptRootNodes = appendToChildList(ROOT, keptRootNodes, rootNode);
                 }
+                rootNode = nextRootNode;
             }
+            endChildList(ROOT, keptRootNodes);
         }
     }
 
     public void truncateBranches(int minSamples) {
-        Deque<ProfileNode> toBeVisited = new ArrayDeque<ProfileNode>();
-        for (ProfileNode rootNode : rootNodes) {
-            toBeVisited.add(rootNode);
-        }
-        ProfileNode node;
-        while ((node = toBeVisited.poll()) != null) {
-            for (Iterator<ProfileNode> i = node.childNodes.iterator(); i.hasNext();) {
-                ProfileNode childNode = i.next();
-                if (childNode.sampleCount < minSamples) {
-                    i.remove();
+        long[] ellipsedSampleCounts = this.ellipsedSampleCounts;
+        if (ellipsedSampleCounts == null) {
+            ellipsedSampleCounts = new long[sampleCounts.length];
+            this.ellipsedSampleCounts = ellipsedSampleCounts;
+        }
+        // breadth first, each node is enqueued at most once
+        int[] toBeVisited = new int[nodeCount];
+        int head = 0;
+        int tail = 0;
+        for (int rootNode = firstChilds[ROOT]; rootNode != NONE;
+                rootNode = nextSiblings[rootNode]) {
+            toBeVisited[tail++] = rootNode;
+        }
+        while (head < tail) {
+            int node = toBeVisited[head++];
+            int childNode = firstChilds[node];
+            int keptChildNodes = NONE;
+            while (childNode != NONE) {
+                int nextChildNode = nextSiblings[childNode];
+                if (sampleCounts[childNode] < minSamples) {
+                    parents[childNode] = DETACHED;
                     // TODO capture sampleCount per timerName of non-ellipsed structure
                     // and use this in UI dropdown filter of timer names
                     // (currently sampleCount per timerName of ellipsed structure is used)
-                    node.ellipsedSampleCount += childNode.sampleCount;
+                    ellipsedSampleCounts[node] += sampleCounts[childNode];
                 } else {
-                    toBeVisited.add(childNode);
+                    keptChildNodes = appendToChildList(node, keptChildNodes, childNode);
+                    toBeVisited[tail++] = childNode;
                 }
+                childNode = nextChildNode;
             }
+            endChildList(node, keptChildNodes);
         }
     }
 
     public long getSampleCount() {
         long sampleCount = 0;
-        for (ProfileNode rootNode : rootNodes) {
-            sampleCount += rootNode.sampleCount;
+        for (int rootNode = firstChilds[ROOT]; rootNode != NONE;
+                rootNode = nextSiblings[rootNode]) {
+            sampleCount += sampleCounts[rootNode];
         }
         return sampleCount;
     }
@@ -192,14 +267,15 @@ public class MutableProfile {
 
     public Profile toProto() {
         List<Profile.ProfileNode> nodes = Lists.newArrayList();
-        for (ProfileNode rootNode : rootNodes) {
-            new ProfileNodeCollector(rootNode, nodes).traverse();
+        for (int rootNode = firstChilds[ROOT]; rootNode != NONE;
+                rootNode = nextSiblings[rootNode]) {
+            new ProfileNodeCollector(nodes).traverse(rootNode);
         }
         return Profile.newBuilder()
-                .addAllPackageName(packageNames)
-                .addAllClassName(classNames)
-                .addAllMethodName(methodNames)
-                .addAllFileName(fileNames)
+                .addAllPackageName(packageNames.asList())
+                .addAllClassName(classNames.asList())
+                .addAllMethodName(methodNames.asList())
+                .addAllFileName(fileNames.asList())
                 .addAllNode(nodes)
                 .build();
     }
@@ -216,8 +292,9 @@ public class MutableProfile {
         jg.writeStartObject();
         jg.writeNumberField("unfilteredSampleCount", getUnfilteredSampleCount());
         jg.writeArrayFieldStart("rootNodes");
-        for (ProfileNode rootNode : rootNodes) {
-            new ProfileWriter(rootNode, jg).traverse();
+        for (int rootNode = firstChilds[ROOT]; rootNode != NONE;
+                rootNode = nextSiblings[rootNode]) {
+            new ProfileWriter(jg).traverse(rootNode);
         }
         jg.writeEndArray();
         jg.writeEndObject();
@@ -230,10 +307,11 @@ public class MutableProfile {
         jg.writeNumberField("totalSampleCount", getSampleCount());
         jg.writeArrayFieldStart("rootNodes");
         int height = 0;
-        for (ProfileNode rootNode : rootNodes) {
-            if (rootNode.sampleCount > rootNode.ellipsedSampleCount) {
-                FlameGraphWriter flameGraphWriter = new FlameGraphWriter(rootNode, jg);
-                flameGraphWriter.traverse();
+        for (int rootNode = firstChilds[ROOT]; rootNode != NONE;
+                rootNode = nextSiblings[rootNode]) {
+            if (sampleCounts[rootNode] > getEllipsedSampleCount(rootNode)) {
+                FlameGraphWriter flameGraphWriter = new FlameGraphWriter(jg);
+                flameGraphWriter.traverse(rootNode);
                 height = Math.max(height, flameGraphWriter.height);
             }
         }
@@ -244,17 +322,208 @@ public class MutableProfile {
         return sb.toString();
     }
 
-    private static int getNameIndex(String name, Map<String, Integer> nameIndexes,
-            List<String> names) {
-        Integer index = nameIndexes.get(name);
-        if (index == null) {
-            index = names.size();
-            names.add(name);
-            nameIndexes.put(name, index);
+    private int mergeChild(int parent, StackTraceElement stackTraceElement, int leafThreadState,
+            boolean lookForMatch) {
+        int fullClassNameIndex = getFullClassNameIndex(stackTraceElement.getClassName());
+        int packageNameIndex = fullClassNamePackageNameIndexes[fullClassNameIndex];
+        int classNameIndex = fullClassNameClassNameIndexes[fullClassNameIndex];
+        int methodNameIndex = methodNames.indexOf(
+                MoreObjects.firstNonNull(stackTraceElement.getMethodName(), "<null method name>"));
+        int fileNameIndex =
+                fileNames.indexOf(Strings.nullToEmpty(stackTraceElement.getFileName()));
+        int lineNumber = stackTraceElement.getLineNumber();
+        if (lookForMatch) {
+            int node = findChild(parent, packageNameIndex, classNameIndex, methodNameIndex,
+                    fileNameIndex, lineNumber, leafThreadState);
+            if (node != NONE) {
+                return node;
+            }
+        }
+        return addChild(parent, packageNameIndex, classNameIndex, methodNameIndex, fileNameIndex,
+                lineNumber, leafThreadState);
+    }
+
+    private int getFullClassNameIndex(String fullClassName) {
+        int size = fullClassNames.size();
+        int index = fullClassNames.indexOf(fullClassName);
+        if (index == size) {
+            // first time seeing this class name
+            int separatorIndex = fullClassName.lastIndexOf('.');
+            String packageName;
+            String className;
+            if (separatorIndex == -1) {
+                packageName = "";
+                className = fullClassName;
+            } else {
+                packageName = fullClassName.substring(0, separatorIndex);
+                className = fullClassName.substring(separatorIndex + 1);
+            }
+            if (index == fullClassNamePackageNameIndexes.length) {
+                fullClassNamePackageNameIndexes =
+                        Arrays.copyOf(fullClassNamePackageNameIndexes, index * 2);
+                fullClassNameClassNameIndexes =
+                        Arrays.copyOf(fullClassNameClassNameIndexes, index * 2);
+            }
+            fullClassNamePackageNameIndexes[index] = packageNames.indexOf(packageName);
+            fullClassNameClassNameIndexes[index] = classNames.indexOf(className);
         }
         return index;
     }
 
+    private int findChild(int parent, int packageNameIndex, int classNameIndex,
+            int methodNameIndex, int fileNameIndex, int lineNumber, int leafThreadState) {
+        int mask = childIndex.length - 1;
+        int slot = childHash(parent, packageNameIndex, classNameIndex, methodNameIndex,
+                fileNameIndex, lineNumber, leafThreadState) & mask;
+        while (true) {
+            int entry = childIndex[slot];
+            if (entry == 0) {
+                return NONE;
+            }
+            int node = entry - 1;
+            // checking line number first since most likely to be different
+            if (lineNumbers[node] == lineNumber
+                    && parents[node] == parent
+                    && fileNameIndexes[node] == fileNameIndex
+                    && leafThreadStates[node] == leafThreadState
+                    && methodNameIndexes[node] == methodNameIndex
+                    && classNameIndexes[node] == classNameIndex
+                    && packageNameIndexes[node] == packageNameIndex) {
+                return node;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private int addChild(int parent, int packageNameIndex, int classNameIndex,
+            int methodNameIndex, int fileNameIndex, int lineNumber, int leafThreadState) {
+        if (nodeCount == sampleCounts.length) {
+            growNodeArrays();
+        }
+        int node = nodeCount++;
+        packageNameIndexes[node] = packageNameIndex;
+        classNameIndexes[node] = classNameIndex;
+        methodNameIndexes[node] = methodNameIndex;
+        fileNameIndexes[node] = fileNameIndex;
+        lineNumbers[node] = lineNumber;
+        leafThreadStates[node] = (byte) leafThreadState;
+        parents[node] = parent;
+        firstChilds[node] = NONE;
+        lastChilds[node] = NONE;
+        nextSiblings[node] = NONE;
+        if (firstChilds[parent] == NONE) {
+            firstChilds[parent] = node;
+        } else {
+            nextSiblings[lastChilds[parent]] = node;
+        }
+        lastChilds[parent] = node;
+        // keep load factor at or below 0.5
+        if (nodeCount * 2 > childIndex.length) {
+            rebuildChildIndex(childIndex.length * 2);
+        } else {
+            addToChildIndex(childIndex, node);
+        }
+        return node;
+    }
+
+    private void growNodeArrays() {
+        int newCapacity = sampleCounts.length * 2;
+        packageNameIndexes = Arrays.copyOf(packageNameIndexes, newCapacity);
+        classNameIndexes = Arrays.copyOf(classNameIndexes, newCapacity);
+        methodNameIndexes = Arrays.copyOf(methodNameIndexes, newCapacity);
+        fileNameIndexes = Arrays.copyOf(fileNameIndexes, newCapacity);
+        lineNumbers = Arrays.copyOf(lineNumbers, newCapacity);
+        leafThreadStates = Arrays.copyOf(leafThreadStates, newCapacity);
+        sampleCounts = Arrays.copyOf(sampleCounts, newCapacity);
+        parents = Arrays.copyOf(parents, newCapacity);
+        firstChilds = Arrays.copyOf(firstChilds, newCapacity);
+        lastChilds = Arrays.copyOf(lastChilds, newCapacity);
+        nextSiblings = Arrays.copyOf(nextSiblings, newCapacity);
+        long[] ellipsedSampleCounts = this.ellipsedSampleCounts;
+        if (ellipsedSampleCounts != null) {
+            this.ellipsedSampleCounts = Arrays.copyOf(ellipsedSampleCounts, newCapacity);
+        }
+    }
+
+    private void rebuildChildIndex(int capacity) {
+        int[] childIndex = new int[capacity];
+        // skip synthetic root node
+        for (int node = 1; node < nodeCount; node++) {
+            addToChildIndex(childIndex, node);
+        }
+        this.childIndex = childIndex;
+    }
+
+    private void addToChildIndex(int[] childIndex, int node) {
+        int mask = childIndex.length - 1;
+        int slot = childHash(parents[node], packageNameIndexes[node], classNameIndexes[node],
+                methodNameIndexes[node], fileNameIndexes[node], lineNumbers[node],
+                leafThreadStates[node]) & mask;
+        while (childIndex[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        childIndex[slot] = node + 1;
+    }
+
+    // rebuilding child list in place while iterating over it, returns the new last child
+    private int appendToChildList(int parent, int lastKeptChild, int child) {
+        if (lastKeptChild == NONE) {
+            firstChilds[parent] = child;
+        } else {
+            nextSiblings[lastKeptChild] = child;
+        }
+        return child;
+    }
+
+    private void endChildList(int parent, int lastKeptChild) {
+        if (lastKeptChild == NONE) {
+            firstChilds[parent] = NONE;
+        } else {
+            nextSiblings[lastKeptChild] = NONE;
+        }
+        lastChilds[parent] = lastKeptChild;
+    }
+
+    private long getEllipsedSampleCount(int node) {
+        long[] ellipsedSampleCounts = this.ellipsedSampleCounts;
+        return ellipsedSampleCounts == null ? 0 : ellipsedSampleCounts[node];
+    }
+
+    private Profile.LeafThreadState getLeafThreadState(int node) {
+        return LEAF_THREAD_STATES[leafThreadStates[node]];
+    }
+
+    private String getText(int node) {
+        String packageName = packageNames.get(packageNameIndexes[node]);
+        String className = classNames.get(classNameIndexes[node]);
+        String fullClassName;
+        if (packageName.isEmpty()) {
+            fullClassName = className;
+        } else {
+            fullClassName = packageName + '.' + className;
+        }
+        return new StackTraceElement(fullClassName, methodNames.get(methodNameIndexes[node]),
+                fileNames.get(fileNameIndexes[node]), lineNumbers[node]).toString();
+    }
+
+    private static int childHash(int parent, int packageNameIndex, int classNameIndex,
+            int methodNameIndex, int fileNameIndex, int lineNumber, int leafThreadState) {
+        int h = parent;
+        h = 31 * h + packageNameIndex;
+        h = 31 * h + classNameIndex;
+        h = 31 * h + methodNameIndex;
+        h = 31 * h + fileNameIndex;
+        h = 31 * h + lineNumber;
+        h = 31 * h + leafThreadState;
+        return mix(h);
+    }
+
+    private static int mix(int h) {
+        // spread bits since hash table size is a power of 2
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
     private static Profile.LeafThreadState getThreadState(@Nullable Thread.State state) {
         if (state == null) {
             return Profile.LeafThreadState.NONE;
@@ -278,257 +547,214 @@ public class MutableProfile {
         }
     }
 
-    private static boolean isMatch(ProfileNode profileNode, int packageNameIndex,
-            int classNameIndex, int methodNameIndex, int fileNameIndex, int lineNumber,
-            Profile.LeafThreadState leafThreadState) {
-        // checking line number first since most likely to be different
-        return lineNumber == profileNode.lineNumber
-                && fileNameIndex == profileNode.fileNameIndex
-                && leafThreadState == profileNode.leafThreadState
-                && methodNameIndex == profileNode.methodNameIndex
-                && classNameIndex == profileNode.classNameIndex
-                && packageNameIndex == profileNode.packageNameIndex;
-    }
-
-    private static int[] makeIndexMapping(List<String> toBeMergedNames,
-            Map<String, Integer> existingIndexes, List<String> existingNames) {
-        int[] indexMapping = new int[toBeMergedNames.size()];
-        for (int i = 0; i < toBeMergedNames.size(); i++) {
-            String toBeMergedName = toBeMergedNames.get(i);
-            Integer existingIndex = existingIndexes.get(toBeMergedName);
-            if (existingIndex == null) {
-                int newIndex = existingNames.size();
-                existingNames.add(toBeMergedName);
-                existingIndexes.put(toBeMergedName, newIndex);
-                indexMapping[i] = newIndex;
-            } else {
-                indexMapping[i] = existingIndex;
-            }
-        }
-        return indexMapping;
-    }
-
-    private class ProfileNode {
-
-        private final int packageNameIndex;
-        private final int classNameIndex;
-        private final int methodNameIndex;
-        private final int fileNameIndex;
-        private final int lineNumber;
-        private final Profile.LeafThreadState leafThreadState;
-
-        private long sampleCount;
+    // string -> index interning, using open-addressing (instead of Map<String, Integer>) to avoid
+    // boxing and per-entry objects
+    private static class NameTable {
 
-        private List<ProfileNode> childNodes = Lists.newArrayListWithCapacity(2);
+        private String[] names = new String[16];
+        private int size;
 
-        // these fields are only used for filtering
-        private @Nullable String text;
-        private @Nullable String textUpper;
-        private boolean matched;
-        private long ellipsedSampleCount;
+        // index + 1, 0 means empty slot
+        private int[] slots = new int[32];
 
-        private ProfileNode(int packageNameIndex, int classNameIndex, int methodNameIndex,
-                int fileNameIndex, int lineNumber, Profile.LeafThreadState leafThreadState) {
-            this.packageNameIndex = packageNameIndex;
-            this.classNameIndex = classNameIndex;
-            this.methodNameIndex = methodNameIndex;
-            this.fileNameIndex = fileNameIndex;
-            this.lineNumber = lineNumber;
-            this.leafThreadState = leafThreadState;
-        }
-
-        private String getText() {
-            if (text == null) {
-                String packageName = packageNames.get(packageNameIndex);
-                String className = classNames.get(classNameIndex);
-                String fullClassName;
-                if (packageName.isEmpty()) {
-                    fullClassName = className;
-                } else {
-                    fullClassName = packageName + '.' + className;
+        private int indexOf(String name) {
+            int mask = slots.length - 1;
+            int slot = mix(name.hashCode()) & mask;
+            while (true) {
+                int entry = slots[slot];
+                if (entry == 0) {
+                    return add(name, slot);
+                }
+                if (names[entry - 1].equals(name)) {
+                    return entry - 1;
                 }
-                text = new StackTraceElement(fullClassName, methodNames.get(methodNameIndex),
-                        fileNames.get(fileNameIndex), lineNumber).toString();
+                slot = (slot + 1) & mask;
             }
-            return text;
         }
 
-        private String getTextUpper() {
-            if (textUpper == null) {
-                textUpper = getText().toUpperCase(Locale.ENGLISH);
+        private int[] indexOfAll(List<String> names) {
+            int[] indexes = new int[names.size()];
+            for (int i = 0; i < indexes.length; i++) {
+                indexes[i] = indexOf(names.get(i));
             }
-            return textUpper;
+            return indexes;
         }
-    }
 
-    private class Merger {
+        private String get(int index) {
+            return names[index];
+        }
 
-        private final int[] packageNameIndexMapping;
-        private final int[] classNameIndexMapping;
-        private final int[] methodNameIndexMapping;
-        private final int[] fileNameIndexMapping;
+        private int size() {
+            return size;
+        }
 
-        private final Deque<List<ProfileNode>> destinationStack = Queues.newArrayDeque();
+        private List<String> asList() {
+            return Arrays.asList(names).subList(0, size);
+        }
 
-        private Merger(Profile toBeMergedProfile) {
-            packageNameIndexMapping = makeIndexMapping(toBeMergedProfile.getPackageNameList(),
-                    packageNameIndexes, packageNames);
-            classNameIndexMapping = makeIndexMapping(toBeMergedProfile.getClassNameList(),
-                    classNameIndexes, classNames);
-            methodNameIndexMapping = makeIndexMapping(toBeMergedProfile.getMethodNameList(),
-                    methodNameIndexes, methodNames);
-            fileNameIndexMapping = makeIndexMapping(toBeMergedProfile.getFileNameList(),
-                    fileNameIndexes, fileNames);
+        private int add(String name, int slot) {
+            if (size == names.length) {
+                names = Arrays.copyOf(names, size * 2);
+            }
+            int index = size++;
+            names[index] = name;
+            // keep load factor at or below 0.5
+            if (size * 2 > slots.length) {
+                rehash(slots.length * 2);
+            } else {
+                slots[slot] = index + 1;
+            }
+            return index;
         }
 
-        private void merge(List<Profile.ProfileNode> flatNodes,
-                List<ProfileNode> destinationRootNodes) {
-            destinationStack.push(destinationRootNodes);
-            PeekingIterator<Profile.ProfileNode> i =
-                    Iterators.peekingIterator(flatNodes.iterator());
-            while (i.hasNext()) {
-                Profile.ProfileNode flatNode = i.next();
-                int destinationDepth = destinationStack.size() - 1;
-                for (int j = 0; j < destinationDepth - flatNode.getDepth(); j++) {
-                    // TODO optimize: faster way to pop multiple elements at once
-                    destinationStack.pop();
-                }
-                ProfileNode destinationNode = mergeOne(flatNode, destinationStack.getFirst());
-                if (i.hasNext() && i.peek().getDepth() > flatNode.getDepth()) {
-                    destinationStack.push(destinationNode.childNodes);
+        private void rehash(int capacity) {
+            int[] slots = new int[capacity];
+            int mask = capacity - 1;
+            for (int i = 0; i < size; i++) {
+                int slot = mix(names[i].hashCode()) & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
                 }
+                slots[slot] = i + 1;
             }
+            this.slots = slots;
         }
+    }
 
-        private ProfileNode mergeOne(Profile.ProfileNode toBeMergedNode,
-                List<ProfileNode> destinationNodes) {
-            int toBeMergedPackageNameIndex =
-                    packageNameIndexMapping[toBeMergedNode.getPackageNameIndex()];
-            int toBeMergedClassNameIndex =
-                    classNameIndexMapping[toBeMergedNode.getClassNameIndex()];
-            int toBeMergedMethodNameIndex =
-                    methodNameIndexMapping[toBeMergedNode.getMethodNameIndex()];
-            int toBeMergedFileNameIndex = fileNameIndexMapping[toBeMergedNode.getFileNameIndex()];
-            int toBeMergedLineNumber = toBeMergedNode.getLineNumber();
-            Profile.LeafThreadState toBeMergedLeafThreadState = toBeMergedNode.getLeafThreadState();
-            for (ProfileNode destinationNode : destinationNodes) {
-                if (isMatch(destinationNode, toBeMergedPackageNameIndex, toBeMergedClassNameIndex,
-                        toBeMergedMethodNameIndex, toBeMergedFileNameIndex, toBeMergedLineNumber,
-                        toBeMergedLeafThreadState)) {
-                    merge(toBeMergedNode, destinationNode);
-                    return destinationNode;
+    // iterative depth first traversal (following parent/sibling links instead of using a stack)
+    // to avoid StackOverflowError on deep profiles
+    private abstract class NodeTraverser<E extends Exception> {
+
+        void traverse(int rootNode) throws E {
+            int node = rootNode;
+            int depth = 0;
+            while (true) {
+                if (visit(node, depth) && firstChilds[node] != NONE) {
+                    node = firstChilds[node];
+                    depth++;
+                    continue;
                 }
+                revisitAfterChildren(node);
+                while (node != rootNode && nextSiblings[node] == NONE) {
+                    node = parents[node];
+                    depth--;
+                    revisitAfterChildren(node);
+                }
+                if (node == rootNode) {
+                    return;
+                }
+                node = nextSiblings[node];
             }
-            // no match found
-            ProfileNode destinationNode = new ProfileNode(toBeMergedPackageNameIndex,
-                    toBeMergedClassNameIndex, toBeMergedMethodNameIndex, toBeMergedFileNameIndex,
-                    toBeMergedLineNumber, toBeMergedLeafThreadState);
-            destinationNodes.add(destinationNode);
-            merge(toBeMergedNode, destinationNode);
-            return destinationNode;
         }
 
-        private void merge(Profile.ProfileNode toBeMergedNode, ProfileNode destinationNode) {
-            destinationNode.sampleCount += toBeMergedNode.getSampleCount();
-        }
+        // returns false if children should not be visited
+        abstract boolean visit(int node, int depth) throws E;
+
+        void revisitAfterChildren(@SuppressWarnings("unused") int node) throws E {}
     }
 
-    // using Traverser to avoid StackOverflowError caused by a recursive algorithm
-    private static class ProfileNodeCollector extends Traverser<ProfileNode, RuntimeException> {
+    private class ProfileNodeCollector extends NodeTraverser<RuntimeException> {
 
         private final List<Profile.ProfileNode> nodes;
 
-        public ProfileNodeCollector(ProfileNode rootNode, List<Profile.ProfileNode> nodes) {
-            super(rootNode);
+        private ProfileNodeCollector(List<Profile.ProfileNode> nodes) {
             this.nodes = nodes;
         }
 
         @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) {
+        boolean visit(int node, int depth) {
             nodes.add(Profile.ProfileNode.newBuilder()
                     .setDepth(depth)
-                    .setPackageNameIndex(node.packageNameIndex)
-                    .setClassNameIndex(node.classNameIndex)
-                    .setMethodNameIndex(node.methodNameIndex)
-                    .setFileNameIndex(node.fileNameIndex)
-                    .setLineNumber(node.lineNumber)
-                    .setLeafThreadState(node.leafThreadState)
-                    .setSampleCount(node.sampleCount)
+                    .setPackageNameIndex(packageNameIndexes[node])
+                    .setClassNameIndex(classNameIndexes[node])
+                    .setMethodNameIndex(methodNameIndexes[node])
+                    .setFileNameIndex(fileNameIndexes[node])
+                    .setLineNumber(lineNumbers[node])
+                    .setLeafThreadState(getLeafThreadState(node))
+                    .setSampleCount(sampleCounts[node])
                     .build());
-            return node.childNodes;
+            return true;
         }
     }
 
-    private static class ProfileFilterer extends Traverser<ProfileNode, RuntimeException> {
+    private class ProfileFilterer extends NodeTraverser<RuntimeException> {
 
         private final String filterTextUpper;
         private final boolean exclusion;
+        private final boolean[] matched;
+        private final /*@Nullable*/ String[] textUppers;
 
-        private ProfileFilterer(ProfileNode rootNode, String filterText, boolean exclusion) {
-            super(rootNode);
+        private ProfileFilterer(String filterText, boolean exclusion, boolean[] matched,
+                /*@Nullable*/ String[] textUppers) {
             this.filterTextUpper = filterText.toUpperCase(Locale.ENGLISH);
             this.exclusion = exclusion;
+            this.matched = matched;
+            this.textUppers = textUppers;
         }
 
         @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) {
+        boolean visit(int node, int depth) {
             if (isMatch(node)) {
-                node.matched = true;
+                matched[node] = true;
                 // no need to visit children
-                return ImmutableList.of();
+                return false;
             }
-            return node.childNodes;
+            return true;
         }
 
         @Override
-        public void revisitAfterChildren(ProfileNode node) {
-            if (node.matched) {
+        void revisitAfterChildren(int node) {
+            if (matched[node]) {
                 // if exclusion then node will be removed by parent
                 // if not exclusion then keep node and all children
                 return;
             }
-            if (node.childNodes.isEmpty()) {
+            if (firstChilds[node] == NONE) {
                 return;
             }
             if (removeNode(node)) {
                 // node will be removed by parent
                 if (exclusion) {
-                    node.matched = true;
+                    matched[node] = true;
                 }
                 return;
             }
             if (!exclusion) {
-                node.matched = true;
+                matched[node] = true;
             }
             // node is a partial match, need to filter it out
             long filteredSampleCount = 0;
-            for (Iterator<ProfileNode> i = node.childNodes.iterator(); i.hasNext();) {
-                ProfileNode childNode = i.next();
-                if (exclusion == !childNode.matched) {
-                    filteredSampleCount += childNode.sampleCount;
+            int childNode = firstChilds[node];
+            int keptChildNodes = NONE;
+            while (childNode != NONE) {
+                int nextChildNode = nextSiblings[childNode];
+                if (exclusion == !matched[childNode]) {
+                    filteredSampleCount += sampleCounts[childNode];
+                    keptChildNodes = appendToChildList(node, keptChildNodes, childNode);
                 } else {
-                    i.remove();
+                    parents[childNode] = DETACHED;
                 }
+                childNode = nextChildNode;
             }
-            node.sampleCount = filteredSampleCount;
+            endChildList(node, keptChildNodes);
+            sampleCounts[node] = filteredSampleCount;
         }
 
-        private boolean isMatch(ProfileNode node) {
-            String textUpper = node.getTextUpper();
+        private boolean isMatch(int node) {
+            String textUpper = textUppers[node];
+            if (textUpper == null) {
+                textUpper = getText(node).toUpperCase(Locale.ENGLISH);
+                textUppers[node] = textUpper;
+            }
             if (textUpper.contains(filterTextUpper)) {
                 return true;
             }
-            Profile.LeafThreadState leafThreadState = node.leafThreadState;
-            if (leafThreadState != null) {
-                String leafThreadStateUpper = leafThreadState.name().toUpperCase(Locale.ENGLISH);
-                if (leafThreadStateUpper.contains(filterTextUpper)) {
-                    return true;
-                }
-            }
-            return false;
+            String leafThreadStateUpper =
+                    getLeafThreadState(node).name().toUpperCase(Locale.ENGLISH);
+            return leafThreadStateUpper.contains(filterTextUpper);
         }
 
-        private boolean removeNode(ProfileNode node) {
+        private boolean removeNode(int node) {
             if (exclusion) {
                 return hasOnlyMatchedChildren(node);
             } else {
@@ -536,18 +762,20 @@ public class MutableProfile {
             }
         }
 
-        private boolean hasOnlyMatchedChildren(ProfileNode node) {
-            for (ProfileNode childNode : node.childNodes) {
-                if (!childNode.matched) {
+        private boolean hasOnlyMatchedChildren(int node) {
+            for (int childNode = firstChilds[node]; childNode != NONE;
+                    childNode = nextSiblings[childNode]) {
+                if (!matched[childNode]) {
                     return false;
                 }
             }
             return true;
         }
 
-        private boolean hasNoMatchedChildren(ProfileNode node) {
-            for (ProfileNode childNode : node.childNodes) {
-                if (childNode.matched) {
+        private boolean hasNoMatchedChildren(int node) {
+            for (int childNode = firstChilds[node]; childNode != NONE;
+                    childNode = nextSiblings[childNode]) {
+                if (matched[childNode]) {
                     return false;
                 }
             }
@@ -555,82 +783,81 @@ public class MutableProfile {
         }
     }
 
-    private static class ProfileResetMatches extends Traverser<ProfileNode, RuntimeException> {
+    private class ProfileResetMatches extends NodeTraverser<RuntimeException> {
+
+        private final boolean[] matched;
 
-        private ProfileResetMatches(ProfileNode rootNode) {
-            super(rootNode);
+        private ProfileResetMatches(boolean[] matched) {
+            this.matched = matched;
         }
 
         @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) {
-            node.matched = false;
-            return node.childNodes;
+        boolean visit(int node, int depth) {
+            matched[node] = false;
+            return true;
         }
     }
 
-    private class ProfileWriter extends Traverser<ProfileNode, IOException> {
+    private class ProfileWriter extends NodeTraverser<IOException> {
 
         private final JsonGenerator jg;
 
-        private ProfileWriter(ProfileNode rootNode, JsonGenerator jg) throws IOException {
-            super(rootNode);
+        private ProfileWriter(JsonGenerator jg) {
             this.jg = jg;
         }
 
         @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) throws IOException {
+        boolean visit(int node, int depth) throws IOException {
             jg.writeStartObject();
-            jg.writeStringField("stackTraceElement", node.getText());
-            Profile.LeafThreadState leafThreadState = node.leafThreadState;
+            jg.writeStringField("stackTraceElement", getText(node));
+            Profile.LeafThreadState leafThreadState = getLeafThreadState(node);
             if (leafThreadState != Profile.LeafThreadState.NONE) {
                 jg.writeStringField("leafThreadState", leafThreadState.name());
             }
-            jg.writeNumberField("sampleCount", node.sampleCount);
-            long ellipsedSampleCount = node.ellipsedSampleCount;
+            jg.writeNumberField("sampleCount", sampleCounts[node]);
+            long ellipsedSampleCount = getEllipsedSampleCount(node);
             if (ellipsedSampleCount > 0) {
                 jg.writeNumberField("ellipsedSampleCount", ellipsedSampleCount);
             }
-            List<ProfileNode> childNodes = node.childNodes;
-            if (!childNodes.isEmpty()) {
+            if (firstChilds[node] != NONE) {
                 jg.writeArrayFieldStart("childNodes");
             }
-            return childNodes;
+            return true;
         }
 
         @Override
-        public void revisitAfterChildren(ProfileNode node) throws IOException {
-            if (!node.childNodes.isEmpty()) {
+        void revisitAfterChildren(int node) throws IOException {
+            if (firstChilds[node] != NONE) {
                 jg.writeEndArray();
             }
             jg.writeEndObject();
         }
     }
 
-    private class FlameGraphWriter extends Traverser<ProfileNode, IOException> {
+    private class FlameGraphWriter extends NodeTraverser<IOException> {
 
         private final JsonGenerator jg;
         private int height;
 
-        private FlameGraphWriter(ProfileNode rootNode, JsonGenerator jg) throws IOException {
-            super(rootNode);
+        private FlameGraphWriter(JsonGenerator jg) {
             this.jg = jg;
         }
 
         @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) throws IOException {
+        boolean visit(int node, int depth) throws IOException {
             height = Math.max(height, depth + 1);
             jg.writeStartObject();
-            jg.writeStringField("name", node.getText());
-            jg.writeNumberField("value", node.sampleCount);
-            if (!node.childNodes.isEmpty()) {
+            jg.writeStringField("name", getText(node));
+            jg.writeNumberField("value", sampleCounts[node]);
+            if (firstChilds[node] != NONE) {
                 jg.writeArrayFieldStart("children");
             }
-            return node.childNodes;
+            return true;
         }
 
         @Override
-        public void revisitAfterChildren(ProfileNode node) throws IOException {
-            if (!node.childNodes.isEmpty()) {
+        void revisitAfterChildren(int node) throws IOException {
+            if (firstChilds[node] != NONE) {
                 jg.writeEndArray();
             }
             jg.writeEndObject();
@@ -260,6 +260,10 @@ HandlebarsRendering = (function () {
     return formatBytes(bytes);
   });
 
+  Handlebars.registerHelper('formatSampleRatio', function (sampleRatio) {
+    return formatPercent(sampleRatio * 100);
+  });
+
   Handlebars.registerHelper('ifNotOne', function (num, options) {
     if (num !== 1) {
       return options.fn(this);
@@ -60,6 +60,10 @@ public abstract class ChunkSource {
 
         // returns false when nothing left to copy
         boolean copyNext() throws IOException;
+
+        // this is called when done copying, including when not everything was copied (e.g. when
+        // the client disconnects)
+        void close() throws IOException;
     }
 
     private static class ReaderChunkCopier implements ChunkCopier {
@@ -86,6 +90,11 @@ public abstract class ChunkSource {
             return true;
         }
 
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+
         private static int readFully(Reader reader, char[] buffer) throws IOException {
             int total = 0;
             while (true) {
@@ -130,9 +139,18 @@ public abstract class ChunkSource {
                 return false;
             }
             // advance to the next chunk source
+            currChunkCopier.close();
             currChunkCopier = chunkSources.next().getCopier(writer);
             return copyNext();
         }
+
+        @Override
+        public void close() throws IOException {
+            ChunkCopier chunkCopier = currChunkCopier;
+            if (chunkCopier != null) {
+                chunkCopier.close();
+            }
+        }
     }
 
     private static class StringChunkCopier implements ChunkCopier {
@@ -156,5 +174,8 @@ public abstract class ChunkSource {
             closed = true;
             return true;
         }
+
+        @Override
+        public void close() {}
     }
 }
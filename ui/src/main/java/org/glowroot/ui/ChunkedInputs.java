@@ -78,7 +78,9 @@ class ChunkedInputs {
         }
 
         @Override
-        public void close() throws IOException {}
+        public void close() throws IOException {
+            getChunkCopier().close();
+        }
 
         @Override
         public long length() {
@@ -92,6 +94,8 @@ class ChunkedInputs {
         }
 
         protected abstract @Nullable ByteBuf readNextChunk() throws IOException;
+
+        protected abstract ChunkCopier getChunkCopier();
     }
 
     private static class ChunkSourceChunkedInput extends BaseChunkedInput {
@@ -108,6 +112,11 @@ class ChunkedInputs {
             chunkCopier = chunkSource.getCopier(writer);
         }
 
+        @Override
+        protected ChunkCopier getChunkCopier() {
+            return chunkCopier;
+        }
+
         @Override
         public @Nullable ByteBuf readNextChunk() throws IOException {
             if (closed) {
@@ -153,6 +162,11 @@ class ChunkedInputs {
             chunkCopier = chunkSource.getCopier(zipWriter);
         }
 
+        @Override
+        protected ChunkCopier getChunkCopier() {
+            return chunkCopier;
+        }
+
         @Override
         protected @Nullable ByteBuf readNextChunk() throws IOException {
             if (closed) {
@@ -16,6 +16,7 @@
 package org.glowroot.ui;
 
 import java.io.IOException;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.List;
 import java.util.Locale;
@@ -25,14 +26,15 @@ import javax.annotation.Nullable;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.collect.Iterators;
-import com.google.common.collect.PeekingIterator;
+import com.google.common.collect.Lists;
 import com.google.common.io.CharStreams;
 import org.immutables.value.Value;
 
 import org.glowroot.common.live.LiveTraceRepository;
+import org.glowroot.common.live.LiveTraceRepository.ChunkedEntries;
 import org.glowroot.common.live.LiveTraceRepository.Entries;
 import org.glowroot.common.live.LiveTraceRepository.Existence;
+import org.glowroot.common.live.LiveTraceRepository.FullTrace;
 import org.glowroot.common.model.MutableProfile;
 import org.glowroot.common.repo.AgentRepository;
 import org.glowroot.common.repo.TraceRepository;
@@ -79,19 +81,27 @@ class TraceCommonService {
     // TODO this comment is no longer valid?
     // overwritten entries will return {"overwritten":true}
     // expired (not found) trace will return {"expired":true}
+    //
+    // entries of active/pending traces are written as they are read from the (possibly remote)
+    // agent, so that large traces do not need to be held in memory all at once
     @Nullable
-    String getEntriesJson(String agentRollupId, String agentId, String traceId,
+    ChunkSource getEntriesJson(String agentRollupId, String agentId, String traceId,
             boolean checkLiveTraces) throws Exception {
         if (checkLiveTraces) {
             // check active/pending traces first, and lastly stored traces to make sure that the
             // trace is not missed if it is in transition between these states
-            Entries entries = liveTraceRepository.getEntries(agentRollupId, agentId, traceId);
+            ChunkedEntries entries =
+                    liveTraceRepository.getEntries(agentRollupId, agentId, traceId);
             if (entries != null) {
-                return toJson(entries);
+                return new EntriesChunkSource(entries, true);
             }
         }
-        return toJson(getStoredEntries(agentRollupId, agentId, traceId,
+        String entriesJson = toJson(getStoredEntries(agentRollupId, agentId, traceId,
                 new RetryCountdown(checkLiveTraces)));
+        if (entriesJson == null) {
+            return null;
+        }
+        return ChunkSource.wrap(entriesJson);
     }
 
     // overwritten profile will return {"overwritten":true}
@@ -136,20 +146,27 @@ class TraceCommonService {
         if (checkLiveTraces) {
             // check active/pending traces first, and lastly stored traces to make sure that the
             // trace is not missed if it is in transition between these states
-            Trace trace = liveTraceRepository.getFullTrace(agentRollupId, agentId, traceId);
-            if (trace != null) {
-                Trace.Header header = trace.getHeader();
-                return ImmutableTraceExport.builder()
-                        .fileName(getFileName(header))
-                        .headerJson(toJsonLiveHeader(agentId, header))
-                        .entriesJson(entriesToJson(trace.getEntryList()))
-                        // SharedQueryTexts are always returned from getFullTrace() above with
-                        // fullTrace, so no need to resolve fullTraceSha1
-                        .sharedQueryTextsJson(
-                                sharedQueryTextsToJson(trace.getSharedQueryTextList()))
-                        .mainThreadProfileJson(toJson(trace.getMainThreadProfile()))
-                        .auxThreadProfileJson(toJson(trace.getAuxThreadProfile()))
-                        .build();
+            FullTrace fullTrace =
+                    liveTraceRepository.getFullTrace(agentRollupId, agentId, traceId);
+            if (fullTrace != null) {
+                EntriesChunkSource entries = new EntriesChunkSource(fullTrace.entries(), false);
+                try {
+                    Trace trace = fullTrace.trace();
+                    Trace.Header header = trace.getHeader();
+                    return ImmutableTraceExport.builder()
+                            .fileName(getFileName(header))
+                            .headerJson(toJsonLiveHeader(agentId, header))
+                            .entriesJson(entries)
+                            // SharedQueryTexts are always returned from getFullTrace() above with
+                            // fullTrace, so no need to resolve fullTraceSha1
+                            .sharedQueryTextsJson(entries.getSharedQueryTextsJson())
+                            .mainThreadProfileJson(toJson(trace.getMainThreadProfile()))
+                            .auxThreadProfileJson(toJson(trace.getAuxThreadProfile()))
+                            .build();
+                } catch (Exception e) {
+                    fullTrace.entries().close();
+                    throw e;
+                }
             }
         }
         RetryCountdown retryCountdown = new RetryCountdown(checkLiveTraces);
@@ -163,10 +180,10 @@ class TraceCommonService {
         Entries entries =
                 getStoredEntriesForExport(agentRollupId, agentId, traceId, retryCountdown);
         if (entries != null) {
-            builder.entriesJson(entriesToJson(entries.entries()));
+            builder.entriesJson(wrap(entriesToJson(entries.entries())));
             // SharedQueryTexts are always returned from getStoredEntries() above with fullTrace,
             // so no need to resolve fullTraceSha1
-            builder.sharedQueryTextsJson(sharedQueryTextsToJson(entries.sharedQueryTexts()));
+            builder.sharedQueryTextsJson(wrap(sharedQueryTextsToJson(entries.sharedQueryTexts())));
         }
         builder.mainThreadProfileJson(
                 toJson(getStoredMainThreadProfile(agentRollupId, agentId, traceId,
@@ -273,27 +290,12 @@ class TraceCommonService {
 
     private static void writeEntries(JsonGenerator jg, List<Trace.Entry> entries)
             throws IOException {
-        jg.writeStartArray();
-        PeekingIterator<Trace.Entry> i = Iterators.peekingIterator(entries.iterator());
-        while (i.hasNext()) {
-            Trace.Entry entry = i.next();
-            int depth = entry.getDepth();
-            jg.writeStartObject();
-            writeJson(entry, jg);
-            int nextDepth = i.hasNext() ? i.peek().getDepth() : 0;
-            if (nextDepth > depth) {
-                jg.writeArrayFieldStart("childEntries");
-            } else if (nextDepth < depth) {
-                jg.writeEndObject();
-                for (int j = depth; j > nextDepth; j--) {
-                    jg.writeEndArray();
-                    jg.writeEndObject();
-                }
-            } else {
-                jg.writeEndObject();
-            }
+        NestedEntriesWriter entriesWriter = new NestedEntriesWriter(jg);
+        entriesWriter.writeStart();
+        for (Trace.Entry entry : entries) {
+            entriesWriter.write(entry);
         }
-        jg.writeEndArray();
+        entriesWriter.writeEnd();
     }
 
     private static void writeSharedQueryTexts(JsonGenerator jg,
@@ -426,6 +428,10 @@ class TraceCommonService {
             jg.writeBooleanField("auxThreadProfileSampleLimitExceeded",
                     auxThreadProfileSampleLimitExceeded);
         }
+        double sampleRatio = header.getSampleRatio();
+        if (sampleRatio != 0) {
+            jg.writeNumberField("sampleRatio", sampleRatio);
+        }
         jg.writeStringField("entriesExistence",
                 entriesExistence.name().toLowerCase(Locale.ENGLISH));
         jg.writeStringField("profileExistence",
@@ -595,6 +601,10 @@ class TraceCommonService {
                 stackTraceElement.getLineNumber()).toString());
     }
 
+    private static @Nullable ChunkSource wrap(@Nullable String json) {
+        return json == null ? null : ChunkSource.wrap(json);
+    }
+
     private static String getFileName(Trace.Header header) {
         return "trace-" + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(header.getStartTime());
     }
@@ -608,15 +618,163 @@ class TraceCommonService {
         }
     }
 
+    // writes the entries nested under their parent entries (based on entry depth), one entry at a
+    // time, without needing the entries up front
+    private static class NestedEntriesWriter {
+
+        private final JsonGenerator jg;
+
+        // -1 means no entries written yet
+        private int prevDepth = -1;
+
+        private NestedEntriesWriter(JsonGenerator jg) {
+            this.jg = jg;
+        }
+
+        private void writeStart() throws IOException {
+            jg.writeStartArray();
+        }
+
+        private void write(Trace.Entry entry) throws IOException {
+            int depth = entry.getDepth();
+            if (prevDepth != -1) {
+                endPrevEntry(depth);
+            }
+            jg.writeStartObject();
+            writeJson(entry, jg);
+            prevDepth = depth;
+        }
+
+        private void writeEnd() throws IOException {
+            if (prevDepth != -1) {
+                endPrevEntry(0);
+            }
+            jg.writeEndArray();
+        }
+
+        // the previous entry is left open until the next entry's depth is known
+        private void endPrevEntry(int nextDepth) throws IOException {
+            if (nextDepth > prevDepth) {
+                jg.writeArrayFieldStart("childEntries");
+            } else if (nextDepth < prevDepth) {
+                jg.writeEndObject();
+                for (int j = prevDepth; j > nextDepth; j--) {
+                    jg.writeEndArray();
+                    jg.writeEndObject();
+                }
+            } else {
+                jg.writeEndObject();
+            }
+        }
+    }
+
+    // writes the entries as each chunk is read, so this can only be copied once
+    @VisibleForTesting
+    static class EntriesChunkSource extends ChunkSource {
+
+        private final ChunkedEntries chunkedEntries;
+        // when true, writes {"entries":[...],"sharedQueryTexts":[...]}, otherwise just the entries
+        // array (in which case the shared query texts are available from
+        // getSharedQueryTextsJson() after the entries have been copied)
+        private final boolean includeSharedQueryTexts;
+
+        private final List<Trace.SharedQueryText> sharedQueryTexts = Lists.newArrayList();
+
+        EntriesChunkSource(ChunkedEntries chunkedEntries, boolean includeSharedQueryTexts) {
+            this.chunkedEntries = chunkedEntries;
+            this.includeSharedQueryTexts = includeSharedQueryTexts;
+        }
+
+        @Override
+        public ChunkCopier getCopier(Writer writer) throws IOException {
+            return new EntriesChunkCopier(jsonFactory.createGenerator(writer));
+        }
+
+        // the json is not generated until this is copied, which must be after the entries have
+        // been copied
+        private ChunkSource getSharedQueryTextsJson() {
+            return new ChunkSource() {
+                @Override
+                public ChunkCopier getCopier(Writer writer) throws IOException {
+                    String json = sharedQueryTextsToJson(sharedQueryTexts);
+                    return ChunkSource.wrap(json == null ? "" : json).getCopier(writer);
+                }
+            };
+        }
+
+        private class EntriesChunkCopier implements ChunkCopier {
+
+            private final JsonGenerator jg;
+            private final NestedEntriesWriter entriesWriter;
+
+            private boolean started;
+            private boolean finished;
+
+            private EntriesChunkCopier(JsonGenerator jg) {
+                this.jg = jg;
+                entriesWriter = new NestedEntriesWriter(jg);
+            }
+
+            @Override
+            public boolean copyNext() throws IOException {
+                if (finished) {
+                    return false;
+                }
+                if (!started) {
+                    if (includeSharedQueryTexts) {
+                        jg.writeStartObject();
+                        jg.writeFieldName("entries");
+                    }
+                    entriesWriter.writeStart();
+                    started = true;
+                }
+                Entries chunk = readNextChunk();
+                if (chunk == null) {
+                    entriesWriter.writeEnd();
+                    if (includeSharedQueryTexts) {
+                        jg.writeFieldName("sharedQueryTexts");
+                        writeSharedQueryTexts(jg, sharedQueryTexts);
+                        jg.writeEndObject();
+                    }
+                    jg.flush();
+                    finished = true;
+                    chunkedEntries.close();
+                    return true;
+                }
+                sharedQueryTexts.addAll(chunk.sharedQueryTexts());
+                for (Trace.Entry entry : chunk.entries()) {
+                    entriesWriter.write(entry);
+                }
+                jg.flush();
+                return true;
+            }
+
+            @Override
+            public void close() {
+                chunkedEntries.close();
+            }
+
+            private @Nullable Entries readNextChunk() throws IOException {
+                try {
+                    return chunkedEntries.readNextChunk();
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+    }
+
     @Value.Immutable
     @Styles.AllParameters
     interface TraceExport {
         String fileName();
         String headerJson();
         @Nullable
-        String entriesJson();
+        ChunkSource entriesJson();
         @Nullable
-        String sharedQueryTextsJson();
+        ChunkSource sharedQueryTextsJson();
         @Nullable
         String mainThreadProfileJson();
         @Nullable
@@ -139,17 +139,17 @@ class TraceExportHttpService implements HttpService {
             } else if (match.equals(entriesPlaceholder)) {
                 chunkSources
                         .add(ChunkSource.wrap("<script type=\"text/json\" id=\"entriesJson\">"));
-                String entriesJson = traceExport.entriesJson();
+                ChunkSource entriesJson = traceExport.entriesJson();
                 if (entriesJson != null) {
-                    chunkSources.add(ChunkSource.wrap(entriesJson));
+                    chunkSources.add(entriesJson);
                 }
                 chunkSources.add(ChunkSource.wrap("</script>"));
             } else if (match.equals(sharedQueryTextsPlaceholder)) {
                 chunkSources.add(ChunkSource
                         .wrap("<script type=\"text/json\" id=\"sharedQueryTextsJson\">"));
-                String sharedQueryTextsJson = traceExport.sharedQueryTextsJson();
+                ChunkSource sharedQueryTextsJson = traceExport.sharedQueryTextsJson();
                 if (sharedQueryTextsJson != null) {
-                    chunkSources.add(ChunkSource.wrap(sharedQueryTextsJson));
+                    chunkSources.add(sharedQueryTextsJson);
                 }
                 chunkSources.add(ChunkSource.wrap("</script>"));
             } else if (match.equals(mainThreadProfilePlaceholder)) {
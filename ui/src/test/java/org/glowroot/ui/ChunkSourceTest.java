@@ -106,6 +106,9 @@ public class ChunkSourceTest {
                 public boolean copyNext() throws IOException {
                     return false;
                 }
+
+                @Override
+                public void close() {}
             };
         }
     }
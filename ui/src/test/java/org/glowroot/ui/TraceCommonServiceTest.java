@@ -15,11 +15,21 @@
  */
 package org.glowroot.ui;
 
+import java.io.CharArrayWriter;
+import java.util.Iterator;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.junit.Test;
 
+import org.glowroot.common.live.ImmutableEntries;
+import org.glowroot.common.live.LiveTraceRepository.ChunkedEntries;
+import org.glowroot.common.live.LiveTraceRepository.Entries;
+import org.glowroot.ui.ChunkSource.ChunkCopier;
+import org.glowroot.ui.TraceCommonService.EntriesChunkSource;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -39,4 +49,119 @@ public class TraceCommonServiceTest {
                 + "\"childEntries\":[{\"startOffsetNanos\":0,\"durationNanos\":0,\"message\":\"\"}]"
                 + "}]");
     }
+
+    @Test
+    public void shouldWriteNestedEntriesAcrossChunks() throws Exception {
+        // given
+        List<Trace.Entry> entries = Lists.newArrayList();
+        entries.add(entry(0, "a"));
+        entries.add(entry(1, "b"));
+        entries.add(entry(2, "c"));
+        entries.add(entry(0, "d"));
+        entries.add(entry(1, "e"));
+        entries.add(entry(1, "f"));
+        entries.add(entry(0, "g"));
+        TestChunkedEntries chunkedEntries = new TestChunkedEntries(
+                chunk(entries.subList(0, 2)),
+                chunk(entries.subList(2, 5)),
+                chunk(ImmutableList.<Trace.Entry>of()),
+                chunk(entries.subList(5, 7)));
+        EntriesChunkSource chunkSource = new EntriesChunkSource(chunkedEntries, false);
+        // when
+        String json = copy(chunkSource);
+        // then
+        assertThat(json).isEqualTo(TraceCommonService.entriesToJson(entries));
+        assertThat(chunkedEntries.closed).isTrue();
+    }
+
+    @Test
+    public void shouldWriteSharedQueryTextsFromAllChunks() throws Exception {
+        // given
+        Trace.SharedQueryText one = Trace.SharedQueryText.newBuilder()
+                .setFullText("select 1")
+                .build();
+        Trace.SharedQueryText two = Trace.SharedQueryText.newBuilder()
+                .setFullText("select 2")
+                .build();
+        TestChunkedEntries chunkedEntries = new TestChunkedEntries(
+                ImmutableEntries.builder()
+                        .addEntries(entry(0, "a"))
+                        .addSharedQueryTexts(one)
+                        .build(),
+                ImmutableEntries.builder()
+                        .addEntries(entry(1, "b"))
+                        .addSharedQueryTexts(two)
+                        .build());
+        EntriesChunkSource chunkSource = new EntriesChunkSource(chunkedEntries, true);
+        // when
+        String json = copy(chunkSource);
+        // then
+        assertThat(json).isEqualTo("{\"entries\":[{\"startOffsetNanos\":0,\"durationNanos\":0,"
+                + "\"message\":\"a\",\"childEntries\":[{\"startOffsetNanos\":0,"
+                + "\"durationNanos\":0,\"message\":\"b\"}]}],\"sharedQueryTexts\":["
+                + "{\"fullText\":\"select 1\"},{\"fullText\":\"select 2\"}]}");
+        assertThat(chunkedEntries.closed).isTrue();
+    }
+
+    @Test
+    public void shouldCloseEntriesWhenNotFullyCopied() throws Exception {
+        // given
+        TestChunkedEntries chunkedEntries = new TestChunkedEntries(
+                chunk(ImmutableList.of(entry(0, "a"))),
+                chunk(ImmutableList.of(entry(0, "b"))));
+        EntriesChunkSource chunkSource = new EntriesChunkSource(chunkedEntries, true);
+        ChunkCopier copier = chunkSource.getCopier(new CharArrayWriter());
+        // when
+        copier.copyNext();
+        copier.close();
+        // then
+        assertThat(chunkedEntries.closed).isTrue();
+        assertThat(chunkedEntries.chunks.hasNext()).isTrue();
+    }
+
+    private static String copy(ChunkSource chunkSource) throws Exception {
+        CharArrayWriter writer = new CharArrayWriter();
+        ChunkCopier copier = chunkSource.getCopier(writer);
+        try {
+            while (copier.copyNext()) {
+            }
+        } finally {
+            copier.close();
+        }
+        return writer.toString();
+    }
+
+    private static Trace.Entry entry(int depth, String message) {
+        return Trace.Entry.newBuilder()
+                .setDepth(depth)
+                .setMessage(message)
+                .build();
+    }
+
+    private static Entries chunk(List<Trace.Entry> entries) {
+        return ImmutableEntries.builder()
+                .addAllEntries(entries)
+                .build();
+    }
+
+    private static class TestChunkedEntries implements ChunkedEntries {
+
+        private final Iterator<Entries> chunks;
+
+        private boolean closed;
+
+        private TestChunkedEntries(Entries... chunks) {
+            this.chunks = ImmutableList.copyOf(chunks).iterator();
+        }
+
+        @Override
+        public @Nullable Entries readNextChunk() {
+            return chunks.hasNext() ? chunks.next() : null;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
 }